@@ -27,6 +27,9 @@ package net.propero.rdp;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,8 +42,33 @@ public class Bitmap {
 
 	public int usage;
 
+	/**
+	 * Pixels as RGB ints, for 32 bpp bitmaps and those created from ints.
+	 * Other bitmaps are kept at the depth they were sent in bytes or shorts.
+	 */
 	private int[] highdata = null;
 
+	/** 8 bpp palette indices, or 24 bpp pixels as three bytes, blue first */
+	private byte[] bytes = null;
+
+	/** 15 or 16 bpp colours */
+	private short[] shorts = null;
+
+	/** Table converting shorts to RGB, or null to use them as they are */
+	private int[] table = null;
+
+	/** Bytes per pixel of bytes or shorts */
+	private int Bpp = 4;
+
+	/** Bitmaps the pixel data is spilled out of the heap with, otherwise null */
+	private SpilledGroup spilled = null;
+
+	/** Length of the array of pixel data while it is spilled */
+	private int spilledLength = 0;
+
+	/** Store the pixel data was shared through, if any */
+	private PixelStore store = null;
+
 	private int width = 0;
 
 	private int height = 0;
@@ -51,17 +79,74 @@ public class Bitmap {
 
 	private static final Logger LOGGER = LogManager.getLogger();
 
+	/**
+	 * 15 and 16 bit to 24 bit colour tables, built when first used
+	 */
+	private static final class Colour15 {
+		static final int[] TABLE = new int[0x10000];
+		static {
+			for (int i = 0; i < TABLE.length; i++) {
+				TABLE[i] = convert15to24(i);
+			}
+		}
+	}
+
+	private static final class Colour16 {
+		static final int[] TABLE = new int[0x10000];
+		static {
+			for (int i = 0; i < TABLE.length; i++) {
+				TABLE[i] = convert16to24(i);
+			}
+		}
+	}
+
+	/**
+	 * @param bpp
+	 *            Colour depth
+	 * @return Table mapping each 16 bit colour to 24 bit RGB, or null if
+	 *         colours of this depth are not converted
+	 */
+	static int[] colourTable(int bpp) {
+		if (bpp == 15) {
+			return Colour15.TABLE;
+		}
+		if (bpp == 16) {
+			return Colour16.TABLE;
+		}
+		return null;
+	}
+
 	static int convertTo24(Options options, int colour) {
-		if (options.server_bpp == 15) {
-			return convert15to24(colour);
+		int[] table = colourTable(options.server_bpp);
+		if (table != null) {
+			return table[colour & 0xFFFF];
 		}
-		if (options.server_bpp == 16) {
-			return convert16to24(colour);
+		return colour;
+	}
+
+	/**
+	 * Convert a colour from an order to 24 bit RGB. 24 and 32 bit colours are
+	 * sent in BGR order and are swapped.
+	 *
+	 * @param options
+	 *            Options giving the colour depth
+	 * @param colour
+	 *            Colour as sent by the server
+	 * @return RGB colour
+	 */
+	static int convertToRGB(Options options, int colour) {
+		int[] table = colourTable(options.server_bpp);
+		if (table != null) {
+			return table[colour & 0xFFFF];
+		}
+		if (options.Bpp >= 3) {
+			return ((colour & 0xFF) << 16) | (colour & 0xFF00)
+					| ((colour & 0xFF0000) >> 16);
 		}
 		return colour;
 	}
 
-	private static int convert15to24(int colour16) {
+	static int convert15to24(int colour16) {
 		int r24 = (colour16 >> 7) & 0xF8;
 		int g24 = (colour16 >> 2) & 0xF8;
 		int b24 = (colour16 << 3) & 0xFF;
@@ -73,7 +158,7 @@ public class Bitmap {
 		return (r24 << 16) | (g24 << 8) | b24;
 	}
 
-	private static int convert16to24(int colour16) {
+	static int convert16to24(int colour16) {
 		int r24 = (colour16 >> 8) & 0xF8;
 		int g24 = (colour16 >> 3) & 0xFC;
 		int b24 = (colour16 << 3) & 0xFF;
@@ -97,18 +182,25 @@ public class Bitmap {
 	static int[] convertImage(Options options, byte[] bitmap, int Bpp) {
 		int[] out = new int[bitmap.length / Bpp];
 
-		for (int i = 0; i < out.length; i++) {
-			if (Bpp == 1) {
+		if (Bpp == 1) {
+			for (int i = 0; i < out.length; i++) {
 				out[i] = bitmap[i] & 0xFF;
-			} else if (Bpp == 2) {
-				out[i] = ((bitmap[i * Bpp + 1] & 0xFF) << 8)
-						| (bitmap[i * Bpp] & 0xFF);
-			} else if (Bpp == 3) {
-				out[i] = ((bitmap[i * Bpp + 2] & 0xFF) << 16)
-						| ((bitmap[i * Bpp + 1] & 0xFF) << 8)
-						| (bitmap[i * Bpp] & 0xFF);
 			}
-			out[i] = Bitmap.convertTo24(options, out[i]);
+		} else if (Bpp == 2) {
+			int[] table = colourTable(options.server_bpp);
+			for (int i = 0, j = 0; i < out.length; i++, j += 2) {
+				int colour = ((bitmap[j + 1] & 0xFF) << 8) | (bitmap[j] & 0xFF);
+				out[i] = (table != null) ? table[colour] : colour;
+			}
+		} else if (Bpp == 3) {
+			for (int i = 0, j = 0; i < out.length; i++, j += 3) {
+				out[i] = ((bitmap[j + 2] & 0xFF) << 16)
+						| ((bitmap[j + 1] & 0xFF) << 8) | (bitmap[j] & 0xFF);
+			}
+		} else if (Bpp == 4) {
+			// BGRX, the same layout as an RGB int
+			ByteBuffer.wrap(bitmap).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+					.get(out);
 		}
 		return out;
 	}
@@ -137,7 +229,9 @@ public class Bitmap {
 	}
 
 	/**
-	 * Constructor for Bitmap based on
+	 * Constructor for Bitmap based on pixel data as sent by the server. The
+	 * pixels are kept at this depth and converted when drawn; 8 and 24 bpp
+	 * data is kept without copying.
 	 *
 	 * @param data
 	 *            Array of pixel data, each pixel represented by Bpp bytes.
@@ -154,21 +248,223 @@ public class Bitmap {
 	 *            Number of bytes per pixel in image represented by data
 	 */
 	public Bitmap(Options options, byte[] data, int width, int height, int x, int y, int Bpp) {
-		this.highdata = Bitmap.convertImage(options, data, Bpp);
 		this.width = width;
 		this.height = height;
 		this.x = x;
 		this.y = y;
+		this.Bpp = Bpp;
+		if (Bpp == 1 || Bpp == 3) {
+			this.bytes = data;
+		} else if (Bpp == 2) {
+			this.shorts = new short[data.length / 2];
+			ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+					.get(shorts);
+			this.table = colourTable(options.server_bpp);
+		} else {
+			this.highdata = Bitmap.convertImage(options, data, Bpp);
+			this.Bpp = 4;
+		}
+	}
+
+	private Bitmap(int width, int height, int Bpp) {
+		this.width = width;
+		this.height = height;
+		this.Bpp = Bpp;
 	}
 
 	/**
 	 * Retrieve data representing this Bitmap, as an array of integer pixel
-	 * values
+	 * values. Unless the bitmap is held as ints, the data is converted on
+	 * each call. The array may be shared, and must not be modified.
 	 *
 	 * @return Bitmap pixel data
 	 */
 	public int[] getBitmapData() {
-		return this.highdata;
+		restore();
+		if (highdata != null) {
+			return this.highdata;
+		}
+		int[] data = new int[width * height];
+		getRGB(0, 0, width, height, data);
+		return data;
+	}
+
+	/**
+	 * Convert an area of the bitmap to integer pixel values, as returned by
+	 * {@link #getBitmapData()}
+	 *
+	 * @param srcx
+	 *            x coordinate of the left of the area
+	 * @param srcy
+	 *            y coordinate of the top of the area
+	 * @param cx
+	 *            Width of the area
+	 * @param cy
+	 *            Height of the area
+	 * @param out
+	 *            Array to hold the pixels, cx to a row
+	 */
+	void getRGB(int srcx, int srcy, int cx, int cy, int[] out) {
+		if (cx <= 0) {
+			return;
+		}
+		restore();
+		for (int row = 0, o = 0; row < cy; row++, o += cx) {
+			int p = (srcy + row) * width + srcx;
+			if (highdata != null) {
+				System.arraycopy(highdata, p, out, o, cx);
+			} else if (shorts != null) {
+				if (table != null) {
+					for (int i = 0; i < cx; i++) {
+						out[o + i] = table[shorts[p + i] & 0xFFFF];
+					}
+				} else {
+					for (int i = 0; i < cx; i++) {
+						out[o + i] = shorts[p + i] & 0xFFFF;
+					}
+				}
+			} else if (Bpp == 1) {
+				for (int i = 0; i < cx; i++) {
+					out[o + i] = bytes[p + i] & 0xFF;
+				}
+			} else {
+				for (int i = 0, j = p * 3; i < cx; i++, j += 3) {
+					out[o + i] = ((bytes[j + 2] & 0xFF) << 16)
+							| ((bytes[j + 1] & 0xFF) << 8) | (bytes[j] & 0xFF);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Use an identical copy of the pixel data from a store, if it holds one,
+	 * or add the data to the store
+	 *
+	 * @param store
+	 *            Store to share the data through
+	 */
+	void share(PixelStore store) {
+		this.store = store;
+		restore();
+		if (highdata != null) {
+			highdata = store.intern(highdata);
+		} else if (shorts != null) {
+			shorts = store.intern(shorts);
+		} else {
+			bytes = store.intern(bytes);
+		}
+	}
+
+	/**
+	 * The pixel data of several bitmaps, deflated out of the heap as one
+	 * stream and reinflated together when any of them is next used
+	 */
+	private static final class SpilledGroup {
+		private Bitmap[] bitmaps;
+
+		private SpilledPixels data = null;
+
+		void restore() {
+			if (data == null) {
+				return;
+			}
+			SpilledPixels.Input in = data.open();
+			data = null;
+			for (Bitmap bitmap : bitmaps) {
+				bitmap.restore(in);
+			}
+			in.end();
+		}
+	}
+
+	/**
+	 * Deflate the pixel data of bitmaps out of the heap as one stream, until
+	 * any of them is next drawn. Bitmaps already spilled are left as they
+	 * are.
+	 *
+	 * @param bitmaps
+	 *            Bitmaps to spill, any of which may be null
+	 */
+	static void spill(Bitmap[] bitmaps) {
+		SpilledGroup group = new SpilledGroup();
+		Bitmap[] members = new Bitmap[bitmaps.length];
+		int n = 0;
+		for (Bitmap bitmap : bitmaps) {
+			if (bitmap != null && bitmap.spilled == null) {
+				bitmap.spilled = group; // also skips repeats
+				members[n++] = bitmap;
+			}
+		}
+		if (n == 0) {
+			return;
+		}
+		group.bitmaps = Arrays.copyOf(members, n);
+		SpilledPixels.Output out = new SpilledPixels.Output();
+		int length = 0;
+		for (Bitmap bitmap : group.bitmaps) {
+			if (bitmap.highdata != null) {
+				out.write(bitmap.highdata);
+				bitmap.spilledLength = bitmap.highdata.length;
+			} else if (bitmap.shorts != null) {
+				out.write(bitmap.shorts);
+				bitmap.spilledLength = bitmap.shorts.length;
+			} else {
+				out.write(bitmap.bytes);
+				bitmap.spilledLength = bitmap.bytes.length;
+			}
+			length += bitmap.spilledLength;
+			bitmap.highdata = null;
+			bitmap.shorts = null;
+			bitmap.bytes = null;
+		}
+		group.data = out.finish(length);
+	}
+
+	/**
+	 * Reinflate the pixel data if it is spilled, along with the other
+	 * bitmaps spilled with it
+	 */
+	private void restore() {
+		if (spilled != null) {
+			spilled.restore();
+		}
+	}
+
+	/**
+	 * Read the pixel data back from the stream it was spilled to, sharing it
+	 * again if it was shared
+	 */
+	private void restore(SpilledPixels.Input in) {
+		if (Bpp == 4) {
+			highdata = new int[spilledLength];
+			in.read(highdata);
+		} else if (Bpp == 2) {
+			shorts = new short[spilledLength];
+			in.read(shorts);
+		} else {
+			bytes = new byte[spilledLength];
+			in.read(bytes);
+		}
+		spilled = null;
+		if (store != null) {
+			share(store);
+		}
+	}
+
+	/**
+	 * @return Size of the bitmap's pixel data, in bytes
+	 */
+	int getSize() {
+		if (spilled != null) {
+			return spilledLength * ((Bpp == 3) ? 1 : Bpp);
+		}
+		if (highdata != null) {
+			return highdata.length * 4;
+		}
+		if (shorts != null) {
+			return shorts.length * 2;
+		}
+		return bytes.length;
 	}
 
 	/**
@@ -210,69 +506,46 @@ public class Bitmap {
 	/**
 	 * Reads a color from the packet, in the given BPP.
 	 *
-	 * @param options Options to use (for bpp)
-	 * @param Bpp <b>Bytes</b> per pixel.
+	 * @param state Decompression state giving the colour depth
 	 * @param packet The packet to read from
 	 * @return The color that was read
 	 */
-	private static int readColor(Options options, int Bpp, RdpPacket packet) {
-		if (options.server_bpp == 15) {
-			int lower = packet.get8();
-			int upper = packet.get8();
-			int full = (upper << 8) | lower;
-
-			int r24 = (full >> 7) & 0xF8;
-			r24 |= r24 >> 5;
-						int g24 = (full >> 2) & 0xF8;
-						g24 |= g24 >> 5;
-				int b24 = (lower << 3) & 0xFF;
-				b24 |= b24 >> 5;
-
-				return (r24 << 16) | (g24 << 8) | b24;
-
-		} else if (options.server_bpp == 16) {
-			int lower = packet.get8();
-			int upper = packet.get8();
-			int full = (upper << 8) | lower;
-
-			int r24 = (full >> 8) & 0xF8;
-			r24 |= r24 >> 5;
-				int g24 = (full >> 3) & 0xFC;
-				g24 |= g24 >> 6;
-		int b24 = (lower << 3) & 0xFF;
-		b24 |= b24 >> 5;
-
-		return (r24 << 16) | (g24 << 8) | b24;
-
-		} else {
-			int[] vals = new int[Bpp];
-			for (int i = 0; i < vals.length; i++) {
-				vals[i] = packet.get8();
+	private static int readColor(DecompressionState state, RdpPacket packet) {
+		int result = packet.get8();
+		if (state.Bpp > 1) {
+			result |= packet.get8() << 8;
+			if (state.colourTable != null) {
+				return state.colourTable[result];
 			}
-			int result = 0;
-			for (int i = (Bpp - 1); i >= 0; i--) {
-				result <<= 8;
-				result |= vals[i];
+			if (state.Bpp > 2) {
+				result |= packet.get8() << 16;
+				if (state.Bpp > 3) {
+					result |= packet.get8() << 24;
+				}
 			}
-
-			return result;
 		}
+		return result;
 	}
 
 	static final int BLACK = 0, WHITE = 0xFFFFFF;
 
+	/** Planar format header: colour loss level, chroma subsampling, RLE, no alpha */
+	private static final int PLANAR_CLL_MASK = 0x07, PLANAR_CS = 0x08,
+			PLANAR_RLE = 0x10, PLANAR_NA = 0x20;
+
 	/**
 	 * Stores the current state of decompression.
 	 *
 	 * @see [MS-RDPBCGR] 3.1.9 (RleDecompress; see variables at top)
 	 */
 	private static class DecompressionState {
-		public DecompressionState(int width, int height, DecompressionCallback callback, Options options, int Bpp) {
+		public DecompressionState(int width, int height, DecompressionCallback callback, Options options, int Bpp, int[] colourTable) {
 			this.width = width;
 			this.height = height;
 			this.callback = callback;
 			this.options = options;
 			this.Bpp = Bpp;
+			this.colourTable = colourTable;
 
 			// Per 2.2.9.1.1.3.1.2.2: Uncompressed bitmap data is formatted as a
 			// bottom-up, left-to-right series of pixels.
@@ -296,6 +569,8 @@ public class Bitmap {
 		public final Options options;
 		/** The number of <b>bytes</b> per pixel */
 		public final int Bpp;
+		/** Table converting 16 bit colours to 24 bit, or null */
+		public final int[] colourTable;
 
 		/** Current x and y coordinates, will be edited as needed */
 		private int x, y;
@@ -349,9 +624,32 @@ public class Bitmap {
 			RdpPacket data, int size, int Bpp,
 			DecompressionCallback callback)
 					throws RdesktopException {
+		if (Bpp == 4) {
+			int[] pixels = decompressPlanar(width, height, size, data);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					callback.setPixel(x, y, pixels[y * width + x]);
+				}
+			}
+			return;
+		}
+
+		decompress(options, width, height, data, size, Bpp, callback,
+				(Bpp == 2) ? colourTable(options.server_bpp) : null);
+	}
+
+	/**
+	 * Decompresses an interleaved RLE bitmap into the given callback.
+	 *
+	 * @param colourTable Table converting 15 and 16 bpp colours as they are
+	 *            read, or null to leave colours as sent
+	 */
+	private static void decompress(Options options, int width, int height,
+			RdpPacket data, int size, int Bpp, DecompressionCallback callback,
+			int[] colourTable) throws RdesktopException {
 		int end = data.getPosition() + size;
 
-		DecompressionState state = new DecompressionState(width, height, callback, options, Bpp);
+		DecompressionState state = new DecompressionState(width, height, callback, options, Bpp, colourTable);
 
 		while (data.getPosition() < end) {
 			if (state.onFirstLine) {
@@ -507,7 +805,7 @@ public class Bitmap {
 	 */
 	private static void handleForegroundRun(DecompressionState state, int runLength, RdpPacket data, boolean isSet) throws RdesktopException {
 		if (isSet) {
-			state.fgColor = readColor(state.options, state.Bpp, data);
+			state.fgColor = readColor(state, data);
 		}
 		if (state.onFirstLine) {
 			while (runLength > 0) {
@@ -535,8 +833,8 @@ public class Bitmap {
 	 * @see [MS-RDPBCGR] 2.2.9.1.1.3.1.2.4
 	 */
 	private static void handleDitheredRun(DecompressionState state, int runLength, RdpPacket data) throws RdesktopException {
-		int colorA = readColor(state.options, state.Bpp, data);
-		int colorB = readColor(state.options, state.Bpp, data);
+		int colorA = readColor(state, data);
+		int colorB = readColor(state, data);
 
 		while (runLength > 0) {
 			state.writePixel(colorA);
@@ -558,7 +856,7 @@ public class Bitmap {
 	 * @see [MS-RDPBCGR] 2.2.9.1.1.3.1.2.4
 	 */
 	private static void handleColorRun(DecompressionState state, int runLength, RdpPacket data) throws RdesktopException {
-		int color = readColor(state.options, state.Bpp, data);
+		int color = readColor(state, data);
 
 		while (runLength > 0) {
 			state.writePixel(color);
@@ -609,7 +907,7 @@ public class Bitmap {
 	 */
 	private static void handleFgbgImage(DecompressionState state, int runLength, RdpPacket data, boolean isSet) throws RdesktopException {
 		if (isSet) {
-			state.fgColor = readColor(state.options, state.Bpp, data);
+			state.fgColor = readColor(state, data);
 		}
 
 		while (runLength > 8) {
@@ -643,7 +941,7 @@ public class Bitmap {
 	 */
 	private static void handleColorImage(DecompressionState state, int runLength, RdpPacket data) throws RdesktopException {
 		while (runLength > 0) {
-			state.writePixel(readColor(state.options, state.Bpp, data));
+			state.writePixel(readColor(state, data));
 			runLength--;
 		}
 	}
@@ -799,6 +1097,192 @@ public class Bitmap {
 		return w.getBufferedImage();
 	}
 
+	/**
+	 * Decompresses a 32 bpp bitmap compressed with the RDP 6.0 planar codec.
+	 * Only lossless planes are supported, as colour loss reduction and chroma
+	 * subsampling are not advertised in the bitmap capabilities. The alpha
+	 * plane, if present, is skipped.
+	 *
+	 * @param width Width of the bitmap
+	 * @param height Height of the bitmap
+	 * @param size Size of the data.
+	 * @param data Packet to read compressed data from
+	 * @return RGB pixels, top row first
+	 * @throws RdesktopException
+	 * @see [MS-RDPEGDI] 2.2.2.5.1
+	 */
+	public static int[] decompressPlanar(int width, int height, int size,
+			RdpPacket data) throws RdesktopException {
+		int end = data.getPosition() + size;
+		int header = data.get8();
+		if ((header & PLANAR_CLL_MASK) != 0 || (header & PLANAR_CS) != 0) {
+			throw new RdesktopException("Unsupported planar bitmap format "
+					+ Integer.toHexString(header));
+		}
+
+		int[] pixels = new int[width * height];
+		byte[] plane = new byte[width * height];
+		// Planes are alpha, red, green and blue, each bottom-up
+		for (int i = ((header & PLANAR_NA) != 0) ? 1 : 0; i < 4; i++) {
+			if ((header & PLANAR_RLE) != 0) {
+				decompressPlane(data, end, plane, width, height);
+			} else {
+				if (data.getPosition() + plane.length > end) {
+					throw new RdesktopException("Planar bitmap data too short");
+				}
+				data.copyToByteArray(plane, 0, data.getPosition(), plane.length);
+				data.incrementPosition(plane.length);
+			}
+			if (i == 0) {
+				continue;
+			}
+			int shift = (3 - i) * 8;
+			for (int y = 0; y < height; y++) {
+				int src = (height - 1 - y) * width;
+				int dst = y * width;
+				for (int x = 0; x < width; x++) {
+					pixels[dst + x] |= (plane[src + x] & 0xFF) << shift;
+				}
+			}
+		}
+		data.setPosition(end);
+		return pixels;
+	}
+
+	/**
+	 * Decompresses one run-length encoded colour plane. Scanlines after the
+	 * first are encoded as differences from the one before.
+	 *
+	 * @see [MS-RDPEGDI] 2.2.2.5.1.1
+	 */
+	private static void decompressPlane(RdpPacket data, int end, byte[] plane,
+			int width, int height) throws RdesktopException {
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int x = 0;
+			int value = 0;
+			while (x < width) {
+				if (data.getPosition() >= end) {
+					throw new RdesktopException("Planar bitmap data too short");
+				}
+				int control = data.get8();
+				int run = control & 0x0F;
+				int raw = control >> 4;
+				if (run == 1) {
+					run = 16 + raw;
+					raw = 0;
+				} else if (run == 2) {
+					run = 32 + raw;
+					raw = 0;
+				}
+				if (x + raw + run > width) {
+					throw new RdesktopException("Planar scanline overrun at x="
+							+ x + ", y=" + y);
+				}
+				if (data.getPosition() + raw > end) {
+					throw new RdesktopException("Planar bitmap data too short");
+				}
+				if (y == 0) {
+					for (; raw > 0; raw--) {
+						value = data.get8();
+						plane[row + x++] = (byte) value;
+					}
+					for (; run > 0; run--) {
+						plane[row + x++] = (byte) value;
+					}
+				} else {
+					for (; raw > 0; raw--) {
+						int delta = data.get8();
+						value = ((delta & 1) != 0) ? -(delta >> 1) - 1
+								: delta >> 1;
+						plane[row + x] = (byte) (plane[row - width + x] + value);
+						x++;
+					}
+					for (; run > 0; run--) {
+						plane[row + x] = (byte) (plane[row - width + x] + value);
+						x++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decompress bitmap data from packet into a Bitmap holding the pixels at
+	 * the depth they were sent
+	 *
+	 * @param width
+	 *            Width of bitmap
+	 * @param height
+	 *            Height of bitmap
+	 * @param size
+	 *            Size of compressed data in bytes
+	 * @param data
+	 *            Packet containing bitmap data
+	 * @param Bpp
+	 *            Bytes per-pixel for bitmap
+	 * @return Decompressed bitmap
+	 * @throws RdesktopException
+	 */
+	static Bitmap decompressBitmap(Options options, int width, int height,
+			int size, RdpPacket data, int Bpp) throws RdesktopException {
+		if (Bpp == 4) {
+			return new Bitmap(decompressPlanar(width, height, size, data),
+					width, height, 0, 0);
+		}
+
+		Bitmap bitmap = new Bitmap(width, height, Bpp);
+		DecompressionCallback callback;
+		if (Bpp == 2) {
+			short[] pixel = bitmap.shorts = new short[width * height];
+			bitmap.table = colourTable(options.server_bpp);
+			callback = new DecompressionCallback() {
+				@Override
+				public void setPixel(int x, int y, int color) {
+					pixel[(y * width) + x] = (short) color;
+				}
+
+				@Override
+				public int getPixel(int x, int y) {
+					return pixel[(y * width) + x] & 0xFFFF;
+				}
+			};
+		} else if (Bpp == 3) {
+			byte[] pixel = bitmap.bytes = new byte[width * height * 3];
+			callback = new DecompressionCallback() {
+				@Override
+				public void setPixel(int x, int y, int color) {
+					int p = ((y * width) + x) * 3;
+					pixel[p] = (byte) color;
+					pixel[p + 1] = (byte) (color >> 8);
+					pixel[p + 2] = (byte) (color >> 16);
+				}
+
+				@Override
+				public int getPixel(int x, int y) {
+					int p = ((y * width) + x) * 3;
+					return ((pixel[p + 2] & 0xFF) << 16)
+							| ((pixel[p + 1] & 0xFF) << 8) | (pixel[p] & 0xFF);
+				}
+			};
+		} else {
+			byte[] pixel = bitmap.bytes = new byte[width * height];
+			callback = new DecompressionCallback() {
+				@Override
+				public void setPixel(int x, int y, int color) {
+					pixel[(y * width) + x] = (byte) color;
+				}
+
+				@Override
+				public int getPixel(int x, int y) {
+					return pixel[(y * width) + x] & 0xFF;
+				}
+			};
+		}
+		decompress(options, width, height, data, size, Bpp, callback, null);
+		return bitmap;
+	}
+
 	/**
 	 * Decompress bitmap data from packet and store in array of integers
 	 *
@@ -817,6 +1301,9 @@ public class Bitmap {
 	 */
 	public static int[] decompressInt(Options options, int width, int height, int size,
 			RdpPacket data, int Bpp) throws RdesktopException {
+		if (Bpp == 4) {
+			return decompressPlanar(width, height, size, data);
+		}
 
 		int[] pixel = new int[width * height];
 
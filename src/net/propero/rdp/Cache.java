@@ -25,30 +25,69 @@ package net.propero.rdp;
 
 import java.awt.Cursor;
 import java.awt.image.IndexColorModel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Handle caching of bitmaps, cursors, colour maps, text and fonts.
  */
 public class Cache {
 
+	private static final Logger LOGGER = LogManager.getLogger();
+
 	private static final int RDPCACHE_COLOURMAPSIZE = 0x06; // unified patch
 
+	private static final int FONT_SIZE = 256;
+
+	/** Largest bitmap, in pixels, held by each bitmap cache */
+	private static final int[] CELL_PIXELS = { 16 * 16, 32 * 32, 64 * 64 };
+
+	/** Most rendered strings kept, and most ints of runs kept for them */
+	private static final int TEXT_MASK_ENTRIES = 1024,
+			TEXT_MASK_SIZE = 1024 * 1024;
+
 	private Bitmap[][] bitmapcache = new Bitmap[3][600];
 
+	/** Total size of bitmapcache, in bytes */
+	private int bitmapCacheSize = 0;
+
 	private Object[] cursorcache = new Object[32];
 
-	private Glyph[][] fontcache = new Glyph[12][256];
+	private GlyphAtlas[] fontcache = new GlyphAtlas[12];
 
 	private DataBlob[] textcache = new DataBlob[256];
 
-	private int[] highdeskcache = new int[921600];
+	/** Rendered strings, least recently used first */
+	private final LinkedHashMap<TextMask.Key, TextMask> textMasks = new LinkedHashMap<>(
+			256, 0.75f, true);
+
+	/** Total size of textMasks, in ints */
+	private int textMaskSize = 0;
+
+	/** Pixels in the desktop cache */
+	private static final int DESKTOP_CACHE_SIZE = 921600;
+
+	/** Desktop cache, allocated by the first SaveBitmap order */
+	private int[] highdeskcache = null;
+
+	/** Desktop cache while it is spilled out of the heap, otherwise null */
+	private SpilledPixels spilledDesktop = null;
 
 	private int num_bitmaps_in_memory[] = new int[3];
 
 	private IndexColorModel[] colourcache = new IndexColorModel[RDPCACHE_COLOURMAPSIZE];
 
+	private final Options options;
+
+	private final SessionStats stats;
+
 	public Cache(Options options) {
 		this.pstCache = new PstCache(options, this);
+		this.options = options;
+		this.stats = options.stats;
 	}
 
 	final PstCache pstCache;
@@ -81,6 +120,38 @@ public class Cache {
 		--num_bitmaps_in_memory[cache_id];
 	}
 
+	/**
+	 * Reduce the number of cells offered in each bitmap cache so that the
+	 * caches fit within {@link Options#bitmap_cache_size} even when full of
+	 * the largest bitmaps. Every cache keeps at least one cell, so a budget
+	 * too small for that is only warned about: cached bitmaps cannot be
+	 * dropped without the server's knowledge.
+	 *
+	 * @param cells
+	 *            Number of cells in each cache
+	 * @return Number of cells to offer in each cache
+	 */
+	int[] fitBitmapCells(int... cells) {
+		long size = 0;
+		for (int i = 0; i < cells.length; i++) {
+			size += (long) cells[i] * CELL_PIXELS[i] * options.Bpp;
+		}
+		int[] fitted = cells.clone();
+		if (options.bitmap_cache_size > 0 && size > options.bitmap_cache_size) {
+			double scale = (double) options.bitmap_cache_size / size;
+			size = 0;
+			for (int i = 0; i < cells.length; i++) {
+				fitted[i] = Math.max(1, (int) (cells[i] * scale));
+				size += (long) fitted[i] * CELL_PIXELS[i] * options.Bpp;
+			}
+			if (size > options.bitmap_cache_size) {
+				LOGGER.warn("Bitmap caches may hold {} bytes, more than the "
+						+ "{} byte budget", size, options.bitmap_cache_size);
+			}
+		}
+		return fitted;
+	}
+
 	/**
 	 * Retrieve the indexed colour model from the specified cache
 	 *
@@ -146,15 +217,20 @@ public class Cache {
 			 * catch (RdesktopException e) { e.printStackTrace(); }
 			 */
 			if (bitmap != null) {
+				bitmap.usage = ++pstCache.stamp;
+				stats.bitmapCacheHit(cache_id);
 				return bitmap;
 			}
 		}
 
+		stats.bitmapCacheMiss(cache_id);
 		throw new RdesktopException("Could not get Bitmap!");
 	}
 
 	/**
-	 * Add a bitmap to the cache
+	 * Add a bitmap to the cache. The number of cells offered to the server
+	 * keeps the cache within {@link Options#bitmap_cache_size} bytes; see
+	 * {@link #fitBitmapCells}.
 	 *
 	 * @param cache_id
 	 *            ID of cache to which the Bitmap should be added
@@ -173,7 +249,20 @@ public class Cache {
 
 		if ((cache_id < bitmapcache.length)
 				&& (cache_idx < bitmapcache[0].length)) {
+			Bitmap old = bitmapcache[cache_id][cache_idx];
+			if (old != null) {
+				stats.bitmapCacheEviction(cache_id);
+				bitmapCacheSize -= old.getSize();
+			} else {
+				++num_bitmaps_in_memory[cache_id];
+			}
+			if (options.shared_cache) {
+				bitmap.share(PixelStore.SHARED);
+			}
 			bitmapcache[cache_id][cache_idx] = bitmap;
+			bitmap.usage = ++pstCache.stamp;
+			bitmapCacheSize += bitmap.getSize();
+			stats.bitmapCacheSize(bitmapCacheSize);
 			/*
 			 * if (options.use_rdp5) { if (++num_bitmaps_in_memory[cache_id] >
 			 * Rdp.BMPCACHE2_C2_CELLS) removeLRUBitmap(cache_id); }
@@ -235,8 +324,14 @@ public class Cache {
 	 */
 	public void putFont(Glyph glyph) throws RdesktopException {
 		if ((glyph.getFont() < fontcache.length)
-				&& (glyph.getCharacter() < fontcache[0].length)) {
-			fontcache[glyph.getFont()][glyph.getCharacter()] = glyph;
+				&& (glyph.getCharacter() < FONT_SIZE)) {
+			if (fontcache[glyph.getFont()] == null) {
+				fontcache[glyph.getFont()] = new GlyphAtlas(FONT_SIZE,
+						options.shared_cache ? PixelStore.SHARED : null);
+			}
+			if (fontcache[glyph.getFont()].put(glyph)) {
+				stats.glyphCacheEntryAdded();
+			}
 		} else {
 			throw new RdesktopException("Could not put font");
 		}
@@ -251,7 +346,9 @@ public class Cache {
 		for (id = 0; id < bitmapcache.length; id++) {
 			if (pstCache.IS_PERSISTENT(id)) {
 				for (idx = 0; idx < bitmapcache[id].length; idx++) {
-					pstCache.touchBitmap(id, idx, bitmapcache[id][idx].usage);
+					if (bitmapcache[id][idx] != null) {
+						pstCache.touchBitmap(id, idx, bitmapcache[id][idx].usage);
+					}
 				}
 			}
 		}
@@ -269,8 +366,9 @@ public class Cache {
 	 */
 	public Glyph getFont(int font, int character) throws RdesktopException {
 
-		if ((font < fontcache.length) && (character < fontcache[0].length)) {
-			Glyph glyph = fontcache[font][character];
+		if ((font < fontcache.length) && (character < FONT_SIZE)
+				&& fontcache[font] != null) {
+			Glyph glyph = fontcache[font].get(character);
 			if (glyph != null) {
 				return glyph;
 			}
@@ -318,6 +416,40 @@ public class Cache {
 		}
 	}
 
+	/**
+	 * Retrieve a rendered string
+	 *
+	 * @param key
+	 *            Glyphs, spacing and mix mode of the string
+	 * @return Rendered string, or null if it is not cached
+	 */
+	TextMask getTextMask(TextMask.Key key) {
+		return textMasks.get(key);
+	}
+
+	/**
+	 * Store a rendered string, evicting the least recently used strings to
+	 * stay within the cache's bounds
+	 *
+	 * @param key
+	 *            Glyphs, spacing and mix mode of the string
+	 * @param mask
+	 *            Rendered string
+	 */
+	void putTextMask(TextMask.Key key, TextMask mask) {
+		TextMask old = textMasks.put(key, mask);
+		if (old != null) {
+			textMaskSize -= old.size();
+		}
+		textMaskSize += mask.size();
+		Iterator<TextMask> eldest = textMasks.values().iterator();
+		while (textMasks.size() > TEXT_MASK_ENTRIES
+				|| textMaskSize > TEXT_MASK_SIZE) {
+			textMaskSize -= eldest.next().size();
+			eldest.remove();
+		}
+	}
+
 	/**
 	 * Store an image in the desktop cache
 	 *
@@ -336,6 +468,7 @@ public class Cache {
 
 		int length = cx * cy;
 		int pdata = 0;
+		int[] highdeskcache = desktopCache();
 
 		if (offset > highdeskcache.length) {
 			offset = 0;
@@ -369,6 +502,7 @@ public class Cache {
 		int length = cx * cy;
 		int pdata = 0;
 		int[] data = new int[length];
+		int[] highdeskcache = desktopCache();
 
 		if (offset > highdeskcache.length) {
 			offset = 0;
@@ -385,4 +519,36 @@ public class Cache {
 		throw new RdesktopException("Could not get Desktop");
 	}
 
+	/**
+	 * @return The desktop cache, allocating or reinflating it if necessary
+	 */
+	private int[] desktopCache() {
+		if (highdeskcache == null) {
+			highdeskcache = new int[DESKTOP_CACHE_SIZE];
+			if (spilledDesktop != null) {
+				spilledDesktop.inflate(highdeskcache);
+				spilledDesktop = null;
+			}
+		}
+		return highdeskcache;
+	}
+
+	/**
+	 * Deflate the cached bitmaps and desktop out of the heap, and drop the
+	 * rendered strings. Each bitmap cache is deflated as one stream, and
+	 * restored as a whole when any bitmap in it is next used; the desktop
+	 * is restored when next used.
+	 */
+	void spill() {
+		for (Bitmap[] bitmaps : bitmapcache) {
+			Bitmap.spill(bitmaps);
+		}
+		textMasks.clear();
+		textMaskSize = 0;
+		if (highdeskcache != null) {
+			spilledDesktop = SpilledPixels.deflate(highdeskcache);
+			highdeskcache = null;
+		}
+	}
+
 }
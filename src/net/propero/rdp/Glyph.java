@@ -42,6 +42,15 @@ public class Glyph {
 
 	private byte[] fontdata = null;
 
+	/** Array holding this glyph's runs, as laid out by {@link GlyphAtlas} */
+	int[] runs = null;
+
+	/** Start of this glyph's runs in runs */
+	int spans = 0;
+
+	/** Length of this glyph's runs */
+	int spanLength = 0;
+
 	/**
 	 * Construct a Glyph object
 	 *
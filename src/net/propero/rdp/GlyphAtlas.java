@@ -0,0 +1,170 @@
+/* GlyphAtlas.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.Arrays;
+
+/**
+ * The cached glyphs of one font, with each glyph's 1 bpp bitmap expanded into
+ * the horizontal runs of set pixels on each of its rows. The runs of all the
+ * glyphs are packed into one array, unless they are shared with other
+ * sessions through a {@link PixelStore}, when each glyph has its own array.
+ * <p>
+ * A glyph's runs start at {@link Glyph#spans} in {@link Glyph#runs}. For each
+ * row there is the number of runs, followed by the start and end (exclusive)
+ * x offset of each run.
+ */
+class GlyphAtlas {
+
+	private final Glyph[] glyphs;
+
+	private int[] spans = new int[1024];
+
+	/** Length of spans in use */
+	private int used = 0;
+
+	/** Length of spans belonging to replaced glyphs */
+	private int garbage = 0;
+
+	/** Store to share runs through, or null to pack them into spans */
+	private final PixelStore store;
+
+	/**
+	 * @param size
+	 *            Number of characters in the font
+	 * @param store
+	 *            Store to share the glyphs' runs through, or null
+	 */
+	GlyphAtlas(int size, PixelStore store) {
+		glyphs = new Glyph[size];
+		this.store = store;
+	}
+
+	/**
+	 * @param character
+	 *            ID of character
+	 * @return Glyph for the character, or null if there is none
+	 */
+	Glyph get(int character) {
+		return glyphs[character];
+	}
+
+	/**
+	 * Add a glyph, replacing any glyph for the same character
+	 *
+	 * @param glyph
+	 *            Glyph to add
+	 * @return True if the character had no glyph before
+	 */
+	boolean put(Glyph glyph) {
+		Glyph old = glyphs[glyph.getCharacter()];
+		if (old != null && old.runs == spans) {
+			garbage += old.spanLength;
+		}
+		glyphs[glyph.getCharacter()] = glyph;
+		if (garbage > 4096 && garbage > used / 2) {
+			compact();
+		}
+		expand(glyph);
+		return old == null;
+	}
+
+	private void expand(Glyph glyph) {
+		int width = glyph.getWidth();
+		int height = glyph.getHeight();
+		byte[] data = glyph.getFontData();
+		int bytesPerRow = (width + 7) / 8;
+
+		// at most one run in every two pixels, plus the count
+		ensureCapacity(used + height * (width + 2));
+		int p = used;
+		for (int y = 0; y < height; y++) {
+			int count = p++;
+			int n = 0;
+			int row = y * bytesPerRow;
+			int x = 0;
+			while (x < width) {
+				if (!isSet(data, row, x)) {
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < width && isSet(data, row, x)) {
+					x++;
+				}
+				spans[p++] = start;
+				spans[p++] = x;
+				n++;
+			}
+			spans[count] = n;
+		}
+		glyph.spanLength = p - used;
+		if (store != null) {
+			glyph.runs = store.intern(Arrays.copyOfRange(spans, used, p));
+			glyph.spans = 0;
+		} else {
+			glyph.runs = spans;
+			glyph.spans = used;
+			used = p;
+		}
+	}
+
+	private static boolean isSet(byte[] data, int row, int x) {
+		int i = row + (x >> 3);
+		return i < data.length && (data[i] & (0x80 >> (x & 7))) != 0;
+	}
+
+	private void ensureCapacity(int length) {
+		if (length > spans.length) {
+			int[] old = spans;
+			spans = Arrays.copyOf(spans, Math.max(length, spans.length * 2));
+			for (Glyph glyph : glyphs) {
+				if (glyph != null && glyph.runs == old) {
+					glyph.runs = spans;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move the runs of the current glyphs together, dropping those of
+	 * replaced glyphs
+	 */
+	private void compact() {
+		int[] packed = new int[Math.max(1024, used - garbage)];
+		int p = 0;
+		for (Glyph glyph : glyphs) {
+			if (glyph != null && glyph.runs == spans) {
+				System.arraycopy(spans, glyph.spans, packed, p,
+						glyph.spanLength);
+				glyph.runs = packed;
+				glyph.spans = p;
+				p += glyph.spanLength;
+			}
+		}
+		spans = packed;
+		used = p;
+		garbage = 0;
+	}
+}
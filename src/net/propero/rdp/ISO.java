@@ -31,6 +31,10 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Arrays;
+
+import net.propero.rdp.SessionStats.Layer;
+import net.propero.rdp.jfr.PduReceiveEvent;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -67,6 +71,11 @@ public class ISO {
 	private final Options options;
 	private final Rdp rdp;
 
+	private final PacketPool pool = new PacketPool();
+
+	/** Reused by {@link #write(RdpPacket, int, int)} */
+	private byte[] send_buffer = new byte[4096];
+
 	/**
 	 * Construct ISO object, initialises hex dump
 	 */
@@ -84,12 +93,27 @@ public class ISO {
 	 * @return Packet configured as ISO PDU, ready to write at higher level
 	 */
 	public RdpPacket init(int length) {
-		RdpPacket data = new RdpPacket(length + 7);// getMemory(length+7);
+		RdpPacket data = pool.get(length + 7);
 		data.incrementPosition(7);
 		data.setStart(data.getPosition());
 		return data;
 	}
 
+	/**
+	 * Initialise a fast-path PDU
+	 *
+	 * @param length
+	 *            Desired length of PDU
+	 * @return Packet with room for the fast-path header, ready to write at
+	 *         higher level
+	 */
+	public RdpPacket initFastPath(int length) {
+		RdpPacket data = pool.get(length + 3);
+		data.incrementPosition(3);
+		data.setStart(data.getPosition());
+		return data;
+	}
+
 	/*
 	 * protected Socket negotiateSSL(Socket sock) throws Exception{ return sock; }
 	 */
@@ -159,8 +183,7 @@ public class ISO {
 	 *                when an I/O Error occurs
 	 */
 	private void sendMessage(int type) throws IOException {
-		RdpPacket buffer = new RdpPacket(11);// getMemory(11);
-		byte[] packet = new byte[11];
+		RdpPacket buffer = pool.get(11);
 
 		buffer.set8(PROTOCOL_VERSION); // send Version Info
 		buffer.set8(0); // reserved byte
@@ -173,9 +196,7 @@ public class ISO {
 		buffer.setBigEndian16(0); // source reference should be a reasonable
 		// address we use 0
 		buffer.set8(0); // service class
-		buffer.copyToByteArray(packet, 0, 0, packet.length);
-		out.write(packet);
-		out.flush();
+		write(buffer, 0, 11);
 	}
 
 	/**
@@ -195,8 +216,6 @@ public class ISO {
 			throw new RdesktopException("No End Mark!");
 		} else {
 			int length = buffer.getEnd();
-			byte[] packet = new byte[length];
-			// RdpPacket data = this.getMemory(length+7);
 			buffer.setPosition(0);
 			buffer.set8(PROTOCOL_VERSION); // Version
 			buffer.set8(0); // reserved
@@ -205,13 +224,68 @@ public class ISO {
 			buffer.set8(2); // length of header
 			buffer.set8(DATA_TRANSFER);
 			buffer.set8(EOT);
-			buffer.copyToByteArray(packet, 0, 0, buffer.getEnd());
-			if (options.debug_hexdump) {
-				dump.encode(packet, "SEND"/* System.out */);
-			}
-			out.write(packet);
-			out.flush();
+			write(buffer, 0, length);
+			options.stats.bytesOut(Layer.ISO, length);
+		}
+	}
+
+	/**
+	 * Send a fast-path PDU to the server
+	 *
+	 * @param buffer
+	 *            Packet created by {@link #initFastPath(int)}
+	 * @param header
+	 *            First byte of the PDU (action, event count and flags)
+	 * @throws RdesktopException
+	 * @throws IOException
+	 * @see [MS-RDPBCGR] 2.2.8.1.2
+	 */
+	public void sendFastPath(RdpPacket buffer, int header)
+			throws RdesktopException, IOException {
+		if (rdpsock == null || out == null) {
+			return;
+		}
+		if (buffer.getEnd() < 0) {
+			throw new RdesktopException("No End Mark!");
+		}
+		// The length is one byte if it fits in 7 bits, else two
+		int offset = (buffer.getEnd() - 1 <= 0x7f) ? 1 : 0;
+		int length = buffer.getEnd() - offset;
+		buffer.setPosition(offset);
+		buffer.set8(header);
+		if (offset == 1) {
+			buffer.set8(length);
+		} else {
+			buffer.setBigEndian16(length | 0x8000);
 		}
+		write(buffer, offset, length);
+		options.stats.bytesOut(Layer.ISO, length);
+	}
+
+	/**
+	 * Write part of a finished packet to the socket and return the packet to
+	 * the pool
+	 *
+	 * @param buffer
+	 *            Packet to write, which must not be used again
+	 * @param offset
+	 *            Offset into packet of first byte to write
+	 * @param length
+	 *            Number of bytes to write
+	 * @throws IOException
+	 */
+	private synchronized void write(RdpPacket buffer, int offset, int length)
+			throws IOException {
+		if (send_buffer.length < length) {
+			send_buffer = new byte[Math.max(length, send_buffer.length * 2)];
+		}
+		buffer.copyToByteArray(send_buffer, 0, offset, length);
+		pool.release(buffer);
+		if (options.debug_hexdump) {
+			dump.encode(Arrays.copyOf(send_buffer, length), "SEND"/* System.out */);
+		}
+		out.write(send_buffer, 0, length);
+		out.flush();
 	}
 
 	/**
@@ -305,6 +379,9 @@ public class ISO {
 			if (s == null) {
 				return null;
 			}
+			// time from the header, not while waiting for the server
+			PduReceiveEvent event = new PduReceiveEvent();
+			event.begin();
 
 			version = s.get8();
 
@@ -323,6 +400,14 @@ public class ISO {
 			if (s == null) {
 				return null;
 			}
+			options.stats.bytesIn(Layer.ISO, length);
+			options.stats.inputLatency.received();
+			event.end();
+			if (event.shouldCommit()) {
+				event.bytes = length;
+				event.fastPath = (version & 3) == 0;
+				event.commit();
+			}
 			if ((version & 3) == 0) {
 				LOGGER.debug("Processing rdp5 packet");
 				this.rdp.rdp5_process(s, (version & 0x80) != 0);
@@ -403,8 +488,7 @@ public class ISO {
 		int length = 11 + (options.username.length() > 0 ? ("Cookie: mstshash="
 				.length()
 				+ uname.length() + 2) : 0) + 8;
-		RdpPacket buffer = new RdpPacket(length);
-		byte[] packet = new byte[length];
+		RdpPacket buffer = pool.get(length);
 
 		buffer.set8(PROTOCOL_VERSION); // send Version Info
 		buffer.set8(0); // reserved byte
@@ -432,8 +516,6 @@ public class ISO {
 		 * buffer.set8(options.use_ssl? 0x01 : 0x00);
 		 * buffer.incrementPosition(3);
 		 */
-		buffer.copyToByteArray(packet, 0, 0, packet.length);
-		out.write(packet);
-		out.flush();
+		write(buffer, 0, length);
 	}
 }
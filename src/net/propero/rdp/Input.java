@@ -139,6 +139,9 @@ public class Input {
 
 	public final KeyCode_FileBased newKeyMapper;
 
+	/** Reused by {@link #sendKeyStrokes(KeyEvent)}, on the event thread */
+	private final int[] keyActions = new int[KeyCode_FileBased.MAX_KEY_ACTIONS];
+
 	@Deprecated
 	protected static boolean capsLockOn = false;
 
@@ -276,6 +279,8 @@ public class Input {
 
 	protected final Options options;
 
+	private final MotionCoalescer motion;
+
 	/**
 	 * Create a new Input object with a given keymap object
 	 *
@@ -290,6 +295,7 @@ public class Input {
 		this.newKeyMapper = k;
 		this.rdp = r;
 		this.options = options;
+		this.motion = new MotionCoalescer(options, r);
 	}
 
 	/**
@@ -312,6 +318,7 @@ public class Input {
 
 		this.rdp = r;
 		this.options = options;
+		this.motion = new MotionCoalescer(options, r);
 	}
 
 	/**
@@ -323,14 +330,45 @@ public class Input {
 	 *            character's value (cast to integer) being the scancode to
 	 *            send, the second (cast to integer) of the pair representing
 	 *            the action (0 == UP, 1 == DOWN, 2 == QUIET UP, 3 == QUIET
-	 *            DOWN).
+	 *            DOWN). The whole sequence is sent in one Input PDU.
 	 */
 	public void sendKeyPresses(String pressSequence) {
+		int[] actions = new int[pressSequence.length()];
+		for (int i = 0; i < actions.length; i++) {
+			actions[i] = pressSequence.charAt(i);
+		}
+		sendKeyPresses(actions, actions.length);
+	}
+
+	/**
+	 * Send the key actions needed to reproduce a key event to the server,
+	 * in one Input PDU
+	 *
+	 * @param e
+	 *            Key event to reproduce
+	 */
+	public void sendKeyStrokes(KeyEvent e) {
+		sendKeyPresses(keyActions, newKeyMapper.getKeyStrokes(e, keyActions));
+	}
+
+	/**
+	 * Send a sequence of key actions to the server
+	 *
+	 * @param actions
+	 *            Pairs of scancode and action (0 == UP, 1 == DOWN, 2 == QUIET
+	 *            UP, 3 == QUIET DOWN)
+	 * @param length
+	 *            Number of entries of actions to send (twice the number of
+	 *            actions). The whole sequence is sent in one Input PDU.
+	 */
+	public void sendKeyPresses(int[] actions, int length) {
+		rdp.beginInputBatch();
 		try {
-			String debugString = "Sending keypresses: ";
-			for (int i = 0; i < pressSequence.length(); i += 2) {
-				int scancode = pressSequence.charAt(i);
-				int action = pressSequence.charAt(i + 1);
+			StringBuilder debugString = (LOGGER.isDebugEnabled() && length > 0) ? new StringBuilder(
+					"Sending keypresses: ") : null;
+			for (int i = 0; i < length; i += 2) {
+				int scancode = actions[i];
+				int action = actions[i + 1];
 				int flags = 0;
 
 				if (action == KeyCode_FileBased.UP) {
@@ -345,23 +383,27 @@ public class Input {
 
 				long t = getTime();
 
-				debugString += "(0x"
-						+ Integer.toHexString(scancode)
-						+ ", "
-						+ ((action == KeyCode_FileBased.UP || action == KeyCode_FileBased.QUIETUP) ? "up"
-								: "down")
-								+ ((flags & KBD_FLAG_QUIET) != 0 ? " quiet" : "")
-								+ " at " + t + ")";
+				if (debugString != null) {
+					debugString.append("(0x")
+					.append(Integer.toHexString(scancode))
+					.append(", ")
+					.append((action == KeyCode_FileBased.UP || action == KeyCode_FileBased.QUIETUP) ? "up"
+							: "down")
+					.append((flags & KBD_FLAG_QUIET) != 0 ? " quiet" : "")
+					.append(" at ").append(t).append(")");
+				}
 
 				sendScancode(t, flags, scancode);
 			}
 
-			if (pressSequence.length() > 0) {
+			if (debugString != null) {
 				LOGGER.debug(debugString);
 			}
 		} catch (Exception ex) {
-			LOGGER.warn("Failed to send key press sequence " + pressSequence, ex);
+			LOGGER.warn("Failed to send key press sequence", ex);
 			return;
+		} finally {
+			rdp.endInputBatch();
 		}
 	}
 
@@ -460,6 +502,15 @@ public class Input {
 			return;
 		}
 
+		rdp.beginInputBatch();
+		try {
+			releaseModifiers();
+		} finally {
+			rdp.endInputBatch();
+		}
+	}
+
+	private void releaseModifiers() {
 		if (lastKeyEvent.isShiftDown())
 		{
 			sendScancode(getTime(), RDP_KEYRELEASE, 0x2a); // shift
@@ -495,6 +546,15 @@ public class Input {
 			return;
 		}
 
+		rdp.beginInputBatch();
+		try {
+			pressModifiers();
+		} finally {
+			rdp.endInputBatch();
+		}
+	}
+
+	private void pressModifiers() {
 		if (lastKeyEvent.isShiftDown()) {
 			sendScancode(getTime(), RDP_KEYPRESS, 0x2a); // shift
 		}
@@ -730,18 +790,23 @@ public class Input {
 			// XXX This doesn't necessarilly match the spec (which mandates
 			// that pause is handled in a wierd way)
 			if (pressed) { // E1 1D 45 E1 9D C5
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0xe1, 0);
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0x1d, 0);
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0x45, 0);
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0xe1, 0);
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0x9d, 0);
-				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
-						0xc5, 0);
+				rdp.beginInputBatch();
+				try {
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0xe1, 0);
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0x1d, 0);
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0x45, 0);
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0xe1, 0);
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0x9d, 0);
+					rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYPRESS,
+							0xc5, 0);
+				} finally {
+					rdp.endInputBatch();
+				}
 			} else { // release left ctrl
 				rdp.sendInput((int) time, InputType.SCANCODE, RDP_KEYRELEASE,
 						0x1d, 0);
@@ -794,6 +859,7 @@ public class Input {
 		}
 		LOGGER.debug("doLockKeys");
 
+		rdp.beginInputBatch();
 		try {
 			Toolkit tk = Toolkit.getDefaultToolkit();
 			if (tk.getLockingKeyState(KeyEvent.VK_CAPS_LOCK) != capsLockOn) {
@@ -819,6 +885,8 @@ public class Input {
 		} catch (Exception e) {
 			options.useLockingKeyState = false;
 			LOGGER.warn("Failed to handle key locking; disabling key locking!", e);
+		} finally {
+			rdp.endInputBatch();
 		}
 	}
 
@@ -836,6 +904,7 @@ public class Input {
 		if (byAbs > 255) {
 			throw new IllegalArgumentException("Cannot scroll by more than 255: " + by);
 		}
+		motion.flush();
 		if (by < 0) {
 			rdp.sendInput(getTime(), InputType.MOUSE, MOUSE_FLAG_VWHEEL
 					| MOUSE_FLAG_WHEEL_NEGATIVE | byAbs, 0, 0);
@@ -865,6 +934,7 @@ public class Input {
 			throw new IllegalArgumentException("Cannot scroll by more than 255: " + by);
 		}
 		// Note: the coordinates are ignored for the wheel, so we leave them at 0
+		motion.flush();
 		if (by < 0) {
 			rdp.sendInput(getTime(), InputType.MOUSE, MOUSE_FLAG_HWHEEL
 					| MOUSE_FLAG_WHEEL_NEGATIVE | byAbs, 0, 0);
@@ -880,7 +950,7 @@ public class Input {
 	 * @param y Y coordinate, from top-left corner of screen
 	 */
 	public void moveMouse(int x, int y) {
-		rdp.sendInput(getTime(), InputType.MOUSE, MOUSE_FLAG_MOVE, x, y);
+		motion.move(x, y);
 	}
 
 	/**
@@ -923,6 +993,7 @@ public class Input {
 			throw new IllegalArgumentException("Invalid mouse button " + button);
 		}
 
+		motion.flush();
 		int flags = 0;
 		if (down) {
 			flags |= MOUSE_FLAG_DOWN;
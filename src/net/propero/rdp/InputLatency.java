@@ -0,0 +1,162 @@
+/* InputLatency.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.propero.rdp.SessionStats.Histogram;
+import net.propero.rdp.SessionStats.RollingHistogram;
+
+/**
+ * Measures the time from user input to the server's response being painted.
+ * <p>
+ * RDP input PDUs carry no id that updates could refer to, so input is
+ * correlated with the first region drawn after it:
+ * <ol>
+ * <li>{@link #inputQueued()}: an input event was queued to be sent; the
+ * earliest unanswered one is remembered</li>
+ * <li>{@link #received()}: a PDU arrived from the server</li>
+ * <li>{@link #drawn()}: a region of the backstore was marked dirty; the PDU
+ * that caused it is taken to be the response to the pending input</li>
+ * <li>{@link #painted()}: dirty regions were copied to the screen</li>
+ * </ol>
+ * The time between the first two steps is the server's share (including the
+ * network and the client's own input batching and send queue), and the time
+ * between the last two is local decoding and painting. A headless callback that never paints only gets the server
+ * share, unless it calls {@link #painted()} itself.
+ */
+public class InputLatency {
+
+	private static class Response {
+		final long input;
+
+		final long received;
+
+		Response(long input, long received) {
+			this.input = input;
+			this.received = received;
+		}
+	}
+
+	/** Time of the earliest unanswered input, or 0 */
+	private final AtomicLong pendingInput = new AtomicLong();
+
+	/** Time of the latest PDU received while input was pending */
+	private volatile long lastReceived;
+
+	/** Smoothed server share, in nanoseconds */
+	private volatile long serverEstimate = 0;
+
+	/** Response drawn to the backstore but not yet painted */
+	private final AtomicReference<Response> drawn = new AtomicReference<>();
+
+	/** Input to paint */
+	final Histogram total = new Histogram();
+
+	/** Input to the response arriving */
+	final Histogram server = new Histogram();
+
+	/** Response arriving to paint */
+	final Histogram local = new Histogram();
+
+	/** Input to paint, over the last minute */
+	final RollingHistogram recent = new RollingHistogram(6,
+			TimeUnit.SECONDS.toNanos(10));
+
+	/**
+	 * Note that an input event was queued to be sent. Only the earliest input
+	 * since the last response is timed.
+	 */
+	public void inputQueued() {
+		long now = System.nanoTime();
+		pendingInput.compareAndSet(0, now == 0 ? 1 : now);
+	}
+
+	/**
+	 * Note that a PDU was received from the server.
+	 */
+	public void received() {
+		if (pendingInput.get() != 0) {
+			lastReceived = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Note that a region of the backstore was drawn.
+	 */
+	public void drawn() {
+		if (pendingInput.get() == 0) {
+			return;
+		}
+		long input = pendingInput.getAndSet(0);
+		if (input == 0) {
+			return;
+		}
+		long received = lastReceived;
+		if (received - input < 0) {
+			// Drawn without a new PDU (e.g. replay); count it all as server time
+			received = System.nanoTime();
+		}
+		server.record(received - input);
+		long estimate = serverEstimate;
+		serverEstimate = (estimate == 0) ? received - input
+				: estimate + (received - input - estimate) / 8;
+		drawn.set(new Response(input, received));
+	}
+
+	/**
+	 * Note that dirty regions were copied to the screen.
+	 */
+	public void painted() {
+		if (drawn.get() == null) {
+			return;
+		}
+		Response response = drawn.getAndSet(null);
+		if (response == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		local.record(now - response.received);
+		total.record(now - response.input);
+		recent.record(now - response.input);
+	}
+
+	/**
+	 * @return Smoothed time between sending input and the server's response
+	 *         arriving, in nanoseconds, or 0 if nothing has been measured;
+	 *         roughly the round-trip time plus server processing time
+	 */
+	public long getServerEstimate() {
+		return serverEstimate;
+	}
+
+	void reset() {
+		total.reset();
+		server.reset();
+		local.reset();
+		recent.reset();
+	}
+}
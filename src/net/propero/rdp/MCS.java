@@ -27,6 +27,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 
+import net.propero.rdp.SessionStats.Layer;
 import net.propero.rdp.rdp5.VChannels;
 
 import org.apache.logging.log4j.LogManager;
@@ -79,6 +80,7 @@ public class MCS {
 
 	private Secure secure;
 	private VChannels channels;
+	private final Options options;
 
 	/**
 	 * Initialise the MCS layer (and lower layers) with provided channels
@@ -89,6 +91,7 @@ public class MCS {
 	public MCS(Options options, VChannels channels, Secure secure, Rdp rdp) {
 		this.channels = channels;
 		this.secure = secure;
+		this.options = options;
 		IsoLayer = new ISO(options, rdp);
 	}
 
@@ -158,6 +161,32 @@ public class MCS {
 		return data;
 	}
 
+	/**
+	 * Initialise a fast-path PDU, which has no MCS header
+	 *
+	 * @param length
+	 *            Desired length of PDU
+	 * @return
+	 */
+	public RdpPacket initFastPath(int length) {
+		return IsoLayer.initFastPath(length);
+	}
+
+	/**
+	 * Send a fast-path PDU
+	 *
+	 * @param buffer
+	 *            Packet created by {@link #initFastPath(int)}
+	 * @param header
+	 *            First byte of the PDU
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void sendFastPath(RdpPacket buffer, int header)
+			throws RdesktopException, IOException {
+		IsoLayer.sendFastPath(buffer, header);
+	}
+
 	/**
 	 * Send a packet to the global channel
 	 *
@@ -194,6 +223,8 @@ public class MCS {
 		buffer.setBigEndian16(channel);
 		buffer.set8(0x70); // Flags
 		buffer.setBigEndian16(length);
+		options.stats.bytesOut(Layer.MCS, buffer.getEnd()
+				- buffer.getHeader(RdpPacket.MCS_HEADER));
 		IsoLayer.send(buffer);
 	}
 
@@ -216,6 +247,7 @@ public class MCS {
 			return null;
 		}
 		buffer.setHeader(RdpPacket.MCS_HEADER);
+		options.stats.bytesIn(Layer.MCS, buffer.getEnd() - buffer.getPosition());
 		opcode = buffer.get8();
 
 		appid = opcode >> 2;
@@ -229,7 +261,7 @@ public class MCS {
 
 		buffer.incrementPosition(2); // Skip UserID
 		channel[0] = buffer.getBigEndian16(); // Get ChannelID
-		LOGGER.debug("Channel ID = " + channel[0]);
+		LOGGER.debug("Channel ID = {}", channel[0]);
 		buffer.incrementPosition(1); // Skip Flags
 
 		length = buffer.get8();
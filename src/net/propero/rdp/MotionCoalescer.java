@@ -0,0 +1,128 @@
+/* MotionCoalescer.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import net.propero.rdp.Input.InputType;
+
+/**
+ * Limits pointer motion to one input event per tick, keeping only the
+ * latest position.
+ * <p>
+ * The first move after a quiet period is sent at once; moves within a tick
+ * of the last one sent are held and replaced by later ones. The tick is half
+ * the measured server response time, clamped to
+ * {@link Options#motion_min_interval} and {@link Options#motion_max_interval},
+ * and doubled while input or virtual channel data is already queued for
+ * sending.
+ */
+public class MotionCoalescer {
+
+	private final Options options;
+
+	private final Rdp rdp;
+
+	private TimerTask task = null;
+
+	private int x;
+
+	private int y;
+
+	private long lastSent = 0;
+
+	/**
+	 * @param options
+	 *            Options supplying the tick limits
+	 * @param rdp
+	 *            Rdp layer to send motion on
+	 */
+	public MotionCoalescer(Options options, Rdp rdp) {
+		this.options = options;
+		this.rdp = rdp;
+	}
+
+	/**
+	 * Move the pointer, now or at the end of the current tick.
+	 *
+	 * @param x
+	 *            X coordinate, from top-left corner of screen
+	 * @param y
+	 *            Y coordinate, from top-left corner of screen
+	 */
+	public synchronized void move(int x, int y) {
+		this.x = x;
+		this.y = y;
+		if (task != null) {
+			return; // already due to be sent
+		}
+		long now = System.nanoTime();
+		long wait = lastSent + tick() - now;
+		if (options.motion_min_interval <= 0 || lastSent == 0 || wait <= 0) {
+			send(now);
+			return;
+		}
+		task = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		rdp.scheduleInput(task, Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+	}
+
+	/**
+	 * Send any held motion now. Called before button and wheel events so
+	 * that they happen at the right position.
+	 */
+	public synchronized void flush() {
+		if (task == null) {
+			return;
+		}
+		task.cancel();
+		send(System.nanoTime());
+	}
+
+	private void send(long now) {
+		task = null;
+		lastSent = now;
+		rdp.sendInput(Input.getTime(), InputType.MOUSE, Input.MOUSE_FLAG_MOVE,
+				x, y);
+	}
+
+	/**
+	 * @return Current tick length, in nanoseconds
+	 */
+	private long tick() {
+		long min = TimeUnit.MILLISECONDS.toNanos(options.motion_min_interval);
+		long max = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				options.motion_min_interval, options.motion_max_interval));
+		long tick = options.stats.inputLatency.getServerEstimate() / 2;
+		if (rdp.getQueuedInputCount() > 0 || rdp.getQueuedOutputCount() > 0) {
+			tick *= 2; // the uplink is behind
+		}
+		return Math.min(max, Math.max(min, tick));
+	}
+}
@@ -140,10 +140,48 @@ public class Options {
 
 	public boolean precache_bitmaps = false;
 
+	// Most bytes of bitmaps to cache, at the session's colour depth. The
+	// number of cache cells offered to the server is reduced to fit; 0
+	// offers the full number of cells
+	public int bitmap_cache_size = 0;
+
+	// Share cached bitmap and glyph data with other sessions in this JVM
+	// that cache the same images
+	public boolean shared_cache = false;
+
+	// Milliseconds without display updates after which the session deflates
+	// its backing image and caches out of the heap until they are next used.
+	// Sessions whose output is suppressed do so at once; 0 never does
+	public int idle_compact_delay = 0;
+
 	public boolean polygon_ellipse_orders = false;
 
 	public boolean sendmotion = true;
 
+	// Milliseconds to hold input events so that several share one Input
+	// PDU; 0 sends each event as it happens
+	public int input_batch_delay = 0;
+
+	// Maximum number of input events in one Input PDU
+	public int input_batch_size = 64;
+
+	// Send input as fast-path PDUs when the server supports them
+	public boolean fastpath_input = true;
+
+	// Bounds in milliseconds on how often pointer motion is sent; the
+	// interval adapts to the server's response time. 0 sends every move
+	public int motion_min_interval = 10;
+
+	public int motion_max_interval = 100;
+
+	// Ask the server to stop sending display updates while the window is
+	// minimised or hidden
+	public boolean suppress_output = true;
+
+	// Write outgoing PDUs on a separate thread, input first, so that
+	// senders never block on the socket
+	public boolean async_send = true;
+
 	public boolean orders = true;
 
 	public boolean grab_keyboard = true;
@@ -166,6 +204,11 @@ public class Options {
 	 */
 	public final EnumSet<InputCapsetFlag> supportedInputFlags = EnumSet.noneOf(InputCapsetFlag.class);
 
+	/**
+	 * Counters for this session, published over JMX while connected.
+	 */
+	public final SessionStats stats = new SessionStats();
+
 	// -------------------------
 
 	// Previously under Common.  True if run in an applet.
@@ -9,6 +9,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import net.propero.rdp.api.RdesktopCallback;
+import net.propero.rdp.jfr.SurfaceDrawEvent;
 import net.propero.rdp.orders.BoundsOrder;
 import net.propero.rdp.orders.Brush;
 import net.propero.rdp.orders.DestBltOrder;
@@ -30,8 +31,14 @@ public class OrderSurface {
 
 	protected WrappedImage backstore;
 
+	/** Run when the backstore is restored after being spilled */
+	private Runnable restoreListener = null;
+
 	private Cache cache;
 
+	/** Pixels of the cached bitmap area being drawn */
+	private int[] blitBuffer = new int[64 * 64];
+
 	// Clip region
 	private int top, left, right, bottom;
 	private int width, height;
@@ -111,6 +118,9 @@ public class OrderSurface {
 	 */
 	public void registerPalette(IndexColorModel cm) {
 		backstore.setIndexColorModel(cm);
+		if (callback != null) {
+			callback.markDirty(0, 0, width, height);
+		}
 	}
 
 	/**
@@ -120,7 +130,30 @@ public class OrderSurface {
 		this.width = options.width;
 		this.height = options.height;
 		// TODO: actually resize the backing image, instead of trashing the old one
+		IndexColorModel cm = backstore.cm;
 		backstore = new WrappedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		backstore.setRestoreListener(restoreListener);
+		if (cm != null) {
+			backstore.setIndexColorModel(cm);
+		}
+	}
+
+	/**
+	 * Deflate the backing image out of the heap until it is next drawn to or
+	 * displayed
+	 */
+	void spill() {
+		backstore.spill();
+	}
+
+	/**
+	 * @param listener
+	 *            Run whenever the backing image is restored after being
+	 *            spilled, for example to be displayed, or null
+	 */
+	void setRestoreListener(Runnable listener) {
+		this.restoreListener = listener;
+		backstore.setRestoreListener(listener);
 	}
 
 	/**
@@ -153,10 +186,12 @@ public class OrderSurface {
 	public void displayCompressed(int x, int y, int width, int height,
 			int size, RdpPacket data, int Bpp, IndexColorModel cm)
 					throws RdesktopException {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("displayCompressed");
 		backstore = Bitmap.decompressImgDirect(options, width, height, size, data, Bpp,
 				cm, x, y, backstore);
 
 		this.repaint(x, y, width, height);
+		event.finish(x, y, width, height);
 	}
 
 	/**
@@ -205,6 +240,7 @@ public class OrderSurface {
 	 */
 	public void displayImage(int[] data, int w, int h, int x, int y, int cx,
 			int cy) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("displayImage");
 
 		backstore.setRGB(x, y, cx, cy, data, 0, w);
 
@@ -216,6 +252,7 @@ public class OrderSurface {
 		// g.dispose();
 
 		this.repaint(x, y, cx, cy);
+		event.finish(x, y, cx, cy);
 	}
 
 	/**
@@ -277,6 +314,7 @@ public class OrderSurface {
 	 *            colours
 	 */
 	public void putImage(int x, int y, int cx, int cy, int[] data) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("putImage");
 
 		backstore.setRGBNoConversion(x, y, cx, cy, data, 0, // drawing entire
 				// image, no
@@ -284,6 +322,7 @@ public class OrderSurface {
 				cx);
 
 		this.repaint(x, y, cx, cy);
+		event.finish(x, y, cx, cy);
 	}
 
 	/**
@@ -307,16 +346,8 @@ public class OrderSurface {
 			return; // off screen
 		}
 
-		int Bpp = options.Bpp;
-
-		// convert to 24-bit colour
-		color = Bitmap.convertTo24(options, color);
-
-		// correction for 24-bit colour
-		if (Bpp == 3) {
-			color = ((color & 0xFF) << 16) | (color & 0xFF00)
-					| ((color & 0xFF0000) >> 16);
-		}
+		// convert to 24-bit RGB colour
+		color = Bitmap.convertToRGB(options, color);
 
 		// Perform standard clipping checks, x-axis
 		int clipright = x + cx - 1;
@@ -338,13 +369,8 @@ public class OrderSurface {
 		}
 		cy = clipbottom - y + 1;
 
-		// construct rectangle as integer array, filled with color
-		int[] rect = new int[cx * cy];
-		for (int i = 0; i < rect.length; i++) {
-			rect[i] = color;
-		}
 		// draw rectangle to backstore
-		backstore.setRGB(x, y, cx, cy, rect, 0, cx);
+		backstore.fill(x, y, cx, cy, color);
 
 		// if(logger.isInfoEnabled()) logger.info("rect
 		// \t(\t"+x+",\t"+y+"),(\t"+(x+cx-1)+",\t"+(y+cy-1)+")");
@@ -524,6 +550,7 @@ public class OrderSurface {
 	 *            LineOrder describing line to be drawn
 	 */
 	public void drawLineOrder(LineOrder line) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("LINETO");
 		int x1 = line.getStartX();
 		int y1 = line.getStartY();
 		int x2 = line.getEndX();
@@ -533,6 +560,8 @@ public class OrderSurface {
 
 		int opcode = line.getOpcode() - 1;
 		drawLine(x1, y1, x2, y2, fgcolor, opcode);
+		event.finish(Math.min(x1, x2), Math.min(y1, y2),
+				Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
 	}
 
 	/**
@@ -542,6 +571,7 @@ public class OrderSurface {
 	 *            DestBltOrder describing the blit to be performed
 	 */
 	public void drawDestBltOrder(DestBltOrder destblt) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("DSTBLT");
 		int x = destblt.getX();
 		int y = destblt.getY();
 
@@ -574,7 +604,7 @@ public class OrderSurface {
 		rop.do_array(destblt.getOpcode(), backstore, this.width, x, y, cx, cy,
 				null, 0, 0, 0);
 		this.repaint(x, y, cx, cy);
-
+		event.finish(x, y, cx, cy);
 	}
 
 	/**
@@ -584,6 +614,7 @@ public class OrderSurface {
 	 *            ScreenBltOrder describing the blit to be performed
 	 */
 	public void drawScreenBltOrder(ScreenBltOrder screenblt) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("SCRBLT");
 		int x = screenblt.getX();
 		int y = screenblt.getY();
 
@@ -621,7 +652,7 @@ public class OrderSurface {
 		rop.do_array(screenblt.getOpcode(), backstore, this.width, x, y, cx,
 				cy, null, this.width, srcx, srcy);
 		this.repaint(x, y, cx, cy);
-
+		event.finish(x, y, cx, cy);
 	}
 
 	/**
@@ -631,6 +662,7 @@ public class OrderSurface {
 	 *            MemBltOrder describing the blit to be performed
 	 */
 	public void drawMemBltOrder(MemBltOrder memblt) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("MEMBLT");
 		int x = memblt.getX();
 		int y = memblt.getY();
 
@@ -677,18 +709,42 @@ public class OrderSurface {
 		try {
 			Bitmap bitmap = cache.getBitmap(memblt.getCacheID(), memblt
 					.getCacheIDX());
-			int bitmapWidth = bitmap.getWidth();
 			// IndexColorModel cm = cache.get_colourmap(memblt.getColorTable());
 			// should use the colormap, but requires high color backstore...
 			rop.do_array(memblt.getOpcode(), backstore, this.width, x, y, cx,
-					cy, bitmap.getBitmapData(), bitmapWidth, srcx, srcy);
+					cy, blitSource(bitmap, srcx, srcy, cx, cy), cx, 0, 0);
 
 			this.repaint(x, y, cx, cy);
+			event.finish(x, y, cx, cy);
 		} catch (RdesktopException e) {
 			LOGGER.warn("Exception drawing memblt", e);
 		}
 	}
 
+	/**
+	 * Convert the area of a cached bitmap to be drawn into pixel values
+	 *
+	 * @param bitmap
+	 *            Bitmap to draw from
+	 * @param srcx
+	 *            x coordinate of the left of the area within the bitmap
+	 * @param srcy
+	 *            y coordinate of the top of the area within the bitmap
+	 * @param cx
+	 *            Width of the area
+	 * @param cy
+	 *            Height of the area
+	 * @return Pixels of the area, cx to a row; only valid until the next
+	 *         call
+	 */
+	private int[] blitSource(Bitmap bitmap, int srcx, int srcy, int cx, int cy) {
+		if (cx > 0 && cy > 0 && blitBuffer.length < cx * cy) {
+			blitBuffer = new int[cx * cy];
+		}
+		bitmap.getRGB(srcx, srcy, cx, cy, blitBuffer);
+		return blitBuffer;
+	}
+
 	/**
 	 * Draw a pattern to the screen (pattern blit)
 	 *
@@ -796,6 +852,7 @@ public class OrderSurface {
 	 *            PatBltOrder describing the blit to be performed
 	 */
 	public void drawPatBltOrder(PatBltOrder patblt) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("PATBLT");
 		Brush brush = patblt.getBrush();
 		int x = patblt.getX();
 		int y = patblt.getY();
@@ -812,6 +869,7 @@ public class OrderSurface {
 		int opcode = patblt.getOpcode();
 
 		patBltOrder(opcode, x, y, cx, cy, fgcolor, bgcolor, brush);
+		event.finish(x, y, cx, cy);
 	}
 
 	/**
@@ -821,6 +879,7 @@ public class OrderSurface {
 	 *            TriBltOrder describing the blit
 	 */
 	public void drawTriBltOrder(TriBltOrder triblt) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("MEM3BLT");
 		int x = triblt.getX();
 		int y = triblt.getY();
 
@@ -864,21 +923,22 @@ public class OrderSurface {
 		try {
 			Bitmap bitmap = cache.getBitmap(triblt.getCacheID(), triblt
 					.getCacheIDX());
+			int[] src = blitSource(bitmap, srcx, srcy, cx, cy);
 			switch (triblt.getOpcode()) {
 			case 0x69: // PDSxxn
 				rop.do_array(ROP2_XOR, backstore, this.width, x, y, cx, cy,
-						bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
+						src, cx, 0, 0);
 				patBltOrder(ROP2_NXOR, x, y, cx, cy, fgcolor, bgcolor, brush);
 				break;
 			case 0xb8: // PSDPxax
 				patBltOrder(ROP2_XOR, x, y, cx, cy, fgcolor, bgcolor, brush);
 				rop.do_array(ROP2_AND, backstore, this.width, x, y, cx, cy,
-						bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
+						src, cx, 0, 0);
 				patBltOrder(ROP2_XOR, x, y, cx, cy, fgcolor, bgcolor, brush);
 				break;
 			case 0xc0: // PSa
 				rop.do_array(ROP2_COPY, backstore, this.width, x, y, cx, cy,
-						bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
+						src, cx, 0, 0);
 				patBltOrder(ROP2_AND, x, y, cx, cy, fgcolor, bgcolor, brush);
 				break;
 
@@ -886,8 +946,10 @@ public class OrderSurface {
 				LOGGER.warn("Unimplemented Triblt opcode:"
 						+ triblt.getOpcode());
 				rop.do_array(ROP2_COPY, backstore, this.width, x, y, cx, cy,
-						bitmap.getBitmapData(), bitmap.getWidth(), srcx, srcy);
+						src, cx, 0, 0);
+				this.repaint(x, y, cx, cy);
 			}
+			event.finish(x, y, cx, cy);
 		} catch (RdesktopException e) {
 			LOGGER.warn("Exception drawing triblt", e);
 		}
@@ -924,6 +986,7 @@ public class OrderSurface {
 	 *            PolyLineOrder describing the set of lines to draw
 	 */
 	public void drawPolyLineOrder(PolyLineOrder polyline) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("POLYLINE");
 		int x = polyline.getX();
 		int y = polyline.getY();
 		int fgcolor = polyline.getForegroundColor();
@@ -971,6 +1034,7 @@ public class OrderSurface {
 			drawLine(xfrom, yfrom, x, y, fgcolor, opcode);
 			flags <<= 2;
 		}
+		event.finish(polyline.getX(), polyline.getY(), 0, 0);
 	}
 
 	/**
@@ -981,8 +1045,10 @@ public class OrderSurface {
 	 */
 	public void drawRectangleOrder(RectangleOrder rect) {
 		// if(logger.isInfoEnabled()) logger.info("RectangleOrder!");
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("OPAQUERECT");
 		fillRectangle(rect.getX(), rect.getY(), rect.getCX(), rect.getCY(),
 				rect.getColor());
+		event.finish(rect.getX(), rect.getY(), rect.getCX(), rect.getCY());
 	}
 
 	/**
@@ -1000,8 +1066,8 @@ public class OrderSurface {
 	public void setPixel(int opcode, int x, int y, int color) {
 		int Bpp = options.Bpp;
 
-		// correction for 24-bit colour
-		if (Bpp == 3) {
+		// correction for 24 and 32-bit colour
+		if (Bpp >= 3) {
 			color = ((color & 0xFF) << 16) | (color & 0xFF00)
 					| ((color & 0xFF0000) >> 16);
 		}
@@ -1014,136 +1080,132 @@ public class OrderSurface {
 	}
 
 	/**
-	 * Draw a single glyph to the screen
+	 * Draw a string of glyphs from one font to the screen, as a single
+	 * clipped operation
 	 *
 	 * @param mixmode
 	 *            0 for transparent background, specified colour for background
 	 *            otherwide
-	 * @param x
-	 *            x coordinate on screen at which to draw glyph
-	 * @param y
-	 *            y coordinate on screen at which to draw glyph
-	 * @param cx
-	 *            Width of clipping area for glyph
-	 * @param cy
-	 *            Height of clipping area for glyph
-	 * @param data
-	 *            Set of values defining glyph's pattern
+	 * @param glyphs
+	 *            Glyphs to draw
+	 * @param xs
+	 *            x coordinate on screen of the left of each glyph
+	 * @param ys
+	 *            y coordinate on screen of the top of each glyph
+	 * @param count
+	 *            Number of glyphs to draw
 	 * @param bgcolor
 	 *            Background colour for glyph pattern
 	 * @param fgcolor
 	 *            Foreground colour for glyph pattern
 	 */
-	public void drawGlyph(int mixmode, int x, int y, int cx, int cy,
-			byte[] data, int bgcolor, int fgcolor) {
-
-		int pdata = 0;
-		int index = 0x80;
-
-		int bytes_per_row = (cx - 1) / 8 + 1;
-		int newx, newy, newcx, newcy;
-
-		int Bpp = options.Bpp;
-
-		// convert to 24-bit colour
-		fgcolor = Bitmap.convertTo24(options, fgcolor);
-		bgcolor = Bitmap.convertTo24(options, bgcolor);
+	public void drawGlyphs(int mixmode, Glyph[] glyphs, int[] xs, int[] ys,
+			int count, int bgcolor, int fgcolor) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("GLYPHS");
+
+		// convert to 24-bit RGB colour
+		fgcolor = Bitmap.convertToRGB(options, fgcolor);
+		bgcolor = Bitmap.convertToRGB(options, bgcolor);
+
+		int minx = Integer.MAX_VALUE, miny = Integer.MAX_VALUE;
+		int maxx = Integer.MIN_VALUE, maxy = Integer.MIN_VALUE;
+
+		for (int i = 0; i < count; i++) {
+			Glyph glyph = glyphs[i];
+			int x = xs[i];
+			int y = ys[i];
+
+			// clip the glyph's cell
+			int left = Math.max(x, this.left);
+			int top = Math.max(y, this.top);
+			int right = Math.min(x + glyph.getWidth() - 1, this.right);
+			int bottom = Math.min(y + glyph.getHeight() - 1, this.bottom);
+			if (left > right || top > bottom) {
+				continue; // off screen
+			}
+			minx = Math.min(minx, left);
+			miny = Math.min(miny, top);
+			maxx = Math.max(maxx, right);
+			maxy = Math.max(maxy, bottom);
+
+			if (mixmode != MIX_TRANSPARENT) { // FillOpaqueStippled
+				backstore.fill(left, top, right - left + 1, bottom - top + 1,
+						bgcolor);
+			}
 
-		// correction for 24-bit colour
-		if (Bpp == 3) {
-			fgcolor = ((fgcolor & 0xFF) << 16) | (fgcolor & 0xFF00)
-					| ((fgcolor & 0xFF0000) >> 16);
-			bgcolor = ((bgcolor & 0xFF) << 16) | (bgcolor & 0xFF00)
-					| ((bgcolor & 0xFF0000) >> 16);
+			fillRuns(glyph.runs, glyph.spans, x, y, left, top, right, bottom,
+					fgcolor);
 		}
 
-		// clip here instead
-
-		if (x > this.right || y > this.bottom)
-		{
-			return; // off screen
-		}
-
-		int clipright = x + cx - 1;
-		if (clipright > this.right) {
-			clipright = this.right;
-		}
-		if (x < this.left) {
-			newx = this.left;
-		} else {
-			newx = x;
+		if (minx <= maxx) {
+			this.repaint(minx, miny, maxx - minx + 1, maxy - miny + 1);
+			event.finish(minx, miny, maxx - minx + 1, maxy - miny + 1);
 		}
-		newcx = clipright - x + 1; // not clipright - newx - 1
+	}
 
-		int clipbottom = y + cy - 1;
-		if (clipbottom > this.bottom) {
-			clipbottom = this.bottom;
-		}
-		if (y < this.top) {
-			newy = this.top;
-		} else {
-			newy = y;
+	/**
+	 * Draw a rendered string to the screen
+	 *
+	 * @param mask
+	 *            Rendered string
+	 * @param x
+	 *            x coordinate on screen of the left of the first glyph
+	 * @param y
+	 *            y coordinate on screen of the top of the first glyph
+	 * @param bgcolor
+	 *            Background colour
+	 * @param fgcolor
+	 *            Foreground colour
+	 */
+	void drawTextMask(TextMask mask, int x, int y, int bgcolor, int fgcolor) {
+		SurfaceDrawEvent event = SurfaceDrawEvent.start("TEXTMASK");
+
+		// convert to 24-bit RGB colour
+		fgcolor = Bitmap.convertToRGB(options, fgcolor);
+		bgcolor = Bitmap.convertToRGB(options, bgcolor);
+
+		x += mask.left;
+		y += mask.top;
+		int left = Math.max(x, this.left);
+		int top = Math.max(y, this.top);
+		int right = Math.min(x + mask.width - 1, this.right);
+		int bottom = Math.min(y + mask.height - 1, this.bottom);
+		if (left > right || top > bottom) {
+			return; // off screen
 		}
 
-		newcy = clipbottom - newy + 1;
-
-		pdata = bytes_per_row * (newy - y); // offset y, but not x
+		fillRuns(mask.background, 0, x, y, left, top, right, bottom, bgcolor);
+		fillRuns(mask.foreground, 0, x, y, left, top, right, bottom, fgcolor);
 
-		if (mixmode == MIX_TRANSPARENT) { // FillStippled
-			for (int i = 0; i < newcy; i++) {
-				for (int j = 0; j < newcx; j++) {
-					if (index == 0) { // next row
-						pdata++;
-						index = 0x80;
-					}
+		this.repaint(left, top, right - left + 1, bottom - top + 1);
+		event.finish(left, top, right - left + 1, bottom - top + 1);
+	}
 
-					if ((data[pdata] & index) != 0) {
-						if ((x + j >= newx) && (newx + j > 0) && (newy + i > 0)) {
-							// since haven't offset x
-							backstore.setRGB(newx + j, newy + i, fgcolor);
-						}
-					}
-					index >>= 1;
-				}
-				pdata++;
-				index = 0x80;
-				if (pdata == data.length) {
-					pdata = 0;
-				}
+	/**
+	 * Fill runs of pixels, as stored in a {@link GlyphAtlas}, within a clip
+	 * rectangle
+	 */
+	private void fillRuns(int[] runs, int p, int x, int y, int left, int top,
+			int right, int bottom, int color) {
+		for (int row = y; row <= bottom; row++) {
+			int n = runs[p++];
+			if (row < top) {
+				p += n * 2;
+				continue;
 			}
-		} else { // FillOpaqueStippled
-			for (int i = 0; i < newcy; i++) {
-				for (int j = 0; j < newcx; j++) {
-					if (index == 0) { // next row
-						pdata++;
-						index = 0x80;
-					}
-
-					if (x + j >= newx) {
-						if ((x + j > 0) && (y + i > 0)) {
-							if ((data[pdata] & index) != 0) {
-								backstore.setRGB(x + j, y + i, fgcolor);
-							} else {
-								backstore.setRGB(x + j, y + i, bgcolor);
-							}
-						}
-					}
-					index >>= 1;
-				}
-				pdata++;
-				index = 0x80;
-				if (pdata == data.length) {
-					pdata = 0;
+			for (; n > 0; n--) {
+				int start = Math.max(x + runs[p++], left);
+				int end = Math.min(x + runs[p++], right + 1);
+				if (start < end) {
+					backstore.fill(start, row, end - start, 1, color);
 				}
 			}
 		}
-
-		// if(logger.isInfoEnabled()) logger.info("glyph
-		// \t(\t"+x+",\t"+y+"),(\t"+(x+cx-1)+",\t"+(y+cy-1)+")");
-		this.repaint(newx, newy, newcx, newcy);
 	}
 
 	private void repaint(int x, int y, int width, int height) {
+		backstore.markDirty(x, y, width, height);
+		options.stats.inputLatency.drawn();
 		this.callback.markDirty(x, y, width, height);
 	}
 
@@ -33,6 +33,7 @@ import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
 import java.util.function.Supplier;
 
+import net.propero.rdp.jfr.OrderEvent;
 import net.propero.rdp.orders.BoundsOrder;
 import net.propero.rdp.orders.Brush;
 import net.propero.rdp.orders.DeskSaveOrder;
@@ -62,6 +63,15 @@ public class Orders {
 
 	public Cache cache = null;
 
+	/* Glyphs of the text order being drawn, and where to draw them */
+	private Glyph[] textGlyphs = new Glyph[256];
+
+	private int[] textX = new int[256];
+
+	private int[] textY = new int[256];
+
+	private int textCount = 0;
+
 	/* RDP_BMPCACHE2_ORDER */
 	private static final int ID_MASK = 0x0007;
 
@@ -608,11 +618,15 @@ public class Orders {
 			throws OrderException, RdesktopException {
 		assert (controlFlags & RDP_ORDER_STANDARD) != 0;
 		assert (controlFlags & RDP_ORDER_SECONDARY) == 0;
+		OrderEvent event = new OrderEvent();
+		event.begin();
+		int start = data.getPosition();
 		if ((controlFlags & PrimaryOrderFlags.TYPE_CHANGE) != 0) {
 			os.setOrderType(PrimaryOrder.forEncodingNumber(data.get8()));
 		}
 
 		PrimaryOrder orderType = os.getOrderType();
+		options.stats.primaryOrder(orderType);
 
 		int orderFlags = this.getPresentFields(data, controlFlags, orderType);
 
@@ -627,7 +641,7 @@ public class Orders {
 
 		boolean delta = ((controlFlags & PrimaryOrderFlags.DELTA_COORDINATES) != 0);
 
-		LOGGER.debug("Primary order: " + orderType);
+		LOGGER.debug("Primary order: {}", orderType);
 		switch (orderType) {
 		case DSTBLT:
 			this.processDestBlt(data, os.getDestBlt(), orderFlags, delta); break;
@@ -668,6 +682,14 @@ public class Orders {
 			surface.resetClip();
 			LOGGER.debug("Reset clip");
 		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.orderClass = "PRIMARY";
+			event.order = orderType.name();
+			event.bytes = data.getPosition() - start;
+			event.commit();
+		}
 	}
 
 	/**
@@ -1201,6 +1223,8 @@ public class Orders {
 			throws OrderException, RdesktopException {
 		assert (controlFlags & RDP_ORDER_STANDARD) != 0;
 		assert (controlFlags & RDP_ORDER_SECONDARY) != 0;
+		OrderEvent event = new OrderEvent();
+		event.begin();
 
 		int length = 0;
 		int flags = 0;
@@ -1209,10 +1233,11 @@ public class Orders {
 		length = data.getLittleEndian16();
 		flags = data.getLittleEndian16();
 		SecondaryOrder type = SecondaryOrder.forId(data.get8());
+		options.stats.secondaryOrder(type);
 
 		next_order = data.getPosition() + length + 7;
 
-		LOGGER.debug("Secondary order: " + type);
+		LOGGER.debug("Secondary order: {}", type);
 		switch (type) {
 		case BITMAP_UNCOMPRESSED:
 			this.processRawBitmapCache(data);
@@ -1251,6 +1276,14 @@ public class Orders {
 		}
 
 		data.setPosition(next_order);
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.orderClass = "SECONDARY";
+			event.order = type.name();
+			event.bytes = length + 13;
+			event.commit();
+		}
 	}
 
 	/**
@@ -1283,8 +1316,8 @@ public class Orders {
 			pdata += width * Bpp;
 		}
 
-		cache.putBitmap(cache_id, cache_idx, new Bitmap(Bitmap.convertImage(options,
-				inverted, Bpp), width, height, 0, 0), 0);
+		cache.putBitmap(cache_id, cache_idx, new Bitmap(options, inverted,
+				width, height, 0, 0, Bpp), 0);
 	}
 
 	/**
@@ -1373,23 +1406,8 @@ public class Orders {
 		// ",pad1=" + pad1 + ",bufsize=" + bufsize + ",pad2=" + pad2 + ",rs=" +
 		// row_size + ",fs=" + final_size + ")");
 
-		if (Bpp == 1) {
-			byte[] pixel = Bitmap.decompress(options, width, height, size, data, Bpp);
-			if (pixel != null) {
-				cache.putBitmap(cache_id, cache_idx, new Bitmap(Bitmap
-						.convertImage(options, pixel, Bpp), width, height, 0, 0), 0);
-			} else {
-				LOGGER.warn("Failed to decompress bitmap");
-			}
-		} else {
-			int[] pixel = Bitmap.decompressInt(options, width, height, size, data, Bpp);
-			if (pixel != null) {
-				cache.putBitmap(cache_id, cache_idx, new Bitmap(pixel, width,
-						height, 0, 0), 0);
-			} else {
-				LOGGER.warn("Failed to decompress bitmap");
-			}
-		}
+		cache.putBitmap(cache_id, cache_idx, Bitmap.decompressBitmap(options,
+				width, height, size, data, Bpp), 0);
 	}
 
 	/**
@@ -1441,36 +1459,23 @@ public class Orders {
 
 		// in_uint8p(s, data, bufsize);
 
-		LOGGER.info("BMPCACHE2(compr=" + compressed + ",flags=" + flags
-				+ ",cx=" + width + ",cy=" + height + ",id=" + cache_id
-				+ ",idx=" + cache_idx + ",Bpp=" + Bpp + ",bs=" + bufsize + ")");
+		LOGGER.debug(
+				"BMPCACHE2(compr={},flags={},cx={},cy={},id={},idx={},Bpp={},bs={})",
+				compressed, flags, width, height, cache_id, cache_idx, Bpp,
+				bufsize);
 
 		bmpdata = new byte[width * height * Bpp];
-		int[] bmpdataInt = new int[width * height];
 
 		if (compressed) {
-			if (Bpp == 1) {
-				bmpdataInt = Bitmap.convertImage(options, Bitmap.decompress(options, width,
-						height, bufsize, data, Bpp), Bpp);
-			} else {
-				bmpdataInt = Bitmap.decompressInt(options, width, height, bufsize, data,
-						Bpp);
-			}
-
-			if (bmpdataInt == null) {
-				LOGGER.debug("Failed to decompress bitmap data");
-				// xfree(bmpdata);
-				return;
-			}
-			bitmap = new Bitmap(bmpdataInt, width, height, 0, 0);
+			bitmap = Bitmap.decompressBitmap(options, width, height, bufsize,
+					data, Bpp);
 		} else {
 			for (y = 0; y < height; y++) {
 				data.copyToByteArray(bmpdata, y * (width * Bpp),
 						(height - y - 1) * (width * Bpp), width * Bpp);
 			}
 
-			bitmap = new Bitmap(Bitmap.convertImage(options, bmpdata, Bpp), width,
-					height, 0, 0);
+			bitmap = new Bitmap(options, bmpdata, width, height, 0, 0, Bpp);
 		}
 
 		cache.putBitmap(cache_id, cache_idx, bitmap, 0);
@@ -1511,6 +1516,9 @@ public class Orders {
 
 			data.copyToByteArray(fontdata, 0, data.getPosition(), datasize);
 			data.incrementPosition(datasize);
+			if (options.shared_cache) {
+				fontdata = PixelStore.SHARED.intern(fontdata);
+			}
 			glyph = new Glyph(font, character, offset, baseline, width, height,
 					fontdata);
 			cache.putFont(glyph);
@@ -1533,7 +1541,7 @@ public class Orders {
 		assert (controlFlags & RDP_ORDER_SECONDARY) != 0;
 
 		AltSecondaryOrder order = AltSecondaryOrder.forPacketId(controlFlags);
-		LOGGER.debug("Altsec order: " + order);
+		LOGGER.debug("Altsec order: {}", order);
 		throw new OrderException("Alternate secondary orders aren't implemented");
 	}
 
@@ -1647,6 +1655,55 @@ public class Orders {
 		return ((val & 0x8000) != 0) ? -((~val & 0xFFFF) + 1) : val;
 	}
 
+	/**
+	 * Draw the glyphs queued for a text order, from the cache of rendered
+	 * strings if it was drawn before
+	 *
+	 * @param text2
+	 *            Text order giving the font, mix mode and colours
+	 */
+	private void drawGlyphs(Text2Order text2) {
+		TextMask.Key key = new TextMask.Key(text2.getMixmode(), textGlyphs,
+				textX, textY, textCount);
+		TextMask mask = cache.getTextMask(key);
+		if (mask == null) {
+			mask = TextMask.render(text2.getMixmode(), textGlyphs, textX,
+					textY, textCount);
+			if (mask == null) {
+				// too large to keep
+				surface.drawGlyphs(text2.getMixmode(), textGlyphs, textX,
+						textY, textCount, text2.getBackgroundColor(),
+						text2.getForegroundColor());
+				return;
+			}
+			cache.putTextMask(key, mask);
+		}
+		surface.drawTextMask(mask, textX[0], textY[0],
+				text2.getBackgroundColor(), text2.getForegroundColor());
+	}
+
+	/**
+	 * Add a glyph to those to be drawn for the current text order
+	 *
+	 * @param glyph
+	 *            Glyph to draw
+	 * @param x
+	 *            x coordinate of the left of the glyph
+	 * @param y
+	 *            y coordinate of the top of the glyph
+	 */
+	private void queueGlyph(Glyph glyph, int x, int y) {
+		if (textCount == textGlyphs.length) {
+			textGlyphs = Arrays.copyOf(textGlyphs, textCount * 2);
+			textX = Arrays.copyOf(textX, textCount * 2);
+			textY = Arrays.copyOf(textY, textCount * 2);
+		}
+		textGlyphs[textCount] = glyph;
+		textX[textCount] = x;
+		textY[textCount] = y;
+		textCount++;
+	}
+
 	/**
 	 * Draw a text2 order to the drawing surface
 	 *
@@ -1693,138 +1750,139 @@ public class Orders {
 		 * text2.getFlags() + " Mixmode: " + text2.getMixmode() + " Unknown: " +
 		 * text2.getUnknown() + " Length: " + text2.getLength());
 		 */
-		for (int i = 0; i < length;) {
-			switch (text[ptext + i] & 0x000000ff) {
-			case (0xff):
-				if (i + 2 < length) {
-					byte[] data = new byte[text[ptext + i + 2] & 0x000000ff];
-					System.arraycopy(text, ptext, data, 0,
-							text[ptext + i + 2] & 0x000000ff);
-					DataBlob db = new DataBlob(
-							text[ptext + i + 2] & 0x000000ff, data);
-					cache.putText(text[ptext + i + 1] & 0x000000ff, db);
-				} else {
-					throw new RdesktopException();
-				}
-			length -= i + 3;
-			ptext = i + 3;
-			i = 0;
-			break;
-
-			case (0xfe):
-				entry = cache.getText(text[ptext + i + 1] & 0x000000ff);
-			if (entry != null) {
-				if ((entry.getData()[1] == 0)
-						&& ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0)) {
-					if ((text2.getFlags() & 0x04) != 0) {
-						y += text[ptext + i + 2] & 0x000000ff;
+		textCount = 0;
+		try {
+			for (int i = 0; i < length;) {
+				switch (text[ptext + i] & 0x000000ff) {
+				case (0xff):
+					if (i + 2 < length) {
+						byte[] data = new byte[text[ptext + i + 2] & 0x000000ff];
+						System.arraycopy(text, ptext, data, 0,
+								text[ptext + i + 2] & 0x000000ff);
+						DataBlob db = new DataBlob(
+								text[ptext + i + 2] & 0x000000ff, data);
+						cache.putText(text[ptext + i + 1] & 0x000000ff, db);
 					} else {
-						x += text[ptext + i + 2] & 0x000000ff;
+						throw new RdesktopException();
 					}
-				}
-			}
-			if (i + 2 < length) {
-				i += 3;
-			} else {
-				i += 2;
-			}
-			length -= i;
-			ptext = i;
-			i = 0;
-			// break;
-
-			byte[] data = entry.getData();
-			for (int j = 0; j < entry.getSize(); j++) {
-				glyph = cache
-						.getFont(text2.getFont(), data[j] & 0x000000ff);
-				if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
-					offset = data[++j] & 0x000000ff;
-					if ((offset & 0x80) != 0) {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							int var = this
-									.twosComplement16((data[j + 1] & 0xff)
-											| ((data[j + 2] & 0xff) << 8));
-							y += var;
-							j += 2;
+				length -= i + 3;
+				ptext = i + 3;
+				i = 0;
+				break;
+
+				case (0xfe):
+					entry = cache.getText(text[ptext + i + 1] & 0x000000ff);
+				if (entry != null) {
+					if ((entry.getData()[1] == 0)
+							&& ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0)) {
+						if ((text2.getFlags() & 0x04) != 0) {
+							y += text[ptext + i + 2] & 0x000000ff;
 						} else {
-							int var = this
-									.twosComplement16((data[j + 1] & 0xff)
-											| ((data[j + 2] & 0xff) << 8));
-							x += var;
-							j += 2;
+							x += text[ptext + i + 2] & 0x000000ff;
 						}
-					} else {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							y += offset;
+					}
+				}
+				if (i + 2 < length) {
+					i += 3;
+				} else {
+					i += 2;
+				}
+				length -= i;
+				ptext = i;
+				i = 0;
+				// break;
+
+				byte[] data = entry.getData();
+				for (int j = 0; j < entry.getSize(); j++) {
+					glyph = cache
+							.getFont(text2.getFont(), data[j] & 0x000000ff);
+					if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
+						offset = data[++j] & 0x000000ff;
+						if ((offset & 0x80) != 0) {
+							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
+								int var = this
+										.twosComplement16((data[j + 1] & 0xff)
+												| ((data[j + 2] & 0xff) << 8));
+								y += var;
+								j += 2;
+							} else {
+								int var = this
+										.twosComplement16((data[j + 1] & 0xff)
+												| ((data[j + 2] & 0xff) << 8));
+								x += var;
+								j += 2;
+							}
 						} else {
-							x += offset;
+							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
+								y += offset;
+							} else {
+								x += offset;
+							}
 						}
 					}
-				}
-				if (glyph != null) {
-					// if((text2.getFlags() & TEXT2_VERTICAL) != 0)
-					// logger.info("Drawing glyph: (" + (x +
-					// (short)glyph.getOffset()) + ", " + (y +
-					// (short)glyph.getBaseLine()) + ")" );
-					surface.drawGlyph(text2.getMixmode(), x
-							+ (short) glyph.getOffset(), y
-							+ (short) glyph.getBaseLine(),
-							glyph.getWidth(), glyph.getHeight(), glyph
-							.getFontData(), text2
-							.getBackgroundColor(), text2
-							.getForegroundColor());
-
-					if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0) {
-						x += glyph.getWidth();
+					if (glyph != null) {
+						// if((text2.getFlags() & TEXT2_VERTICAL) != 0)
+						// logger.info("Drawing glyph: (" + (x +
+						// (short)glyph.getOffset()) + ", " + (y +
+						// (short)glyph.getBaseLine()) + ")" );
+						queueGlyph(glyph, x + (short) glyph.getOffset(), y
+								+ (short) glyph.getBaseLine());
+
+						if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0) {
+							x += glyph.getWidth();
+						}
 					}
 				}
-			}
-			break;
+				break;
 
-			default:
-				glyph = cache.getFont(text2.getFont(),
-						text[ptext + i] & 0x000000ff);
-				if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
-					offset = text[ptext + (++i)] & 0x000000ff;
-					if ((offset & 0x80) != 0) {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							// logger.info("y +=" + (text[ptext +
-							// (i+1)]&0x000000ff) + " | " + ((text[ptext +
-							// (i+2)]&0x000000ff) << 8));
-							int var = this
-									.twosComplement16((text[ptext + i + 1] & 0x000000ff)
-											| ((text[ptext + i + 2] & 0x000000ff) << 8));
-							y += var;
-							i += 2;
+				default:
+					glyph = cache.getFont(text2.getFont(),
+							text[ptext + i] & 0x000000ff);
+					if ((text2.getFlags() & TEXT2_IMPLICIT_X) == 0) {
+						offset = text[ptext + (++i)] & 0x000000ff;
+						if ((offset & 0x80) != 0) {
+							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
+								// logger.info("y +=" + (text[ptext +
+								// (i+1)]&0x000000ff) + " | " + ((text[ptext +
+								// (i+2)]&0x000000ff) << 8));
+								int var = this
+										.twosComplement16((text[ptext + i + 1] & 0x000000ff)
+												| ((text[ptext + i + 2] & 0x000000ff) << 8));
+								y += var;
+								i += 2;
+							} else {
+								int var = this
+										.twosComplement16((text[ptext + i + 1] & 0x000000ff)
+												| ((text[ptext + i + 2] & 0x000000ff) << 8));
+								x += var;
+								i += 2;
+							}
 						} else {
-							int var = this
-									.twosComplement16((text[ptext + i + 1] & 0x000000ff)
-											| ((text[ptext + i + 2] & 0x000000ff) << 8));
-							x += var;
-							i += 2;
-						}
-					} else {
-						if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
-							y += offset;
-						} else {
-							x += offset;
+							if ((text2.getFlags() & TEXT2_VERTICAL) != 0) {
+								y += offset;
+							} else {
+								x += offset;
+							}
 						}
 					}
-				}
-				if (glyph != null) {
-					surface.drawGlyph(text2.getMixmode(), x
-							+ (short) glyph.getOffset(), y
-							+ (short) glyph.getBaseLine(), glyph.getWidth(),
-							glyph.getHeight(), glyph.getFontData(), text2
-							.getBackgroundColor(), text2
-							.getForegroundColor());
-
-					if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0) {
-						x += glyph.getWidth();
+					if (glyph != null) {
+						queueGlyph(glyph, x + (short) glyph.getOffset(), y
+								+ (short) glyph.getBaseLine());
+
+						if ((text2.getFlags() & TEXT2_IMPLICIT_X) != 0) {
+							x += glyph.getWidth();
+						}
 					}
+					i++;
+					break;
 				}
-				i++;
-				break;
+			}
+		} finally {
+			// draw whatever was read, as a single operation
+			if (textCount > 0) {
+				drawGlyphs(text2);
+				Arrays.fill(textGlyphs, 0, textCount, null);
+				textCount = 0;
 			}
 		}
 	}
@@ -0,0 +1,245 @@
+/* OutboundWriter.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes outgoing PDUs for one session on a single thread, so that callers
+ * such as the AWT thread never block on the socket.
+ * <p>
+ * Input and control PDUs share one queue and are written in the order they
+ * were sent, so input never overtakes a control PDU sent before it, such as
+ * the Confirm Active and synchronisation PDUs of a (re)activation. Virtual
+ * channel data is only written when that queue is empty. Encryption is done
+ * by the send itself, on the writer thread, so the RC4 stream follows the
+ * order of packets on the wire. Virtual channel data is queued one chunk at
+ * a time, so input is never stuck behind more than one chunk, and only a
+ * few chunks may be queued at once, so a large transfer is read from its
+ * source as it is sent.
+ * <p>
+ * Until {@link #start()} is called, and on the writer thread itself, sends
+ * are written immediately by the calling thread.
+ */
+public class OutboundWriter {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Priority classes, highest first. Input and control PDUs are written in
+	 * order, ahead of virtual channel data.
+	 */
+	public static enum Priority {
+		/** Keyboard and mouse input */
+		INPUT,
+		/** Other PDUs on the global channel */
+		CONTROL,
+		/** Virtual channel data */
+		BULK
+	}
+
+	/**
+	 * A PDU ready to be encrypted and written
+	 */
+	interface Send {
+		void send() throws RdesktopException, IOException;
+	}
+
+	/** Most virtual channel chunks queued at once */
+	private static final int BULK_LIMIT = 4;
+
+	private final Rdp rdp;
+
+	/** Input and control PDUs, in order */
+	private final ConcurrentLinkedQueue<Send> global = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger queuedInput = new AtomicInteger();
+
+	private final ConcurrentLinkedQueue<Send> bulk = new ConcurrentLinkedQueue<>();
+
+	private final Semaphore bulkPermits = new Semaphore(BULK_LIMIT);
+
+	/** Held while writing, whichever thread writes */
+	private final Object wireLock = new Object();
+
+	private volatile Thread thread = null;
+
+	/**
+	 * @param rdp
+	 *            Rdp layer to report write errors to, or null
+	 */
+	public OutboundWriter(Rdp rdp) {
+		this.rdp = rdp;
+	}
+
+	/**
+	 * Start the writer thread. Sends from then on are queued.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				OutboundWriter.this.run(Thread.currentThread());
+			}
+		}, "RDP writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the writer thread, dropping any queued sends. Sends from then on
+	 * are written immediately.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		if (t == null) {
+			return;
+		}
+		thread = null;
+		LockSupport.unpark(t);
+		global.clear();
+		queuedInput.set(0);
+		while (bulk.poll() != null) {
+			bulkPermits.release();
+		}
+	}
+
+	/**
+	 * @return True if sends are being queued for the writer thread
+	 */
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * @return Number of input PDUs queued but not yet written
+	 */
+	public int getQueuedInputCount() {
+		return queuedInput.get();
+	}
+
+	/**
+	 * @return Number of virtual channel chunks queued but not yet written
+	 */
+	public int getQueuedBulkCount() {
+		return bulk.size();
+	}
+
+	/**
+	 * Write a PDU, or queue it for the writer thread.
+	 *
+	 * @param priority
+	 *            Priority class of the PDU
+	 * @param send
+	 *            Encrypts and writes the PDU
+	 * @throws RdesktopException
+	 * @throws IOException
+	 *             If the PDU was written immediately and failed, or if the
+	 *             writer stopped while waiting to queue bulk data
+	 */
+	void submit(Priority priority, final Send send) throws RdesktopException,
+			IOException {
+		Thread t = thread;
+		if (t == null || t == Thread.currentThread()) {
+			synchronized (wireLock) {
+				send.send();
+			}
+			return;
+		}
+
+		switch (priority) {
+		case INPUT:
+			queuedInput.incrementAndGet();
+			global.add(new Send() {
+				@Override
+				public void send() throws RdesktopException, IOException {
+					queuedInput.decrementAndGet();
+					send.send();
+				}
+			});
+			break;
+		case CONTROL:
+			global.add(send);
+			break;
+		case BULK:
+			try {
+				while (!bulkPermits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+					if (thread != t) {
+						throw new IOException("Connection closed");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			bulk.add(send);
+			break;
+		}
+		LockSupport.unpark(t);
+	}
+
+	private void run(Thread self) {
+		while (thread == self) {
+			Send send;
+			boolean isBulk = false;
+			if ((send = global.poll()) == null) {
+				send = bulk.poll();
+				isBulk = true;
+			}
+			if (send == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			try {
+				synchronized (wireLock) {
+					send.send();
+				}
+			} catch (RdesktopException | IOException e) {
+				if (thread == self) {
+					LOGGER.warn("Error sending packet", e);
+					stop();
+					if (rdp != null) {
+						rdp.sendFailed(e);
+					}
+				}
+			} finally {
+				if (isBulk) {
+					bulkPermits.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/* PacketPool.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+/**
+ * Reusable buffers for outgoing PDUs.
+ * <p>
+ * Every outgoing PDU is created by {@link ISO#init(int)} with room for all
+ * the layer headers, and is finished with once {@link ISO} has written it,
+ * so the packet can be returned to the pool there. Packets up to
+ * {@link #PACKET_SIZE} bytes, which covers input, control PDUs and full
+ * virtual channel chunks, come from the pool; larger ones are allocated as
+ * before and left to the garbage collector. A PDU that is never sent, such
+ * as one dropped when the connection closes, is simply not returned.
+ */
+class PacketPool {
+
+	/** Capacity of pooled packets */
+	static final int PACKET_SIZE = 16384;
+
+	/** Most packets kept for reuse */
+	private static final int POOL_SIZE = 16;
+
+	private final RdpPacket[] free = new RdpPacket[POOL_SIZE];
+
+	private int count = 0;
+
+	/**
+	 * Get a zeroed packet
+	 *
+	 * @param length
+	 *            Length of the PDU, including all headers
+	 * @return Packet of at least the given length, positioned at 0
+	 */
+	RdpPacket get(int length) {
+		if (length > PACKET_SIZE) {
+			return new RdpPacket(length);
+		}
+		RdpPacket packet = null;
+		synchronized (this) {
+			if (count > 0) {
+				packet = free[--count];
+				free[count] = null;
+			}
+		}
+		if (packet == null) {
+			packet = new RdpPacket(PACKET_SIZE);
+		}
+		packet.recycle(length);
+		return packet;
+	}
+
+	/**
+	 * Return a packet that has been sent
+	 *
+	 * @param packet
+	 *            Packet from {@link #get(int)}, which must not be used again
+	 */
+	synchronized void release(RdpPacket packet) {
+		if (packet.capacity() == PACKET_SIZE && count < POOL_SIZE) {
+			free[count++] = packet;
+		}
+	}
+}
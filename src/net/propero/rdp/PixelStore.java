@@ -0,0 +1,158 @@
+/* PixelStore.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A store of immutable pixel data, shared by all sessions in the JVM, so
+ * that sessions caching the same bitmaps and glyphs keep one copy of them.
+ * <p>
+ * Arrays are looked up by their contents. The store only holds them weakly:
+ * an array is shared for as long as any session's cache refers to it, and is
+ * dropped once none does, however the sessions end. Arrays given to the
+ * store must not be modified afterwards.
+ */
+final class PixelStore {
+
+	/** Store used by sessions with {@link Options#shared_cache} set */
+	static final PixelStore SHARED = new PixelStore();
+
+	private static final class Entry extends WeakReference<Object> {
+		final int hash;
+
+		Entry(Object data, int hash, ReferenceQueue<Object> queue) {
+			super(data, queue);
+			this.hash = hash;
+		}
+	}
+
+	/** Entries by hash of their contents */
+	private final HashMap<Integer, List<Entry>> entries = new HashMap<>();
+
+	/** Entries whose arrays are no longer used */
+	private final ReferenceQueue<Object> released = new ReferenceQueue<>();
+
+	private long hits = 0;
+
+	/**
+	 * @param data
+	 *            Pixel data
+	 * @return An array in the store with the same contents, or data itself
+	 *         after adding it to the store
+	 */
+	byte[] intern(byte[] data) {
+		return (byte[]) intern(data, Arrays.hashCode(data));
+	}
+
+	/**
+	 * @param data
+	 *            Pixel data
+	 * @return An array in the store with the same contents, or data itself
+	 *         after adding it to the store
+	 */
+	short[] intern(short[] data) {
+		return (short[]) intern(data, Arrays.hashCode(data) * 31 + 1);
+	}
+
+	/**
+	 * @param data
+	 *            Pixel data
+	 * @return An array in the store with the same contents, or data itself
+	 *         after adding it to the store
+	 */
+	int[] intern(int[] data) {
+		return (int[]) intern(data, Arrays.hashCode(data) * 31 + 2);
+	}
+
+	private synchronized Object intern(Object data, int hash) {
+		expunge();
+		List<Entry> bucket = entries.get(hash);
+		if (bucket == null) {
+			bucket = new ArrayList<>(1);
+			entries.put(hash, bucket);
+		}
+		for (Entry entry : bucket) {
+			Object shared = entry.get();
+			if (shared != null && equal(shared, data)) {
+				hits++;
+				return shared;
+			}
+		}
+		bucket.add(new Entry(data, hash, released));
+		return data;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		if (a instanceof byte[] && b instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		}
+		if (a instanceof short[] && b instanceof short[]) {
+			return Arrays.equals((short[]) a, (short[]) b);
+		}
+		if (a instanceof int[] && b instanceof int[]) {
+			return Arrays.equals((int[]) a, (int[]) b);
+		}
+		return false;
+	}
+
+	/**
+	 * Drop entries whose arrays have been collected
+	 */
+	private void expunge() {
+		Reference<?> ref;
+		while ((ref = released.poll()) != null) {
+			Entry entry = (Entry) ref;
+			List<Entry> bucket = entries.get(entry.hash);
+			if (bucket != null && bucket.remove(entry) && bucket.isEmpty()) {
+				entries.remove(entry.hash);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of arrays in the store
+	 */
+	synchronized int size() {
+		expunge();
+		int size = 0;
+		for (List<Entry> bucket : entries.values()) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of times an array was found already in the store
+	 */
+	synchronized long getHits() {
+		return hits;
+	}
+}
@@ -82,8 +82,7 @@ public class RasterOp {
 			int cx, int cy, int[] src, int srcwidth, int srcx, int srcy, int Bpp) {
 
 		if (src == null) { // special case - copy to self
-			biDst.getGraphics()
-			.copyArea(srcx, srcy, cx, cy, x - srcx, y - srcy);
+			biDst.copyArea(srcx, srcy, cx, cy, x - srcx, y - srcy);
 		} else {
 			// Manually use rows to implement srcx and srcy correctly
 			for (int row = 0; row < cy; row++) {
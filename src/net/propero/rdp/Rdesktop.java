@@ -29,6 +29,7 @@ import gnu.getopt.LongOpt;
 
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.SocketException;
@@ -83,6 +84,10 @@ public class Rdesktop {
 		LOGGER.info("	--no_encryption				disable encryption from client to server");
 		// logger.info("	--enable_menu				enable menu bar");
 		LOGGER.info("	--log4j_config=FILE			use FILE for log4j configuration");
+		LOGGER.info("	--record=FILE				record received PDUs to FILE for replay with SessionReplay");
+		LOGGER.info("	--input_batch=MS			hold input for up to MS milliseconds to send several events per PDU");
+		LOGGER.info("	--bitmap_cache=KB			cache at most KB kilobytes of bitmaps");
+		LOGGER.info("	--idle_compact=MS			move the display and caches out of the heap after MS milliseconds without updates");
 		LOGGER.info("Example: java net.propero.rdp.Rdesktop -g 800x600 -l WARN m52.propero.int");
 		Rdesktop.exit(0, null, null, true);
 	}
@@ -95,6 +100,7 @@ public class Rdesktop {
 	 */
 	public static void main(String[] args) throws RdesktopException {
 		String mapFile = "en-us";
+		String recordFile = null;
 
 		Options options = new Options();
 
@@ -106,7 +112,7 @@ public class Rdesktop {
 		int c;
 		String arg;
 		StringBuffer sb = new StringBuffer();
-		LongOpt[] alo = new LongOpt[11];
+		LongOpt[] alo = new LongOpt[15];
 		alo[0] = new LongOpt("debug_key", LongOpt.NO_ARGUMENT, null, 0);
 		alo[1] = new LongOpt("debug_hex", LongOpt.NO_ARGUMENT, null, 0);
 		alo[2] = new LongOpt("no_paste_hack", LongOpt.NO_ARGUMENT, null, 0);
@@ -119,6 +125,10 @@ public class Rdesktop {
 		alo[9] = new LongOpt("save_licence", LongOpt.NO_ARGUMENT, null, 0);
 		alo[10] = new LongOpt("persistent_caching", LongOpt.NO_ARGUMENT, null,
 				0);
+		alo[11] = new LongOpt("record", LongOpt.REQUIRED_ARGUMENT, null, 0);
+		alo[12] = new LongOpt("input_batch", LongOpt.REQUIRED_ARGUMENT, null, 0);
+		alo[13] = new LongOpt("bitmap_cache", LongOpt.REQUIRED_ARGUMENT, null, 0);
+		alo[14] = new LongOpt("idle_compact", LongOpt.REQUIRED_ARGUMENT, null, 0);
 
 		Getopt g = new Getopt("properJavaRDP", args,
 				"bc:d:f::g:k:l:m:n:p:s:t:T:u:o:r:", alo);
@@ -159,6 +169,18 @@ public class Rdesktop {
 				case 10:
 					options.persistent_bitmap_caching = true;
 					break;
+				case 11:
+					recordFile = g.getOptarg();
+					break;
+				case 12:
+					options.input_batch_delay = Integer.parseInt(g.getOptarg());
+					break;
+				case 13:
+					options.bitmap_cache_size = Integer.parseInt(g.getOptarg()) * 1024;
+					break;
+				case 14:
+					options.idle_compact_delay = Integer.parseInt(g.getOptarg());
+					break;
 				default:
 					usage();
 					return;
@@ -320,13 +342,20 @@ public class Rdesktop {
 		KeyCode_FileBased keyMap;
 		try {
 			String filename = keyMapPath + mapFile;
-			try (InputStream istr = Rdesktop.class.getResourceAsStream("/" + filename)) {
-				if (istr == null) {
-					LOGGER.debug("Loading keymap from filename: " + filename);
-					keyMap = new KeyCode_FileBased(options, filename);
-				} else {
-					LOGGER.debug("Loading keymap from InputStream: " + "/" + filename);
-					keyMap = new KeyCode_FileBased(options, istr);
+			// Use the keymap precompiled by the build if there is one
+			keyMap = KeyCode_FileBased.loadCompiled(options, "/" + filename
+					+ KeyCode_FileBased.COMPILED_SUFFIX);
+			if (keyMap != null) {
+				LOGGER.debug("Loaded precompiled keymap: " + "/" + filename);
+			} else {
+				try (InputStream istr = Rdesktop.class.getResourceAsStream("/" + filename)) {
+					if (istr == null) {
+						LOGGER.debug("Loading keymap from filename: " + filename);
+						keyMap = new KeyCode_FileBased(options, filename);
+					} else {
+						LOGGER.debug("Loading keymap from InputStream: " + "/" + filename);
+						keyMap = new KeyCode_FileBased(options, istr);
+					}
 				}
 			}
 			options.keylayout = keyMap.getMapCode();
@@ -347,6 +376,14 @@ public class Rdesktop {
 		RdpLayer.registerDrawingSurface(window);
 		LOGGER.debug("Registering comms layer...");
 		window.registerCommLayer(RdpLayer);
+		if (recordFile != null) {
+			try {
+				RdpLayer.setRecorder(new SessionRecorder(recordFile, options));
+				LOGGER.info("Recording session to " + recordFile);
+			} catch (IOException e) {
+				LOGGER.warn("Unable to record session to " + recordFile, e);
+			}
+		}
 		LOGGER.info("Connecting to " + server + ":" + options.port
 				+ " ...");
 
@@ -32,6 +32,9 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.annotation.Nullable;
 
@@ -41,6 +44,7 @@ import net.propero.rdp.Orders.PrimaryOrder;
 import net.propero.rdp.api.InitState;
 import net.propero.rdp.api.RdesktopCallback;
 import net.propero.rdp.api.SystemCursorType;
+import net.propero.rdp.jfr.BitmapUpdateEvent;
 import net.propero.rdp.rdp5.VChannels;
 
 import org.apache.logging.log4j.LogManager;
@@ -98,6 +102,10 @@ public class Rdp {
 
 	private static final int RDP_DATA_PDU_SYNCHRONISE = 31;
 
+	private static final int RDP_DATA_PDU_REFRESH_RECT = 33;
+
+	private static final int RDP_DATA_PDU_SUPPRESS_OUTPUT = 35;
+
 	private static final int RDP_DATA_PDU_BELL = 34;
 
 	private static final int RDP_DATA_PDU_LOGON = 38;
@@ -143,6 +151,9 @@ public class Rdp {
 
 	private static final int ORDER_CAP_NOSUPPORT = 4;
 
+	/** Bitmap capability drawingFlags: 32 bpp bitmaps may omit alpha */
+	private static final int DRAW_ALLOW_SKIP_ALPHA = 0x08;
+
 	private static enum Capset {
 		GENERAL(0x01, 0x18),
 		BITMAP(0x02, 0x1C),
@@ -163,7 +174,7 @@ public class Rdp {
 		OFFSCREENCACHE(0x11),
 		BITMAPCACHE_HOSTSUPPORT(0x12),
 		BITMAPCACHE_REV2(0x13, 0x28),
-		VIRTUALCHANNEL(0x14),
+		VIRTUALCHANNEL(0x14, 0x0C),
 		DRAWNINEGRIDCACHE(0x15),
 		DRAWGDIPLUS(0x16),
 		RAIL(0x17),
@@ -255,6 +266,78 @@ public class Rdp {
 
 	private static final int RDP5_FLAG = 0x0030;
 
+	/* fast-path input event codes, [MS-RDPBCGR] 2.2.8.1.2.2 */
+	private static final int FASTPATH_INPUT_EVENT_SCANCODE = 0x0;
+
+	private static final int FASTPATH_INPUT_EVENT_MOUSE = 0x1;
+
+	private static final int FASTPATH_INPUT_EVENT_MOUSEX = 0x2;
+
+	private static final int FASTPATH_INPUT_EVENT_SYNC = 0x3;
+
+	private static final int FASTPATH_INPUT_EVENT_UNICODE = 0x4;
+
+	private static final int FASTPATH_INPUT_KBDFLAGS_RELEASE = 0x01;
+
+	private static final int FASTPATH_INPUT_KBDFLAGS_EXTENDED = 0x02;
+
+	private static final int FASTPATH_INPUT_KBDFLAGS_EXTENDED1 = 0x04;
+
+	/* fast-path update codes, [MS-RDPBCGR] 2.2.9.1.2.1 */
+	private static final int FASTPATH_UPDATETYPE_ORDERS = 0x0;
+
+	private static final int FASTPATH_UPDATETYPE_BITMAP = 0x1;
+
+	private static final int FASTPATH_UPDATETYPE_PALETTE = 0x2;
+
+	private static final int FASTPATH_UPDATETYPE_SYNCHRONIZE = 0x3;
+
+	private static final int FASTPATH_UPDATETYPE_SURFCMDS = 0x4;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_NULL = 0x5;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_DEFAULT = 0x6;
+
+	private static final int FASTPATH_UPDATETYPE_PTR_POSITION = 0x8;
+
+	private static final int FASTPATH_UPDATETYPE_COLOR = 0x9;
+
+	private static final int FASTPATH_UPDATETYPE_CACHED = 0xa;
+
+	private static final int FASTPATH_UPDATETYPE_POINTER = 0xb;
+
+	private static final int FASTPATH_UPDATETYPE_LARGE_POINTER = 0xc;
+
+	private static final int FASTPATH_FRAGMENT_SINGLE = 0x0;
+
+	private static final int FASTPATH_FRAGMENT_LAST = 0x1;
+
+	private static final int FASTPATH_FRAGMENT_FIRST = 0x2;
+
+	private static final int FASTPATH_FRAGMENT_NEXT = 0x3;
+
+	/**
+	 * Largest fast-path update reassembled from fragments, in bytes. No
+	 * MultifragMaxRequestSize is advertised, so this is a fixed limit, enough
+	 * for a full 2048x2048 bitmap at 32 bpp.
+	 */
+	private static final int FASTPATH_FRAGMENT_MAX = 0x1000000;
+
+	private static final int FASTPATH_OUTPUT_COMPRESSION_USED = 0x2;
+
+	private static final int PACKET_COMPRESSED = 0x20;
+
+	/* surface command types, [MS-RDPBCGR] 2.2.9.1.2.1.10.1 */
+	private static final int CMDTYPE_SET_SURFACE_BITS = 0x0001;
+
+	private static final int CMDTYPE_FRAME_MARKER = 0x0004;
+
+	private static final int CMDTYPE_STREAM_SURFACE_BITS = 0x0006;
+
+	private static final int EX_COMPRESSED_BITMAP_HEADER_PRESENT = 0x01;
+
+	private static final int RDP_CODEC_ID_NONE = 0x00;
+
 	/** MSTSC encoded as 7 byte US-Ascii */
 	private static final byte[] RDP_SOURCE = { (byte) 0x4D, (byte) 0x53,
 		(byte) 0x54, (byte) 0x53, (byte) 0x43, (byte) 0x00 }; // string
@@ -275,13 +358,72 @@ public class Rdp {
 
 	private boolean connected = false;
 
+	/** True once the capability exchange has completed */
+	private volatile boolean activated = false;
+
+	/** Server accepts Refresh Rect PDUs */
+	private boolean server_refresh_rect = false;
+
+	/** Server accepts Suppress Output PDUs */
+	private boolean server_suppress_output = false;
+
+	/** Display updates have been paused by suppressOutput() */
+	private boolean output_suppressed = false;
+
+	private final Object outputLock = new Object();
+
 	private RdpPacket stream = null;
 
+	/** Reassembly buffer for fragmented fast-path updates, grown as needed */
+	private RdpPacket fastpath_fragment = null;
+
+	/** Bytes of fragments held in fastpath_fragment, or -1 if none */
+	private int fastpath_fragment_size = -1;
+
+	/** Update code of the fragments held in fastpath_fragment */
+	private int fastpath_fragment_code = 0;
+
+	/** Scanline and pixel buffers for surface bits, grown as needed */
+	private byte[] surface_row = new byte[0];
+
+	private int[] surface_pixels = new int[0];
+
+	@Nullable
+	private SessionRecorder recorder = null;
+
 	protected final Options options;
 	private final VChannels channels;
 
 	private InitState state;
 
+	private final Object inputLock = new Object();
+
+	/** Queued input events; time, type, flags, param1 and param2 for each */
+	private int[] inputEvents = new int[0];
+
+	private int inputCount = 0;
+
+	private int inputBatchDepth = 0;
+
+	private boolean inputFlushScheduled = false;
+
+	private Timer inputTimer = null;
+
+	/** Held while drawing an update, and while compacting the session */
+	private final Object drawLock = new Object();
+
+	/** Time of the last display update, from System.nanoTime() */
+	private long lastUpdate = System.nanoTime();
+
+	/**
+	 * The surface and caches have been spilled since the last update, and no
+	 * check for an idle session is pending unless the surface was restored
+	 */
+	private boolean compacted = false;
+
+	/** Pending check for an idle session, guarded by inputLock */
+	private TimerTask compactTask = null;
+
 	/**
 	 * Gets the current state in the initialization process.
 	 */
@@ -289,6 +431,17 @@ public class Rdp {
 		return state;
 	}
 
+	/**
+	 * Record all PDUs received from now on. The recorder is closed on
+	 * disconnect.
+	 *
+	 * @param recorder
+	 *            Recorder to write to, or null to stop recording
+	 */
+	public void setRecorder(@Nullable SessionRecorder recorder) {
+		this.recorder = recorder;
+	}
+
 	/**
 	 * Process a general capability set
 	 *
@@ -311,8 +464,8 @@ public class Rdp {
 		data.getLittleEndian16();  // Update capability; must be 0
 		data.getLittleEndian16();  // Unshare support; must be 0
 		data.getLittleEndian16();  // Compression level; must be 0
-		data.get8();  // Boolean; indicates if the refresh rect PDU is supported
-		data.get8();  // Boolean; indicates if the suppress output PDU is supported
+		server_refresh_rect = data.get8() != 0;  // Boolean; indicates if the refresh rect PDU is supported
+		server_suppress_output = data.get8() != 0;  // Boolean; indicates if the suppress output PDU is supported
 	}
 
 	/**
@@ -336,8 +489,8 @@ public class Rdp {
 		data.getLittleEndian16();  // Multiple rect support; should always be true
 		data.getLittleEndian16();  // Pad
 
-		LOGGER.debug("setting desktop size and bpp to: " + width + "x" + height
-				+ "x" + bpp);
+		LOGGER.debug("setting desktop size and bpp to: {}x{}x{}", width,
+				height, bpp);
 
 		/*
 		 * The server may limit bpp and change the size of the desktop (for
@@ -400,6 +553,9 @@ public class Rdp {
 
 		start = data.getPosition();
 
+		// Servers that don't send a virtual channel capset get the default
+		channels.set_chunk_length(VChannels.CHANNEL_CHUNK_LENGTH);
+
 		ncapsets = data.getLittleEndian16(); // in_uint16_le(s, ncapsets);
 		data.incrementPosition(2); // in_uint8s(s, 2); /* pad */
 
@@ -433,6 +589,10 @@ public class Rdp {
 					processInputCaps(data);
 					break;
 
+				case VIRTUALCHANNEL:
+					processVirtualChannelCaps(data, capset_length - 4);
+					break;
+
 				default:
 					LOGGER.warn("Unhandled server capset " + capset + " (sent len 0x" + Integer.toHexString(capset_length) + ")");
 					break;
@@ -443,6 +603,23 @@ public class Rdp {
 		}
 	}
 
+	/**
+	 * Process a virtual channel capability set
+	 *
+	 * @param data
+	 *            Packet containing capability set data at current read position
+	 * @param length
+	 *            Length of the capability set data
+	 */
+	private void processVirtualChannelCaps(RdpPacket data, int length) {
+		data.getLittleEndian32();  // Flags; compression is not used
+		if (length >= 8) {
+			// Largest chunk the server accepts
+			channels.set_chunk_length(data.getLittleEndian32());
+		}
+		LOGGER.debug("Virtual channel chunk length {}", channels.chunk_length());
+	}
+
 	/**
 	 * Process a disconnect PDU
 	 *
@@ -467,6 +644,8 @@ public class Rdp {
 		this.SecureLayer = new Secure(this.channels, options, this);
 		this.channels.setSecure(this.SecureLayer);
 		this.surface = new OrderSurface(options, options.width, options.height);
+		// A repaint can restore a spilled surface without any update arriving
+		surface.setRestoreListener(() -> scheduleCompaction(options.idle_compact_delay));
 		this.orders = new Orders(options);
 		this.cache = new Cache(options);
 		orders.registerCache(cache);
@@ -503,26 +682,54 @@ public class Rdp {
 	 */
 	private void sendData(RdpPacket data, int data_pdu_type)
 			throws RdesktopException, IOException {
+		sendData(data, data_pdu_type, OutboundWriter.Priority.CONTROL);
+	}
 
-		synchronized (this.SecureLayer) {
-			int length;
+	/**
+	 * Send a packet on the RDP layer with the given priority
+	 *
+	 * @param data
+	 *            Packet to send
+	 * @param data_pdu_type
+	 *            Type of data
+	 * @param priority
+	 *            Priority class, if the packet is queued for the writer
+	 *            thread
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	private void sendData(RdpPacket data, int data_pdu_type,
+			OutboundWriter.Priority priority) throws RdesktopException,
+			IOException {
+		int length;
 
-			data.setPosition(data.getHeader(RdpPacket.RDP_HEADER));
-			length = data.getEnd() - data.getPosition();
+		data.setPosition(data.getHeader(RdpPacket.RDP_HEADER));
+		length = data.getEnd() - data.getPosition();
 
-			data.setLittleEndian16(length);
-			data.setLittleEndian16(RDP_PDU_DATA | 0x10);
-			data.setLittleEndian16(SecureLayer.getUserID() + 1001);
+		data.setLittleEndian16(length);
+		data.setLittleEndian16(RDP_PDU_DATA | 0x10);
+		data.setLittleEndian16(SecureLayer.getUserID() + 1001);
 
-			data.setLittleEndian32(this.rdp_shareid);
-			data.set8(0); // pad
-			data.set8(1); // stream id
-			data.setLittleEndian16(length - 14);
-			data.set8(data_pdu_type);
-			data.set8(0); // compression type
-			data.setLittleEndian16(0); // compression length
+		data.setLittleEndian32(this.rdp_shareid);
+		data.set8(0); // pad
+		data.set8(1); // stream id
+		data.setLittleEndian16(length - 14);
+		data.set8(data_pdu_type);
+		data.set8(0); // compression type
+		data.setLittleEndian16(0); // compression length
+
+		SecureLayer.send(data, Secure.SEC_ENCRYPT, priority);
+	}
 
-			SecureLayer.send(data, Secure.SEC_ENCRYPT);
+	/**
+	 * Report an error from the writer thread
+	 *
+	 * @param e
+	 *            Error raised while sending a queued packet
+	 */
+	void sendFailed(Exception e) {
+		if (this.callback != null) {
+			this.callback.error(e, this);
 		}
 	}
 
@@ -546,6 +753,10 @@ public class Rdp {
 				return null;
 			}
 			this.next_packet = this.stream.getPosition();
+			if (recorder != null) {
+				recorder.record(SessionRecorder.SLOW_PATH, stream,
+						next_packet, stream.getEnd());
+			}
 		} else {
 			this.stream.setPosition(this.next_packet);
 		}
@@ -559,6 +770,7 @@ public class Rdp {
 			return stream;
 		}
 		type[0] = this.stream.getLittleEndian16() & 0xf;
+		options.stats.sharePdu(type[0]);
 		if (stream.getPosition() != stream.getEnd()) {
 			stream.incrementPosition(2);
 		}
@@ -592,6 +804,8 @@ public class Rdp {
 		try {
 			SecureLayer.connect(server);
 			this.connected = true;
+			options.stats.register();
+			scheduleCompaction(options.idle_compact_delay);
 			this.sendLogonInfo(flags, domain, username, password, command,
 					directory);
 		}
@@ -626,7 +840,22 @@ public class Rdp {
 	 */
 	public void disconnect() {
 		this.connected = false;
+		this.activated = false;
+		synchronized (inputLock) {
+			if (inputTimer != null) {
+				inputTimer.cancel();
+				inputTimer = null;
+			}
+			compactTask = null;
+			inputCount = 0;
+			inputFlushScheduled = false;
+		}
 		SecureLayer.disconnect();
+		options.stats.unregister();
+		if (recorder != null) {
+			recorder.close();
+			recorder = null;
+		}
 	}
 
 	/**
@@ -638,6 +867,130 @@ public class Rdp {
 		return this.connected;
 	}
 
+	/**
+	 * Ask the server to stop sending display updates, for example while the
+	 * session is minimised or hidden. Does nothing if the server does not
+	 * support the Suppress Output PDU.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.11.3
+	 */
+	public void suppressOutput() {
+		synchronized (outputLock) {
+			if (output_suppressed) {
+				return;
+			}
+			output_suppressed = true;
+			if (activated && server_suppress_output) {
+				LOGGER.debug("Suppressing display updates");
+				sendOutputPdu(false);
+			}
+		}
+		scheduleCompaction(0);
+	}
+
+	/**
+	 * Ask the server to resume display updates after
+	 * {@link #suppressOutput()}. The request covers the whole desktop, so
+	 * the server redraws it; no Refresh Rect is needed as well.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.11.3
+	 */
+	public void allowOutput() {
+		synchronized (outputLock) {
+			if (!output_suppressed) {
+				return;
+			}
+			output_suppressed = false;
+			if (activated && server_suppress_output) {
+				LOGGER.debug("Allowing display updates");
+				sendOutputPdu(true);
+			}
+		}
+	}
+
+	/**
+	 * @return True if display updates have been paused by
+	 *         {@link #suppressOutput()}
+	 */
+	public boolean isOutputSuppressed() {
+		synchronized (outputLock) {
+			return output_suppressed;
+		}
+	}
+
+	/**
+	 * Ask the server to redraw an area of the desktop. Does nothing if the
+	 * server does not support the Refresh Rect PDU.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.11.2
+	 * @param x
+	 *            Left edge of the area
+	 * @param y
+	 *            Top edge of the area
+	 * @param width
+	 *            Width of the area
+	 * @param height
+	 *            Height of the area
+	 */
+	public void refreshRect(int x, int y, int width, int height) {
+		if (!activated || !server_refresh_rect || width <= 0 || height <= 0) {
+			return;
+		}
+		try {
+			RdpPacket data = this.initData(4 + 8);
+			data.set8(1); // numberOfAreas
+			data.incrementPosition(3); // pad
+			data.setLittleEndian16(x);
+			data.setLittleEndian16(y);
+			data.setLittleEndian16(x + width - 1);
+			data.setLittleEndian16(y + height - 1);
+			data.markEnd();
+			this.sendData(data, RDP_DATA_PDU_REFRESH_RECT);
+		} catch (RdesktopException r) {
+			LOGGER.warn("Error sending refresh rect", r);
+			this.callback.error(r, this);
+		} catch (IOException i) {
+			LOGGER.warn("Unexpected IOException", i);
+			this.callback.error(i, this);
+		}
+	}
+
+	/**
+	 * Send a Suppress Output PDU, reporting any error to the callback
+	 */
+	private void sendOutputPdu(boolean allow) {
+		try {
+			sendSuppressOutput(allow);
+		} catch (RdesktopException r) {
+			LOGGER.warn("Error sending suppress output", r);
+			this.callback.error(r, this);
+		} catch (IOException i) {
+			LOGGER.warn("Unexpected IOException", i);
+			this.callback.error(i, this);
+		}
+	}
+
+	/**
+	 * @see [MS-RDPBCGR] 2.2.11.3.1
+	 * @param allow
+	 *            True to allow display updates for the whole desktop, false
+	 *            to suppress them
+	 */
+	private void sendSuppressOutput(boolean allow) throws RdesktopException,
+			IOException {
+		RdpPacket data = this.initData(allow ? 4 + 8 : 4);
+		data.set8(allow ? 1 : 0); // allowDisplayUpdates
+		data.incrementPosition(3); // pad
+		if (allow) {
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(0);
+			data.setLittleEndian16(options.width - 1);
+			data.setLittleEndian16(options.height - 1);
+		}
+		data.markEnd();
+		this.sendData(data, RDP_DATA_PDU_SUPPRESS_OUTPUT);
+	}
+
 	/**
 	 * RDP receive loop
 	 *
@@ -927,20 +1280,11 @@ public class Rdp {
 			throws RdesktopException, IOException,
 			OrderException {
 		int type[] = new int[1];
-		int len_combined_caps;
 
 		/* at this point we need to ensure that we have ui created */
 		//rd_create_ui();
 
-		this.rdp_shareid = data.getLittleEndian32(); //in_uint32_le(s, g_rdp_shareid);
-		data.getLittleEndian16(); // in_uint16_le(s, len_src_descriptor); // ignored
-		len_combined_caps = data.getLittleEndian16(); // in_uint16_le(s, len_combined_caps);
-		data.get8(); // Overwriting??? // in_uint8s(s, len_src_descriptor); // ignored
-		data.incrementPosition(3); // changed - why is this needed?
-		if (LOGGER.isDebugEnabled()) {
-			LOGGER.debug("process_demand_active(), shareid=0x" + Integer.toHexString(rdp_shareid));
-		}
-		processServerCaps(data, len_combined_caps);
+		processDemandActiveCaps(data);
 
 		this.sendConfirmActive();
 
@@ -959,6 +1303,91 @@ public class Rdp {
 		this.receive(type); // Receive an unknown PDU Code = 0x28
 
 		this.orders.resetOrderState();
+
+		synchronized (outputLock) {
+			activated = true;
+			if (output_suppressed && server_suppress_output) {
+				// Still hidden after a reactivation
+				sendSuppressOutput(false);
+			}
+		}
+	}
+
+	/**
+	 * Read the share ID and server capabilities from a demand active PDU
+	 *
+	 * @param data
+	 *            Packet containing demand active PDU at current read position
+	 * @throws RdesktopException
+	 */
+	private void processDemandActiveCaps(RdpPacket data)
+			throws RdesktopException {
+		int len_combined_caps;
+
+		this.rdp_shareid = data.getLittleEndian32(); //in_uint32_le(s, g_rdp_shareid);
+		data.getLittleEndian16(); // in_uint16_le(s, len_src_descriptor); // ignored
+		len_combined_caps = data.getLittleEndian16(); // in_uint16_le(s, len_combined_caps);
+		data.get8(); // Overwriting??? // in_uint8s(s, len_src_descriptor); // ignored
+		data.incrementPosition(3); // changed - why is this needed?
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("process_demand_active(), shareid=0x" + Integer.toHexString(rdp_shareid));
+		}
+		processServerCaps(data, len_combined_caps);
+	}
+
+	/**
+	 * Process a PDU from a session recording, without a connection. Demand
+	 * active PDUs only update the desktop size and colour depth, and nothing
+	 * is sent in response to any PDU.
+	 *
+	 * @param kind
+	 *            {@link SessionRecorder#SLOW_PATH} or
+	 *            {@link SessionRecorder#FAST_PATH}
+	 * @param data
+	 *            Packet containing the recorded payload
+	 * @throws RdesktopException
+	 * @throws OrderException
+	 * @see SessionRecorder
+	 */
+	public void replay(int kind, RdpPacket data) throws RdesktopException,
+			OrderException {
+		if (kind == SessionRecorder.FAST_PATH) {
+			rdp5_process(data, false);
+			return;
+		}
+
+		// processUpdate() relies on next_packet, so it is used here as it is
+		// in receive()
+		next_packet = data.getPosition();
+		while (next_packet < data.getEnd()) {
+			data.setPosition(next_packet);
+			int length = data.getLittleEndian16();
+			if (length == 0x8000) {
+				next_packet += 8; // keepalive, as in receive()
+				continue;
+			}
+			if (length <= 0) {
+				throw new RdesktopException("Bad PDU length in recording: "
+						+ length);
+			}
+			int type = data.getLittleEndian16() & 0xf;
+			if (data.getPosition() != data.getEnd()) {
+				data.incrementPosition(2);
+			}
+			next_packet += length;
+
+			switch (type) {
+			case RDP_PDU_DEMAND_ACTIVE:
+				processDemandActiveCaps(data);
+				this.orders.resetOrderState();
+				break;
+			case RDP_PDU_DATA:
+				processData(data);
+				break;
+			default:
+				break;
+			}
+		}
 	}
 
 	/**
@@ -977,6 +1406,7 @@ public class Rdp {
 		data.incrementPosition(6); // skip shareid, pad, streamid
 		data.getLittleEndian16(); // length - ignored?
 		data_type = data.get8();
+		options.stats.dataPdu(data_type);
 		data.get8(); // compression type (ignored?)
 		data.getLittleEndian16(); // compression length (ignored?)
 		// clen -= 18; // why do we need to subtract 18 from compression length?
@@ -985,7 +1415,10 @@ public class Rdp {
 
 		case (Rdp.RDP_DATA_PDU_UPDATE):
 			LOGGER.debug("Rdp.RDP_DATA_PDU_UPDATE");
-			this.processUpdate(data);
+			synchronized (drawLock) {
+				updateStarted();
+				this.processUpdate(data);
+			}
 		break;
 
 		case RDP_DATA_PDU_CONTROL:
@@ -1031,6 +1464,7 @@ public class Rdp {
 	private void processUpdate(RdpPacket data) throws OrderException,
 	RdesktopException {
 		int update_type = 0;
+		long start = System.nanoTime();
 
 		update_type = data.getLittleEndian16();
 
@@ -1053,6 +1487,7 @@ public class Rdp {
 		default:
 			LOGGER.warn("Unimplemented Update type " + update_type);
 		}
+		options.stats.decodeTime.record(System.nanoTime() - start);
 	}
 
 	private void sendConfirmActive() throws RdesktopException, IOException {
@@ -1061,6 +1496,7 @@ public class Rdp {
 				+ Capset.ACTIVATION.getLength() + Capset.CONTROL.getLength() + Capset.POINTER.getLength()
 				+ Capset.SHARE.getLength() + Capset.INPUT.getLength() + Capset.SOUND.getLength()
 				+ Capset.FONT.getLength() + Capset.GLYPHCACHE.getLength()
+				+ Capset.VIRTUALCHANNEL.getLength()
 				+ 4; // this is a fix for W2k: sessionid
 
 		int sec_flags = (RDP5_FLAG | Secure.SEC_ENCRYPT);
@@ -1083,7 +1519,7 @@ public class Rdp {
 		data.copyFromByteArray(RDP_SOURCE, 0, data.getPosition(),
 				RDP_SOURCE.length);
 		data.incrementPosition(RDP_SOURCE.length);
-		data.setLittleEndian16(0xd); // num_caps
+		data.setLittleEndian16(0xe); // num_caps
 		data.incrementPosition(2); // pad
 
 		this.sendGeneralCaps(data);
@@ -1108,6 +1544,7 @@ public class Rdp {
 		this.sendSoundCaps(data);
 		this.sendFontCaps(data);
 		this.sendGlyphCacheCaps(data);
+		this.sendVirtualChannelCaps(data);
 
 		data.markEnd();
 		LOGGER.debug("confirm active");
@@ -1140,7 +1577,8 @@ public class Rdp {
 		data.setLittleEndian16(0); /* Update capability */
 		data.setLittleEndian16(0); /* Remote unshare capability */
 		data.setLittleEndian16(0); /* Compression level */
-		data.setLittleEndian16(0); /* Pad */
+		data.set8(1); /* Refresh rect support */
+		data.set8(1); /* Suppress output support */
 	}
 
 	private void sendBitmapCaps(RdpPacket data) {
@@ -1157,7 +1595,7 @@ public class Rdp {
 		data.setLittleEndian16(1); /* Allow resize */
 		data.setLittleEndian16(options.bitmap_compression ? 1 : 0); /* Support compression */
 		data.set8(0); /* highColorFlags */
-		data.set8(0); /* drawingFlags */
+		data.set8(options.server_bpp == 32 ? DRAW_ALLOW_SKIP_ALPHA : 0); /* drawingFlags */
 		data.setLittleEndian16(1); /* multipleRectangleSupport */
 		data.setLittleEndian16(0); /* Pad */
 	}
@@ -1204,12 +1642,13 @@ public class Rdp {
 
 		sendCapHeader(data, Capset.BITMAPCACHE);
 
+		int[] cells = cache.fitBitmapCells(0x258, 0x12c, 0x106);
 		data.incrementPosition(24); /* unused */
-		data.setLittleEndian16(0x258); /* entries */
+		data.setLittleEndian16(cells[0]); /* entries */
 		data.setLittleEndian16(0x100); /* max cell size */
-		data.setLittleEndian16(0x12c); /* entries */
+		data.setLittleEndian16(cells[1]); /* entries */
 		data.setLittleEndian16(0x400); /* max cell size */
-		data.setLittleEndian16(0x106); /* entries */
+		data.setLittleEndian16(cells[2]); /* entries */
 		data.setLittleEndian16(0x1000); /* max cell size */
 	}
 
@@ -1221,23 +1660,27 @@ public class Rdp {
 
 		data.setBigEndian16(3); /* number of caches in this set */
 
+		boolean persistent = cache.pstCache.pstcache_init(2); // XXX this WILL cause corruption, possibly
+
 		/* max cell size for cache 0 is 16x16, 1 = 32x32, 2 = 64x64, etc */
-		data.setLittleEndian32(BMPCACHE2_C0_CELLS); // out_uint32_le(s,
+		int[] cells = cache.fitBitmapCells(BMPCACHE2_C0_CELLS,
+				BMPCACHE2_C1_CELLS, persistent ? BMPCACHE2_NUM_PSTCELLS
+						: BMPCACHE2_C2_CELLS);
+		data.setLittleEndian32(cells[0]); // out_uint32_le(s,
 		// BMPCACHE2_C0_CELLS);
-		data.setLittleEndian32(BMPCACHE2_C1_CELLS); // out_uint32_le(s,
+		data.setLittleEndian32(cells[1]); // out_uint32_le(s,
 		// BMPCACHE2_C1_CELLS);
 
 		// data.setLittleEndian32(PstCache.pstcache_init(2) ?
 		// (BMPCACHE2_NUM_PSTCELLS | BMPCACHE2_FLAG_PERSIST) :
 		// BMPCACHE2_C2_CELLS);
 
-		if (cache.pstCache.pstcache_init(2)) { // XXX this WILL cause corruption, possibly
+		if (persistent) {
 			LOGGER.info("Persistent cache initialized");
-			data.setLittleEndian32(BMPCACHE2_NUM_PSTCELLS
-					| BMPCACHE2_FLAG_PERSIST);
+			data.setLittleEndian32(cells[2] | BMPCACHE2_FLAG_PERSIST);
 		} else {
 			LOGGER.info("Persistent cache not initialized");
-			data.setLittleEndian32(BMPCACHE2_C2_CELLS);
+			data.setLittleEndian32(cells[2]);
 		}
 		data.incrementPosition(20); // out_uint8s(s, 20); /* other bitmap caches
 		// not used */
@@ -1312,6 +1755,13 @@ public class Rdp {
 		data.incrementPosition(64); // 64 null bytes, for the file name
 	}
 
+	private void sendVirtualChannelCaps(RdpPacket data) {
+		sendCapHeader(data, Capset.VIRTUALCHANNEL);
+
+		data.setLittleEndian32(0); // Flags; no compression
+		data.setLittleEndian32(VChannels.CHANNEL_CHUNK_MAX); // Chunk size
+	}
+
 	private void sendFontCaps(RdpPacket data) {
 		sendCapHeader(data, Capset.FONT);
 
@@ -1375,9 +1825,13 @@ public class Rdp {
 	}
 
 	/**
-	 * Sends an Input PDU
+	 * Sends an input event. Events are queued and sent together in one Input
+	 * PDU when the batch is full, when {@link Options#input_batch_delay} has
+	 * passed, or when the outermost {@link #endInputBatch()} is reached;
+	 * with no delay and no open batch, each event is sent immediately.
+	 *
 	 * @param time A timestamp, ignored by the server.
-	 * @param message_type The type of input PDU.
+	 * @param message_type The type of input event.
 	 * @param device_flags The first 16-bit parameter, which is usually flags.
 	 * @param param1 The second 16-bit parameter
 	 * @param param2 The third 16-bit parameter
@@ -1385,36 +1839,316 @@ public class Rdp {
 	 */
 	public void sendInput(int time, InputType message_type, int device_flags,
 			int param1, int param2) {
-		RdpPacket data = null;
-		try {
-			data = this.initData(16);
-		} catch (RdesktopException e) {
-			LOGGER.warn("Error preping input packet", e);
-			this.callback.error(e, this);
+		synchronized (inputLock) {
+			int limit = Math.max(1, options.input_batch_size);
+			if (inputEvents.length < limit * 5) {
+				inputEvents = Arrays.copyOf(inputEvents, limit * 5);
+			}
+			if (inputCount >= limit) {
+				flushInput();
+			}
+			int i = inputCount * 5;
+			inputEvents[i] = time;
+			inputEvents[i + 1] = message_type.id;
+			inputEvents[i + 2] = device_flags;
+			inputEvents[i + 3] = param1;
+			inputEvents[i + 4] = param2;
+			inputCount++;
+
+			if (message_type != InputType.SYNC
+					&& !(message_type == InputType.MOUSE && (device_flags & Input.MOUSE_FLAG_MOVE) != 0)) {
+				// Pointer motion is drawn locally, so it isn't timed. Timing
+				// starts here so that batching and queueing are included.
+				options.stats.inputLatency.inputQueued();
+			}
+
+			if (message_type == InputType.SYNC || inputCount >= limit) {
+				// Synchronize must reach the server before anything that follows it
+				flushInput();
+			} else if (inputBatchDepth > 0) {
+				return;
+			} else if (options.input_batch_delay <= 0) {
+				flushInput();
+			} else if (!inputFlushScheduled) {
+				scheduleInput(new TimerTask() {
+					@Override
+					public void run() {
+						flushInput();
+					}
+				}, options.input_batch_delay);
+				inputFlushScheduled = true;
+			}
+		}
+	}
+
+	/**
+	 * Start a batch of input events which will be sent in as few Input PDUs
+	 * as possible once {@link #endInputBatch()} is called. Batches may be
+	 * nested.
+	 */
+	public void beginInputBatch() {
+		synchronized (inputLock) {
+			inputBatchDepth++;
+		}
+	}
+
+	/**
+	 * End a batch started by {@link #beginInputBatch()}, sending the queued
+	 * events if this was the outermost batch.
+	 */
+	public void endInputBatch() {
+		synchronized (inputLock) {
+			if (inputBatchDepth > 0 && --inputBatchDepth == 0) {
+				flushInput();
+			}
+		}
+	}
+
+	/**
+	 * Run a task on the input timer thread, which is stopped on disconnect.
+	 *
+	 * @param task
+	 *            Task to run
+	 * @param delay
+	 *            Delay in milliseconds
+	 */
+	void scheduleInput(TimerTask task, long delay) {
+		synchronized (inputLock) {
+			if (inputTimer == null) {
+				inputTimer = new Timer("RDP input", true);
+			}
+			inputTimer.schedule(task, delay);
+		}
+	}
+
+	/**
+	 * Note that a display update has arrived, which ends any idle period.
+	 * Called with drawLock held.
+	 */
+	private void updateStarted() {
+		lastUpdate = System.nanoTime();
+		if (compacted) {
+			compacted = false;
+			scheduleCompaction(options.idle_compact_delay);
+		}
+	}
+
+	/**
+	 * Check for an idle session after a delay, replacing any pending check.
+	 * Does nothing unless {@link Options#idle_compact_delay} is set.
+	 *
+	 * @param delay
+	 *            Delay in milliseconds
+	 */
+	private void scheduleCompaction(long delay) {
+		if (options.idle_compact_delay <= 0) {
+			return;
+		}
+		synchronized (inputLock) {
+			if (!connected) {
+				return;
+			}
+			if (compactTask != null) {
+				compactTask.cancel();
+			}
+			compactTask = new TimerTask() {
+				@Override
+				public void run() {
+					compactIfIdle();
+				}
+			};
+			scheduleInput(compactTask, delay);
+		}
+	}
+
+	/**
+	 * Spill the surface and caches out of the heap if there have been no
+	 * display updates for {@link Options#idle_compact_delay} milliseconds,
+	 * or output is suppressed. They are restored as they are next used.
+	 * Otherwise check again when the delay would be up.
+	 */
+	private void compactIfIdle() {
+		boolean suppressed = isOutputSuppressed();
+		long remaining;
+		synchronized (drawLock) {
+			long idle = (System.nanoTime() - lastUpdate) / 1000000;
+			remaining = options.idle_compact_delay - idle;
+			if (suppressed || remaining <= 0) {
+				LOGGER.debug("Compacting session idle for {} ms", idle);
+				surface.spill();
+				if (cache != null) {
+					cache.spill();
+				}
+				compacted = true;
+				return;
+			}
+		}
+		scheduleCompaction(remaining);
+	}
+
+	/**
+	 * @return Number of input events queued but not yet sent
+	 */
+	public int getQueuedInputCount() {
+		synchronized (inputLock) {
+			return inputCount;
+		}
+	}
+
+	/**
+	 * @return Number of input PDUs and virtual channel chunks queued for the
+	 *         writer thread but not yet written
+	 */
+	public int getQueuedOutputCount() {
+		OutboundWriter writer = SecureLayer.getWriter();
+		return writer.getQueuedInputCount() + writer.getQueuedBulkCount();
+	}
+
+	/**
+	 * Send any queued input events now, as a single Input PDU.
+	 */
+	public void flushInput() {
+		synchronized (inputLock) {
+			inputFlushScheduled = false;
+			if (inputCount == 0) {
+				return;
+			}
+			int count = inputCount;
+			inputCount = 0;
+
+			try {
+				if (canSendFastPathInput(count)) {
+					sendFastPathInput(count);
+				} else {
+					sendSlowPathInput(count);
+				}
+			} catch (RdesktopException r) {
+				LOGGER.warn("Error sending input packet", r);
+				this.callback.error(r, this);
+			} catch (IOException i) {
+				LOGGER.warn("Unexpected IOException", i);
+				this.callback.error(i, this);
+			}
 		}
+	}
 
-		data.setLittleEndian16(1); /* number of events */
+	/**
+	 * Send the first <code>count</code> queued input events as a slow-path
+	 * Input PDU.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.8.1.1.3
+	 */
+	private void sendSlowPathInput(int count) throws RdesktopException,
+			IOException {
+		RdpPacket data = this.initData(4 + count * 12);
+
+		data.setLittleEndian16(count); /* number of events */
 		data.setLittleEndian16(0); /* pad */
 
-		data.setLittleEndian32(time);
-		data.setLittleEndian16(message_type.id);
-		data.setLittleEndian16(device_flags);
-		data.setLittleEndian16(param1);
-		data.setLittleEndian16(param2);
+		for (int i = 0; i < count * 5; i += 5) {
+			data.setLittleEndian32(inputEvents[i]);
+			data.setLittleEndian16(inputEvents[i + 1]);
+			data.setLittleEndian16(inputEvents[i + 2]);
+			data.setLittleEndian16(inputEvents[i + 3]);
+			data.setLittleEndian16(inputEvents[i + 4]);
+		}
 
 		data.markEnd();
-		// logger.info("input");
-		// if(logger.isInfoEnabled()) logger.info(data);
+		this.sendData(data, RDP_DATA_PDU_INPUT, OutboundWriter.Priority.INPUT);
+	}
 
-		try {
-			this.sendData(data, RDP_DATA_PDU_INPUT);
-		} catch (RdesktopException r) {
-			LOGGER.warn("Error sending input packet", r);
-			this.callback.error(r, this);
-		} catch (IOException i) {
-			LOGGER.warn("Unexpected IOException", i);
-			this.callback.error(i, this);
+	/**
+	 * Check whether the first <code>count</code> queued input events can be
+	 * sent as a fast-path input PDU.
+	 */
+	private boolean canSendFastPathInput(int count) {
+		if (!options.fastpath_input
+				|| count > 255
+				|| !(options.supportedInputFlags.contains(InputCapsetFlag.FASTPATH_INPUT)
+						|| options.supportedInputFlags.contains(InputCapsetFlag.FASTPATH_INPUT2))) {
+			return false;
+		}
+		for (int i = 0; i < count * 5; i += 5) {
+			if (fastPathInputLength(inputEvents[i + 1]) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Encoded length of a fast-path input event of the given
+	 *         slow-path type, or 0 if it has no fast-path encoding
+	 */
+	private static int fastPathInputLength(int type) {
+		if (type == InputType.SCANCODE.id) {
+			return 2;
+		} else if (type == InputType.UNICODE.id) {
+			return 3;
+		} else if (type == InputType.MOUSE.id || type == InputType.MOUSEX.id) {
+			return 7;
+		} else if (type == InputType.SYNC.id) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Send the first <code>count</code> queued input events as a fast-path
+	 * input PDU.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.8.1.2
+	 */
+	private void sendFastPathInput(int count) throws RdesktopException,
+			IOException {
+		int length = (count > 15) ? 1 : 0;
+		for (int i = 0; i < count * 5; i += 5) {
+			length += fastPathInputLength(inputEvents[i + 1]);
+		}
+
+		RdpPacket data = SecureLayer.initFastPath(length);
+		if (count > 15) {
+			data.set8(count); // too many for the header
 		}
+
+		for (int i = 0; i < count * 5; i += 5) {
+			int type = inputEvents[i + 1];
+			int flags = inputEvents[i + 2];
+			int param1 = inputEvents[i + 3];
+			int param2 = inputEvents[i + 4];
+
+			if (type == InputType.SCANCODE.id) {
+				int eventFlags = 0;
+				if ((flags & Input.KBD_FLAG_UP) != 0) {
+					eventFlags |= FASTPATH_INPUT_KBDFLAGS_RELEASE;
+				}
+				if ((flags & Input.KBD_FLAG_EXT) != 0) {
+					eventFlags |= FASTPATH_INPUT_KBDFLAGS_EXTENDED;
+				}
+				if ((flags & Input.KBD_FLAG_QUIET) != 0) {
+					eventFlags |= FASTPATH_INPUT_KBDFLAGS_EXTENDED1;
+				}
+				data.set8((FASTPATH_INPUT_EVENT_SCANCODE << 5) | eventFlags);
+				data.set8(param1);
+			} else if (type == InputType.UNICODE.id) {
+				int eventFlags = ((flags & Input.KBD_FLAG_UP) != 0) ? FASTPATH_INPUT_KBDFLAGS_RELEASE
+						: 0;
+				data.set8((FASTPATH_INPUT_EVENT_UNICODE << 5) | eventFlags);
+				data.setLittleEndian16(param1);
+			} else if (type == InputType.MOUSE.id || type == InputType.MOUSEX.id) {
+				data.set8((type == InputType.MOUSE.id ? FASTPATH_INPUT_EVENT_MOUSE
+						: FASTPATH_INPUT_EVENT_MOUSEX) << 5);
+				data.setLittleEndian16(flags);
+				data.setLittleEndian16(param1);
+				data.setLittleEndian16(param2);
+			} else {
+				// Synchronize; the toggle flags fit in the event flags
+				data.set8((FASTPATH_INPUT_EVENT_SYNC << 5) | (param1 & 0x1f));
+			}
+		}
+
+		data.markEnd();
+		SecureLayer.sendFastPath(data, (count > 15) ? 0 : count);
 	}
 
 	private void sendFonts(int seq) throws RdesktopException, IOException {
@@ -1474,6 +2208,11 @@ public class Rdp {
 	protected void processBitmapUpdates(RdpPacket data)
 			throws RdesktopException {
 		LOGGER.debug("processBitmapUpdates");
+		BitmapUpdateEvent event = new BitmapUpdateEvent();
+		event.begin();
+		int start = data.getPosition();
+		int compressed = 0;
+		long pixels = 0;
 		int n_updates = 0;
 		int left = 0, top = 0, right = 0, bottom = 0, width = 0, height = 0;
 		int cx = 0, cy = 0, bitsperpixel = 0, compression = 0, buffersize = 0, size = 0;
@@ -1502,6 +2241,7 @@ public class Rdp {
 
 			cx = right - left + 1;
 			cy = bottom - top + 1;
+			pixels += (long) width * height;
 
 			if (minX > left) {
 				minX = left;
@@ -1538,6 +2278,7 @@ public class Rdp {
 				continue;
 			}
 
+			compressed++;
 			if ((compression & 0x400) != 0) {
 				// logger.info("compression & 0x400 != 0");
 				size = buffersize;
@@ -1559,7 +2300,8 @@ public class Rdp {
 				}
 			} else {
 
-				if (options.bitmap_decompression_store == Options.INTEGER_BITMAP_DECOMPRESSION) {
+				if (Bpp == 4
+						|| options.bitmap_decompression_store == Options.INTEGER_BITMAP_DECOMPRESSION) {
 					int[] pixeli = Bitmap.decompressInt(options, width, height, size,
 							data, Bpp);
 					if (pixeli != null) {
@@ -1582,6 +2324,15 @@ public class Rdp {
 				}
 			}
 		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.rectangles = n_updates;
+			event.compressed = compressed;
+			event.pixels = pixels;
+			event.bytes = data.getPosition() - start;
+			event.commit();
+		}
 	}
 
 	protected void processPalette(RdpPacket data) {
@@ -1653,18 +2404,174 @@ public class Rdp {
 		// Yes, the field order is andLength, xorLength, xor, and; it's not backwards.
 		int andLength = data.getLittleEndian16();
 		int xorLength = data.getLittleEndian16();
+		process_pointer_shape(data, cache_idx, x, y, width, height, 24,
+				andLength, xorLength);
+	}
+
+	/**
+	 * The TS_POINTERATTRIBUTE structure is a color pointer, as in
+	 * TS_COLORPOINTERATTRIBUTE, with the colour depth of the XOR mask given.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.9.1.1.4.5
+	 * @param data The data to read from
+	 * @throws RdesktopException
+	 */
+	private void process_new_pointer_pdu(RdpPacket data)
+			throws RdesktopException {
+		LOGGER.debug("Rdp.RDP_POINTER_NEW");
+
+		int xor_bpp = data.getLittleEndian16();
+		int cache_idx = data.getLittleEndian16();
+		int x = data.getLittleEndian16();
+		int y = data.getLittleEndian16();
+		int width = data.getLittleEndian16();
+		int height = data.getLittleEndian16();
+		int andLength = data.getLittleEndian16();
+		int xorLength = data.getLittleEndian16();
+		process_pointer_shape(data, cache_idx, x, y, width, height, xor_bpp,
+				andLength, xorLength);
+	}
+
+	/**
+	 * The TS_LARGEPOINTERATTRIBUTE structure is a color pointer of up to
+	 * 384x384 pixels.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.9.1.1.4.7
+	 * @param data The data to read from
+	 * @throws RdesktopException
+	 */
+	private void process_large_pointer_pdu(RdpPacket data)
+			throws RdesktopException {
+		LOGGER.debug("Rdp.RDP_POINTER_LARGE");
+
+		int xor_bpp = data.getLittleEndian16();
+		int cache_idx = data.getLittleEndian16();
+		int x = data.getLittleEndian16();
+		int y = data.getLittleEndian16();
+		int width = data.getLittleEndian16();
+		int height = data.getLittleEndian16();
+		int andLength = data.getLittleEndian32();
+		int xorLength = data.getLittleEndian32();
+		process_pointer_shape(data, cache_idx, x, y, width, height, xor_bpp,
+				andLength, xorLength);
+	}
+
+	/**
+	 * Read the XOR and AND masks of a pointer, then create, set and cache it
+	 *
+	 * @param data The data to read the masks from
+	 * @param cache_idx Pointer cache index to store the pointer at
+	 * @param xor_bpp Colour depth of the XOR mask
+	 * @throws RdesktopException
+	 */
+	private void process_pointer_shape(RdpPacket data, int cache_idx, int x,
+			int y, int width, int height, int xor_bpp, int andLength,
+			int xorLength) throws RdesktopException {
 		byte[] xorMask = new byte[xorLength];
 		byte[] andMask = new byte[andLength];
 		data.copyToByteArray(xorMask, 0, data.getPosition(), xorLength);
 		data.incrementPosition(xorLength);
 		data.copyToByteArray(andMask, 0, data.getPosition(), andLength);
 		data.incrementPosition(andLength);
+		int[] argb = (xor_bpp == 32) ? pointerArgb(xorMask, width, height)
+				: null;
+		if (argb != null) {
+			Object cursor = callback.createCursor(x, y, width, height, argb);
+			callback.setCursor(cursor);
+			cache.putCursor(cache_idx, cursor);
+			return;
+		}
+		if (xor_bpp != 24) {
+			xorMask = convertPointerMask(xorMask, xor_bpp, width, height);
+			if (xorMask == null) {
+				LOGGER.warn("Unsupported pointer colour depth {}", xor_bpp);
+				callback.setCursor(SystemCursorType.DEFAULT_CURSOR);
+				return;
+			}
+		}
 		Object cursor = callback.createCursor(x, y, width, height, andMask, xorMask);
 		// logger.info("Creating and setting cursor " + cache_idx);
 		callback.setCursor(cursor);
 		cache.putCursor(cache_idx, cursor);
 	}
 
+	/**
+	 * Convert a 32 bpp pointer XOR mask to top-down ARGB pixels for
+	 * {@link RdesktopCallback#createCursor(int, int, int, int, int[])}
+	 *
+	 * @param mask Bottom-up XOR mask
+	 * @return ARGB pixels, or null if the mask has no alpha, in which case
+	 *         the AND mask gives the shape
+	 */
+	private static int[] pointerArgb(byte[] mask, int width, int height) {
+		if (width * height * 4 > mask.length) {
+			return null;
+		}
+		int[] argb = new int[width * height];
+		int alpha = 0;
+		for (int y = 0; y < height; y++) {
+			int row = (height - y - 1) * width * 4;
+			for (int x = 0; x < width; x++) {
+				int i = row + x * 4;
+				int pixel = (mask[i] & 0xff) | ((mask[i + 1] & 0xff) << 8)
+						| ((mask[i + 2] & 0xff) << 16)
+						| ((mask[i + 3] & 0xff) << 24);
+				argb[y * width + x] = pixel;
+				alpha |= pixel;
+			}
+		}
+		return ((alpha >>> 24) != 0) ? argb : null;
+	}
+
+	/**
+	 * Convert a pointer XOR mask to the 24 bpp layout that
+	 * {@link RdesktopCallback#createCursor} expects. Alpha is dropped, so
+	 * this is only used for 32 bpp masks without any.
+	 *
+	 * @param mask Bottom-up XOR mask, rows padded to 2 bytes
+	 * @param bpp Colour depth of the mask: 1, 15, 16 or 32
+	 * @return Bottom-up 24 bpp mask, or null if bpp is not supported
+	 */
+	private static byte[] convertPointerMask(byte[] mask, int bpp, int width,
+			int height) {
+		int stride = ((width * bpp + 15) / 16) * 2;
+		if (stride * height > mask.length) {
+			return null;
+		}
+		byte[] out = new byte[width * height * 3];
+		for (int y = 0; y < height; y++) {
+			int row = y * stride;
+			for (int x = 0; x < width; x++) {
+				int colour;
+				switch (bpp) {
+				case 1:
+					colour = ((mask[row + x / 8] & (0x80 >> (x % 8))) != 0) ? 0xffffff
+							: 0;
+					break;
+				case 15:
+				case 16: {
+					int value = (mask[row + x * 2] & 0xff)
+							| ((mask[row + x * 2 + 1] & 0xff) << 8);
+					colour = Bitmap.colourTable(bpp)[value];
+					break;
+				}
+				case 32:
+					colour = (mask[row + x * 4] & 0xff)
+							| ((mask[row + x * 4 + 1] & 0xff) << 8)
+							| ((mask[row + x * 4 + 2] & 0xff) << 16);
+					break;
+				default:
+					return null;
+				}
+				int i = (y * width + x) * 3;
+				out[i] = (byte) colour;
+				out[i + 1] = (byte) (colour >> 8);
+				out[i + 2] = (byte) (colour >> 16);
+			}
+		}
+		return out;
+	}
+
 	/**
 	 * The TS_CACHEDPOINTERATTRIBUTE structure is used to instruct the client to
 	 * change the current pointer shape to one already present in the pointer
@@ -1684,94 +2591,277 @@ public class Rdp {
 
 
 	/**
-	 * Process an RDP5 packet
+	 * Process a fast-path update PDU. Fragmented updates are reassembled
+	 * before being processed.
 	 *
+	 * @see [MS-RDPBCGR] 2.2.9.1.2
 	 * @param s
-	 *            Packet to be processed
-	 * @param e
+	 *            Packet to be processed, positioned after the length field
+	 * @param encryption
 	 *            True if packet is encrypted
 	 * @throws RdesktopException
 	 * @throws OrderException
 	 */
-	public void rdp5_process(RdpPacket s, boolean e)
+	public void rdp5_process(RdpPacket s, boolean encryption)
 			throws RdesktopException, OrderException {
-		rdp5_process(s, e, false);
+		LOGGER.debug("Processing RDP 5 order");
+
+		if (encryption) {
+			s.incrementPosition(8); /* signature */
+			SecureLayer.decrypt(s, s.getPosition(), s.getEnd() - s.getPosition());
+		}
+
+		if (recorder != null) {
+			recorder.record(SessionRecorder.FAST_PATH, s, s.getPosition(),
+					s.getEnd());
+		}
+
+		while (s.getPosition() < s.getEnd()) {
+			int header = s.get8();
+			int code = header & 0x0f;
+			int fragmentation = (header >> 4) & 0x03;
+			int compression = (header >> 6) & 0x03;
+			int compression_flags = 0;
+			if ((compression & FASTPATH_OUTPUT_COMPRESSION_USED) != 0) {
+				compression_flags = s.get8();
+			}
+			int length = s.getLittleEndian16();
+			int next = s.getPosition() + length;
+			LOGGER.debug("RDP5: type = {}", code);
+			if (next > s.getEnd()) {
+				throw new RdesktopException("Fast-path update " + code
+						+ " of " + length + " bytes overruns its PDU");
+			}
+
+			if ((compression_flags & PACKET_COMPRESSED) != 0) {
+				// Bulk compression is never advertised, so should not be used
+				LOGGER.warn("Compressed fast-path update {} ignored", code);
+				fastpath_fragment_size = -1;
+			} else if (fragmentation == FASTPATH_FRAGMENT_SINGLE) {
+				synchronized (drawLock) {
+					updateStarted();
+					processFastPathUpdate(code, s, next);
+				}
+			} else if (fragmentation == FASTPATH_FRAGMENT_FIRST) {
+				fastpath_fragment_size = 0;
+				fastpath_fragment_code = code;
+				appendFragment(s, length);
+			} else if (fastpath_fragment_size < 0
+					|| code != fastpath_fragment_code) {
+				LOGGER.warn("Fast-path fragment {} out of sequence", code);
+				fastpath_fragment_size = -1;
+			} else if (appendFragment(s, length)
+					&& fragmentation == FASTPATH_FRAGMENT_LAST) {
+				RdpPacket update = fastpath_fragment;
+				update.setPosition(0);
+				update.markEnd(fastpath_fragment_size);
+				fastpath_fragment_size = -1;
+				synchronized (drawLock) {
+					updateStarted();
+					processFastPathUpdate(code, update, update.getEnd());
+				}
+			}
+
+			s.setPosition(next);
+		}
+	}
+
+	/**
+	 * Add a fragment of a fast-path update to the reassembly buffer
+	 *
+	 * @param s
+	 *            Packet positioned at the start of the fragment
+	 * @param length
+	 *            Length of the fragment
+	 * @return False if the update would exceed FASTPATH_FRAGMENT_MAX, in
+	 *         which case it is dropped
+	 */
+	private boolean appendFragment(RdpPacket s, int length) {
+		int needed = fastpath_fragment_size + length;
+		if (needed > FASTPATH_FRAGMENT_MAX) {
+			LOGGER.warn("Fast-path update {} exceeds {} bytes, dropped",
+					fastpath_fragment_code, FASTPATH_FRAGMENT_MAX);
+			fastpath_fragment_size = -1;
+			return false;
+		}
+		if (fastpath_fragment == null || fastpath_fragment.capacity() < needed) {
+			RdpPacket grown = new RdpPacket(Math.min(Math.max(needed,
+					fastpath_fragment == null ? 0x4000
+							: fastpath_fragment.capacity() * 2),
+					FASTPATH_FRAGMENT_MAX));
+			if (fastpath_fragment != null) {
+				grown.copyFromPacket(fastpath_fragment, 0, 0,
+						fastpath_fragment_size);
+			}
+			fastpath_fragment = grown;
+		}
+		fastpath_fragment.copyFromPacket(s, s.getPosition(),
+				fastpath_fragment_size, length);
+		fastpath_fragment_size = needed;
+		return true;
 	}
 
 	/**
-	 * Process an RDP5 fast-path packet
+	 * Process one complete fast-path update
 	 *
 	 * @see [MS-RDPBCGR] 2.2.9.1.2.1
+	 * @param code
+	 *            updateCode from the update header
 	 * @param s
-	 *            Packet to be processed
-	 * @param encryption
-	 *            True if packet is encrypted
-	 * @param shortform
-	 *            True if packet is of the "short" form
+	 *            Packet positioned at the start of the update data
+	 * @param next
+	 *            Offset of the end of the update data
 	 * @throws RdesktopException
 	 * @throws OrderException
 	 */
-	public void rdp5_process(RdpPacket s, boolean encryption,
-			boolean shortform) throws RdesktopException, OrderException {
-		LOGGER.debug("Processing RDP 5 order");
-
-		int length, count;
-		int type;
-		int next;
-
-		if (encryption) {
-			s.incrementPosition(shortform ? 6 : 7 /* XXX HACK */); /* signature */
-			byte[] data = new byte[s.size() - s.getPosition()];
-			s.copyToByteArray(data, 0, s.getPosition(), data.length);
-			byte[] packet = SecureLayer.decrypt(data); // XXX unused???
+	private void processFastPathUpdate(int code, RdpPacket s, int next)
+			throws RdesktopException, OrderException {
+		options.stats.fastPathUpdate(code);
+		long start = System.nanoTime();
+		switch (code) {
+		case FASTPATH_UPDATETYPE_ORDERS:
+			int count = s.getLittleEndian16();
+			orders.processOrders(s, next, count);
+			break;
+		case FASTPATH_UPDATETYPE_BITMAP:
+			s.incrementPosition(2); /* updateType */
+			processBitmapUpdates(s);
+			break;
+		case FASTPATH_UPDATETYPE_PALETTE:
+			s.incrementPosition(2); /* updateType */
+			processPalette(s);
+			break;
+		case FASTPATH_UPDATETYPE_SYNCHRONIZE:
+			break;
+		case FASTPATH_UPDATETYPE_SURFCMDS:
+			processSurfaceCommands(s, next);
+			break;
+		case FASTPATH_UPDATETYPE_PTR_NULL:
+			// Hide the pointer
+			// [MS-RDPBCGR] 2.2.9.1.2.1.5
+			LOGGER.debug("RDP5_HIDE_POINTER");
+			callback.setCursor(SystemCursorType.INVISIBLE_CURSOR);
+			break;
+		case FASTPATH_UPDATETYPE_PTR_DEFAULT:
+			// Set the shape of the pointer to the operating system default
+			// [MS-RDPBCGR] 2.2.9.1.2.1.6
+			LOGGER.debug("RDP5_DEFAULT_POINTER");
+			callback.setCursor(SystemCursorType.DEFAULT_CURSOR);
+			break;
+		case FASTPATH_UPDATETYPE_PTR_POSITION: {
+			// [MS-RDPBCGR] 2.2.9.1.2.1.4
+			int x = s.getLittleEndian16();
+			int y = s.getLittleEndian16();
+			callback.movePointer(x, y);
+			break;
 		}
+		case FASTPATH_UPDATETYPE_COLOR:
+			process_colour_pointer_pdu(s);
+			break;
+		case FASTPATH_UPDATETYPE_CACHED:
+			process_cached_pointer_pdu(s);
+			break;
+		case FASTPATH_UPDATETYPE_POINTER:
+			process_new_pointer_pdu(s);
+			break;
+		case FASTPATH_UPDATETYPE_LARGE_POINTER:
+			process_large_pointer_pdu(s);
+			break;
+		default:
+			LOGGER.warn("Unimplemented RDP5 opcode {}", code);
+		}
+		options.stats.decodeTime.record(System.nanoTime() - start);
+	}
 
-		// printf("RDP5 data:\n");
-		// hexdump(s->p, s->end - s->p);
-
-		while (s.getPosition() < s.getEnd()) {
-			type = s.get8();
-			length = s.getLittleEndian16();
-			/* next_packet = */next = s.getPosition() + length;
-			LOGGER.debug("RDP5: type = " + type);
+	/**
+	 * Process the surface commands of a fast-path update. Only uncompressed
+	 * surface bits are drawn; frame markers are not acknowledged.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.9.1.2.1.10
+	 * @param s
+	 *            Packet positioned at the first command
+	 * @param end
+	 *            Offset of the end of the commands
+	 * @throws RdesktopException
+	 */
+	private void processSurfaceCommands(RdpPacket s, int end)
+			throws RdesktopException {
+		while (s.getPosition() < end) {
+			int type = s.getLittleEndian16();
 			switch (type) {
-			case 0: /* orders */
-				count = s.getLittleEndian16();
-				orders.processOrders(s, next, count);
-				break;
-			case 1: /* bitmap update (???) */
-				s.incrementPosition(2); /* part length */
-				processBitmapUpdates(s);
-				break;
-			case 2: /* palette */
-				s.incrementPosition(2);
-				processPalette(s);
-				break;
-			case 3: /* probably an palette with offset 3. Weird */
-				break;
-			case 5:
-				// Hide the pointer
-				// [MS-RDPBCGR] 2.2.9.1.2.1.5
-				LOGGER.debug("RDP5_HIDE_POINTER");
-				callback.setCursor(SystemCursorType.DEFAULT_CURSOR);
-				break;
-			case 6:
-				// Set the shape of the pointer to the operating system default
-				// [MS-RDPBCGR] 2.2.9.1.2.1.6
-				LOGGER.debug("RDP5_DEFAULT_POINTER");
-				callback.setCursor(SystemCursorType.DEFAULT_CURSOR);
-				break;
-			case 9:
-				process_colour_pointer_pdu(s);
+			case CMDTYPE_SET_SURFACE_BITS:
+			case CMDTYPE_STREAM_SURFACE_BITS: {
+				int left = s.getLittleEndian16();
+				int top = s.getLittleEndian16();
+				s.incrementPosition(4); /* destRight, destBottom */
+				int bpp = s.get8();
+				int flags = s.get8();
+				s.incrementPosition(1); /* reserved */
+				int codec = s.get8();
+				int width = s.getLittleEndian16();
+				int height = s.getLittleEndian16();
+				int length = s.getLittleEndian32();
+				if ((flags & EX_COMPRESSED_BITMAP_HEADER_PRESENT) != 0) {
+					s.incrementPosition(24); /* exBitmapDataHeader */
+				}
+				if (length < 0 || s.getPosition() + (long) length > end) {
+					throw new RdesktopException("Surface bits of " + length
+							+ " bytes overrun their update");
+				}
+				int next = s.getPosition() + length;
+				if (codec != RDP_CODEC_ID_NONE || (bpp != 24 && bpp != 32)
+						|| (long) width * height * (bpp / 8) > length) {
+					LOGGER.warn("Unsupported surface bits: codec {}, {} bpp",
+							codec, bpp);
+				} else {
+					processSurfaceBits(s, left, top, width, height, bpp / 8);
+				}
+				s.setPosition(next);
 				break;
-			case 10:
-				process_cached_pointer_pdu(s);
+			}
+			case CMDTYPE_FRAME_MARKER:
+				s.incrementPosition(2 + 4); /* frameAction, frameId */
 				break;
 			default:
-				LOGGER.warn("Unimplemented RDP5 opcode " + type);
+				// Commands carry no length, so the rest cannot be parsed
+				LOGGER.warn("Unknown surface command {}", type);
+				return;
 			}
+		}
+	}
 
-			s.setPosition(next);
+	/**
+	 * Draw uncompressed, bottom-up surface bits to the surface
+	 *
+	 * @param Bpp
+	 *            Bytes per pixel, 3 or 4
+	 */
+	private void processSurfaceBits(RdpPacket s, int left, int top,
+			int width, int height, int Bpp) {
+		int cx = Math.min(width, options.width - left);
+		int cy = Math.min(height, options.height - top);
+		if (cx <= 0 || cy <= 0) {
+			return;
+		}
+		int start = s.getPosition();
+		int stride = width * Bpp;
+		if (surface_row.length < stride) {
+			surface_row = new byte[stride];
+		}
+		if (surface_pixels.length < cx * cy) {
+			surface_pixels = new int[cx * cy];
+		}
+		byte[] row = surface_row;
+		int[] pixels = surface_pixels;
+		for (int y = 0; y < cy; y++) {
+			s.copyToByteArray(row, 0, start + (height - y - 1) * stride,
+					stride);
+			for (int x = 0; x < cx; x++) {
+				pixels[y * cx + x] = (row[x * Bpp] & 0xff)
+						| ((row[x * Bpp + 1] & 0xff) << 8)
+						| ((row[x * Bpp + 2] & 0xff) << 16);
+			}
 		}
+		surface.putImage(left, top, cx, cy, pixels);
 	}
 }
\ No newline at end of file
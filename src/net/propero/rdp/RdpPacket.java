@@ -62,6 +62,8 @@ public class RdpPacket {
 	 */
 	public static final RdpPacket EMPTY = new RdpPacket(0);
 
+	private static final byte[] ZEROS = new byte[512];
+
 	private ByteBuffer bb;
 	private int size = 0;
 
@@ -86,6 +88,25 @@ public class RdpPacket {
 		bb.clear();
 	}
 
+	/**
+	 * Prepare this packet for reuse as a new outgoing packet. The first
+	 * <code>length</code> bytes are zeroed and the layer headers, start and
+	 * end are cleared, as in a newly created packet.
+	 *
+	 * @param length
+	 *            Length of the new packet
+	 */
+	public void recycle(int length) {
+		reset(length);
+		this.mcs = this.secure = this.rdp = this.channel = -1;
+		this.start = this.end = -1;
+		while (bb.position() + ZEROS.length <= length) {
+			bb.put(ZEROS);
+		}
+		bb.put(ZEROS, 0, length - bb.position());
+		bb.clear();
+	}
+
 	/**
 	 * Read an 8-bit integer value from the packet (at current read/write
 	 * position)
@@ -418,15 +439,7 @@ public class RdpPacket {
 	 */
 	public void copyToPacket(RdpPacket dst, int srcOffset,
 			int dstOffset, int len) {
-		int olddstpos = dst.getPosition();
-		int oldpos = getPosition();
-		dst.setPosition(dstOffset);
-		setPosition(srcOffset);
-		for (int i = 0; i < len; i++) {
-			dst.set8(bb.get());
-		}
-		dst.setPosition(olddstpos);
-		setPosition(oldpos);
+		dst.copyFromPacket(this, srcOffset, dstOffset, len);
 	}
 
 	/**
@@ -443,15 +456,12 @@ public class RdpPacket {
 	 */
 	public void copyFromPacket(RdpPacket src, int srcOffset,
 			int dstOffset, int len) {
-		int oldsrcpos = src.getPosition();
-		int oldpos = getPosition();
-		src.setPosition(srcOffset);
-		setPosition(dstOffset);
-		for (int i = 0; i < len; i++) {
-			bb.put((byte) src.get8());
-		}
-		src.setPosition(oldsrcpos);
-		setPosition(oldpos);
+		// Copy through views so that neither packet's position moves
+		ByteBuffer from = src.bb.duplicate();
+		from.limit(srcOffset + len).position(srcOffset);
+		ByteBuffer to = bb.duplicate();
+		to.position(dstOffset);
+		to.put(from);
 	}
 
 	/**
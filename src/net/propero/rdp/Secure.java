@@ -31,6 +31,8 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.StringTokenizer;
 
+import net.propero.rdp.SessionStats.Layer;
+import net.propero.rdp.jfr.DecryptEvent;
 import net.propero.rdp.rdp5.VChannels;
 
 import org.apache.logging.log4j.LogManager;
@@ -91,6 +93,11 @@ public class Secure {
 
 	private static final int SEC_RSA_MAGIC = 0x31415352; /* RSA1 */
 
+	/* fast-path input header, [MS-RDPBCGR] 2.2.8.1.2 */
+	private static final int FASTPATH_INPUT_ACTION_FASTPATH = 0x0;
+
+	private static final int FASTPATH_INPUT_ENCRYPTED = 0x2;
+
 	protected final MCS McsLayer;
 
 	// private String hostname=null;
@@ -113,6 +120,19 @@ public class Secure {
 
 	private int dec_count = 0;
 
+	/** Reused by {@link #decrypt(RdpPacket, int, int)} */
+	private byte[] decrypt_buffer = new byte[4096];
+
+	/** Reused by {@link #signAndEncrypt(RdpPacket, int, int)} */
+	private byte[] encrypt_buffer = new byte[4096];
+
+	/** Scratch space for signing */
+	private final byte[] sign_lenhdr = new byte[4];
+
+	private final byte[] sign_shasig = new byte[20];
+
+	private final byte[] sign_md5sig = new byte[16];
+
 	private int server_public_key_len = 0;
 
 	private byte[] sec_sign_key = null;
@@ -148,6 +168,8 @@ public class Secure {
 
 	private final Options options;
 
+	private final OutboundWriter writer;
+
 	/**
 	 * Initialise Secure layer of communications
 	 *
@@ -161,6 +183,7 @@ public class Secure {
 		this.options = options;
 		this.licence = new Licence(options, this);
 		McsLayer = new MCS(options, channels, this, rdp);
+		writer = new OutboundWriter(rdp);
 		rc4_dec = new RC4Engine();
 		rc4_enc = new RC4Engine();
 		rc4_update = new RC4Engine();
@@ -207,6 +230,10 @@ public class Secure {
 		this.processMcsData(mcs_data);
 
 		this.establishKey();
+
+		if (options.async_send) {
+			writer.start();
+		}
 	}
 
 	/**
@@ -227,6 +254,7 @@ public class Secure {
 	 * Close connection
 	 */
 	public void disconnect() {
+		writer.stop();
 		McsLayer.disconnect();
 	}
 
@@ -303,10 +331,11 @@ public class Secure {
 
 		if (options.use_rdp5) {
 			buffer.setLittleEndian32(0); // out_uint32(s, 0);
-			buffer.set8(options.server_bpp); // out_uint8(s, g_server_bpp);
-			buffer.setLittleEndian16(0x0700); // out_uint16_le(s, 0x0700);
-			buffer.set8(0); // out_uint8(s, 0);
-			buffer.setLittleEndian32(1); // out_uint32_le(s, 1);
+			// highColorDepth tops out at 24; 32 bpp is asked for by flag
+			buffer.setLittleEndian16(Math.min(options.server_bpp, 24));
+			buffer.setLittleEndian16(options.server_bpp == 32 ? 0x0f : 0x07); // supportedColorDepths
+			buffer.setLittleEndian16(options.server_bpp == 32 ? 0x03 : 0x01); // earlyCapabilityFlags
+			buffer.setLittleEndian16(0);
 
 			buffer.incrementPosition(64);
 
@@ -522,6 +551,52 @@ public class Secure {
 		return buffer;
 	}
 
+	/**
+	 * Intialise an encrypted fast-path input PDU
+	 *
+	 * @param length
+	 *            Length of the input events (and event count, if present)
+	 * @return Intialised packet
+	 * @throws RdesktopException
+	 */
+	public RdpPacket initFastPath(int length) throws RdesktopException {
+		RdpPacket buffer = McsLayer.initFastPath(length + 8);
+		buffer.pushLayer(RdpPacket.SECURE_HEADER, 8);
+		return buffer;
+	}
+
+	/**
+	 * Sign and encrypt a fast-path input PDU and send it
+	 *
+	 * @param sec_data
+	 *            Packet created by {@link #initFastPath(int)}
+	 * @param numEvents
+	 *            Event count for the header; 0 if the count is written as
+	 *            the first byte of the data instead
+	 * @throws RdesktopException
+	 * @throws IOException
+	 * @see [MS-RDPBCGR] 2.2.8.1.2
+	 */
+	public void sendFastPath(final RdpPacket sec_data, final int numEvents)
+			throws RdesktopException, IOException {
+		writer.submit(OutboundWriter.Priority.INPUT, new OutboundWriter.Send() {
+			@Override
+			public void send() throws RdesktopException, IOException {
+				writeFastPath(sec_data, numEvents);
+			}
+		});
+	}
+
+	private void writeFastPath(RdpPacket sec_data, int numEvents)
+			throws RdesktopException, IOException {
+		int start = sec_data.getHeader(RdpPacket.SECURE_HEADER);
+		signAndEncrypt(sec_data, start, sec_data.getEnd() - start - 8);
+
+		options.stats.bytesOut(Layer.SECURE, sec_data.getEnd() - start);
+		McsLayer.sendFastPath(sec_data, FASTPATH_INPUT_ACTION_FASTPATH
+				| (numEvents << 2) | (FASTPATH_INPUT_ENCRYPTED << 6));
+	}
+
 	/**
 	 * Send secure data on the global channel
 	 *
@@ -534,11 +609,35 @@ public class Secure {
 	 */
 	public void send(RdpPacket sec_data, int flags)
 			throws RdesktopException, IOException {
-		send_to_channel(sec_data, flags, MCS.MCS_GLOBAL_CHANNEL);
+		send(sec_data, flags, OutboundWriter.Priority.CONTROL);
+	}
+
+	/**
+	 * Send secure data on the global channel with the given priority
+	 *
+	 * @param sec_data
+	 *            Data to send
+	 * @param flags
+	 *            Encryption flags
+	 * @param priority
+	 *            Priority class, if the data is queued for the writer thread
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void send(final RdpPacket sec_data, final int flags,
+			OutboundWriter.Priority priority) throws RdesktopException,
+			IOException {
+		writer.submit(priority, new OutboundWriter.Send() {
+			@Override
+			public void send() throws RdesktopException, IOException {
+				write_to_channel(sec_data, flags, MCS.MCS_GLOBAL_CHANNEL);
+			}
+		});
 	}
 
 	/**
-	 * Prepare data as a Secure PDU and pass down to the MCS layer
+	 * Prepare data as a Secure PDU and pass down to the MCS layer. Data for
+	 * virtual channels is sent at the lowest priority.
 	 *
 	 * @param sec_data
 	 *            Data to send
@@ -549,13 +648,19 @@ public class Secure {
 	 * @throws RdesktopException
 	 * @throws IOException
 	 */
-	public void send_to_channel(RdpPacket sec_data, int flags,
-			int channel) throws RdesktopException, IOException {
-		int datalength = 0;
-		byte[] signature = null;
-		byte[] data;
-		byte[] buffer;
+	public void send_to_channel(final RdpPacket sec_data, final int flags,
+			final int channel) throws RdesktopException, IOException {
+		writer.submit(channel == MCS.MCS_GLOBAL_CHANNEL ? OutboundWriter.Priority.CONTROL
+				: OutboundWriter.Priority.BULK, new OutboundWriter.Send() {
+			@Override
+			public void send() throws RdesktopException, IOException {
+				write_to_channel(sec_data, flags, channel);
+			}
+		});
+	}
 
+	private void write_to_channel(RdpPacket sec_data, int flags,
+			int channel) throws RdesktopException, IOException {
 		sec_data.setPosition(sec_data.getHeader(RdpPacket.SECURE_HEADER));
 
 		if (this.licenceIssued == false || (flags & SEC_ENCRYPT) != 0) {
@@ -563,21 +668,11 @@ public class Secure {
 		}
 		if ((flags & SEC_ENCRYPT) != 0) {
 			flags &= ~SEC_ENCRYPT;
-			datalength = sec_data.getEnd() - sec_data.getPosition() - 8;
-			data = new byte[datalength];
-			buffer = null;
-			sec_data.copyToByteArray(data, 0, sec_data.getPosition() + 8,
-					datalength);
-			signature = this.sign(this.sec_sign_key, 8, this.keylength, data,
-					datalength);
-
-			buffer = this.encrypt(data, datalength);
-
-			sec_data.copyFromByteArray(signature, 0, sec_data.getPosition(), 8);
-			sec_data.copyFromByteArray(buffer, 0, sec_data.getPosition() + 8,
-					datalength);
-
+			signAndEncrypt(sec_data, sec_data.getPosition(), sec_data.getEnd()
+					- sec_data.getPosition() - 8);
 		}
+		options.stats.bytesOut(Layer.SECURE, sec_data.getEnd()
+				- sec_data.getHeader(RdpPacket.SECURE_HEADER));
 		// McsLayer.send(sec_data);
 		McsLayer.send_to_channel(sec_data, channel);
 	}
@@ -599,43 +694,72 @@ public class Secure {
 	 */
 	public byte[] sign(byte[] session_key, int length, int keylen, byte[] data,
 			int datalength) {
-		byte[] shasig = new byte[20];
-		byte[] md5sig = new byte[16];
-		byte[] lenhdr = new byte[4];
 		byte[] signature = new byte[length];
+		this.sign(session_key, keylen, data, datalength);
+		System.arraycopy(sign_md5sig, 0, signature, 0, length);
+		return signature;
+	}
 
-		this.setLittleEndian32(lenhdr, datalength);
+	/**
+	 * Generate MD5 signature into {@link #sign_md5sig}
+	 *
+	 * @param session_key
+	 *            Key with which to sign data
+	 * @param keylen
+	 *            Length of key
+	 * @param data
+	 *            Data to sign
+	 * @param datalength
+	 *            Length of data to sign
+	 */
+	private void sign(byte[] session_key, int keylen, byte[] data,
+			int datalength) {
+		this.setLittleEndian32(sign_lenhdr, datalength);
 
 		sha1.reset();
 		sha1.update(session_key, 0, keylen/* length */);
 		sha1.update(pad_54, 0, 40);
-		sha1.update(lenhdr, 0, 4);
+		sha1.update(sign_lenhdr, 0, 4);
 		sha1.update(data, 0, datalength);
-		sha1.doFinal(shasig, 0);
+		sha1.doFinal(sign_shasig, 0);
 		sha1.reset();
 
 		md5.reset();
 		md5.update(session_key, 0, keylen/* length */);
 		md5.update(pad_92, 0, 48);
-		md5.update(shasig, 0, 20);
-		md5.doFinal(md5sig, 0);
+		md5.update(sign_shasig, 0, 20);
+		md5.doFinal(sign_md5sig, 0);
 		md5.reset();
-
-		System.arraycopy(md5sig, 0, signature, 0, length);
-		return signature;
 	}
 
 	/**
-	 * Encrypt specified number of bytes from provided data using RC4 algorithm
+	 * Sign and encrypt part of a packet in place. The 8-byte signature is
+	 * written immediately before the data.
 	 *
 	 * @param data
-	 *            Data to encrypt
+	 *            Packet containing data to encrypt
+	 * @param offset
+	 *            Offset into packet of the signature
 	 * @param length
-	 *            Number of bytes to encrypt (from start of array)
-	 * @return Encrypted data
+	 *            Number of bytes to encrypt, after the signature
 	 */
-	public byte[] encrypt(byte[] data, int length) {
-		byte[] buffer = new byte[length];
+	private void signAndEncrypt(RdpPacket data, int offset, int length) {
+		if (encrypt_buffer.length < length) {
+			encrypt_buffer = new byte[Math.max(length, encrypt_buffer.length * 2)];
+		}
+		data.copyToByteArray(encrypt_buffer, 0, offset + 8, length);
+		this.sign(this.sec_sign_key, this.keylength, encrypt_buffer, length);
+		data.copyFromByteArray(sign_md5sig, 0, offset, 8);
+		checkEncryptKey();
+		this.rc4_enc.processBytes(encrypt_buffer, 0, length, encrypt_buffer, 0);
+		this.enc_count++;
+		data.copyFromByteArray(encrypt_buffer, 0, offset + 8, length);
+	}
+
+	/**
+	 * Update the encryption key if it has been used for 4096 packets
+	 */
+	private void checkEncryptKey() {
 		if (this.enc_count == 4096) {
 			sec_encrypt_key = this.update(this.sec_encrypt_key,
 					this.sec_encrypt_update_key);
@@ -644,8 +768,22 @@ public class Secure {
 			this.rc4_enc.init(true, new KeyParameter(key));
 			// logger.debug("Packet enc_count="+enc_count);
 			this.enc_count = 0;
+			options.stats.encryptRekey();
 		}
-		// this.rc4.engineInitEncrypt(this.rc4_encrypt_key);
+	}
+
+	/**
+	 * Encrypt specified number of bytes from provided data using RC4 algorithm
+	 *
+	 * @param data
+	 *            Data to encrypt
+	 * @param length
+	 *            Number of bytes to encrypt (from start of array)
+	 * @return Encrypted data
+	 */
+	public byte[] encrypt(byte[] data, int length) {
+		byte[] buffer = new byte[length];
+		checkEncryptKey();
 		this.rc4_enc.processBytes(data, 0, length, buffer, 0);
 		this.enc_count++;
 		return buffer;
@@ -660,34 +798,21 @@ public class Secure {
 	 */
 	public byte[] encrypt(byte[] data) {
 		byte[] buffer = new byte[data.length];
-		if (this.enc_count == 4096) {
-			sec_encrypt_key = this.update(this.sec_encrypt_key,
-					this.sec_encrypt_update_key);
-			byte[] key = new byte[this.keylength];
-			System.arraycopy(this.sec_encrypt_key, 0, key, 0, this.keylength);
-			this.rc4_enc.init(true, new KeyParameter(key));
-			// logger.debug("Packet enc_count="+enc_count);
-			this.enc_count = 0;
-		}
-		// this.rc4.engineInitEncrypt(this.rc4_encrypt_key);
-
+		checkEncryptKey();
 		this.rc4_enc.processBytes(data, 0, data.length, buffer, 0);
 		this.enc_count++;
 		return buffer;
 	}
 
 	/**
-	 * Decrypt specified number of bytes from provided data using RC4 algorithm
+	 * Update the decryption key if it has been used for 4096 packets
 	 *
-	 * @param data
-	 *            Data to decrypt
-	 * @param length
-	 *            Number of bytes to decrypt (from start of array)
-	 * @return Decrypted data
+	 * @param event
+	 *            Event to mark if the key was updated
 	 */
-	public byte[] decrypt(byte[] data, int length) {
-		byte[] buffer = new byte[length];
+	private void checkDecryptKey(DecryptEvent event) {
 		if (this.dec_count == 4096) {
+			event.rekeyed = true;
 			sec_decrypt_key = this.update(this.sec_decrypt_key,
 					this.sec_decrypt_update_key);
 			byte[] key = new byte[this.keylength];
@@ -695,10 +820,60 @@ public class Secure {
 			this.rc4_dec.init(false, new KeyParameter(key));
 			// logger.debug("Packet dec_count="+dec_count);
 			this.dec_count = 0;
+			options.stats.decryptRekey();
 		}
+	}
+
+	/**
+	 * Decrypt part of a packet in place using RC4 algorithm
+	 *
+	 * @param data
+	 *            Packet containing data to decrypt
+	 * @param offset
+	 *            Offset into packet of data to decrypt
+	 * @param length
+	 *            Number of bytes to decrypt
+	 */
+	public void decrypt(RdpPacket data, int offset, int length) {
+		DecryptEvent event = new DecryptEvent();
+		event.begin();
+		checkDecryptKey(event);
+		if (decrypt_buffer.length < length) {
+			decrypt_buffer = new byte[Math.max(length, decrypt_buffer.length * 2)];
+		}
+		data.copyToByteArray(decrypt_buffer, 0, offset, length);
+		this.rc4_dec.processBytes(decrypt_buffer, 0, length, decrypt_buffer, 0);
+		data.copyFromByteArray(decrypt_buffer, 0, offset, length);
+		this.dec_count++;
+		event.end();
+		if (event.shouldCommit()) {
+			event.bytes = length;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Decrypt specified number of bytes from provided data using RC4 algorithm
+	 *
+	 * @param data
+	 *            Data to decrypt
+	 * @param length
+	 *            Number of bytes to decrypt (from start of array)
+	 * @return Decrypted data
+	 */
+	public byte[] decrypt(byte[] data, int length) {
+		DecryptEvent event = new DecryptEvent();
+		event.begin();
+		byte[] buffer = new byte[length];
+		checkDecryptKey(event);
 		// this.rc4.engineInitDecrypt(this.rc4_decrypt_key);
 		this.rc4_dec.processBytes(data, 0, length, buffer, 0);
 		this.dec_count++;
+		event.end();
+		if (event.shouldCommit()) {
+			event.bytes = length;
+			event.commit();
+		}
 		return buffer;
 	}
 
@@ -710,20 +885,19 @@ public class Secure {
 	 * @return Decrypted data
 	 */
 	public byte[] decrypt(byte[] data) {
+		DecryptEvent event = new DecryptEvent();
+		event.begin();
 		byte[] buffer = new byte[data.length];
-		if (this.dec_count == 4096) {
-			sec_decrypt_key = this.update(this.sec_decrypt_key,
-					this.sec_decrypt_update_key);
-			byte[] key = new byte[this.keylength];
-			System.arraycopy(this.sec_decrypt_key, 0, key, 0, this.keylength);
-			this.rc4_dec.init(false, new KeyParameter(key));
-			// logger.debug("Packet dec_count="+dec_count);
-			this.dec_count = 0;
-		}
+		checkDecryptKey(event);
 		// this.rc4.engineInitDecrypt(this.rc4_decrypt_key);
 
 		this.rc4_dec.processBytes(data, 0, data.length, buffer, 0);
 		this.dec_count++;
+		event.end();
+		if (event.shouldCommit()) {
+			event.bytes = data.length;
+			event.commit();
+		}
 		return buffer;
 	}
 
@@ -1114,6 +1288,8 @@ public class Secure {
 				return null;
 			}
 			buffer.setHeader(RdpPacket.SECURE_HEADER);
+			options.stats.bytesIn(Layer.SECURE, buffer.getEnd()
+					- buffer.getPosition());
 			sec_flags = buffer.getLittleEndian32();
 
 			if ((sec_flags & SEC_LICENCE_NEG) != 0) {
@@ -1201,4 +1377,11 @@ public class Secure {
 	public int getUserID() {
 		return McsLayer.getUserID();
 	}
+
+	/**
+	 * @return Writer for outgoing PDUs
+	 */
+	public OutboundWriter getWriter() {
+		return writer;
+	}
 }
\ No newline at end of file
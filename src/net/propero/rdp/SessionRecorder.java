@@ -0,0 +1,310 @@
+/* SessionRecorder.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records decrypted server PDUs to a file, so that a session can later be
+ * replayed without a network connection.
+ * <p>
+ * A recording starts with a header (magic, format version, desktop width,
+ * height and colour depth) followed by one record per received PDU:
+ * <ul>
+ * <li>kind (1 byte): {@link #SLOW_PATH} or {@link #FAST_PATH}</li>
+ * <li>time since the previous record, in microseconds (varint)</li>
+ * <li>payload length (varint)</li>
+ * <li>payload</li>
+ * </ul>
+ * Slow-path payloads start at the share control header of the first PDU in
+ * the packet; fast-path payloads start at the first update.
+ */
+public class SessionRecorder implements Closeable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/** "PJRR" */
+	public static final int MAGIC = 0x504a5252;
+
+	public static final int VERSION = 1;
+
+	/** Decrypted payload returned by {@link Secure#receive()} */
+	public static final int SLOW_PATH = 0;
+
+	/** Decrypted payload processed by {@link Rdp#rdp5_process} */
+	public static final int FAST_PATH = 1;
+
+	private DataOutputStream out;
+
+	private long lastTime;
+
+	private byte[] buffer = new byte[4096];
+
+	/**
+	 * Start a new recording.
+	 *
+	 * @param stream
+	 *            Stream to write to; closed along with the recorder
+	 * @param options
+	 *            Options supplying the initial desktop size and depth
+	 * @throws IOException
+	 */
+	public SessionRecorder(OutputStream stream, Options options)
+			throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(stream,
+				65536));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeShort(options.width);
+		out.writeShort(options.height);
+		out.writeByte(options.server_bpp);
+		this.lastTime = System.nanoTime();
+	}
+
+	/**
+	 * Start a new recording in a file.
+	 *
+	 * @param filename
+	 *            File to write to
+	 * @param options
+	 *            Options supplying the initial desktop size and depth
+	 * @throws IOException
+	 */
+	public SessionRecorder(String filename, Options options)
+			throws IOException {
+		this(new FileOutputStream(filename), options);
+	}
+
+	/**
+	 * Record a PDU. Errors are logged and stop the recording, but are not
+	 * passed on to the caller, so that a full disk doesn't end the session.
+	 *
+	 * @param kind
+	 *            {@link #SLOW_PATH} or {@link #FAST_PATH}
+	 * @param data
+	 *            Packet containing the PDU
+	 * @param start
+	 *            Offset of the first byte to record
+	 * @param end
+	 *            Offset after the last byte to record
+	 */
+	public void record(int kind, RdpPacket data, int start, int end) {
+		if (out == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		int length = end - start;
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		data.copyToByteArray(buffer, 0, start, length);
+		try {
+			out.writeByte(kind);
+			writeVarint(out, (now - lastTime) / 1000);
+			writeVarint(out, length);
+			out.write(buffer, 0, length);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to write session recording; stopping", e);
+			close();
+		}
+		lastTime = now;
+	}
+
+	@Override
+	public void close() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to close session recording", e);
+		}
+		out = null;
+	}
+
+	private static void writeVarint(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a recording written by {@link SessionRecorder}.
+	 */
+	public static class Reader implements Closeable {
+
+		private final DataInputStream in;
+
+		private final int width;
+
+		private final int height;
+
+		private final int bpp;
+
+		private int kind;
+
+		private long delay;
+
+		private byte[] payload = new byte[4096];
+
+		private int length;
+
+		/**
+		 * @param stream
+		 *            Stream to read the recording from
+		 * @throws IOException
+		 *             if the stream isn't a recording this version can read
+		 */
+		public Reader(InputStream stream) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(stream,
+					65536));
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a session recording");
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported recording version "
+						+ version);
+			}
+			this.width = in.readUnsignedShort();
+			this.height = in.readUnsignedShort();
+			this.bpp = in.readUnsignedByte();
+		}
+
+		public Reader(String filename) throws IOException {
+			this(new FileInputStream(filename));
+		}
+
+		/**
+		 * Read the next record.
+		 *
+		 * @return False at the end of the recording
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			int b = in.read();
+			if (b == -1) {
+				return false;
+			}
+			kind = b;
+			delay = readVarint(in);
+			long len = readVarint(in);
+			if (len > Integer.MAX_VALUE) {
+				throw new IOException("Record too long: " + len);
+			}
+			length = (int) len;
+			if (payload.length < length) {
+				payload = new byte[Math.max(length, payload.length * 2)];
+			}
+			try {
+				in.readFully(payload, 0, length);
+			} catch (EOFException e) {
+				// Truncated by a crashed client; treat as the end
+				LOGGER.warn("Recording truncated in the last record");
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Copy the current record into a packet, resetting it to the payload
+		 * length.
+		 *
+		 * @param packet
+		 *            Packet to reuse
+		 */
+		public void copyTo(RdpPacket packet) {
+			packet.reset(length);
+			packet.copyFromByteArray(payload, 0, 0, length);
+			packet.setPosition(0);
+			packet.markEnd(length);
+		}
+
+		/**
+		 * @return {@link SessionRecorder#SLOW_PATH} or
+		 *         {@link SessionRecorder#FAST_PATH}
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return Time between the previous record and this one, in
+		 *         microseconds
+		 */
+		public long getDelay() {
+			return delay;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getBpp() {
+			return bpp;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,598 @@
+/* SessionStats.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.propero.rdp.Orders.PrimaryOrder;
+import net.propero.rdp.Orders.SecondaryOrder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters for one session, published over JMX while connected.
+ * <p>
+ * Every counter is a {@link LongAdder} or an atomic array, so updating them
+ * never blocks and costs little more than a plain increment; they are always
+ * on.
+ */
+public class SessionStats implements SessionStatsMXBean {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final AtomicInteger sessionIds = new AtomicInteger();
+
+	/**
+	 * Protocol layers with their own byte counters.
+	 */
+	public static enum Layer {
+		ISO, MCS, SECURE
+	}
+
+	/**
+	 * A histogram of durations with power-of-two nanosecond buckets.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 40; // up to about 9 minutes
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder total = new LongAdder();
+
+		/**
+		 * Record a duration.
+		 *
+		 * @param nanos
+		 *            Duration in nanoseconds
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			int bucket = Math.min(BUCKETS - 1, 64 - Long
+					.numberOfLeadingZeros(nanos));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			total.add(nanos);
+		}
+
+		/**
+		 * @return Count in each bucket; bucket <i>n</i> counts durations
+		 *         below 2<sup><i>n</i></sup> nanoseconds
+		 */
+		public long[] getBuckets() {
+			long[] result = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				result[i] = buckets.get(i);
+			}
+			return result;
+		}
+
+		/**
+		 * Estimate a percentile from the buckets.
+		 *
+		 * @param fraction
+		 *            Percentile as a fraction, e.g. 0.99
+		 * @return Upper bound of the bucket containing the percentile, in
+		 *         nanoseconds, or 0 if nothing has been recorded
+		 */
+		public long percentile(double fraction) {
+			long[] counts = getBuckets();
+			long n = 0;
+			for (long c : counts) {
+				n += c;
+			}
+			long target = (long) Math.ceil(n * fraction);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return Count, mean and percentiles, in microseconds
+		 */
+		public Map<String, Long> summary() {
+			Map<String, Long> result = new LinkedHashMap<>();
+			long n = count.sum();
+			result.put("count", n);
+			result.put("meanMicros", n == 0 ? 0 : total.sum() / n / 1000);
+			result.put("p50Micros", percentile(0.50) / 1000);
+			result.put("p90Micros", percentile(0.90) / 1000);
+			result.put("p99Micros", percentile(0.99) / 1000);
+			result.put("p999Micros", percentile(0.999) / 1000);
+			return result;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.reset();
+			total.reset();
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.addAndGet(i, other.buckets.get(i));
+			}
+			count.add(other.count.sum());
+			total.add(other.total.sum());
+		}
+	}
+
+	/**
+	 * A histogram covering only the most recent stretch of time, kept as a
+	 * ring of fixed-length slices. The first sample of a new slice claims the
+	 * slot by swapping in its epoch and clears the old counts; a sample
+	 * recorded into that slot by another thread while it is being cleared may
+	 * be lost.
+	 */
+	public static class RollingHistogram {
+		private final Histogram[] slices;
+
+		private final AtomicLongArray epochs;
+
+		private final long sliceNanos;
+
+		/**
+		 * @param slices
+		 *            Number of slices in the window
+		 * @param sliceNanos
+		 *            Length of each slice, in nanoseconds
+		 */
+		public RollingHistogram(int slices, long sliceNanos) {
+			this.slices = new Histogram[slices];
+			this.epochs = new AtomicLongArray(slices);
+			this.sliceNanos = sliceNanos;
+			for (int i = 0; i < slices; i++) {
+				this.slices[i] = new Histogram();
+				this.epochs.set(i, Long.MIN_VALUE);
+			}
+		}
+
+		/**
+		 * Record a duration in the current slice.
+		 *
+		 * @param nanos
+		 *            Duration in nanoseconds
+		 */
+		public void record(long nanos) {
+			long epoch = Math.floorDiv(System.nanoTime(), sliceNanos);
+			int i = (int) Math.floorMod(epoch, (long) slices.length);
+			long current = epochs.get(i);
+			if (current < epoch && epochs.compareAndSet(i, current, epoch)) {
+				slices[i].reset();
+			}
+			slices[i].record(nanos);
+		}
+
+		/**
+		 * @return A new histogram holding everything recorded within the
+		 *         window
+		 */
+		public Histogram snapshot() {
+			long epoch = Math.floorDiv(System.nanoTime(), sliceNanos);
+			Histogram result = new Histogram();
+			for (int i = 0; i < slices.length; i++) {
+				long e = epochs.get(i);
+				if (e != Long.MIN_VALUE && epoch - e < slices.length) {
+					result.add(slices[i]);
+				}
+			}
+			return result;
+		}
+
+		void reset() {
+			for (int i = 0; i < slices.length; i++) {
+				epochs.set(i, Long.MIN_VALUE);
+				slices[i].reset();
+			}
+		}
+	}
+
+	private final LongAdder[] bytesIn = adders(Layer.values().length);
+
+	private final LongAdder[] bytesOut = adders(Layer.values().length);
+
+	private final ConcurrentMap<String, LongAdder> channelBytesIn = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, LongAdder> channelBytesOut = new ConcurrentHashMap<>();
+
+	private final AtomicLongArray sharePdus = new AtomicLongArray(16);
+
+	private final AtomicLongArray dataPdus = new AtomicLongArray(256);
+
+	private final AtomicLongArray fastPathUpdates = new AtomicLongArray(16);
+
+	private final AtomicLongArray primaryOrders = new AtomicLongArray(
+			PrimaryOrder.values().length);
+
+	private final AtomicLongArray secondaryOrders = new AtomicLongArray(
+			SecondaryOrder.values().length);
+
+	/** Time to decode and draw one update into the backstore */
+	public final Histogram decodeTime = new Histogram();
+
+	/** Time to copy one dirty region to the screen */
+	public final Histogram renderTime = new Histogram();
+
+	/** Time from user input to the resulting update reaching the screen */
+	public final InputLatency inputLatency = new InputLatency();
+
+	private final AtomicLongArray bitmapCacheHits = new AtomicLongArray(3);
+
+	private final AtomicLongArray bitmapCacheMisses = new AtomicLongArray(3);
+
+	private final AtomicLongArray bitmapCacheEvictions = new AtomicLongArray(3);
+
+	private final AtomicInteger bitmapCacheBytes = new AtomicInteger();
+
+	private final LongAdder glyphCacheEntries = new LongAdder();
+
+	private final LongAdder encryptRekeys = new LongAdder();
+
+	private final LongAdder decryptRekeys = new LongAdder();
+
+	private ObjectName name = null;
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] result = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = new LongAdder();
+		}
+		return result;
+	}
+
+	/**
+	 * Publish these counters on the platform MBean server. Failure is logged
+	 * and otherwise ignored.
+	 */
+	public synchronized void register() {
+		if (name != null) {
+			return;
+		}
+		try {
+			ObjectName n = new ObjectName("net.propero.rdp:type=Session,id="
+					+ sessionIds.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+			name = n;
+		} catch (JMException | SecurityException e) {
+			LOGGER.warn("Unable to register session MBean", e);
+		}
+	}
+
+	/**
+	 * Remove these counters from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException | SecurityException e) {
+			LOGGER.warn("Unable to unregister session MBean", e);
+		}
+		name = null;
+	}
+
+	/* Recording */
+
+	public void bytesIn(Layer layer, int bytes) {
+		bytesIn[layer.ordinal()].add(bytes);
+	}
+
+	public void bytesOut(Layer layer, int bytes) {
+		bytesOut[layer.ordinal()].add(bytes);
+	}
+
+	public void channelBytesIn(String channel, int bytes) {
+		channelBytesIn.computeIfAbsent(channel, k -> new LongAdder()).add(
+				bytes);
+	}
+
+	public void channelBytesOut(String channel, int bytes) {
+		channelBytesOut.computeIfAbsent(channel, k -> new LongAdder()).add(
+				bytes);
+	}
+
+	public void sharePdu(int type) {
+		sharePdus.incrementAndGet(type & 0xf);
+	}
+
+	public void dataPdu(int type) {
+		dataPdus.incrementAndGet(type & 0xff);
+	}
+
+	public void fastPathUpdate(int type) {
+		fastPathUpdates.incrementAndGet(type & 0xf);
+	}
+
+	public void primaryOrder(PrimaryOrder order) {
+		primaryOrders.incrementAndGet(order.ordinal());
+	}
+
+	public void secondaryOrder(SecondaryOrder order) {
+		secondaryOrders.incrementAndGet(order.ordinal());
+	}
+
+	public void bitmapCacheHit(int cacheId) {
+		if (cacheId < bitmapCacheHits.length()) {
+			bitmapCacheHits.incrementAndGet(cacheId);
+		}
+	}
+
+	public void bitmapCacheMiss(int cacheId) {
+		if (cacheId < bitmapCacheMisses.length()) {
+			bitmapCacheMisses.incrementAndGet(cacheId);
+		}
+	}
+
+	public void bitmapCacheEviction(int cacheId) {
+		if (cacheId < bitmapCacheEvictions.length()) {
+			bitmapCacheEvictions.incrementAndGet(cacheId);
+		}
+	}
+
+	public void bitmapCacheSize(int bytes) {
+		bitmapCacheBytes.set(bytes);
+	}
+
+	public void glyphCacheEntryAdded() {
+		glyphCacheEntries.increment();
+	}
+
+	public void encryptRekey() {
+		encryptRekeys.increment();
+	}
+
+	public void decryptRekey() {
+		decryptRekeys.increment();
+	}
+
+	/* MXBean */
+
+	private static Map<String, Long> toMap(LongAdder[] adders) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (Layer layer : Layer.values()) {
+			result.put(layer.name(), adders[layer.ordinal()].sum());
+		}
+		return result;
+	}
+
+	private static Map<String, Long> toMap(Map<String, LongAdder> adders) {
+		Map<String, Long> result = new TreeMap<>();
+		adders.forEach((k, v) -> result.put(k, v.sum()));
+		return result;
+	}
+
+	/**
+	 * Non-zero counts, keyed by index
+	 */
+	private static Map<String, Long> toMap(AtomicLongArray counts) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (int i = 0; i < counts.length(); i++) {
+			long c = counts.get(i);
+			if (c != 0) {
+				result.put(Integer.toString(i), c);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Non-zero counts, keyed by enum constant name
+	 */
+	private static Map<String, Long> toMap(AtomicLongArray counts,
+			Enum<?>[] names) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (int i = 0; i < counts.length(); i++) {
+			long c = counts.get(i);
+			if (c != 0) {
+				result.put(names[i].name(), c);
+			}
+		}
+		return result;
+	}
+
+	private static void clear(AtomicLongArray counts) {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	@Override
+	public Map<String, Long> getBytesIn() {
+		return toMap(bytesIn);
+	}
+
+	@Override
+	public Map<String, Long> getBytesOut() {
+		return toMap(bytesOut);
+	}
+
+	@Override
+	public Map<String, Long> getChannelBytesIn() {
+		return toMap(channelBytesIn);
+	}
+
+	@Override
+	public Map<String, Long> getChannelBytesOut() {
+		return toMap(channelBytesOut);
+	}
+
+	@Override
+	public Map<String, Long> getSharePduCounts() {
+		return toMap(sharePdus);
+	}
+
+	@Override
+	public Map<String, Long> getDataPduCounts() {
+		return toMap(dataPdus);
+	}
+
+	@Override
+	public Map<String, Long> getFastPathUpdateCounts() {
+		return toMap(fastPathUpdates);
+	}
+
+	@Override
+	public Map<String, Long> getPrimaryOrderCounts() {
+		return toMap(primaryOrders, PrimaryOrder.values());
+	}
+
+	@Override
+	public Map<String, Long> getSecondaryOrderCounts() {
+		return toMap(secondaryOrders, SecondaryOrder.values());
+	}
+
+	@Override
+	public Map<String, Long> getDecodeTime() {
+		return decodeTime.summary();
+	}
+
+	@Override
+	public Map<String, Long> getRenderTime() {
+		return renderTime.summary();
+	}
+
+	@Override
+	public long[] getDecodeTimeHistogram() {
+		return decodeTime.getBuckets();
+	}
+
+	@Override
+	public long[] getRenderTimeHistogram() {
+		return renderTime.getBuckets();
+	}
+
+	@Override
+	public Map<String, Long> getInputLatency() {
+		return inputLatency.total.summary();
+	}
+
+	@Override
+	public Map<String, Long> getInputLatencyServer() {
+		return inputLatency.server.summary();
+	}
+
+	@Override
+	public Map<String, Long> getInputLatencyLocal() {
+		return inputLatency.local.summary();
+	}
+
+	@Override
+	public Map<String, Long> getRecentInputLatency() {
+		return inputLatency.recent.snapshot().summary();
+	}
+
+	@Override
+	public long[] getInputLatencyHistogram() {
+		return inputLatency.total.getBuckets();
+	}
+
+	@Override
+	public long[] getRecentInputLatencyHistogram() {
+		return inputLatency.recent.snapshot().getBuckets();
+	}
+
+	@Override
+	public Map<String, Long> getBitmapCacheHits() {
+		return toMap(bitmapCacheHits);
+	}
+
+	@Override
+	public Map<String, Long> getBitmapCacheMisses() {
+		return toMap(bitmapCacheMisses);
+	}
+
+	@Override
+	public Map<String, Long> getBitmapCacheEvictions() {
+		return toMap(bitmapCacheEvictions);
+	}
+
+	@Override
+	public long getBitmapCacheBytes() {
+		return bitmapCacheBytes.get();
+	}
+
+	@Override
+	public long getGlyphCacheEntries() {
+		return glyphCacheEntries.sum();
+	}
+
+	@Override
+	public long getEncryptRekeys() {
+		return encryptRekeys.sum();
+	}
+
+	@Override
+	public long getDecryptRekeys() {
+		return decryptRekeys.sum();
+	}
+
+	@Override
+	public void reset() {
+		for (LongAdder adder : bytesIn) {
+			adder.reset();
+		}
+		for (LongAdder adder : bytesOut) {
+			adder.reset();
+		}
+		channelBytesIn.clear();
+		channelBytesOut.clear();
+		clear(sharePdus);
+		clear(dataPdus);
+		clear(fastPathUpdates);
+		clear(primaryOrders);
+		clear(secondaryOrders);
+		decodeTime.reset();
+		renderTime.reset();
+		inputLatency.reset();
+		clear(bitmapCacheHits);
+		clear(bitmapCacheMisses);
+		clear(bitmapCacheEvictions);
+		encryptRekeys.reset();
+		decryptRekeys.reset();
+	}
+}
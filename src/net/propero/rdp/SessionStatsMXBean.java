@@ -0,0 +1,183 @@
+/* SessionStatsMXBean.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.Map;
+
+/**
+ * JMX view of the counters for one session.
+ *
+ * @see SessionStats
+ */
+public interface SessionStatsMXBean {
+
+	/**
+	 * @return Bytes received at each layer (ISO, MCS, SECURE), including
+	 *         that layer's own header
+	 */
+	public Map<String, Long> getBytesIn();
+
+	/**
+	 * @return Bytes sent at each layer (ISO, MCS, SECURE), including that
+	 *         layer's own header
+	 */
+	public Map<String, Long> getBytesOut();
+
+	/**
+	 * @return Bytes of channel data received, by virtual channel name
+	 */
+	public Map<String, Long> getChannelBytesIn();
+
+	/**
+	 * @return Bytes of channel data sent, by virtual channel name
+	 */
+	public Map<String, Long> getChannelBytesOut();
+
+	/**
+	 * @return Received share control PDUs, by pduType
+	 */
+	public Map<String, Long> getSharePduCounts();
+
+	/**
+	 * @return Received share data PDUs, by pduType2
+	 */
+	public Map<String, Long> getDataPduCounts();
+
+	/**
+	 * @return Received fast-path updates, by updateCode
+	 */
+	public Map<String, Long> getFastPathUpdateCounts();
+
+	/**
+	 * @return Decoded primary drawing orders, by order
+	 */
+	public Map<String, Long> getPrimaryOrderCounts();
+
+	/**
+	 * @return Decoded secondary drawing orders, by order
+	 */
+	public Map<String, Long> getSecondaryOrderCounts();
+
+	/**
+	 * @return Count, mean and percentiles (in microseconds) of the time taken
+	 *         to decode and draw each update into the backstore
+	 */
+	public Map<String, Long> getDecodeTime();
+
+	/**
+	 * @return Count, mean and percentiles (in microseconds) of the time taken
+	 *         to copy dirty regions to the screen
+	 */
+	public Map<String, Long> getRenderTime();
+
+	/**
+	 * @return Raw decode time histogram; bucket <i>n</i> counts durations
+	 *         below 2<sup><i>n</i></sup> nanoseconds
+	 */
+	public long[] getDecodeTimeHistogram();
+
+	/**
+	 * @return Raw render time histogram; bucket <i>n</i> counts durations
+	 *         below 2<sup><i>n</i></sup> nanoseconds
+	 */
+	public long[] getRenderTimeHistogram();
+
+	/**
+	 * @return Count, mean and percentiles (in microseconds) of the time from
+	 *         sending a key press or mouse click until the next update from
+	 *         the server was painted
+	 */
+	public Map<String, Long> getInputLatency();
+
+	/**
+	 * @return Count, mean and percentiles (in microseconds) of the part of
+	 *         the input latency spent waiting for the server's response,
+	 *         including network time
+	 */
+	public Map<String, Long> getInputLatencyServer();
+
+	/**
+	 * @return Count, mean and percentiles (in microseconds) of the part of
+	 *         the input latency spent decoding and painting the response
+	 */
+	public Map<String, Long> getInputLatencyLocal();
+
+	/**
+	 * @return As {@link #getInputLatency()}, over the last minute only
+	 */
+	public Map<String, Long> getRecentInputLatency();
+
+	/**
+	 * @return Raw input latency histogram; bucket <i>n</i> counts durations
+	 *         below 2<sup><i>n</i></sup> nanoseconds
+	 */
+	public long[] getInputLatencyHistogram();
+
+	/**
+	 * @return As {@link #getInputLatencyHistogram()}, over the last minute
+	 *         only
+	 */
+	public long[] getRecentInputLatencyHistogram();
+
+	/**
+	 * @return Bitmap cache hits, by cache id
+	 */
+	public Map<String, Long> getBitmapCacheHits();
+
+	/**
+	 * @return Bitmap cache misses, by cache id
+	 */
+	public Map<String, Long> getBitmapCacheMisses();
+
+	/**
+	 * @return Bitmap cache entries replaced while still occupied, by cache id
+	 */
+	public Map<String, Long> getBitmapCacheEvictions();
+
+	/**
+	 * @return Size of the cached bitmaps, in bytes
+	 */
+	public long getBitmapCacheBytes();
+
+	/**
+	 * @return Number of occupied glyph cache slots
+	 */
+	public long getGlyphCacheEntries();
+
+	/**
+	 * @return Number of times the outgoing RC4 key was updated
+	 */
+	public long getEncryptRekeys();
+
+	/**
+	 * @return Number of times the incoming RC4 key was updated
+	 */
+	public long getDecryptRekeys();
+
+	/**
+	 * Reset all counters except bitmap and glyph cache occupancy, which track
+	 * state rather than events.
+	 */
+	public void reset();
+}
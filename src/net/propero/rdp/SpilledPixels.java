@@ -0,0 +1,279 @@
+/* SpilledPixels.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An array of pixels, or a stream of several, deflated into memory outside
+ * the Java heap, so that an idle session can give back the heap used by its
+ * images until they are next needed.
+ */
+final class SpilledPixels {
+
+	/** Bytes converted to or from shorts and ints, or inflated, at a time */
+	private static final int CHUNK = 64 * 1024;
+
+	/** Deflated pixels, outside the heap */
+	private final ByteBuffer data;
+
+	/** Number of pixels, in all arrays of a stream */
+	private final int length;
+
+	private SpilledPixels(ByteBuffer data, int length) {
+		this.data = data;
+		this.length = length;
+	}
+
+	/**
+	 * @return Number of pixels in the array, or in all arrays of a stream
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * @return Size of the deflated pixels, in bytes
+	 */
+	int size() {
+		return data.capacity();
+	}
+
+	static SpilledPixels deflate(byte[] pixels) {
+		Output out = new Output();
+		out.write(pixels);
+		return out.finish(pixels.length);
+	}
+
+	static SpilledPixels deflate(short[] pixels) {
+		Output out = new Output();
+		out.write(pixels);
+		return out.finish(pixels.length);
+	}
+
+	static SpilledPixels deflate(int[] pixels) {
+		Output out = new Output();
+		out.write(pixels);
+		return out.finish(pixels.length);
+	}
+
+	/**
+	 * @param pixels
+	 *            Array of {@link #length()} pixels to inflate into
+	 */
+	void inflate(byte[] pixels) {
+		Input in = open();
+		in.read(pixels);
+		in.end();
+	}
+
+	/**
+	 * @param pixels
+	 *            Array of {@link #length()} pixels to inflate into
+	 */
+	void inflate(short[] pixels) {
+		Input in = open();
+		in.read(pixels);
+		in.end();
+	}
+
+	/**
+	 * @param pixels
+	 *            Array of {@link #length()} pixels to inflate into
+	 */
+	void inflate(int[] pixels) {
+		Input in = open();
+		in.read(pixels);
+		in.end();
+	}
+
+	/**
+	 * @return A stream to read the arrays written to this one back, in the
+	 *         order they were written
+	 */
+	Input open() {
+		return new Input(data);
+	}
+
+	/**
+	 * Deflates any number of pixel arrays into one stream
+	 */
+	static final class Output {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+		private byte[] out = new byte[4096];
+
+		private int size = 0;
+
+		/** Little-endian buffer for converting shorts and ints to bytes */
+		private ByteBuffer chunk = null;
+
+		void write(byte[] pixels) {
+			write(pixels, 0, pixels.length);
+		}
+
+		void write(short[] pixels) {
+			ByteBuffer chunk = chunk();
+			for (int i = 0; i < pixels.length; i += CHUNK / 2) {
+				int n = Math.min(CHUNK / 2, pixels.length - i);
+				chunk.clear();
+				chunk.asShortBuffer().put(pixels, i, n);
+				write(chunk.array(), 0, n * 2);
+			}
+		}
+
+		void write(int[] pixels) {
+			ByteBuffer chunk = chunk();
+			for (int i = 0; i < pixels.length; i += CHUNK / 4) {
+				int n = Math.min(CHUNK / 4, pixels.length - i);
+				chunk.clear();
+				chunk.asIntBuffer().put(pixels, i, n);
+				write(chunk.array(), 0, n * 4);
+			}
+		}
+
+		/**
+		 * Finish the stream. The output cannot be written to afterwards.
+		 *
+		 * @param length
+		 *            Number of pixels written, as reported by
+		 *            {@link SpilledPixels#length()}
+		 * @return The deflated pixels
+		 */
+		SpilledPixels finish(int length) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				drain();
+			}
+			deflater.end();
+			ByteBuffer data = ByteBuffer.allocateDirect(size);
+			data.put(out, 0, size);
+			data.flip();
+			return new SpilledPixels(data, length);
+		}
+
+		private void write(byte[] input, int offset, int length) {
+			deflater.setInput(input, offset, length);
+			while (!deflater.needsInput()) {
+				drain();
+			}
+		}
+
+		private void drain() {
+			if (size == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			size += deflater.deflate(out, size, out.length - size);
+		}
+
+		private ByteBuffer chunk() {
+			if (chunk == null) {
+				chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return chunk;
+		}
+	}
+
+	/**
+	 * Inflates the pixel arrays of a stream, in the order they were written
+	 */
+	static final class Input {
+		private final Inflater inflater = new Inflater();
+
+		/** Deflated pixels not yet given to the inflater */
+		private final ByteBuffer data;
+
+		/** Heap copy of the deflated pixels being inflated */
+		private final byte[] in = new byte[CHUNK];
+
+		/** Little-endian buffer for converting bytes to shorts and ints */
+		private ByteBuffer chunk = null;
+
+		private Input(ByteBuffer data) {
+			this.data = data.duplicate();
+		}
+
+		void read(byte[] pixels) {
+			read(pixels, 0, pixels.length);
+		}
+
+		void read(short[] pixels) {
+			ByteBuffer chunk = chunk();
+			for (int i = 0; i < pixels.length; i += CHUNK / 2) {
+				int n = Math.min(CHUNK / 2, pixels.length - i);
+				read(chunk.array(), 0, n * 2);
+				chunk.clear();
+				chunk.asShortBuffer().get(pixels, i, n);
+			}
+		}
+
+		void read(int[] pixels) {
+			ByteBuffer chunk = chunk();
+			for (int i = 0; i < pixels.length; i += CHUNK / 4) {
+				int n = Math.min(CHUNK / 4, pixels.length - i);
+				read(chunk.array(), 0, n * 4);
+				chunk.clear();
+				chunk.asIntBuffer().get(pixels, i, n);
+			}
+		}
+
+		void end() {
+			inflater.end();
+		}
+
+		private ByteBuffer chunk() {
+			if (chunk == null) {
+				chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return chunk;
+		}
+
+		private void read(byte[] output, int offset, int length) {
+			try {
+				while (length > 0) {
+					if (inflater.needsInput() && data.hasRemaining()) {
+						int n = Math.min(in.length, data.remaining());
+						data.get(in, 0, n);
+						inflater.setInput(in, 0, n);
+					}
+					int n = inflater.inflate(output, offset, length);
+					if (n == 0 && (inflater.finished() || inflater.needsInput()
+							&& !data.hasRemaining())) {
+						throw new IllegalStateException(
+								"Spilled pixels are truncated");
+					}
+					offset += n;
+					length -= n;
+				}
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Spilled pixels are corrupt", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/* TextMask.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp;
+
+import java.util.Arrays;
+
+/**
+ * A string of glyphs rendered into runs of foreground and background pixels,
+ * so that drawing the same string again needs no work per glyph.
+ * <p>
+ * Runs are stored as in {@link GlyphAtlas}: for each row, the number of runs
+ * followed by the start and end (exclusive) x offset of each run.
+ */
+class TextMask {
+
+	/** Largest area, in pixels, of a string worth keeping */
+	static final int MAX_AREA = 64 * 1024;
+
+	/**
+	 * Identifies a string by its glyphs, their spacing and the mix mode.
+	 * Glyphs are compared by identity, so replacing a glyph in the font
+	 * cache makes strings using it miss.
+	 */
+	static class Key {
+		private final int mixmode;
+
+		private final Glyph[] glyphs;
+
+		/** Position of each glyph, relative to the first */
+		private final int[] offsets;
+
+		private final int hash;
+
+		Key(int mixmode, Glyph[] glyphs, int[] xs, int[] ys, int count) {
+			this.mixmode = mixmode;
+			this.glyphs = Arrays.copyOf(glyphs, count);
+			this.offsets = new int[count * 2];
+			int h = mixmode;
+			for (int i = 0; i < count; i++) {
+				offsets[i * 2] = xs[i] - xs[0];
+				offsets[i * 2 + 1] = ys[i] - ys[0];
+				h = h * 31 + System.identityHashCode(glyphs[i]);
+				h = h * 31 + offsets[i * 2];
+				h = h * 31 + offsets[i * 2 + 1];
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			if (hash != other.hash || mixmode != other.mixmode
+					|| glyphs.length != other.glyphs.length
+					|| !Arrays.equals(offsets, other.offsets)) {
+				return false;
+			}
+			for (int i = 0; i < glyphs.length; i++) {
+				if (glyphs[i] != other.glyphs[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** Position of the mask relative to the first glyph */
+	final int left, top;
+
+	final int width, height;
+
+	/** Runs of foreground pixels */
+	final int[] foreground;
+
+	/** Runs of background pixels, in opaque mode */
+	final int[] background;
+
+	private TextMask(int left, int top, int width, int height,
+			int[] foreground, int[] background) {
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+		this.foreground = foreground;
+		this.background = background;
+	}
+
+	/**
+	 * @return Approximate size of the mask in ints, for cache accounting
+	 */
+	int size() {
+		return foreground.length + background.length;
+	}
+
+	/**
+	 * Render a string of glyphs. As when drawing them one at a time, in
+	 * opaque mode each glyph's cell is filled with the background before its
+	 * foreground is drawn, so a glyph may cover part of the one before.
+	 *
+	 * @param mixmode
+	 *            0 for transparent background, otherwise opaque
+	 * @param glyphs
+	 *            Glyphs to render
+	 * @param xs
+	 *            x coordinate of the left of each glyph
+	 * @param ys
+	 *            y coordinate of the top of each glyph
+	 * @param count
+	 *            Number of glyphs
+	 * @return Rendered string, or null if it is larger than
+	 *         {@link #MAX_AREA}
+	 */
+	static TextMask render(int mixmode, Glyph[] glyphs, int[] xs, int[] ys,
+			int count) {
+		int minx = Integer.MAX_VALUE, miny = Integer.MAX_VALUE;
+		int maxx = Integer.MIN_VALUE, maxy = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			minx = Math.min(minx, xs[i]);
+			miny = Math.min(miny, ys[i]);
+			maxx = Math.max(maxx, xs[i] + glyphs[i].getWidth());
+			maxy = Math.max(maxy, ys[i] + glyphs[i].getHeight());
+		}
+		int width = maxx - minx;
+		int height = maxy - miny;
+		if (width <= 0 || height <= 0 || (long) width * height > MAX_AREA) {
+			return null;
+		}
+
+		// 0 untouched, 1 background, 2 foreground
+		byte[] pixels = new byte[width * height];
+		for (int i = 0; i < count; i++) {
+			Glyph glyph = glyphs[i];
+			int x = xs[i] - minx;
+			int y = ys[i] - miny;
+			if (mixmode != 0) {
+				for (int row = 0; row < glyph.getHeight(); row++) {
+					int p = (y + row) * width + x;
+					Arrays.fill(pixels, p, p + glyph.getWidth(), (byte) 1);
+				}
+			}
+			int[] spans = glyph.runs;
+			int p = glyph.spans;
+			for (int row = 0; row < glyph.getHeight(); row++) {
+				int line = (y + row) * width + x;
+				for (int n = spans[p++]; n > 0; n--) {
+					int start = spans[p++];
+					int end = spans[p++];
+					Arrays.fill(pixels, line + start, line + end, (byte) 2);
+				}
+			}
+		}
+
+		return new TextMask(minx - xs[0], miny - ys[0], width, height, runs(
+				pixels, width, height, 2), runs(pixels, width, height, 1));
+	}
+
+	private static int[] runs(byte[] pixels, int width, int height, int value) {
+		int[] out = new int[height + 16];
+		int p = 0;
+		for (int y = 0; y < height; y++) {
+			if (p + 1 + width + 1 > out.length) {
+				out = Arrays.copyOf(out, Math.max(out.length * 2, p + width + 2
+						+ height - y));
+			}
+			int count = p++;
+			int n = 0;
+			int line = y * width;
+			int x = 0;
+			while (x < width) {
+				if (pixels[line + x] != value) {
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < width && pixels[line + x] == value) {
+					x++;
+				}
+				out[p++] = start;
+				out[p++] = x;
+				n++;
+			}
+			out[count] = n;
+		}
+		return Arrays.copyOf(out, p);
+	}
+}
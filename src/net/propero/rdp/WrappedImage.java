@@ -26,53 +26,156 @@ package net.propero.rdp;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 /**
  * Adds functionality to the BufferedImage class, allowing manipulation of
  * colour indices, making the RGB values invisible (in the case of Indexed
  * Colour only).
+ * <p>
+ * With an indexed colour model the palette index of each pixel is kept in a
+ * byte array, which all reads and writes use. Regions marked dirty with
+ * {@link #markDirty} are expanded to RGB through the palette when the image
+ * is next read for display, and a new palette re-expands the whole image.
+ * <p>
+ * An image that is not in use can be {@link #spill() spilled} out of the
+ * heap; it is restored when next used.
  */
 public class WrappedImage {
-	private static final Logger LOGGER = LogManager.getLogger();
-
 	IndexColorModel cm = null;
 
-	BufferedImage bi = null;
+	/** The image, or null while it is spilled */
+	volatile BufferedImage bi = null;
+
+	private final int width, height, type;
+
+	/** Pixels of a spilled image: indices if indexed, otherwise RGB */
+	private SpilledPixels spilled = null;
+
+	private Runnable restoreListener = null;
+
+	/** Palette index of each pixel, if the colour model is indexed */
+	private byte[] indices = null;
+
+	/** RGB value of each palette entry */
+	private final int[] palette = new int[256];
+
+	/** Region of indices not yet expanded to RGB; empty if x2 <= x1 */
+	private int dirtyX1, dirtyY1, dirtyX2, dirtyY2;
+
+	/** One row of the colour last used by {@link #fill} */
+	private int[] fillRow = new int[0];
+
+	private int fillColor;
+
+	/** Length of fillRow holding fillColor */
+	private int fillLength = 0;
 
 	public WrappedImage(int arg0, int arg1, int arg2) {
 		bi = new BufferedImage(arg0, arg1, arg2);
+		width = arg0;
+		height = arg1;
+		type = arg2;
 	}
 
 	public WrappedImage(int arg0, int arg1, int arg2, IndexColorModel cm) {
 		bi = new BufferedImage(arg0, arg1, BufferedImage.TYPE_INT_RGB); // super(arg0,
 		// arg1,
 		// BufferedImage.TYPE_INT_RGB);
-		this.cm = cm;
+		width = arg0;
+		height = arg1;
+		type = BufferedImage.TYPE_INT_RGB;
+		setIndexColorModel(cm);
 	}
 
 	public int getWidth() {
-		return bi.getWidth();
+		return width;
 	}
 
 	public int getHeight() {
-		return bi.getHeight();
+		return height;
 	}
 
-	public BufferedImage getBufferedImage() {
+	public synchronized BufferedImage getBufferedImage() {
+		restore();
+		expand();
 		return bi;
 	}
 
-	public Graphics getGraphics() {
+	public synchronized Graphics getGraphics() {
+		restore();
+		expand();
 		return bi.getGraphics();
 	}
 
-	public BufferedImage getSubimage(int x, int y, int width, int height) {
+	public synchronized BufferedImage getSubimage(int x, int y, int width,
+			int height) {
+		restore();
+		expand();
 		return bi.getSubimage(x, y, width, height);
 	}
 
+	/**
+	 * @param listener
+	 *            Run whenever the image is restored after being spilled, or
+	 *            null
+	 */
+	void setRestoreListener(Runnable listener) {
+		this.restoreListener = listener;
+	}
+
+	/**
+	 * Deflate the image out of the heap until it is next used. Only images
+	 * of type TYPE_INT_RGB are spilled. The methods returning the image may
+	 * run alongside this, but drawing must not.
+	 */
+	public synchronized void spill() {
+		if (bi == null || type != BufferedImage.TYPE_INT_RGB) {
+			return;
+		}
+		if (indices != null) {
+			spilled = SpilledPixels.deflate(indices);
+			indices = null;
+		} else {
+			spilled = SpilledPixels.deflate((int[]) bi.getRaster()
+					.getDataElements(0, 0, width, height, null));
+		}
+		bi = null;
+		dirtyX2 = dirtyX1;
+		fillRow = new int[0];
+		fillLength = 0;
+	}
+
+	/**
+	 * Reinflate the image if it is spilled
+	 */
+	private void restore() {
+		if (bi != null) {
+			return;
+		}
+		synchronized (this) {
+			if (bi != null) {
+				return;
+			}
+			BufferedImage image = new BufferedImage(width, height, type);
+			if (cm != null) {
+				indices = new byte[spilled.length()];
+				spilled.inflate(indices);
+			} else {
+				int[] pixels = new int[spilled.length()];
+				spilled.inflate(pixels);
+				image.getRaster().setDataElements(0, 0, width, height, pixels);
+			}
+			spilled = null;
+			bi = image;
+			markDirty(0, 0, width, height);
+			if (restoreListener != null) {
+				restoreListener.run();
+			}
+		}
+	}
+
 	/**
 	 * Force a colour to its true RGB representation (extracting from colour
 	 * model if indexed colour)
@@ -81,35 +184,113 @@ public class WrappedImage {
 	 * @return
 	 */
 	public int checkColor(int color) {
-		if (cm != null) {
-			return cm.getRGB(color);
+		restore();
+		if (indices != null) {
+			return palette[color & 0xFF];
 		}
 		return color;
 	}
 
 	/**
-	 * Set the colour model for this Image
+	 * Set the colour model for this Image. The whole image is redrawn in the
+	 * new colours when next displayed.
 	 *
 	 * @param cm
-	 *            Colour model for use with this image
+	 *            Colour model for use with this image, or null for direct
+	 *            colour
 	 */
 	public void setIndexColorModel(IndexColorModel cm) {
+		restore();
 		this.cm = cm;
+		if (cm == null) {
+			expand();
+			indices = null;
+			return;
+		}
+		synchronized (this) {
+			Arrays.fill(palette, 0);
+			cm.getRGBs(palette);
+			if (indices == null) {
+				indices = new byte[width * height];
+			}
+		}
+		markDirty(0, 0, width, height);
+	}
+
+	/**
+	 * Note that an area has been drawn and must be expanded to RGB before it
+	 * is displayed. Does nothing unless the colour model is indexed.
+	 *
+	 * @param x
+	 *            x-coordinate for left of area
+	 * @param y
+	 *            y-coordinate for top of area
+	 * @param cx
+	 *            width of area
+	 * @param cy
+	 *            height of area
+	 */
+	public synchronized void markDirty(int x, int y, int cx, int cy) {
+		if (indices == null || cx <= 0 || cy <= 0) {
+			return;
+		}
+		int x2 = Math.min(x + cx, width);
+		int y2 = Math.min(y + cy, height);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if (x2 <= x || y2 <= y) {
+			return;
+		}
+		if (dirtyX2 <= dirtyX1) {
+			dirtyX1 = x;
+			dirtyY1 = y;
+			dirtyX2 = x2;
+			dirtyY2 = y2;
+		} else {
+			dirtyX1 = Math.min(dirtyX1, x);
+			dirtyY1 = Math.min(dirtyY1, y);
+			dirtyX2 = Math.max(dirtyX2, x2);
+			dirtyY2 = Math.max(dirtyY2, y2);
+		}
+	}
+
+	/**
+	 * Expand the dirty region of the indices to RGB
+	 */
+	private synchronized void expand() {
+		if (indices == null || dirtyX2 <= dirtyX1) {
+			return;
+		}
+		int cx = dirtyX2 - dirtyX1;
+		int[] row = new int[cx];
+		WritableRaster raster = bi.getRaster();
+		for (int y = dirtyY1; y < dirtyY2; y++) {
+			int p = y * width + dirtyX1;
+			for (int i = 0; i < cx; i++) {
+				row[i] = palette[indices[p + i] & 0xFF];
+			}
+			raster.setDataElements(dirtyX1, y, cx, 1, row);
+		}
+		dirtyX2 = dirtyX1;
 	}
 
 	public void setRGB(int x, int y, int color) {
 		// if(x >= bi.getWidth() || x < 0 || y >= bi.getHeight() || y < 0)
 		// return;
 
-		if (cm != null) {
-			color = cm.getRGB(color);
+		restore();
+		if (indices != null) {
+			indices[y * width + x] = (byte) color;
+			return;
 		}
 		bi.setRGB(x, y, color);
 	}
 
 	/**
 	 * Apply a given array of colour values to an area of pixels in the image,
-	 * do not convert for colour model
+	 * do not convert for colour model. With an indexed colour model the
+	 * values are palette indices, as returned by
+	 * {@link #getRGB(int, int, int, int, int[], int, int)}.
 	 *
 	 * @param x
 	 *            x-coordinate for left of area to set
@@ -128,40 +309,167 @@ public class WrappedImage {
 	 */
 	public void setRGBNoConversion(int x, int y, int cx, int cy, int[] data,
 			int offset, int w) {
-		bi.setRGB(x, y, cx, cy, data, offset, w);
+		setRGB(x, y, cx, cy, data, offset, w);
 	}
 
 	public void setRGB(int x, int y, int cx, int cy, int[] data, int offset,
 			int w) {
-		if (cm != null && data != null && data.length > 0) {
-			for (int i = 0; i < data.length; i++) {
-				data[i] = cm.getRGB(data[i]);
+		restore();
+		if (indices != null) {
+			setIndices(x, y, cx, cy, data, offset, w);
+			return;
+		}
+		if (bi.getType() != BufferedImage.TYPE_INT_RGB) {
+			bi.setRGB(x, y, cx, cy, data, offset, w);
+			return;
+		}
+		// Pixels are already in the raster's format; store them as they are
+		WritableRaster raster = bi.getRaster();
+		if (offset == 0 && w == cx && data.length == cx * cy) {
+			raster.setDataElements(x, y, cx, cy, data);
+			return;
+		}
+		int[] row = new int[cx];
+		for (int i = 0; i < cy; i++) {
+			System.arraycopy(data, offset + i * w, row, 0, cx);
+			raster.setDataElements(x, y + i, cx, 1, row);
+		}
+	}
+
+	/**
+	 * Fill an area of the image with one colour, a row at a time
+	 *
+	 * @param x
+	 *            x-coordinate for left of area to fill
+	 * @param y
+	 *            y-coordinate for top of area to fill
+	 * @param cx
+	 *            width of area to fill
+	 * @param cy
+	 *            height of area to fill
+	 * @param color
+	 *            colour to fill with, a palette index if the colour model is
+	 *            indexed
+	 */
+	public void fill(int x, int y, int cx, int cy, int color) {
+		if (cx <= 0 || cy <= 0) {
+			return;
+		}
+		restore();
+		if (indices != null) {
+			for (int row = 0; row < cy; row++) {
+				int p = (y + row) * width + x;
+				Arrays.fill(indices, p, p + cx, (byte) color);
+			}
+			return;
+		}
+		if (fillColor != color) {
+			fillColor = color;
+			fillLength = 0;
+		}
+		if (fillLength < cx) {
+			if (fillRow.length < cx) {
+				fillRow = new int[Math.max(cx, width)];
+			}
+			Arrays.fill(fillRow, fillLength, cx, color);
+			fillLength = cx;
+		}
+		if (bi.getType() != BufferedImage.TYPE_INT_RGB) {
+			for (int row = 0; row < cy; row++) {
+				bi.setRGB(x, y + row, cx, 1, fillRow, 0, cx);
+			}
+			return;
+		}
+		WritableRaster raster = bi.getRaster();
+		for (int row = 0; row < cy; row++) {
+			raster.setDataElements(x, y + row, cx, 1, fillRow);
+		}
+	}
+
+	private void setIndices(int x, int y, int cx, int cy, int[] data,
+			int offset, int w) {
+		for (int row = 0; row < cy; row++) {
+			int p = (y + row) * width + x;
+			int q = offset + row * w;
+			for (int i = 0; i < cx; i++) {
+				indices[p + i] = (byte) data[q + i];
 			}
 		}
-		bi.setRGB(x, y, cx, cy, data, offset, w);
 	}
 
 	public int[] getRGB(int x, int y, int cx, int cy, int[] data, int offset,
 			int width) {
-		return bi.getRGB(x, y, cx, cy, data, offset, width);
+		restore();
+		if (indices == null) {
+			return bi.getRGB(x, y, cx, cy, data, offset, width);
+		}
+		if (data == null) {
+			data = new int[offset + cy * width];
+		}
+		int w = this.width;
+		for (int row = 0; row < cy; row++) {
+			int p = (y + row) * w + x;
+			int q = offset + row * width;
+			for (int i = 0; i < cx; i++) {
+				data[q + i] = indices[p + i] & 0xFF;
+			}
+		}
+		return data;
 	}
 
 	public int getRGB(int x, int y) {
 		// if(x >= this.getWidth() || x < 0 || y >= this.getHeight() || y < 0)
 		// return 0;
 
-		if (cm == null) {
-			return bi.getRGB(x, y);
+		restore();
+		if (indices != null) {
+			return indices[y * width + x] & 0xFF;
+		}
+		return bi.getRGB(x, y);
+	}
+
+	/**
+	 * Copy an area of the image to another position in it
+	 *
+	 * @param x
+	 *            x-coordinate for left of area to copy
+	 * @param y
+	 *            y-coordinate for top of area to copy
+	 * @param cx
+	 *            width of area
+	 * @param cy
+	 *            height of area
+	 * @param dx
+	 *            horizontal distance to copy the area by
+	 * @param dy
+	 *            vertical distance to copy the area by
+	 */
+	public void copyArea(int x, int y, int cx, int cy, int dx, int dy) {
+		restore();
+		if (indices == null) {
+			Graphics g = bi.getGraphics();
+			g.copyArea(x, y, cx, cy, dx, dy);
+			g.dispose();
+			return;
+		}
+		// clip so that both the area and its copy are within the image
+		int x1 = Math.max(x, Math.max(0, -dx));
+		int y1 = Math.max(y, Math.max(0, -dy));
+		int x2 = Math.min(x + cx, Math.min(width, width - dx));
+		int y2 = Math.min(y + cy, Math.min(height, height - dy));
+		if (x2 <= x1 || y2 <= y1) {
+			return;
+		}
+		if (dy > 0) {
+			for (int row = y2 - 1; row >= y1; row--) {
+				System.arraycopy(indices, row * width + x1, indices,
+						(row + dy) * width + x1 + dx, x2 - x1);
+			}
 		} else {
-			int pix = bi.getRGB(x, y) & 0xFFFFFF;
-			int[] vals = { (pix >> 16) & 0xFF, (pix >> 8) & 0xFF, (pix) & 0xFF };
-			int out = cm.getDataElement(vals, 0);
-			if (cm.getRGB(out) != bi.getRGB(x, y)) {
-				LOGGER.info("Did not get correct colour value for color ("
-						+ Integer.toHexString(pix) + "), got ("
-						+ cm.getRGB(out) + ") instead");
+			for (int row = y1; row < y2; row++) {
+				System.arraycopy(indices, row * width + x1, indices,
+						(row + dy) * width + x1 + dx, x2 - x1);
 			}
-			return out;
 		}
 	}
 
@@ -61,6 +61,47 @@ public interface RdesktopCallback {
 	 */
 	@Nonnull
 	public abstract Object createCursor(int hotspotX, int hotspotY, int width, int height, byte[] andmask, byte[] xormask);
+
+	/**
+	 * Creates a new custom cursor from pixels with alpha, as sent for 32 bpp
+	 * pointers. The default implementation passes pixels that are at least
+	 * half opaque to {@link #createCursor(int, int, int, int, byte[], byte[])}
+	 * and makes the others transparent.
+	 *
+	 * @param hotspotX
+	 *            The x coordinate of the "hot spot" of the cursor
+	 * @param hotspotY
+	 *            The y coordinate of the "hot spot" of the cursor
+	 * @param width
+	 *            The width of the cursor
+	 * @param height
+	 *            The height of the cursor
+	 * @param argb
+	 *            Top-down ARGB pixels, width to a row
+	 * @return Created Cursor
+	 */
+	@Nonnull
+	public default Object createCursor(int hotspotX, int hotspotY, int width, int height, int[] argb) {
+		int stride = ((width + 15) / 16) * 2;
+		byte[] andmask = new byte[stride * height];
+		byte[] xormask = new byte[width * height * 3];
+		for (int y = 0; y < height; y++) {
+			// both masks are bottom-up
+			int row = height - y - 1;
+			for (int x = 0; x < width; x++) {
+				int pixel = argb[y * width + x];
+				if ((pixel >>> 24) < 0x80) {
+					andmask[row * stride + x / 8] |= (byte) (0x80 >> (x % 8));
+					continue;
+				}
+				int i = (row * width + x) * 3;
+				xormask[i] = (byte) pixel;
+				xormask[i + 1] = (byte) (pixel >> 8);
+				xormask[i + 2] = (byte) (pixel >> 16);
+			}
+		}
+		return createCursor(hotspotX, hotspotY, width, height, andmask, xormask);
+	}
 	
 	/**
 	 * Sets the displayed cursor. This method will only be called with objects
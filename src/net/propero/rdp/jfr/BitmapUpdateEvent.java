@@ -0,0 +1,51 @@
+/* BitmapUpdateEvent.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Decoding and drawing one bitmap update.
+ */
+@Name("net.propero.rdp.BitmapUpdate")
+@Label("Bitmap Update")
+@Category({ "ProperJavaRDP", "Decode" })
+public class BitmapUpdateEvent extends jdk.jfr.Event {
+
+	@Label("Rectangles")
+	public int rectangles;
+
+	@Label("Compressed Rectangles")
+	public int compressed;
+
+	@Label("Pixels")
+	public long pixels;
+
+	@Label("Size")
+	@DataAmount
+	public int bytes;
+}
@@ -0,0 +1,47 @@
+/* PduReceiveEvent.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Reading one TPKT or fast-path PDU from the socket, after its header.
+ */
+@Name("net.propero.rdp.PduReceive")
+@Label("PDU Receive")
+@Category({ "ProperJavaRDP", "Network" })
+@Description("Time spent reading the body of one PDU once its header has arrived")
+public class PduReceiveEvent extends jdk.jfr.Event {
+
+	@Label("Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Fast-path")
+	public boolean fastPath;
+}
@@ -0,0 +1,89 @@
+/* SurfaceDrawEvent.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One drawing operation on the backstore.
+ */
+@Name("net.propero.rdp.SurfaceDraw")
+@Label("Surface Draw")
+@Category({ "ProperJavaRDP", "Render" })
+public class SurfaceDrawEvent extends jdk.jfr.Event {
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("X")
+	public int x;
+
+	@Label("Y")
+	public int y;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	/**
+	 * Start timing an operation.
+	 *
+	 * @param operation
+	 *            Name of the operation
+	 * @return The started event
+	 */
+	public static SurfaceDrawEvent start(String operation) {
+		SurfaceDrawEvent event = new SurfaceDrawEvent();
+		event.operation = operation;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Finish timing and commit, if enabled.
+	 *
+	 * @param x
+	 *            Left of the affected area
+	 * @param y
+	 *            Top of the affected area
+	 * @param width
+	 *            Width of the affected area
+	 * @param height
+	 *            Height of the affected area
+	 */
+	public void finish(int x, int y, int width, int height) {
+		end();
+		if (shouldCommit()) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,5 @@
+/**
+ * JDK Flight Recorder events for the receive, decrypt, decode and draw
+ * paths. They cost next to nothing unless a recording enables them.
+ */
+package net.propero.rdp.jfr;
@@ -24,18 +24,23 @@
 package net.propero.rdp.keymapping;
 
 import java.awt.event.KeyEvent;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
@@ -49,7 +54,13 @@ import org.apache.logging.log4j.Logger;
  */
 public class KeyCode_FileBased {
 
-	private Map<Integer, MapDef> keysCurrentlyDown = new HashMap<>();
+	/** Key codes currently held down */
+	private int[] downKeyCodes = new int[8];
+
+	/** Definitions the keys in {@link #downKeyCodes} were pressed with */
+	private MapDef[] downDefs = new MapDef[8];
+
+	private int downCount = 0;
 
 	private KeyEvent lastKeyEvent = null;
 
@@ -67,6 +78,65 @@ public class KeyCode_FileBased {
 
 	public static final int QUIETDOWN = 3;
 
+	/**
+	 * Most values {@link #getKeyStrokes(KeyEvent, int[])} stores for one key
+	 * event
+	 */
+	public static final int MAX_KEY_ACTIONS = 32;
+
+	/**
+	 * Suffix of the precompiled form of a keymap resource, as written by
+	 * {@link #writeCompiled(OutputStream)}
+	 */
+	public static final String COMPILED_SUFFIX = ".bin";
+
+	/* Precompiled keymap format */
+	private static final int COMPILED_MAGIC = 0x504a4b4d; // "PJKM"
+
+	private static final int COMPILED_VERSION = 1;
+
+	private static final int COMPILED_CHARACTER = 0x01;
+
+	private static final int COMPILED_SHIFT = 0x02;
+
+	private static final int COMPILED_CTRL = 0x04;
+
+	private static final int COMPILED_ALT = 0x08;
+
+	private static final int COMPILED_CAPSLOCK = 0x10;
+
+	/* Modifier state bits used to index the typed character table */
+	private static final int STATE_CTRL = 0x01;
+
+	private static final int STATE_ALT = 0x02;
+
+	private static final int STATE_SHIFT = 0x04;
+
+	private static final int STATE_CAPSLOCK = 0x08;
+
+	/* Scancode and action sequences for modifier changes */
+	private static final int[] SHIFT_UP = { 0x2a, UP };
+
+	private static final int[] SHIFT_DOWN = { 0x2a, DOWN };
+
+	private static final int[] CTRL_UP = { 0x1d, UP };
+
+	private static final int[] CTRL_DOWN = { 0x1d, DOWN };
+
+	private static final int[] ALT_UP = { 0x38, UP };
+
+	private static final int[] ALT_DOWN = { 0x38, DOWN };
+
+	private static final int[] ALT_QUIET_UP = { 0x38, QUIETUP, 0x38,
+			QUIETDOWN, 0x38, UP };
+
+	private static final int[] ALT_QUIET_DOWN = { 0x38, QUIETDOWN };
+
+	private static final int[] ALT_QUIET_REPRESS = { 0x38, QUIETUP, 0x38,
+			QUIETDOWN, 0x38, UP, 0x38, DOWN };
+
+	private static final int[] CAPSLOCK_TOGGLE = { 0x3a, DOWN, 0x3a, UP };
+
 	private int mapCode = -1;
 
 	private boolean altQuiet = false;
@@ -77,6 +147,32 @@ public class KeyCode_FileBased {
 
 	private List<MapDef> keyMap = new ArrayList<>();
 
+	/*
+	 * Lookup tables compiled from keyMap by compile(). Keys are sorted for
+	 * binary search.
+	 */
+
+	/** Key code and modifier state: keyCode << 2 | STATE_CTRL | STATE_ALT */
+	private int[] pressedKeys = new int[0];
+
+	/** Definition for each entry of {@link #pressedKeys} */
+	private MapDef[] pressedDefs = new MapDef[0];
+
+	/** Characters with character-based definitions */
+	private char[] typedChars = new char[0];
+
+	/**
+	 * Best definition for each entry of {@link #typedChars} in each of the 16
+	 * modifier states, indexed by char index * 16 + state
+	 */
+	private MapDef[] typedDefs = new MapDef[0];
+
+	/**
+	 * Definition used by {@link #charToScancode(char, String[])} for each
+	 * entry of {@link #typedChars}, or null
+	 */
+	private MapDef[] charDefs = new MapDef[0];
+
 	private void updateCapsLock(KeyEvent e) {
 		if (options.useLockingKeyState) {
 			try {
@@ -92,11 +188,187 @@ public class KeyCode_FileBased {
 
 	protected final Options options;
 
+	/**
+	 * Precompiled keymap resource whose definitions have not been read yet,
+	 * or null
+	 */
+	private volatile String pendingResource = null;
+
 	public KeyCode_FileBased(Options options, InputStream fstream) throws KeyMapException {
 		this.options = options;
 		readMapFile(fstream);
 	}
 
+	private KeyCode_FileBased(Options options) {
+		this.options = options;
+	}
+
+	/**
+	 * Load a precompiled keymap from a class path resource. Only the map code
+	 * is read now; the definitions are read when first needed, usually on
+	 * the first key event.
+	 *
+	 * @param options
+	 *            Options for the session
+	 * @param resource
+	 *            Name of the precompiled resource, ending in
+	 *            {@link #COMPILED_SUFFIX}. If it cannot be read later, the
+	 *            text keymap of the same name without the suffix is used.
+	 * @return The keymap, or null if there is no usable precompiled resource
+	 */
+	public static KeyCode_FileBased loadCompiled(Options options,
+			String resource) {
+		InputStream istr = KeyCode_FileBased.class.getResourceAsStream(resource);
+		if (istr == null) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(istr)) {
+			if (in.readInt() != COMPILED_MAGIC
+					|| in.readUnsignedShort() != COMPILED_VERSION) {
+				LOGGER.warn("Precompiled keymap {} is not in a known format",
+						resource);
+				return null;
+			}
+			KeyCode_FileBased keyMap = new KeyCode_FileBased(options);
+			keyMap.mapCode = in.readInt();
+			keyMap.pendingResource = resource;
+			return keyMap;
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read precompiled keymap " + resource, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Read the definitions of a precompiled keymap if they have not been read
+	 * yet
+	 */
+	private void ensureLoaded() {
+		if (pendingResource != null) {
+			loadPending();
+		}
+	}
+
+	private synchronized void loadPending() {
+		String resource = pendingResource;
+		if (resource == null) {
+			return;
+		}
+		InputStream istr = KeyCode_FileBased.class.getResourceAsStream(resource);
+		try {
+			if (istr == null) {
+				throw new IOException("Resource not found");
+			}
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(istr))) {
+				readCompiled(in);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read precompiled keymap " + resource
+					+ "; reading text keymap", e);
+			String text = resource.substring(0, resource.length()
+					- COMPILED_SUFFIX.length());
+			try (InputStream tstr = KeyCode_FileBased.class
+					.getResourceAsStream(text)) {
+				pendingResource = null;
+				readMapFile(tstr);
+			} catch (KeyMapException | IOException e2) {
+				LOGGER.error("Failed to read keymap " + text, e2);
+			}
+		}
+		pendingResource = null;
+	}
+
+	/**
+	 * Read a whole precompiled keymap at once
+	 *
+	 * @param options
+	 *            Options for the session
+	 * @param in
+	 *            Stream holding a keymap written by {@link #writeCompiled}
+	 * @return The keymap
+	 * @throws IOException
+	 */
+	static KeyCode_FileBased readCompiled(Options options, InputStream in)
+			throws IOException {
+		KeyCode_FileBased keyMap = new KeyCode_FileBased(options);
+		keyMap.readCompiled(new DataInputStream(in));
+		return keyMap;
+	}
+
+	/**
+	 * Read the definitions of a precompiled keymap
+	 *
+	 * @param in
+	 *            Stream positioned at the start of the precompiled keymap
+	 * @throws IOException
+	 */
+	private void readCompiled(DataInputStream in) throws IOException {
+		if (in.readInt() != COMPILED_MAGIC
+				|| in.readUnsignedShort() != COMPILED_VERSION) {
+			throw new IOException("Not a precompiled keymap");
+		}
+		mapCode = in.readInt();
+		int count = in.readInt();
+		List<MapDef> defs = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int flags = in.readUnsignedByte();
+			int key = in.readInt();
+			int keyLocation = in.readUnsignedByte();
+			int scancode = in.readUnsignedShort();
+			boolean ctrl = (flags & COMPILED_CTRL) != 0;
+			boolean shift = (flags & COMPILED_SHIFT) != 0;
+			boolean alt = (flags & COMPILED_ALT) != 0;
+			boolean capslock = (flags & COMPILED_CAPSLOCK) != 0;
+			if ((flags & COMPILED_CHARACTER) != 0) {
+				defs.add(new MapDef(options, (char) key, keyLocation, scancode,
+						ctrl, shift, alt, capslock));
+			} else {
+				defs.add(new MapDef(options, key, keyLocation, scancode, ctrl,
+						shift, alt, capslock));
+			}
+		}
+		keyMap = defs;
+		compile();
+	}
+
+	/**
+	 * Write this keymap in the precompiled form read by
+	 * {@link #loadCompiled(Options, String)}. The definitions are written
+	 * after the extra ones added while reading a text keymap, so reading
+	 * them back needs no further processing.
+	 *
+	 * @param out
+	 *            Stream to write to
+	 * @throws IOException
+	 */
+	public void writeCompiled(OutputStream out) throws IOException {
+		ensureLoaded();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(COMPILED_MAGIC);
+		data.writeShort(COMPILED_VERSION);
+		data.writeInt(mapCode);
+		data.writeInt(keyMap.size());
+		for (MapDef def : keyMap) {
+			if ((def.getKeyLocation() & ~0xff) != 0
+					|| (def.getScancode() & ~0xffff) != 0) {
+				throw new IOException("Definition out of range for "
+						+ "precompiled keymap: scancode " + def.getScancode()
+						+ ", location " + def.getKeyLocation());
+			}
+			data.writeByte((def.isCharacterDef() ? COMPILED_CHARACTER : 0)
+					| (def.isShiftDown() ? COMPILED_SHIFT : 0)
+					| (def.isCtrlDown() ? COMPILED_CTRL : 0)
+					| (def.isAltDown() ? COMPILED_ALT : 0)
+					| (def.isCapslockOn() ? COMPILED_CAPSLOCK : 0));
+			data.writeInt(def.isCharacterDef() ? def.getKeyChar() : def
+					.getKeyCode());
+			data.writeByte(def.getKeyLocation());
+			data.writeShort(def.getScancode());
+		}
+		data.flush();
+	}
+
 	/**
 	 * Constructor for a keymap generated from a specified file, formatted in
 	 * the manner of a file generated by the writeToFile method
@@ -125,6 +397,7 @@ public class KeyCode_FileBased {
 	 * @throws KeyMapException
 	 */
 	public void readMapFile(InputStream fstream) throws KeyMapException {
+		ensureLoaded();
 		if (fstream == null) {
 			throw new KeyMapException("Could not find specified keymap file");
 		}
@@ -181,6 +454,7 @@ public class KeyCode_FileBased {
 			}
 			// Commit added mapping definitions
 			keyMap.addAll(newMap);
+			compile();
 		} catch (IOException e) {
 			throw new KeyMapException("File input error: " + e.getMessage(), e);
 		} catch (NumberFormatException nfEx) {
@@ -203,6 +477,124 @@ public class KeyCode_FileBased {
 		}
 	}
 
+	/**
+	 * Build the lookup tables used for key events from the list of mapping
+	 * definitions, so that a key event needs a table lookup rather than a
+	 * search of the whole list. Each table holds the definition that the
+	 * search would have chosen.
+	 */
+	private void compile() {
+		// Key presses: the first keycode definition whose modifiers are down
+		Map<Integer, MapDef> pressed = new TreeMap<>();
+		// Typed characters: the character definitions for each character
+		Map<Character, List<MapDef>> typed = new TreeMap<>();
+		for (MapDef def : keyMap) {
+			if (def.isCharacterDef()) {
+				List<MapDef> defs = typed.get(def.getKeyChar());
+				if (defs == null) {
+					defs = new ArrayList<>();
+					typed.put(def.getKeyChar(), defs);
+				}
+				defs.add(def);
+				continue;
+			}
+			for (int state = 0; state < 4; state++) {
+				if ((def.isCtrlDown() && (state & STATE_CTRL) == 0)
+						|| (def.isAltDown() && (state & STATE_ALT) == 0)) {
+					continue;
+				}
+				Integer key = (def.getKeyCode() << 2) | state;
+				if (!pressed.containsKey(key)) {
+					pressed.put(key, def);
+				}
+			}
+		}
+
+		pressedKeys = new int[pressed.size()];
+		pressedDefs = new MapDef[pressed.size()];
+		int i = 0;
+		for (Map.Entry<Integer, MapDef> entry : pressed.entrySet()) {
+			pressedKeys[i] = entry.getKey();
+			pressedDefs[i++] = entry.getValue();
+		}
+
+		typedChars = new char[typed.size()];
+		typedDefs = new MapDef[typed.size() * 16];
+		charDefs = new MapDef[typed.size()];
+		i = 0;
+		for (Map.Entry<Character, List<MapDef>> entry : typed.entrySet()) {
+			typedChars[i] = entry.getKey();
+			for (int state = 0; state < 16; state++) {
+				int smallestDist = -1;
+				for (MapDef def : entry.getValue()) {
+					int d = modifierDistance(def, state);
+					if ((smallestDist == -1) || (d < smallestDist)) {
+						smallestDist = d;
+						typedDefs[i * 16 + state] = def;
+					}
+				}
+			}
+			for (MapDef def : entry.getValue()) {
+				if (!def.isCapslockOn()) {
+					charDefs[i] = def; // the last one applies
+				}
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * As {@link MapDef#modifierDistance(KeyEvent, boolean)}, for a modifier
+	 * state made of the STATE_ bits
+	 */
+	private static int modifierDistance(MapDef def, int state) {
+		int dist = 0;
+		if (def.isCtrlDown() != ((state & STATE_CTRL) != 0)) {
+			dist += 1;
+		}
+		if (def.isAltDown() != ((state & STATE_ALT) != 0)) {
+			dist += 1;
+		}
+		if (def.isShiftDown() != ((state & STATE_SHIFT) != 0)) {
+			dist += 1;
+		}
+		if (def.isCapslockOn() != ((state & STATE_CAPSLOCK) != 0)) {
+			dist += 1;
+		}
+		return dist;
+	}
+
+	/**
+	 * Find the character definitions compiled for a character
+	 *
+	 * @return Index into {@link #typedChars}, or -1
+	 */
+	private int typedIndex(char c) {
+		int i = Arrays.binarySearch(typedChars, c);
+		return (i < 0) ? -1 : i;
+	}
+
+	/**
+	 * Work out which character a typed key event should be matched against,
+	 * as {@link MapDef#appliesToTyped(KeyEvent, boolean)} does
+	 */
+	private char typedChar(KeyEvent e, boolean capslock) {
+		char c = e.getKeyChar();
+		if (options.os == Options.OS.MAC) {
+			// Remap the hash key to the section sign
+			if (options.remap_hash && (c == '\u00a7')) {
+				return '#';
+			}
+
+			// Handle unreported shifted capitals (with capslock) on a Mac
+			if (capslock && Character.isLetter(c) && Character.isUpperCase(c)
+					&& e.isShiftDown()) {
+				return Character.toLowerCase(c);
+			}
+		}
+		return c;
+	}
+
 	/**
 	 * Given an alphanumeric character, return an AWT keycode
 	 *
@@ -242,103 +634,94 @@ public class KeyCode_FileBased {
 	 *            Key mapping to define desired keypress on server end
 	 */
 	public String stateChanges(KeyEvent e, MapDef theDef) {
+		int[] actions = new int[MAX_KEY_ACTIONS];
+		return toKeyStrokes(actions, stateChanges(e, theDef, actions, 0));
+	}
 
-		String changes = "";
-
-		final int SHIFT = 0;
-		final int CTRL = 1;
-		final int ALT = 2;
-		final int CAPSLOCK = 3;
-
-		int BEFORE = 0;
-		int AFTER = 1;
-
-		boolean[][] state = new boolean[4][2];
-
-		state[SHIFT][BEFORE] = e.isShiftDown();
-		state[SHIFT][AFTER] = theDef.isShiftDown();
-
-		state[CTRL][BEFORE] = e.isControlDown() || e.isAltGraphDown();
-		state[CTRL][AFTER] = theDef.isCtrlDown();
-
-		state[ALT][BEFORE] = e.isAltDown() || e.isAltGraphDown();
-		state[ALT][AFTER] = theDef.isAltDown();
-
+	/**
+	 * As {@link #stateChanges(KeyEvent, MapDef)}, storing the changes as
+	 * scancode and action pairs
+	 *
+	 * @param e
+	 *            Key event received by Java (defining current state)
+	 * @param theDef
+	 *            Key mapping to define desired keypress on server end
+	 * @param actions
+	 *            Array to store the changes in
+	 * @param n
+	 *            Index in actions to store the first change at
+	 * @return Index in actions after the last change
+	 */
+	private int stateChanges(KeyEvent e, MapDef theDef, int[] actions, int n) {
 		updateCapsLock(e);
 
-		state[CAPSLOCK][BEFORE] = capsLockDown;
-		state[CAPSLOCK][AFTER] = theDef.isCapslockOn();
-
-		if (e.getID() == KeyEvent.KEY_RELEASED) {
-			AFTER = 0;
-			BEFORE = 1;
-		}
-
-		if ((e == null) || (theDef == null) || (!theDef.isCharacterDef())) {
-			return "";
+		if ((theDef == null) || (!theDef.isCharacterDef())) {
+			return n;
 		}
 
-		String up = "" + ((char) UP);
-		String down = "" + ((char) DOWN);
-		String quietup = up;
-		String quietdown = down;
-
-		quietup = "" + ((char) QUIETUP);
-		quietdown = "" + ((char) QUIETDOWN);
+		boolean released = (e.getID() == KeyEvent.KEY_RELEASED);
+		boolean shift = e.isShiftDown();
+		boolean ctrl = e.isControlDown() || e.isAltGraphDown();
+		boolean alt = e.isAltDown() || e.isAltGraphDown();
 
-		if (state[SHIFT][BEFORE] != state[SHIFT][AFTER]) {
-			if (state[SHIFT][BEFORE]) {
-				changes += ((char) 0x2a) + up;
-			} else {
-				changes += ((char) 0x2a) + down;
-			}
+		// Changes go from the event's state to the mapping's, or back again
+		// when the key is released
+		if (shift != theDef.isShiftDown()) {
+			n = put(actions, n, (shift != released) ? SHIFT_UP : SHIFT_DOWN);
 		}
 
-		if (state[CTRL][BEFORE] != state[CTRL][AFTER]) {
-			if (state[CTRL][BEFORE]) {
-				changes += ((char) 0x1d) + up;
-			} else {
-				changes += ((char) 0x1d) + down;
-			}
+		if (ctrl != theDef.isCtrlDown()) {
+			n = put(actions, n, (ctrl != released) ? CTRL_UP : CTRL_DOWN);
 		}
 
 		if (options.altkey_quiet) {
 
-			if (state[ALT][BEFORE] != state[ALT][AFTER]) {
-				if (state[ALT][BEFORE]) {
-					changes += (char) 0x38 + quietup + ((char) 0x38)
-							+ quietdown + ((char) 0x38) + up;
+			if (alt != theDef.isAltDown()) {
+				if (alt != released) {
+					n = put(actions, n, ALT_QUIET_UP);
 				} else {
-					if (e.getID() == KeyEvent.KEY_RELEASED) {
+					if (released) {
 						altQuiet = true;
-						changes += ((char) 0x38) + quietdown;
+						n = put(actions, n, ALT_QUIET_DOWN);
 					} else {
 						altQuiet = false;
-						changes += ((char) 0x38) + down;
+						n = put(actions, n, ALT_DOWN);
 					}
 				}
 
-			} else if (state[ALT][AFTER] && altQuiet) {
+			} else if (alt && altQuiet) {
 				altQuiet = false;
-				changes += (char) 0x38 + quietup + ((char) 0x38) + quietdown
-						+ ((char) 0x38) + up + ((char) 0x38) + down;
+				n = put(actions, n, ALT_QUIET_REPRESS);
 			}
 
 		} else {
-			if (state[ALT][BEFORE] != state[ALT][AFTER]) {
-				if (state[ALT][BEFORE]) {
-					changes += ((char) 0x38) + up;
-				} else {
-					changes += ((char) 0x38) + down;
-				}
+			if (alt != theDef.isAltDown()) {
+				n = put(actions, n, (alt != released) ? ALT_UP : ALT_DOWN);
 			}
 		}
 
-		if (state[CAPSLOCK][BEFORE] != state[CAPSLOCK][AFTER]) {
-			changes += ((char) 0x3a) + down + ((char) 0x3a) + up;
+		if (capsLockDown != theDef.isCapslockOn()) {
+			n = put(actions, n, CAPSLOCK_TOGGLE);
 		}
 
-		return changes;
+		return n;
+	}
+
+	private static int put(int[] actions, int n, int[] sequence) {
+		System.arraycopy(sequence, 0, actions, n, sequence.length);
+		return n + sequence.length;
+	}
+
+	/**
+	 * Convert scancode and action pairs to the string form used by
+	 * {@link #getKeyStrokes(KeyEvent)}
+	 */
+	private static String toKeyStrokes(int[] actions, int n) {
+		char[] codes = new char[n];
+		for (int i = 0; i < n; i++) {
+			codes[i] = (char) actions[i];
+		}
+		return new String(codes);
 	}
 
 	/**
@@ -349,6 +732,7 @@ public class KeyCode_FileBased {
 	 *            File in which to store definitions
 	 */
 	public void writeToFile(String filename) {
+		ensureLoaded();
 		try (FileOutputStream out = new FileOutputStream(filename)) {
 			try (PrintStream p = new PrintStream(out)) {
 				for (MapDef def : this.keyMap) {
@@ -376,15 +760,9 @@ public class KeyCode_FileBased {
 			return false;
 		}
 
-		MapDef best = null;
-
-		for (MapDef current : this.keyMap) {
-			if (current.appliesTo(c)) {
-				best = current;
-			}
-		}
-
-		return (best != null);
+		ensureLoaded();
+		int i = typedIndex(c);
+		return (i >= 0) && (charDefs[i] != null);
 
 	}
 
@@ -400,13 +778,9 @@ public class KeyCode_FileBased {
 	 * @return Scancode of supplied key
 	 */
 	public int charToScancode(char c, String[] mod) {
-		MapDef best = null;
-
-		for (MapDef current : this.keyMap) {
-			if (current.appliesTo(c)) {
-				best = current;
-			}
-		}
+		ensureLoaded();
+		int i = typedIndex(c);
+		MapDef best = (i >= 0) ? charDefs[i] : null;
 
 		if (best != null) {
 			if (best.isShiftDown()) {
@@ -432,12 +806,13 @@ public class KeyCode_FileBased {
 	 * @return Mapping definition for supplied keypress
 	 */
 	public MapDef getDef(KeyEvent e) {
+		ensureLoaded();
 
 		if (e.getID() == KeyEvent.KEY_RELEASED) {
-			MapDef def = keysCurrentlyDown.get(new Integer(e
-					.getKeyCode()));
+			int i = findDown(e.getKeyCode());
+			MapDef def = (i >= 0) ? downDefs[i] : null;
 			registerKeyEvent(e, def);
-			if (e.getID() == KeyEvent.KEY_RELEASED) {
+			if (LOGGER.isDebugEnabled()) {
 				LOGGER.debug("Released: " + e.getKeyCode()
 						+ " returned scancode: "
 						+ ((def != null) ? "" + def.getScancode() : "null"));
@@ -447,38 +822,37 @@ public class KeyCode_FileBased {
 
 		updateCapsLock(e);
 
-		int smallestDist = -1;
 		MapDef best = null;
 
-		// boolean noScanCode = !hasScancode(e.getKeyChar());
-
-		for (MapDef current : this.keyMap) {
-			boolean applies;
-
-			if ((e.getID() == KeyEvent.KEY_PRESSED)) {
-				applies = current.appliesToPressed(e);
-			} else if ((!lastEventMatched) && (e.getID() == KeyEvent.KEY_TYPED)) {
-				applies = current.appliesToTyped(e, capsLockDown);
-			} else {
-				applies = false;
+		if (e.getID() == KeyEvent.KEY_PRESSED) {
+			int state = (e.isControlDown() ? STATE_CTRL : 0)
+					| (e.isAltDown() ? STATE_ALT : 0);
+			int i = Arrays.binarySearch(pressedKeys, (e.getKeyCode() << 2)
+					| state);
+			if (i >= 0) {
+				best = pressedDefs[i];
 			}
-
-			if (applies) {
-				int d = current.modifierDistance(e, capsLockDown);
-				if ((smallestDist == -1) || (d < smallestDist)) {
-					smallestDist = d;
-					best = current;
-				}
+		} else if ((!lastEventMatched) && (e.getID() == KeyEvent.KEY_TYPED)) {
+			int i = typedIndex(typedChar(e, capsLockDown));
+			if (i >= 0) {
+				int state = (e.isControlDown() ? STATE_CTRL : 0)
+						| (e.isAltDown() ? STATE_ALT : 0)
+						| (e.isShiftDown() ? STATE_SHIFT : 0)
+						| (capsLockDown ? STATE_CAPSLOCK : 0);
+				best = typedDefs[i * 16 + state];
 			}
 		}
 
-		if (e.getID() == KeyEvent.KEY_PRESSED) {
-			LOGGER.debug("Pressed: " + e.getKeyCode() + " returned scancode: "
-					+ ((best != null) ? "" + best.getScancode() : "null"));
-		}
-		if (e.getID() == KeyEvent.KEY_TYPED) {
-			LOGGER.debug("Typed: " + e.getKeyChar() + " returned scancode: "
-					+ ((best != null) ? "" + best.getScancode() : "null"));
+		if (LOGGER.isDebugEnabled()) {
+			if (e.getID() == KeyEvent.KEY_PRESSED) {
+				LOGGER.debug("Pressed: " + e.getKeyCode()
+						+ " returned scancode: "
+						+ ((best != null) ? "" + best.getScancode() : "null"));
+			}
+			if (e.getID() == KeyEvent.KEY_TYPED) {
+				LOGGER.debug("Typed: " + e.getKeyChar() + " returned scancode: "
+						+ ((best != null) ? "" + best.getScancode() : "null"));
+			}
 		}
 
 		registerKeyEvent(e, best);
@@ -508,7 +882,13 @@ public class KeyCode_FileBased {
 	private void registerKeyEvent(KeyEvent e, MapDef m) {
 
 		if (e.getID() == KeyEvent.KEY_RELEASED) {
-			keysCurrentlyDown.remove(new Integer(e.getKeyCode()));
+			int i = findDown(e.getKeyCode());
+			if (i >= 0) {
+				downCount--;
+				downKeyCodes[i] = downKeyCodes[downCount];
+				downDefs[i] = downDefs[downCount];
+				downDefs[downCount] = null;
+			}
 			if ((!options.caps_sends_up_and_down)
 					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
 				LOGGER.debug("Turning CAPSLOCK off - key release");
@@ -534,16 +914,31 @@ public class KeyCode_FileBased {
 			}
 		}
 
-		if (lastKeyEvent != null
-				&& m != null
-				&& !keysCurrentlyDown.containsKey(new Integer(lastKeyEvent
-						.getKeyCode()))) {
-			keysCurrentlyDown.put(new Integer(lastKeyEvent.getKeyCode()), m);
+		if (lastKeyEvent != null && m != null
+				&& findDown(lastKeyEvent.getKeyCode()) < 0) {
+			if (downCount == downKeyCodes.length) {
+				downKeyCodes = Arrays.copyOf(downKeyCodes, downCount * 2);
+				downDefs = Arrays.copyOf(downDefs, downCount * 2);
+			}
+			downKeyCodes[downCount] = lastKeyEvent.getKeyCode();
+			downDefs[downCount++] = m;
 			lastKeyEvent = null;
 		}
 
 	}
 
+	/**
+	 * @return Index of a key code in {@link #downKeyCodes}, or -1
+	 */
+	private int findDown(int keyCode) {
+		for (int i = 0; i < downCount; i++) {
+			if (downKeyCodes[i] == keyCode) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Construct a list of keystrokes needed to reproduce an AWT key event via
 	 * RDP
@@ -554,39 +949,54 @@ public class KeyCode_FileBased {
 	 *         send to server
 	 */
 	public String getKeyStrokes(KeyEvent e) {
-		String codes = "";
+		int[] actions = new int[MAX_KEY_ACTIONS];
+		return toKeyStrokes(actions, getKeyStrokes(e, actions));
+	}
+
+	/**
+	 * Construct the key actions needed to reproduce an AWT key event via RDP,
+	 * without allocating
+	 *
+	 * @param e
+	 *            Keyboard event to reproduce
+	 * @param actions
+	 *            Array of at least {@link #MAX_KEY_ACTIONS} entries, filled
+	 *            with pairs of scancode and action (UP, DOWN, QUIETUP or
+	 *            QUIETDOWN)
+	 * @return Number of entries stored in actions (twice the number of
+	 *         actions)
+	 */
+	public int getKeyStrokes(KeyEvent e, int[] actions) {
 		MapDef d = getDef(e);
 
 		if (d == null) {
-			return "";
+			return 0;
 		}
 
-		codes = stateChanges(e, d);
-
-		String type = "";
+		boolean capsToggle = (!options.caps_sends_up_and_down)
+				&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK);
+		int n = 0;
 
 		if (e.getID() == KeyEvent.KEY_RELEASED) {
-			if ((!options.caps_sends_up_and_down)
-					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
+			if (capsToggle) {
 				LOGGER.debug("Sending CAPSLOCK toggle");
-				codes = "" + ((char) 0x3a) + ((char) DOWN) + ((char) 0x3a)
-						+ ((char) UP) + codes;
+				n = put(actions, n, CAPSLOCK_TOGGLE);
 			} else {
-				type = "" + ((char) UP);
-				codes = ((char) d.getScancode()) + type + codes;
+				actions[n++] = d.getScancode();
+				actions[n++] = UP;
 			}
+			n = stateChanges(e, d, actions, n);
 		} else {
-			if ((!options.caps_sends_up_and_down)
-					&& (e.getKeyCode() == KeyEvent.VK_CAPS_LOCK)) {
+			n = stateChanges(e, d, actions, n);
+			if (capsToggle) {
 				LOGGER.debug("Sending CAPSLOCK toggle");
-				codes += "" + ((char) 0x3a) + ((char) DOWN) + ((char) 0x3a)
-						+ ((char) UP);
+				n = put(actions, n, CAPSLOCK_TOGGLE);
 			} else {
-				type = "" + ((char) DOWN);
-				codes += ((char) d.getScancode()) + type;
+				actions[n++] = d.getScancode();
+				actions[n++] = DOWN;
 			}
 		}
 
-		return codes;
+		return n;
 	}
 }
@@ -124,6 +124,10 @@ public class MapDef {
 		return keyChar;
 	}
 
+	public int getKeyLocation() {
+		return keyLocation;
+	}
+
 	/**
 	 * Return the scancode associated with this mapping
 	 *
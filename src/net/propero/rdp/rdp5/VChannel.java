@@ -23,20 +23,42 @@
  */
 package net.propero.rdp.rdp5;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import net.propero.rdp.Options;
 import net.propero.rdp.RdesktopException;
 import net.propero.rdp.RdpPacket;
 import net.propero.rdp.Secure;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
  * Abstract class for RDP5 channels
  */
 public abstract class VChannel {
 
+	private static final Logger LOGGER = LogManager.getLogger();
+
 	private int mcs_id = 0;
 
+	private int chunk_length = VChannels.CHANNEL_CHUNK_LENGTH;
+
+	/**
+	 * Largest reassembly buffer reserved up front from an announced length,
+	 * or kept between messages; longer messages grow the buffer as their
+	 * data arrives, and it is dropped once they are delivered
+	 */
+	private static final int MAX_PRESIZE = 1 << 16;
+
+	/** Reassembly buffer for fragmented messages, reused between messages */
+	private RdpPacket fragment = null;
+
+	/** Bytes held in fragment, or -1 if no message is being reassembled */
+	private int fragment_length = -1;
+
 	protected final Options options;
 	protected Secure secure;
 	public VChannel(Options options) {
@@ -85,6 +107,79 @@ public abstract class VChannel {
 		this.mcs_id = mcs_id;
 	}
 
+	/**
+	 * @return Largest amount of channel data sent in one PDU
+	 */
+	public int chunk_length() {
+		return chunk_length;
+	}
+
+	/**
+	 * Set the largest amount of channel data sent in one PDU, as negotiated
+	 * with the server
+	 *
+	 * @param chunk_length
+	 *            New chunk length
+	 */
+	public void set_chunk_length(int chunk_length) {
+		this.chunk_length = chunk_length;
+	}
+
+	/**
+	 * Add one fragment of a message received on this channel to the
+	 * reassembly buffer. The buffer is sized from the total length announced
+	 * with the first fragment, up to MAX_PRESIZE, and reused for later
+	 * messages, so the returned packet is only valid until the next call.
+	 *
+	 * @param data
+	 *            Packet positioned at the fragment data
+	 * @param total_length
+	 *            Total length of the message, from the channel PDU header
+	 * @param flags
+	 *            Channel PDU flags
+	 * @return The complete message, or null if more fragments are expected
+	 */
+	RdpPacket defragment(RdpPacket data, int total_length, int flags) {
+		int length = data.getEnd() - data.getPosition();
+		if ((flags & VChannels.CHANNEL_FLAG_FIRST) != 0) {
+			int presize = Math.max(0, Math.min(total_length, MAX_PRESIZE));
+			if (fragment == null || fragment.capacity() > MAX_PRESIZE) {
+				fragment = new RdpPacket(presize);
+			} else {
+				fragment.reset(presize);
+			}
+			fragment_length = 0;
+		} else if (fragment_length < 0) {
+			LOGGER.warn("Fragment on channel {} without a first fragment",
+					name());
+			return null;
+		}
+
+		int needed = fragment_length + length;
+		if (needed > fragment.capacity()) {
+			// The announced length was too small
+			RdpPacket grown = new RdpPacket(Math.max(needed,
+					fragment.capacity() * 2));
+			grown.copyFromPacket(fragment, 0, 0, fragment_length);
+			fragment = grown;
+		}
+		fragment.copyFromPacket(data, data.getPosition(), fragment_length,
+				length);
+		fragment_length = needed;
+
+		if ((flags & VChannels.CHANNEL_FLAG_LAST) == 0) {
+			return null;
+		}
+		RdpPacket message = fragment;
+		message.setPosition(0);
+		message.markEnd(fragment_length);
+		fragment_length = -1;
+		if (message.capacity() > MAX_PRESIZE) {
+			fragment = null;
+		}
+		return message;
+	}
+
 	/**
 	 * Initialise a packet for transmission over this virtual channel
 	 *
@@ -103,6 +198,21 @@ public abstract class VChannel {
 		return s;
 	}
 
+	/**
+	 * Copies the next part of the data being sent into a chunk
+	 */
+	private interface ChunkSource {
+		/**
+		 * @param s
+		 *            Packet to copy to, at its current position
+		 * @param offset
+		 *            Offset of the part within the data being sent
+		 * @param length
+		 *            Length of the part
+		 */
+		void copyTo(RdpPacket s, int offset, int length) throws IOException;
+	}
+
 	/**
 	 * Send a packet over this virtual channel
 	 *
@@ -111,45 +221,161 @@ public abstract class VChannel {
 	 * @throws RdesktopException
 	 * @throws IOException
 	 */
-	public void send_packet(RdpPacket data) throws RdesktopException, IOException {
+	public void send_packet(final RdpPacket data) throws RdesktopException, IOException {
+		send_chunks(data.size(), new ChunkSource() {
+			@Override
+			public void copyTo(RdpPacket s, int offset, int length) {
+				s.copyFromPacket(data, offset, s.getPosition(), length);
+			}
+		});
+	}
+
+	/**
+	 * Send data over this virtual channel
+	 *
+	 * @param data
+	 *            Array containing data to be sent
+	 * @param offset
+	 *            Offset of the data within the array
+	 * @param length
+	 *            Length of the data
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void send_packet(final byte[] data, final int offset, int length)
+			throws RdesktopException, IOException {
+		send_chunks(length, new ChunkSource() {
+			@Override
+			public void copyTo(RdpPacket s, int chunk_offset, int count) {
+				s.copyFromByteArray(data, offset + chunk_offset,
+						s.getPosition(), count);
+			}
+		});
+	}
+
+	/**
+	 * Send data over this virtual channel between a header and a trailer,
+	 * without copying the three into one array
+	 *
+	 * @param header
+	 *            Bytes to send before the data
+	 * @param data
+	 *            Array containing data to be sent
+	 * @param offset
+	 *            Offset of the data within the array
+	 * @param length
+	 *            Length of the data
+	 * @param trailer
+	 *            Bytes to send after the data
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void send_packet(final byte[] header, final byte[] data,
+			final int offset, final int length, final byte[] trailer)
+			throws RdesktopException, IOException {
+		send_chunks(header.length + length + trailer.length, new ChunkSource() {
+			@Override
+			public void copyTo(RdpPacket s, int chunk_offset, int count) {
+				int position = s.getPosition();
+				int end = chunk_offset + count;
+				int data_start = header.length;
+				int trailer_start = data_start + length;
+				if (chunk_offset < data_start) {
+					int n = Math.min(end, data_start) - chunk_offset;
+					s.copyFromByteArray(header, chunk_offset, position, n);
+					position += n;
+				}
+				if (chunk_offset < trailer_start && end > data_start) {
+					int from = Math.max(chunk_offset, data_start);
+					int n = Math.min(end, trailer_start) - from;
+					s.copyFromByteArray(data, offset + from - data_start,
+							position, n);
+					position += n;
+				}
+				if (end > trailer_start) {
+					int from = Math.max(chunk_offset, trailer_start);
+					s.copyFromByteArray(trailer, from - trailer_start,
+							position, end - from);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send data over this virtual channel as it is read from a stream, one
+	 * chunk at a time, so that the whole of it never has to be in memory
+	 *
+	 * @param source
+	 *            Stream to read the data from
+	 * @param length
+	 *            Length of the data; exactly this much is read
+	 * @throws RdesktopException
+	 * @throws IOException
+	 *             If the stream ends early or cannot be read
+	 */
+	public void send_stream(final InputStream source, int length)
+			throws RdesktopException, IOException {
+		final byte[] buffer = new byte[Math.min(length, chunk_length)];
+		send_chunks(length, new ChunkSource() {
+			@Override
+			public void copyTo(RdpPacket s, int offset, int count)
+					throws IOException {
+				int read = 0;
+				while (read < count) {
+					int n = source.read(buffer, read, count - read);
+					if (n < 0) {
+						throw new EOFException("Channel data ended after "
+								+ (offset + read) + " bytes");
+					}
+					read += n;
+				}
+				s.copyFromByteArray(buffer, 0, s.getPosition(), count);
+			}
+		});
+	}
+
+	/**
+	 * Send data split into chunks of at most {@link #chunk_length()} bytes,
+	 * each in its own PDU, so that other PDUs can be sent between chunks. The
+	 * lock on this channel keeps the chunks of one send together.
+	 *
+	 * @param length
+	 *            Total length of the data
+	 * @param source
+	 *            Supplies the data for each chunk
+	 */
+	private synchronized void send_chunks(int length, ChunkSource source)
+			throws RdesktopException, IOException {
 		if (secure == null) {
 			return;
 		}
-		synchronized (this.secure) {
-			int length = data.size();
+		options.stats.channelBytesOut(name(), length);
 
-			int data_offset = 0;
-			int num_packets = (length / VChannels.CHANNEL_CHUNK_LENGTH);
-			num_packets += length - (VChannels.CHANNEL_CHUNK_LENGTH) * num_packets;
+		int data_offset = 0;
+		while (data_offset < length) {
 
-			while (data_offset < length) {
+			int thisLength = Math.min(chunk_length, length - data_offset);
 
-				int thisLength = Math.min(VChannels.CHANNEL_CHUNK_LENGTH, length
-						- data_offset);
+			RdpPacket s = secure.init(Secure.SEC_ENCRYPT, 8 + thisLength);
+			s.setLittleEndian32(length);
 
-				RdpPacket s = secure.init(Secure.SEC_ENCRYPT, 8 + thisLength);
-				s.setLittleEndian32(length);
-
-				int flags = ((data_offset == 0) ? VChannels.CHANNEL_FLAG_FIRST : 0);
-				if (data_offset + thisLength >= length) {
-					flags |= VChannels.CHANNEL_FLAG_LAST;
-				}
+			int flags = ((data_offset == 0) ? VChannels.CHANNEL_FLAG_FIRST : 0);
+			if (data_offset + thisLength >= length) {
+				flags |= VChannels.CHANNEL_FLAG_LAST;
+			}
 
-				if ((this.flags() & VChannels.CHANNEL_OPTION_SHOW_PROTOCOL) != 0) {
-					flags |= VChannels.CHANNEL_FLAG_SHOW_PROTOCOL;
-				}
+			if ((this.flags() & VChannels.CHANNEL_OPTION_SHOW_PROTOCOL) != 0) {
+				flags |= VChannels.CHANNEL_FLAG_SHOW_PROTOCOL;
+			}
 
-				s.setLittleEndian32(flags);
-				s.copyFromPacket(data, data_offset, s.getPosition(), thisLength);
-				s.incrementPosition(thisLength);
-				s.markEnd();
+			s.setLittleEndian32(flags);
+			source.copyTo(s, data_offset, thisLength);
+			s.incrementPosition(thisLength);
+			s.markEnd();
 
-				data_offset += thisLength;
+			data_offset += thisLength;
 
-				if (secure != null) {
-					secure.send_to_channel(s, Secure.SEC_ENCRYPT, this.mcs_id());
-				}
-			}
+			secure.send_to_channel(s, Secure.SEC_ENCRYPT, this.mcs_id());
 		}
 	}
 
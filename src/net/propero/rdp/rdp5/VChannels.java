@@ -24,7 +24,6 @@
 package net.propero.rdp.rdp5;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
 
 import net.propero.rdp.MCS;
 import net.propero.rdp.RdesktopException;
@@ -70,8 +69,12 @@ public class VChannels {
 
 	public static final int MAX_CHANNELS = 4;
 
+	/** Chunk length to use unless the server allows a larger one */
 	public static final int CHANNEL_CHUNK_LENGTH = 1600;
 
+	/** Largest chunk length that may be negotiated */
+	public static final int CHANNEL_CHUNK_MAX = 16256;
+
 	public static final int CHANNEL_FLAG_FIRST = 0x01;
 
 	public static final int CHANNEL_FLAG_LAST = 0x02;
@@ -86,8 +89,6 @@ public class VChannels {
 		return num_channels;
 	}
 
-	private byte[] fragment_buffer = null;
-
 	/**
 	 * Obtain the MCS ID for a specific numbered channel
 	 *
@@ -101,6 +102,8 @@ public class VChannels {
 
 	private Secure secure;
 
+	private int chunk_length = CHANNEL_CHUNK_LENGTH;
+
 	/**
 	 * Initalize a new instance of VChannels
 	 *
@@ -166,6 +169,7 @@ public class VChannels {
 		}
 
 		v.setSecure(this.secure);
+		v.set_chunk_length(this.chunk_length);
 		channels[num_channels] = v;
 		v.set_mcs_id(MCS.MCS_GLOBAL_CHANNEL + 1 + num_channels);
 		num_channels++;
@@ -178,11 +182,35 @@ public class VChannels {
 	 * @param secure The secure instance
 	 */
 	public void setSecure(Secure secure) {
+		this.secure = secure;
 		for (int i = 0; i < num_channels; i++) {
 			channels[i].setSecure(secure);
 		}
 	}
 
+	/**
+	 * @return Largest amount of channel data sent in one PDU
+	 */
+	public int chunk_length() {
+		return chunk_length;
+	}
+
+	/**
+	 * Sets the chunk length for all registered channels, as allowed by the
+	 * server's virtual channel capability set.
+	 *
+	 * @param chunk_length
+	 *            Chunk length; clamped to between
+	 *            {@link #CHANNEL_CHUNK_LENGTH} and {@link #CHANNEL_CHUNK_MAX}
+	 */
+	public void set_chunk_length(int chunk_length) {
+		this.chunk_length = Math.max(CHANNEL_CHUNK_LENGTH,
+				Math.min(CHANNEL_CHUNK_MAX, chunk_length));
+		for (int i = 0; i < num_channels; i++) {
+			channels[i].set_chunk_length(this.chunk_length);
+		}
+	}
+
 	/**
 	 * Process a packet sent on a numbered channel
 	 *
@@ -211,7 +239,9 @@ public class VChannels {
 			return;
 		}
 
-		data.getLittleEndian32(); // length, ignored?
+		channel.options.stats.channelBytesIn(channel.name(), data.getEnd()
+				- data.getPosition());
+		int length = data.getLittleEndian32();
 		int flags = data.getLittleEndian32();
 
 		if (((flags & CHANNEL_FLAG_FIRST) != 0)
@@ -219,67 +249,11 @@ public class VChannels {
 			// single fragment - pass straight up
 			channel.process(data);
 		} else {
-			// append to the defragmentation buffer
-			byte[] content = new byte[data.getEnd() - data.getPosition()];
-			data
-			.copyToByteArray(content, 0, data.getPosition(),
-					content.length);
-			fragment_buffer = append(fragment_buffer, content);
-
-			if ((flags & CHANNEL_FLAG_LAST) != 0) {
-				RdpPacket fullpacket = new RdpPacket(
-						fragment_buffer.length);
-				fullpacket.copyFromByteArray(fragment_buffer, 0, 0,
-						fragment_buffer.length);
+			RdpPacket fullpacket = channel.defragment(data, length, flags);
+			if (fullpacket != null) {
 				// process the entire reconstructed packet
 				channel.process(fullpacket);
-				fragment_buffer = null;
 			}
-
-		}
-	}
-
-	/**
-	 * Increase the size of an array
-	 *
-	 * @param a
-	 *            Array to expand
-	 * @param amount
-	 *            Number of elements to add to the array
-	 * @return Expanded array
-	 */
-	static Object arrayExpand(Object a, int amount) {
-		Class<?> cl = a.getClass();
-		if (!cl.isArray()) {
-			return null;
-		}
-		int length = Array.getLength(a);
-		int newLength = length + amount; // 50% more
-
-		Class<?> componentType = a.getClass().getComponentType();
-		Object newArray = Array.newInstance(componentType, newLength);
-		System.arraycopy(a, 0, newArray, 0, length);
-		return newArray;
-	}
-
-	/**
-	 * Concatenate two byte arrays
-	 *
-	 * @param target
-	 *            Contains initial bytes in output
-	 * @param source
-	 *            Appended to target array
-	 * @return Concatenation of arrays, target+source
-	 */
-	static byte[] append(byte[] target, byte[] source) {
-		if (target == null || target.length <= 0) {
-			return source;
-		} else if (source == null || source.length <= 0) {
-			return target;
-		} else {
-			byte[] out = (byte[]) arrayExpand(target, source.length);
-			System.arraycopy(source, 0, out, target.length, source.length);
-			return out;
 		}
 	}
 }
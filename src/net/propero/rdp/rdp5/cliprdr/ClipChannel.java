@@ -276,20 +276,17 @@ ClipboardOwner, FocusListener {
 
 	@Override
 	public void send_data(byte[] data, int length) {
-		RdpPacket all = new RdpPacket(12 + length);
-
-		all.setLittleEndian16(CLIPRDR_DATA_RESPONSE);
-		all.setLittleEndian16(CLIPRDR_RESPONSE);
-		all.setLittleEndian32(length + 4); // don't know why, but we need to
-		// add between 1 and 4 to the
-		// length,
-		// otherwise the server cliprdr thread hangs
-		all.copyFromByteArray(data, 0, all.getPosition(), length);
-		all.incrementPosition(length);
-		all.setLittleEndian32(0);
-
+		int size = length + 4; // don't know why, but we need to add between 1
+		// and 4 to the length, otherwise the server cliprdr thread hangs
+		byte[] header = {
+			(byte) CLIPRDR_DATA_RESPONSE, (byte) (CLIPRDR_DATA_RESPONSE >> 8),
+			(byte) CLIPRDR_RESPONSE, (byte) (CLIPRDR_RESPONSE >> 8),
+			(byte) size, (byte) (size >> 8), (byte) (size >> 16),
+			(byte) (size >> 24) };
+
+		// Sent chunk by chunk, without copying the data into one packet
 		try {
-			this.send_packet(all);
+			this.send_packet(header, data, 0, length, new byte[4]);
 		} catch (RdesktopException e) {
 			LOGGER.warn("Failed to send clipboard data", e);
 			if (!options.noSystemExit) {
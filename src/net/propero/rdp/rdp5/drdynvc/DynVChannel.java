@@ -0,0 +1,355 @@
+/* DynVChannel.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.rdp5.drdynvc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+import net.propero.rdp.rdp5.VChannel;
+import net.propero.rdp.rdp5.VChannels;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The drdynvc static channel, which carries any number of dynamic virtual
+ * channels opened by the server, so that an extension does not need a
+ * static channel (and an MCS channel join) of its own.
+ * <p>
+ * Extensions register a {@link DynamicChannelListener} for the channel name
+ * they implement; the server's requests to open channels of other names are
+ * refused. Messages are sent in PDUs of at most {@link #DYNVC_PDU_LENGTH}
+ * bytes, and PDUs from different channels are sent in turn, so a large
+ * message on one channel does not hold up the others. Senders are held back
+ * while the connection's outgoing queue for channel data is full.
+ *
+ * @see [MS-RDPEDYC]
+ */
+public class DynVChannel extends VChannel {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/* PDU commands */
+	public static final int CMD_CREATE = 0x01;
+
+	public static final int CMD_DATA_FIRST = 0x02;
+
+	public static final int CMD_DATA = 0x03;
+
+	public static final int CMD_CLOSE = 0x04;
+
+	public static final int CMD_CAPABILITY = 0x05;
+
+	public static final int CMD_DATA_FIRST_COMPRESSED = 0x06;
+
+	public static final int CMD_DATA_COMPRESSED = 0x07;
+
+	public static final int CMD_SOFT_SYNC_REQUEST = 0x08;
+
+	public static final int CMD_SOFT_SYNC_RESPONSE = 0x09;
+
+	/** Largest dynamic channel PDU, including its header */
+	public static final int DYNVC_PDU_LENGTH = 1600;
+
+	/** Highest protocol version supported; version 3 adds compression */
+	private static final int DYNVC_VERSION = 2;
+
+	/** Creation status sent when no listener accepts a channel */
+	private static final int CREATE_FAILED = 0xc0000001;
+
+	private final Map<String, DynamicChannelListener> listeners = new ConcurrentHashMap<>();
+
+	private final Map<Integer, DynamicChannel> channels = new ConcurrentHashMap<>();
+
+	/** Takes PDUs from the channels in turn */
+	private final ReentrantLock sendLock = new ReentrantLock(true);
+
+	private int version = 0;
+
+	public DynVChannel(Options options) {
+		super(options);
+	}
+
+	@Override
+	public String name() {
+		return "drdynvc";
+	}
+
+	@Override
+	public int flags() {
+		return VChannels.CHANNEL_OPTION_INITIALIZED
+				| VChannels.CHANNEL_OPTION_ENCRYPT_RDP
+				| VChannels.CHANNEL_OPTION_COMPRESS_RDP;
+	}
+
+	/**
+	 * Accept dynamic channels of the given name. Replaces any listener
+	 * already registered for the name.
+	 *
+	 * @param name
+	 *            Channel name, as sent by the server
+	 * @param listener
+	 *            Listener for the channels' events
+	 */
+	public void addListener(String name, DynamicChannelListener listener) {
+		listeners.put(name, listener);
+	}
+
+	/**
+	 * Stop accepting dynamic channels of the given name. Channels already
+	 * open are not affected.
+	 *
+	 * @param name
+	 *            Channel name
+	 */
+	public void removeListener(String name) {
+		listeners.remove(name);
+	}
+
+	/**
+	 * @return True if any listener is registered, so that the channel is
+	 *         worth registering
+	 */
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * @return Negotiated protocol version, or 0 before the server's
+	 *         capabilities have been received
+	 */
+	public int version() {
+		return version;
+	}
+
+	@Override
+	public void process(RdpPacket data) throws RdesktopException, IOException {
+		int header = data.get8();
+		int cmd = header >> 4;
+		int sp = (header >> 2) & 3;
+		int cbChId = header & 3;
+
+		switch (cmd) {
+		case CMD_CAPABILITY:
+			process_capabilities(data);
+			break;
+		case CMD_CREATE:
+			process_create(data, cbChId);
+			break;
+		case CMD_DATA_FIRST: {
+			DynamicChannel channel = find(getField(data, cbChId));
+			int length = getField(data, sp);
+			if (channel != null) {
+				channel.receive(data, length);
+			}
+			break;
+		}
+		case CMD_DATA: {
+			DynamicChannel channel = find(getField(data, cbChId));
+			if (channel != null) {
+				channel.receive(data, -1);
+			}
+			break;
+		}
+		case CMD_CLOSE:
+			process_close(getField(data, cbChId));
+			break;
+		case CMD_DATA_FIRST_COMPRESSED:
+		case CMD_DATA_COMPRESSED:
+			LOGGER.warn("Compressed dynamic channel data was not negotiated");
+			break;
+		default:
+			LOGGER.warn("Unimplemented dynamic channel PDU {}", cmd);
+			break;
+		}
+	}
+
+	private void process_capabilities(RdpPacket data) throws RdesktopException,
+			IOException {
+		data.incrementPosition(1); // pad
+		int server_version = data.getLittleEndian16();
+		LOGGER.debug("Dynamic channel version {}", server_version);
+
+		// A new capabilities PDU means the server has started over
+		for (DynamicChannel channel : new ArrayList<>(channels.values())) {
+			if (remove(channel)) {
+				channel.closed();
+			}
+		}
+
+		version = Math.min(server_version, DYNVC_VERSION);
+		byte[] pdu = new byte[4];
+		pdu[0] = (byte) (CMD_CAPABILITY << 4);
+		pdu[2] = (byte) version;
+		pdu[3] = (byte) (version >> 8);
+		send_pdu(pdu, pdu.length);
+	}
+
+	private void process_create(RdpPacket data, int cbChId)
+			throws RdesktopException, IOException {
+		int id = getField(data, cbChId);
+		StringBuilder name = new StringBuilder();
+		while (data.getPosition() < data.getEnd()) {
+			int c = data.get8();
+			if (c == 0) {
+				break;
+			}
+			name.append((char) c);
+		}
+
+		DynamicChannelListener listener = listeners.get(name.toString());
+		DynamicChannel channel = null;
+		if (listener != null) {
+			channel = new DynamicChannel(this, id, name.toString(), listener);
+			DynamicChannel old = channels.put(id, channel);
+			if (old != null) {
+				LOGGER.warn("Dynamic channel {} reopened", id);
+				old.closed();
+			}
+		} else {
+			LOGGER.info("No listener for dynamic channel {}", name);
+		}
+
+		byte[] pdu = new byte[1 + 4 + 4];
+		int pos = header(pdu, CMD_CREATE, 0, id);
+		pos = putField(pdu, pos, 2, channel != null ? 0 : CREATE_FAILED);
+		send_pdu(pdu, pos);
+
+		if (channel != null) {
+			listener.opened(channel);
+		}
+	}
+
+	private void process_close(int id) throws RdesktopException, IOException {
+		DynamicChannel channel = channels.get(id);
+		if (channel == null || !remove(channel)) {
+			return;
+		}
+		send_close(id);
+		channel.closed();
+	}
+
+	private DynamicChannel find(int id) {
+		DynamicChannel channel = channels.get(id);
+		if (channel == null) {
+			LOGGER.warn("Data for unknown dynamic channel {}", id);
+		}
+		return channel;
+	}
+
+	/**
+	 * Forget an open channel
+	 *
+	 * @return False if the channel was already closed
+	 */
+	boolean remove(DynamicChannel channel) {
+		return channels.remove(channel.id(), channel);
+	}
+
+	/**
+	 * Send a close PDU for a channel
+	 */
+	void send_close(int id) throws RdesktopException, IOException {
+		byte[] pdu = new byte[1 + 4];
+		send_pdu(pdu, header(pdu, CMD_CLOSE, 0, id));
+	}
+
+	/**
+	 * Send one dynamic channel PDU. Threads sending on different dynamic
+	 * channels take turns, one PDU each.
+	 *
+	 * @param pdu
+	 *            Array containing the PDU
+	 * @param length
+	 *            Length of the PDU
+	 */
+	void send_pdu(byte[] pdu, int length) throws RdesktopException,
+			IOException {
+		sendLock.lock();
+		try {
+			send_packet(pdu, 0, length);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Size code (as used in the cbChId and Sp fields) of the shortest
+	 *         field that holds the value
+	 */
+	static int fieldSize(int value) {
+		if ((value & ~0xff) == 0) {
+			return 0;
+		}
+		return ((value & ~0xffff) == 0) ? 1 : 2;
+	}
+
+	/**
+	 * @return Length in bytes of a field with the given size code
+	 */
+	static int fieldLength(int size) {
+		return (size == 0) ? 1 : (size == 1) ? 2 : 4;
+	}
+
+	private static int getField(RdpPacket data, int size) {
+		switch (size) {
+		case 0:
+			return data.get8();
+		case 1:
+			return data.getLittleEndian16();
+		default:
+			return data.getLittleEndian32();
+		}
+	}
+
+	/**
+	 * Write a little-endian field of the given size code
+	 *
+	 * @return Position after the field
+	 */
+	static int putField(byte[] pdu, int pos, int size, int value) {
+		int length = fieldLength(size);
+		for (int i = 0; i < length; i++) {
+			pdu[pos++] = (byte) (value >> (8 * i));
+		}
+		return pos;
+	}
+
+	/**
+	 * Write a PDU header and channel id at the start of a PDU
+	 *
+	 * @return Position after the channel id
+	 */
+	static int header(byte[] pdu, int cmd, int sp, int id) {
+		int cbChId = fieldSize(id);
+		pdu[0] = (byte) ((cmd << 4) | (sp << 2) | cbChId);
+		return putField(pdu, 1, cbChId, id);
+	}
+}
@@ -0,0 +1,226 @@
+/* DynamicChannel.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.rdp5.drdynvc;
+
+import java.io.IOException;
+
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One dynamic virtual channel, opened by the server and carried over the
+ * drdynvc static channel
+ */
+public class DynamicChannel {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Largest reassembly buffer reserved up front from an announced length,
+	 * or kept between messages; longer messages grow the buffer as their
+	 * data arrives, and it is dropped once they are delivered
+	 */
+	private static final int MAX_PRESIZE = 1 << 16;
+
+	private final DynVChannel owner;
+
+	private final int id;
+
+	private final String name;
+
+	private final DynamicChannelListener listener;
+
+	private volatile boolean open = true;
+
+	/** PDU being built for sending, guarded by this channel's lock */
+	private final byte[] pdu = new byte[DynVChannel.DYNVC_PDU_LENGTH];
+
+	/** Reassembly buffer for fragmented messages, reused between messages */
+	private RdpPacket fragment = null;
+
+	/** Bytes held in fragment, or -1 if no message is being reassembled */
+	private int fragment_length = -1;
+
+	/** Announced length of the message being reassembled */
+	private int fragment_total = 0;
+
+	DynamicChannel(DynVChannel owner, int id, String name,
+			DynamicChannelListener listener) {
+		this.owner = owner;
+		this.id = id;
+		this.name = name;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return Channel id assigned by the server
+	 */
+	public int id() {
+		return id;
+	}
+
+	/**
+	 * @return Name the channel was opened with
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return True until the channel is closed by either side
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Send a message on this channel. Messages too large for one PDU are
+	 * split, and the lock on this channel keeps the parts of one message
+	 * together; parts of messages on other channels may be sent in between.
+	 *
+	 * @param data
+	 *            Array containing the message
+	 * @param offset
+	 *            Offset of the message within the array
+	 * @param length
+	 *            Length of the message
+	 * @throws RdesktopException
+	 * @throws IOException
+	 *             If the channel is closed or the message cannot be sent
+	 */
+	public synchronized void send(byte[] data, int offset, int length)
+			throws RdesktopException, IOException {
+		if (!open) {
+			throw new IOException("Dynamic channel " + name + " is closed");
+		}
+		int cbChId = DynVChannel.fieldSize(id);
+		int header = 1 + DynVChannel.fieldLength(cbChId);
+		if (header + length <= pdu.length) {
+			int pos = DynVChannel.header(pdu, DynVChannel.CMD_DATA, 0, id);
+			System.arraycopy(data, offset, pdu, pos, length);
+			owner.send_pdu(pdu, pos + length);
+			return;
+		}
+
+		int sp = DynVChannel.fieldSize(length);
+		int pos = DynVChannel.header(pdu, DynVChannel.CMD_DATA_FIRST, sp, id);
+		pos = DynVChannel.putField(pdu, pos, sp, length);
+		int sent = pdu.length - pos;
+		System.arraycopy(data, offset, pdu, pos, sent);
+		owner.send_pdu(pdu, pdu.length);
+
+		while (sent < length) {
+			int count = Math.min(length - sent, pdu.length - header);
+			pos = DynVChannel.header(pdu, DynVChannel.CMD_DATA, 0, id);
+			System.arraycopy(data, offset + sent, pdu, pos, count);
+			owner.send_pdu(pdu, pos + count);
+			sent += count;
+		}
+	}
+
+	/**
+	 * Close this channel
+	 *
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void close() throws RdesktopException, IOException {
+		if (owner.remove(this)) {
+			owner.send_close(id);
+			closed();
+		}
+	}
+
+	/**
+	 * Handle a data or data-first PDU
+	 *
+	 * @param data
+	 *            Packet positioned at the data
+	 * @param total_length
+	 *            Length of the whole message, for a data-first PDU, or -1
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	void receive(RdpPacket data, int total_length) throws RdesktopException,
+			IOException {
+		int length = data.getEnd() - data.getPosition();
+		if (total_length < 0 && fragment_length < 0) {
+			listener.received(this, data); // not fragmented
+			return;
+		}
+
+		if (total_length >= 0) {
+			if (fragment_length >= 0) {
+				LOGGER.warn("Dynamic channel {}: message of {} bytes was "
+						+ "incomplete", name, fragment_total);
+			}
+			int presize = Math.min(total_length, MAX_PRESIZE);
+			if (fragment == null || fragment.capacity() > MAX_PRESIZE) {
+				fragment = new RdpPacket(presize);
+			} else {
+				fragment.reset(presize);
+			}
+			fragment_length = 0;
+			fragment_total = total_length;
+		}
+
+		int needed = fragment_length + length;
+		if (needed > fragment.capacity()) {
+			RdpPacket grown = new RdpPacket(Math.max(needed,
+					fragment.capacity() * 2));
+			grown.copyFromPacket(fragment, 0, 0, fragment_length);
+			fragment = grown;
+		}
+		fragment.copyFromPacket(data, data.getPosition(), fragment_length,
+				length);
+		fragment_length = needed;
+
+		if (fragment_length < fragment_total) {
+			return;
+		}
+		if (fragment_length > fragment_total) {
+			LOGGER.warn("Dynamic channel {}: received {} bytes of a {} byte "
+					+ "message", name, fragment_length, fragment_total);
+		}
+		RdpPacket message = fragment;
+		message.setPosition(0);
+		message.markEnd(fragment_length);
+		fragment_length = -1;
+		if (message.capacity() > MAX_PRESIZE) {
+			fragment = null;
+		}
+		listener.received(this, message);
+	}
+
+	/**
+	 * Mark this channel closed and tell the listener
+	 */
+	void closed() {
+		open = false;
+		listener.closed(this);
+	}
+}
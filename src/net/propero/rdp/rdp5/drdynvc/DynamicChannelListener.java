@@ -0,0 +1,70 @@
+/* DynamicChannelListener.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.rdp5.drdynvc;
+
+import java.io.IOException;
+
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+
+/**
+ * Receives events for the dynamic channels of one name
+ *
+ * @see DynVChannel#addListener(String, DynamicChannelListener)
+ */
+public interface DynamicChannelListener {
+
+	/**
+	 * Called when the server has opened a channel
+	 *
+	 * @param channel
+	 *            The new channel, which may be sent on from now on
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void opened(DynamicChannel channel) throws RdesktopException,
+			IOException;
+
+	/**
+	 * Called with each complete message received on a channel
+	 *
+	 * @param channel
+	 *            Channel the message was received on
+	 * @param data
+	 *            Packet positioned at the start of the message; only valid
+	 *            until this method returns
+	 * @throws RdesktopException
+	 * @throws IOException
+	 */
+	public void received(DynamicChannel channel, RdpPacket data)
+			throws RdesktopException, IOException;
+
+	/**
+	 * Called when a channel has been closed by either side
+	 *
+	 * @param channel
+	 *            The closed channel
+	 */
+	public void closed(DynamicChannel channel);
+}
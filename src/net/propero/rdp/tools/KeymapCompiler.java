@@ -0,0 +1,107 @@
+/* KeymapCompiler.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.keymapping.KeyCode_FileBased;
+import net.propero.rdp.keymapping.KeyMapException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Converts text keymaps into the precompiled form that
+ * {@link KeyCode_FileBased#loadCompiled(Options, String)} reads, so that
+ * starting a session does not need to parse the text. Run by the build for
+ * every file in <code>resources/keymaps</code>.
+ */
+public class KeymapCompiler {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Precompile one keymap
+	 *
+	 * @param source
+	 *            Text keymap
+	 * @param target
+	 *            File to write the precompiled keymap to
+	 * @throws KeyMapException
+	 *             If the text keymap cannot be parsed
+	 * @throws IOException
+	 */
+	public static void compile(File source, File target)
+			throws KeyMapException, IOException {
+		KeyCode_FileBased keyMap;
+		try (InputStream in = new FileInputStream(source)) {
+			keyMap = new KeyCode_FileBased(new Options(), in);
+		}
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				target))) {
+			keyMap.writeCompiled(out);
+		}
+	}
+
+	/**
+	 * Outputs usage information
+	 */
+	public static void usage() {
+		LOGGER.info("Usage: java net.propero.rdp.tools.KeymapCompiler sourcedir targetdir");
+		LOGGER.info("	Precompiles every keymap in sourcedir into targetdir");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			usage();
+			System.exit(1);
+		}
+		File sourceDir = new File(args[0]);
+		File targetDir = new File(args[1]);
+		File[] sources = sourceDir.listFiles();
+		if (sources == null) {
+			throw new IOException("Not a directory: " + sourceDir);
+		}
+		if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+			throw new IOException("Cannot create " + targetDir);
+		}
+		for (File source : sources) {
+			if (!source.isFile()
+					|| source.getName().endsWith(KeyCode_FileBased.COMPILED_SUFFIX)) {
+				continue;
+			}
+			File target = new File(targetDir, source.getName()
+					+ KeyCode_FileBased.COMPILED_SUFFIX);
+			compile(source, target);
+			LOGGER.debug("Precompiled " + source + " to " + target);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/* SessionReplay.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.tools;
+
+import gnu.getopt.Getopt;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.OrderException;
+import net.propero.rdp.OrderSurface;
+import net.propero.rdp.Rdp;
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+import net.propero.rdp.SessionRecorder;
+import net.propero.rdp.api.InitState;
+import net.propero.rdp.api.RdesktopCallback;
+import net.propero.rdp.rdp5.VChannels;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Replays a session recorded with <code>--record</code> through the order,
+ * bitmap and surface code, without a network connection or a window. Useful
+ * for reproducible decode and render benchmarks.
+ *
+ * @see SessionRecorder
+ */
+public class SessionReplay {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * Totals for one pass over a recording.
+	 */
+	public static class Result {
+		public long records;
+
+		public long bytes;
+
+		public long dirtyRegions;
+
+		public long dirtyPixels;
+
+		public long elapsedNanos;
+
+		@Override
+		public String toString() {
+			double seconds = elapsedNanos / 1e9;
+			return String.format(
+					"%d records (%d bytes) in %.3f s: %.0f records/s, %.2f MB/s, %d dirty regions (%d pixels)",
+					records, bytes, seconds, records / seconds, bytes
+					/ seconds / (1024 * 1024), dirtyRegions, dirtyPixels);
+		}
+	}
+
+	/**
+	 * Headless callback that only counts what was drawn.
+	 */
+	private static class CountingCallback implements RdesktopCallback {
+		private final Result result;
+
+		CountingCallback(Result result) {
+			this.result = result;
+		}
+
+		@Override
+		public void stateChanged(InitState state) {
+		}
+
+		@Override
+		public void markDirty(int x, int y, int width, int height) {
+			result.dirtyRegions++;
+			result.dirtyPixels += (long) width * height;
+		}
+
+		@Override
+		public void registerSurface(OrderSurface surface) {
+		}
+
+		@Override
+		public void error(Exception ex, Rdp rdp) {
+			LOGGER.warn("Error during replay", ex);
+		}
+
+		@Override
+		public void movePointer(int x, int y) {
+		}
+
+		@Override
+		public Object createCursor(int hotspotX, int hotspotY, int width,
+				int height, byte[] andmask, byte[] xormask) {
+			return new Object();
+		}
+
+		@Override
+		public void setCursor(Object cursor) {
+		}
+
+		@Override
+		public void sizeChanged(int newWidth, int newHeight) {
+		}
+
+		@Override
+		public void registerChannels(VChannels vchannels) {
+		}
+	}
+
+	/**
+	 * Replay a recording once, with a fresh client state.
+	 *
+	 * @param filename
+	 *            Recording to replay
+	 * @param paced
+	 *            True to keep the original timing, false to replay as fast
+	 *            as possible
+	 * @return Totals for the pass
+	 * @throws IOException
+	 * @throws RdesktopException
+	 * @throws OrderException
+	 */
+	public static Result replay(String filename, boolean paced)
+			throws IOException, RdesktopException, OrderException {
+		Result result = new Result();
+		try (SessionRecorder.Reader reader = new SessionRecorder.Reader(
+				filename)) {
+			Options options = new Options();
+			options.width = reader.getWidth();
+			options.height = reader.getHeight();
+			options.set_bpp(reader.getBpp());
+
+			Rdp rdp = new Rdp(options);
+			rdp.registerDrawingSurface(new CountingCallback(result));
+
+			RdpPacket packet = new RdpPacket(4096);
+			long start = System.nanoTime();
+			long due = start;
+			while (reader.next()) {
+				if (paced) {
+					due += reader.getDelay() * 1000;
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				reader.copyTo(packet);
+				rdp.replay(reader.getKind(), packet);
+				result.records++;
+				result.bytes += reader.getLength();
+			}
+			result.elapsedNanos = System.nanoTime() - start;
+		}
+		return result;
+	}
+
+	/**
+	 * Outputs usage information
+	 */
+	public static void usage() {
+		LOGGER.info("Usage: java net.propero.rdp.tools.SessionReplay [options] file");
+		LOGGER.info("	-p							replay at the original pace instead of as fast as possible");
+		LOGGER.info("	-n COUNT					number of passes (default 1)");
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean paced = false;
+		int passes = 1;
+
+		Getopt g = new Getopt("SessionReplay", args, "pn:");
+		int c;
+		while ((c = g.getopt()) != -1) {
+			switch (c) {
+			case 'p':
+				paced = true;
+				break;
+			case 'n':
+				passes = Integer.parseInt(g.getOptarg());
+				break;
+			default:
+				usage();
+				return;
+			}
+		}
+		if (g.getOptind() >= args.length) {
+			usage();
+			return;
+		}
+		String filename = args[g.getOptind()];
+
+		for (int i = 1; i <= passes; i++) {
+			LOGGER.info("Pass " + i + ": " + replay(filename, paced));
+		}
+	}
+}
@@ -0,0 +1,1615 @@
+/* StandInServer.java
+ * Component: ProperJavaRDP
+ *
+ * Copyright (c) 2005 Propero Limited
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at
+ * your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ * (See gpl.txt for details of the GNU General Public License.)
+ *
+ */
+package net.propero.rdp.tools;
+
+import gnu.getopt.Getopt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.propero.rdp.RdesktopException;
+import net.propero.rdp.RdpPacket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * A minimal stand-in RDP server, for exercising the client without a real
+ * terminal server.
+ * <p>
+ * The server completes the X.224, MCS and standard RDP security handshake
+ * (128-bit RC4 with a proprietary server certificate), skips licensing, runs
+ * the capability exchange and then streams synthetic drawing orders, bitmap
+ * updates and/or fast-path updates at a configurable rate. Input PDUs from
+ * the client are answered with a small rectangle drawn at the event position,
+ * so that input round-trip latency can be measured on the client side.
+ * <p>
+ * This is a test tool: it only implements as much of the protocol as this
+ * client uses, and it makes no attempt to be secure.
+ */
+public class StandInServer implements Runnable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	/**
+	 * The kind of updates streamed once a client is connected.
+	 */
+	public static enum Workload {
+		/** Slow-path order updates containing opaque rectangles. */
+		ORDERS,
+		/** Slow-path uncompressed bitmap updates. */
+		BITMAPS,
+		/** Fast-path order and bitmap updates, in turn. */
+		FASTPATH,
+		/** Cycles through all of the above. */
+		MIXED
+	}
+
+	/**
+	 * Settings for a stand-in server.
+	 */
+	public static class Settings {
+
+		public int port = 3389; // -t port
+
+		public int width = 800; // -g widthxheight
+
+		public int height = 600; // -g widthxheight
+
+		public int bpp = 24; // -o bpp
+
+		public int rate = 60; // -r updates per second, 0 for no limit
+
+		public int ordersPerUpdate = 16; // -n orders per order update
+
+		public int tileSize = 64; // width and height of bitmap tiles
+
+		public Workload workload = Workload.MIXED; // -w workload
+
+		public long duration = 0; // -d seconds to stream, 0 for no limit
+
+		public boolean fastPathInput = true; // -s to accept slow-path input only
+
+		public int fragmentSize = 0; // -f bytes per fast-path fragment, 0 for the largest that fits
+	}
+
+	/* ISO/X.224 */
+	private static final int PROTOCOL_VERSION = 0x03;
+
+	private static final int CONNECTION_REQUEST = 0xE0;
+
+	private static final int CONNECTION_CONFIRM = 0xD0;
+
+	private static final int DISCONNECT_REQUEST = 0x80;
+
+	private static final int DATA_TRANSFER = 0xF0;
+
+	/* MCS */
+	private static final int CONNECT_INITIAL = 0x7f65;
+
+	private static final int CONNECT_RESPONSE = 0x7f66;
+
+	private static final int EDRQ = 1;
+
+	private static final int DPUM = 8;
+
+	private static final int AURQ = 10;
+
+	private static final int AUCF = 11;
+
+	private static final int CJRQ = 14;
+
+	private static final int CJCF = 15;
+
+	private static final int SDRQ = 25;
+
+	private static final int SDIN = 26;
+
+	private static final int MCS_GLOBAL_CHANNEL = 1003;
+
+	private static final int MCS_USERCHANNEL_BASE = 1001;
+
+	private static final int SERVER_CHANNEL_ID = 1002;
+
+	private static final int USER_ID = 6;
+
+	/** The T.124 conference create response that precedes the server data */
+	private static final byte[] GCC_CCRSP_HEADER = { 0x00, 0x05, 0x00, 0x14,
+		0x7c, 0x00, 0x01, 0x2a, 0x14, 0x76, 0x0a, 0x01, 0x01, 0x00, 0x01,
+		(byte) 0xc0, 0x00, 0x4d, 0x63, 0x44, 0x6e };
+
+	/* Secure */
+	private static final int SEC_CLIENT_RANDOM = 0x0001;
+
+	private static final int SEC_ENCRYPT = 0x0008;
+
+	private static final int SEC_LICENCE_NEG = 0x0080;
+
+	private static final int SEC_TAG_SRV_INFO = 0x0c01;
+
+	private static final int SEC_TAG_SRV_CRYPT = 0x0c02;
+
+	private static final int SEC_TAG_SRV_CHANNELS = 0x0c03;
+
+	private static final int SEC_TAG_PUBKEY = 0x0006;
+
+	private static final int SEC_RSA_MAGIC = 0x31415352;
+
+	private static final int SEC_RANDOM_SIZE = 32;
+
+	private static final int SEC_PADDING_SIZE = 8;
+
+	/* Rdp */
+	private static final int RDP_PDU_DEMAND_ACTIVE = 1;
+
+	private static final int RDP_PDU_CONFIRM_ACTIVE = 3;
+
+	private static final int RDP_PDU_DATA = 7;
+
+	private static final int RDP_DATA_PDU_UPDATE = 2;
+
+	private static final int RDP_DATA_PDU_CONTROL = 20;
+
+	private static final int RDP_DATA_PDU_INPUT = 28;
+
+	private static final int RDP_DATA_PDU_SYNCHRONISE = 31;
+
+	private static final int RDP_DATA_PDU_REFRESH_RECT = 33;
+
+	private static final int RDP_DATA_PDU_SUPPRESS_OUTPUT = 35;
+
+	private static final int RDP_DATA_PDU_FONT2 = 39;
+
+	private static final int RDP_DATA_PDU_FONTMAP = 40;
+
+	private static final int RDP_CTL_REQUEST_CONTROL = 1;
+
+	private static final int RDP_CTL_GRANT_CONTROL = 2;
+
+	private static final int RDP_CTL_COOPERATE = 4;
+
+	private static final int RDP_UPDATE_ORDERS = 0;
+
+	private static final int RDP_UPDATE_BITMAP = 1;
+
+	private static final int FASTPATH_UPDATETYPE_ORDERS = 0;
+
+	private static final int FASTPATH_UPDATETYPE_BITMAP = 1;
+
+	private static final int FASTPATH_FRAGMENT_SINGLE = 0x0;
+
+	private static final int FASTPATH_FRAGMENT_LAST = 0x1;
+
+	private static final int FASTPATH_FRAGMENT_FIRST = 0x2;
+
+	private static final int FASTPATH_FRAGMENT_NEXT = 0x3;
+
+	private static final int FASTPATH_OUTPUT_ENCRYPTED = 0x2;
+
+	/** Largest fragment that keeps a fast-path PDU within 0x7fff bytes */
+	private static final int FASTPATH_FRAGMENT_MAX = 0x7fff - 3 - 8 - 3;
+
+	private static final int INPUT_EVENT_SCANCODE = 0x0004;
+
+	private static final int INPUT_EVENT_UNICODE = 0x0005;
+
+	private static final int INPUT_EVENT_MOUSE = 0x8001;
+
+	private static final int INPUT_EVENT_MOUSEX = 0x8002;
+
+	private static final int FASTPATH_INPUT_ACTION_FASTPATH = 0x0;
+
+	private static final int FASTPATH_INPUT_ENCRYPTED = 0x2;
+
+	private static final int FASTPATH_INPUT_EVENT_SCANCODE = 0x0;
+
+	private static final int FASTPATH_INPUT_EVENT_MOUSE = 0x1;
+
+	private static final int FASTPATH_INPUT_EVENT_MOUSEX = 0x2;
+
+	private static final int FASTPATH_INPUT_EVENT_SYNC = 0x3;
+
+	private static final int FASTPATH_INPUT_EVENT_UNICODE = 0x4;
+
+	private static final int SHARE_ID = 0x103ea;
+
+	/** Control flags of an order that changes type to OPAQUERECT */
+	private static final int ORDER_STANDARD_TYPE_CHANGE = 0x01 | 0x08;
+
+	private static final int ORDER_TYPE_OPAQUERECT = 0x0A;
+
+	/** Size of an encoded, non-delta OPAQUERECT order with all fields */
+	private static final int OPAQUERECT_ORDER_SIZE = 3 + 8 + 3;
+
+	private static final byte[] pad_54 = new byte[40];
+
+	private static final byte[] pad_92 = new byte[48];
+
+	static {
+		for (int i = 0; i < pad_54.length; i++) {
+			pad_54[i] = 54;
+		}
+		for (int i = 0; i < pad_92.length; i++) {
+			pad_92[i] = 92;
+		}
+	}
+
+	private final Settings settings;
+
+	private final KeyPair serverKey;
+
+	private final byte[] certificate;
+
+	private ServerSocket serverSocket = null;
+
+	private volatile boolean running = false;
+
+	/**
+	 * Create a stand-in server. The socket is not bound until
+	 * {@link #start()} is called.
+	 *
+	 * @param settings
+	 *            Server settings
+	 * @throws GeneralSecurityException
+	 *             if the RSA server key can't be generated
+	 */
+	public StandInServer(Settings settings) throws GeneralSecurityException {
+		this.settings = settings;
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(512, new SecureRandom());
+		this.serverKey = generator.generateKeyPair();
+		this.certificate = buildCertificate((RSAPublicKey) serverKey
+				.getPublic());
+	}
+
+	/**
+	 * Bind the listening socket and start accepting clients on a background
+	 * thread.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(settings.port, 50,
+				InetAddress.getLoopbackAddress());
+		running = true;
+		Thread acceptor = new Thread(this, "StandInServer-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOGGER.info("Stand-in server listening on port " + getPort());
+	}
+
+	/**
+	 * @return The port the server is listening on, which is useful when the
+	 *         settings requested an ephemeral port (0)
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stop accepting clients. Connected sessions are closed as their sockets
+	 * fail.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to close server socket", e);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread session = new Thread(new Session(socket),
+						"StandInServer-" + socket.getPort());
+				session.setDaemon(true);
+				session.start();
+			} catch (IOException e) {
+				if (running) {
+					LOGGER.warn("Failed to accept client", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build a proprietary server certificate containing only the public key.
+	 *
+	 * @see [MS-RDPBCGR] 2.2.1.4.3.1.1
+	 */
+	private static byte[] buildCertificate(RSAPublicKey key) {
+		byte[] modulus = toLittleEndian(key.getModulus(), key.getModulus()
+				.bitLength() / 8);
+		int keylen = modulus.length + SEC_PADDING_SIZE;
+		RdpPacket cert = new RdpPacket(12 + 4 + 20 + keylen);
+
+		cert.setLittleEndian32(1); // dwVersion: proprietary certificate
+		cert.setLittleEndian32(1); // dwSigAlgId: RSA
+		cert.setLittleEndian32(1); // dwKeyAlgId: RSA
+		cert.setLittleEndian16(SEC_TAG_PUBKEY);
+		cert.setLittleEndian16(20 + keylen);
+		cert.setLittleEndian32(SEC_RSA_MAGIC);
+		cert.setLittleEndian32(keylen);
+		cert.setLittleEndian32(modulus.length * 8); // bitlen
+		cert.setLittleEndian32(modulus.length - 1); // datalen
+		cert.setLittleEndian32(key.getPublicExponent().intValue());
+		cert.copyFromByteArray(modulus, 0, cert.getPosition(), modulus.length);
+		cert.incrementPosition(keylen);
+		cert.markEnd();
+
+		byte[] data = new byte[cert.getEnd()];
+		cert.copyToByteArray(data, 0, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Convert a non-negative number to a fixed size little-endian array.
+	 */
+	private static byte[] toLittleEndian(BigInteger value, int length) {
+		byte[] be = value.toByteArray();
+		byte[] le = new byte[length];
+		for (int i = 0; i < length && i < be.length; i++) {
+			le[i] = be[be.length - 1 - i];
+		}
+		return le;
+	}
+
+	/**
+	 * Server side of the standard RDP security layer. This mirrors the key
+	 * derivation in {@link net.propero.rdp.Secure}, with the directions
+	 * swapped.
+	 */
+	private static class ServerSecurity {
+		private final SHA1Digest sha1 = new SHA1Digest();
+
+		private final MD5Digest md5 = new MD5Digest();
+
+		private final RC4Engine rc4_enc = new RC4Engine();
+
+		private final RC4Engine rc4_dec = new RC4Engine();
+
+		private final RC4Engine rc4_update = new RC4Engine();
+
+		private final int keylength = 16;
+
+		private byte[] sign_key = new byte[16];
+
+		private byte[] encrypt_key;
+
+		private byte[] decrypt_key;
+
+		private byte[] encrypt_update_key = new byte[16];
+
+		private byte[] decrypt_update_key = new byte[16];
+
+		private int enc_count = 0;
+
+		private int dec_count = 0;
+
+		ServerSecurity(byte[] client_random, byte[] server_random) {
+			byte[] input = new byte[48];
+			System.arraycopy(client_random, 0, input, 0, 24);
+			System.arraycopy(server_random, 0, input, 24, 24);
+
+			byte[] temp_hash = hash48(input, client_random, server_random, 65);
+			byte[] session_key = hash48(temp_hash, client_random,
+					server_random, 88);
+
+			System.arraycopy(session_key, 0, sign_key, 0, 16);
+			// What the client decrypts with, we encrypt with and vice versa
+			encrypt_key = hash16(session_key, client_random, server_random, 16);
+			decrypt_key = hash16(session_key, client_random, server_random, 32);
+			System.arraycopy(encrypt_key, 0, encrypt_update_key, 0, 16);
+			System.arraycopy(decrypt_key, 0, decrypt_update_key, 0, 16);
+
+			rc4_enc.init(true, new KeyParameter(encrypt_key));
+			rc4_dec.init(false, new KeyParameter(decrypt_key));
+		}
+
+		private byte[] hash48(byte[] in, byte[] salt1, byte[] salt2, int salt) {
+			byte[] shasig = new byte[20];
+			byte[] pad = new byte[4];
+			byte[] out = new byte[48];
+
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j <= i; j++) {
+					pad[j] = (byte) (salt + i);
+				}
+				sha1.update(pad, 0, i + 1);
+				sha1.update(in, 0, 48);
+				sha1.update(salt1, 0, 32);
+				sha1.update(salt2, 0, 32);
+				sha1.doFinal(shasig, 0);
+
+				md5.update(in, 0, 48);
+				md5.update(shasig, 0, 20);
+				md5.doFinal(out, i * 16);
+			}
+			return out;
+		}
+
+		private byte[] hash16(byte[] in, byte[] salt1, byte[] salt2,
+				int in_position) {
+			byte[] result = new byte[16];
+			md5.update(in, in_position, 16);
+			md5.update(salt1, 0, 32);
+			md5.update(salt2, 0, 32);
+			md5.doFinal(result, 0);
+			return result;
+		}
+
+		private byte[] update(byte[] key, byte[] update_key) {
+			byte[] shasig = new byte[20];
+			byte[] thekey = new byte[key.length];
+
+			sha1.update(update_key, 0, keylength);
+			sha1.update(pad_54, 0, 40);
+			sha1.update(key, 0, keylength);
+			sha1.doFinal(shasig, 0);
+
+			md5.update(update_key, 0, keylength);
+			md5.update(pad_92, 0, 48);
+			md5.update(shasig, 0, 20);
+			md5.doFinal(thekey, 0);
+
+			rc4_update.init(false, new KeyParameter(thekey));
+			rc4_update.processBytes(thekey, 0, keylength, thekey, 0);
+			return thekey;
+		}
+
+		/**
+		 * Sign and encrypt data in place, writing the 8-byte signature to
+		 * <code>signature</code>.
+		 */
+		void encrypt(byte[] data, int offset, int length, byte[] signature) {
+			byte[] lenhdr = new byte[4];
+			byte[] shasig = new byte[20];
+			byte[] md5sig = new byte[16];
+			lenhdr[0] = (byte) length;
+			lenhdr[1] = (byte) (length >> 8);
+			lenhdr[2] = (byte) (length >> 16);
+			lenhdr[3] = (byte) (length >> 24);
+
+			sha1.update(sign_key, 0, keylength);
+			sha1.update(pad_54, 0, 40);
+			sha1.update(lenhdr, 0, 4);
+			sha1.update(data, offset, length);
+			sha1.doFinal(shasig, 0);
+
+			md5.update(sign_key, 0, keylength);
+			md5.update(pad_92, 0, 48);
+			md5.update(shasig, 0, 20);
+			md5.doFinal(md5sig, 0);
+			System.arraycopy(md5sig, 0, signature, 0, 8);
+
+			if (enc_count == 4096) {
+				encrypt_key = update(encrypt_key, encrypt_update_key);
+				rc4_enc.init(true, new KeyParameter(encrypt_key));
+				enc_count = 0;
+			}
+			rc4_enc.processBytes(data, offset, length, data, offset);
+			enc_count++;
+		}
+
+		void decrypt(byte[] data, int offset, int length) {
+			if (dec_count == 4096) {
+				decrypt_key = update(decrypt_key, decrypt_update_key);
+				rc4_dec.init(false, new KeyParameter(decrypt_key));
+				dec_count = 0;
+			}
+			rc4_dec.processBytes(data, offset, length, data, offset);
+			dec_count++;
+		}
+	}
+
+	/**
+	 * A single connected client.
+	 */
+	private class Session implements Runnable {
+		private final Socket socket;
+
+		private final DataInputStream in;
+
+		private final DataOutputStream out;
+
+		private final byte[] server_random = new byte[SEC_RANDOM_SIZE];
+
+		private ServerSecurity security = null;
+
+		private volatile boolean streaming = false;
+
+		/** Display updates turned off by a Suppress Output PDU */
+		private volatile boolean suppressed = false;
+
+		private final AtomicLong updatesSent = new AtomicLong();
+
+		private final AtomicLong bytesSent = new AtomicLong();
+
+		private final AtomicLong inputEvents = new AtomicLong();
+
+		private int frame = 0;
+
+		Session(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket
+					.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket
+					.getOutputStream()));
+			new SecureRandom().nextBytes(server_random);
+		}
+
+		@Override
+		public void run() {
+			try {
+				LOGGER.info("Client connected from "
+						+ socket.getRemoteSocketAddress());
+				handshake();
+				while (true) {
+					int header = in.readUnsignedByte();
+					if ((header & 3) == FASTPATH_INPUT_ACTION_FASTPATH) {
+						processFastPathInput(header);
+						continue;
+					}
+					RdpPacket data = receiveSecure(header);
+					if (data == null) {
+						break;
+					}
+					processShare(data);
+				}
+			} catch (EOFException | SocketException e) {
+				LOGGER.debug("Client went away", e);
+			} catch (IOException | RdesktopException e) {
+				LOGGER.warn("Session failed", e);
+			} finally {
+				streaming = false;
+				try {
+					socket.close();
+				} catch (IOException e) {
+					LOGGER.warn("Failed to close client socket", e);
+				}
+				LOGGER.info("Client disconnected after " + updatesSent.get()
+						+ " updates (" + bytesSent.get() + " bytes) and "
+						+ inputEvents.get() + " input events");
+			}
+		}
+
+		/**
+		 * Run the connection sequence up to (but not including) the
+		 * capability exchange.
+		 */
+		private void handshake() throws IOException, RdesktopException {
+			int[] type = new int[1];
+			RdpPacket data = receiveTpkt(type);
+			if (data == null || type[0] != CONNECTION_REQUEST) {
+				throw new RdesktopException("Expected CR");
+			}
+			sendConnectionConfirm();
+
+			data = receiveTpkt(type);
+			if (data == null || data.getBigEndian16() != CONNECT_INITIAL) {
+				throw new RdesktopException("Expected MCS Connect-Initial");
+			}
+			sendConnectResponse();
+
+			// Erect domain, attach user and any number of channel joins
+			while (true) {
+				data = receiveTpkt(type);
+				if (data == null) {
+					throw new EOFException();
+				}
+				int opcode = data.get8() >> 2;
+				if (opcode == EDRQ) {
+					continue;
+				} else if (opcode == AURQ) {
+					sendMcs(new int[] { (AUCF << 2) | 2, 0, 0, USER_ID });
+				} else if (opcode == CJRQ) {
+					data.incrementPosition(2); // initiator
+					int channel = data.getBigEndian16() & 0xffff;
+					sendMcs(new int[] { (CJCF << 2) | 2, 0, 0, USER_ID,
+							channel >> 8, channel & 0xff, channel >> 8,
+							channel & 0xff });
+				} else if (opcode == SDRQ) {
+					data.setPosition(data.getPosition() - 1);
+					processClientRandom(data);
+					break;
+				} else {
+					throw new RdesktopException("Unexpected MCS PDU " + opcode);
+				}
+			}
+
+			data = receiveSecure();
+			if (data == null) {
+				throw new EOFException();
+			}
+			LOGGER.debug("Received logon info");
+
+			sendLicenceValidClient();
+			sendDemandActive();
+		}
+
+		private void processShare(RdpPacket data) throws IOException,
+				RdesktopException {
+			int start = data.getPosition();
+			data.getLittleEndian16(); // totalLength
+			int pduType = data.getLittleEndian16() & 0xf;
+			data.getLittleEndian16(); // pduSource
+
+			if (pduType == RDP_PDU_CONFIRM_ACTIVE) {
+				LOGGER.debug("Received confirm active");
+				return;
+			}
+			if (pduType != RDP_PDU_DATA) {
+				LOGGER.debug("Ignoring share PDU type " + pduType);
+				return;
+			}
+
+			data.setPosition(start + 14);
+			int dataType = data.get8();
+			data.incrementPosition(3); // compression
+
+			switch (dataType) {
+			case RDP_DATA_PDU_CONTROL:
+				if (data.getLittleEndian16() == RDP_CTL_REQUEST_CONTROL) {
+					RdpPacket sync = initData(4);
+					sync.setLittleEndian16(1); // SYNCMSGTYPE_SYNC
+					sync.setLittleEndian16(MCS_USERCHANNEL_BASE + USER_ID);
+					sendData(sync, RDP_DATA_PDU_SYNCHRONISE);
+					sendControl(RDP_CTL_COOPERATE);
+					sendControl(RDP_CTL_GRANT_CONTROL);
+				}
+				break;
+			case RDP_DATA_PDU_FONT2:
+				data.incrementPosition(4); // numberFonts, totalNumFonts
+				if ((data.getLittleEndian16() & 0x0002) != 0) { // FONTLIST_LAST
+					RdpPacket map = initData(8);
+					map.setLittleEndian16(0); // numberEntries
+					map.setLittleEndian16(0); // totalNumEntries
+					map.setLittleEndian16(0x0003); // FONTMAP_FIRST | FONTMAP_LAST
+					map.setLittleEndian16(4); // entrySize
+					sendData(map, RDP_DATA_PDU_FONTMAP);
+					startStreaming();
+				}
+				break;
+			case RDP_DATA_PDU_INPUT:
+				processInput(data);
+				break;
+			case RDP_DATA_PDU_SYNCHRONISE:
+				break;
+			case RDP_DATA_PDU_SUPPRESS_OUTPUT:
+				processSuppressOutput(data);
+				break;
+			case RDP_DATA_PDU_REFRESH_RECT:
+				processRefreshRect(data);
+				break;
+			default:
+				LOGGER.debug("Ignoring data PDU type " + dataType);
+			}
+		}
+
+		/**
+		 * Pause or resume updates. When they are resumed, redraw the area
+		 * the client asks for, as a Windows server does.
+		 */
+		private void processSuppressOutput(RdpPacket data) throws IOException,
+				RdesktopException {
+			suppressed = data.get8() == 0;
+			data.incrementPosition(3); // pad
+			LOGGER.info(suppressed ? "Display updates suppressed"
+					: "Display updates allowed");
+			if (!suppressed) {
+				int left = data.getLittleEndian16();
+				int top = data.getLittleEndian16();
+				int[] rect = { left, top, data.getLittleEndian16() - left + 1,
+						data.getLittleEndian16() - top + 1 };
+				sendRectOrders(rect, 1, false);
+			}
+		}
+
+		/**
+		 * Redraw each requested area as a single rectangle.
+		 */
+		private void processRefreshRect(RdpPacket data) throws IOException,
+				RdesktopException {
+			int count = data.get8();
+			data.incrementPosition(3); // pad
+			LOGGER.info("Refreshing " + count + " area(s)");
+			int[] rects = new int[count * 4];
+			for (int i = 0; i < count; i++) {
+				int left = data.getLittleEndian16();
+				int top = data.getLittleEndian16();
+				rects[i * 4] = left;
+				rects[i * 4 + 1] = top;
+				rects[i * 4 + 2] = data.getLittleEndian16() - left + 1;
+				rects[i * 4 + 3] = data.getLittleEndian16() - top + 1;
+			}
+			sendRectOrders(rects, count, false);
+		}
+
+		/**
+		 * Count input events, and draw a small rectangle for each one so that
+		 * the client sees a paint in response.
+		 */
+		private void processInput(RdpPacket data) throws IOException,
+				RdesktopException {
+			int count = data.getLittleEndian16();
+			data.incrementPosition(2); // pad
+			int[] events = new int[count * 4];
+			for (int i = 0; i < count * 4; i += 4) {
+				data.getLittleEndian32(); // eventTime
+				events[i] = data.getLittleEndian16() & 0xffff;
+				events[i + 1] = data.getLittleEndian16() & 0xffff;
+				events[i + 2] = data.getLittleEndian16() & 0xffff;
+				events[i + 3] = data.getLittleEndian16() & 0xffff;
+			}
+			echoInput(events, count);
+		}
+
+		/**
+		 * Handle a fast-path input PDU, converting its events to their
+		 * slow-path form.
+		 *
+		 * @param header
+		 *            First byte of the PDU, already read
+		 */
+		private void processFastPathInput(int header) throws IOException,
+				RdesktopException {
+			int length = in.readUnsignedByte();
+			int headerLength = 2;
+			if ((length & 0x80) != 0) {
+				length = ((length & 0x7f) << 8) | in.readUnsignedByte();
+				headerLength = 3;
+			}
+			byte[] buffer = new byte[length - headerLength];
+			in.readFully(buffer);
+			int offset = 0;
+			if (((header >> 6) & FASTPATH_INPUT_ENCRYPTED) != 0) {
+				offset = 8; // signature
+				security.decrypt(buffer, offset, buffer.length - offset);
+			}
+			RdpPacket data = new RdpPacket(buffer.length);
+			data.copyFromByteArray(buffer, 0, 0, buffer.length);
+			data.markEnd(buffer.length);
+			data.setPosition(offset);
+
+			int count = (header >> 2) & 0xf;
+			if (count == 0) {
+				count = data.get8();
+			}
+			int[] events = new int[count * 4];
+			for (int i = 0; i < count * 4; i += 4) {
+				int eventHeader = data.get8();
+				int eventFlags = eventHeader & 0x1f;
+				switch (eventHeader >> 5) {
+				case FASTPATH_INPUT_EVENT_SCANCODE:
+					events[i] = INPUT_EVENT_SCANCODE;
+					events[i + 1] = ((eventFlags & 0x01) != 0) ? 0xc000 : 0;
+					events[i + 2] = data.get8();
+					break;
+				case FASTPATH_INPUT_EVENT_MOUSE:
+				case FASTPATH_INPUT_EVENT_MOUSEX:
+					events[i] = (eventHeader >> 5 == FASTPATH_INPUT_EVENT_MOUSE) ? INPUT_EVENT_MOUSE
+							: INPUT_EVENT_MOUSEX;
+					events[i + 1] = data.getLittleEndian16() & 0xffff;
+					events[i + 2] = data.getLittleEndian16() & 0xffff;
+					events[i + 3] = data.getLittleEndian16() & 0xffff;
+					break;
+				case FASTPATH_INPUT_EVENT_SYNC:
+					break;
+				case FASTPATH_INPUT_EVENT_UNICODE:
+					events[i] = INPUT_EVENT_UNICODE;
+					events[i + 1] = ((eventFlags & 0x01) != 0) ? 0x8000 : 0;
+					events[i + 2] = data.getLittleEndian16() & 0xffff;
+					break;
+				default:
+					throw new RdesktopException("Unknown fast-path input event "
+							+ (eventHeader >> 5));
+				}
+			}
+			echoInput(events, count);
+		}
+
+		/**
+		 * Draw a small rectangle for each key press or pointer event.
+		 *
+		 * @param events
+		 *            Type, flags, param1 and param2 of each event, using
+		 *            slow-path values
+		 * @param count
+		 *            Number of events
+		 */
+		private void echoInput(int[] events, int count) throws IOException,
+				RdesktopException {
+			int[] rects = new int[count * 4];
+			int n = 0;
+			for (int i = 0; i < count * 4; i += 4) {
+				int type = events[i];
+				int flags = events[i + 1];
+				int param1 = events[i + 2];
+				int param2 = events[i + 3];
+				inputEvents.incrementAndGet();
+				if (type == INPUT_EVENT_MOUSE || type == INPUT_EVENT_MOUSEX) {
+					if ((flags & 0x0600) != 0) {
+						continue; // wheel; the coordinates are meaningless
+					}
+					rects[n++] = Math.min(param1, settings.width - 8);
+					rects[n++] = Math.min(param2, settings.height - 8);
+				} else if (type == INPUT_EVENT_SCANCODE
+						|| type == INPUT_EVENT_UNICODE) {
+					rects[n++] = (param1 * 8) % (settings.width - 8);
+					rects[n++] = 0;
+				} else {
+					continue;
+				}
+				rects[n++] = 8;
+				rects[n++] = 8;
+			}
+			if (n > 0) {
+				sendRectOrders(rects, n / 4, false);
+			}
+		}
+
+		private void startStreaming() {
+			if (streaming) {
+				return;
+			}
+			streaming = true;
+			Thread streamer = new Thread(this::stream, Thread.currentThread()
+					.getName() + "-stream");
+			streamer.setDaemon(true);
+			streamer.start();
+		}
+
+		/**
+		 * Send updates at the configured rate until the client disconnects or
+		 * the configured duration has elapsed.
+		 */
+		private void stream() {
+			long interval = settings.rate > 0 ? 1000000000L / settings.rate : 0;
+			long begin = System.nanoTime();
+			long deadline = settings.duration > 0 ? begin + settings.duration
+					* 1000000000L : Long.MAX_VALUE;
+			long next = begin;
+			long lastReport = begin;
+			long lastCount = 0;
+			try {
+				while (streaming && running) {
+					long now = System.nanoTime();
+					if (now >= deadline) {
+						break;
+					}
+					if (interval > 0) {
+						next += interval;
+						if (next > now) {
+							LockSupport.parkNanos(next - now);
+						} else if (now - next > 1000000000L) {
+							next = now; // too far behind; don't try to catch up
+						}
+					}
+					if (suppressed) {
+						LockSupport.parkNanos(1000000L);
+						continue;
+					}
+					sendSyntheticUpdate();
+
+					if (now - lastReport >= 5000000000L) {
+						long count = updatesSent.get();
+						LOGGER.info(String.format(
+								"%d updates/s, %d bytes sent, %d input events",
+								(count - lastCount) * 1000000000L
+								/ (now - lastReport), bytesSent.get(),
+								inputEvents.get()));
+						lastReport = now;
+						lastCount = count;
+					}
+				}
+			} catch (IOException | RdesktopException e) {
+				LOGGER.debug("Streaming stopped", e);
+			}
+		}
+
+		private void sendSyntheticUpdate() throws IOException,
+				RdesktopException {
+			Workload workload = settings.workload;
+			if (workload == Workload.MIXED) {
+				workload = Workload.values()[frame % 3];
+			}
+			if (workload == Workload.FASTPATH && frame % 2 == 1) {
+				sendBitmapTile(true);
+				frame++;
+				return;
+			}
+			switch (workload) {
+			case ORDERS:
+			case FASTPATH: {
+				int count = settings.ordersPerUpdate;
+				int[] rects = new int[count * 4];
+				for (int i = 0; i < count; i++) {
+					int seed = frame * count + i;
+					rects[i * 4] = (seed * 37) % (settings.width - 32);
+					rects[i * 4 + 1] = (seed * 17) % (settings.height - 32);
+					rects[i * 4 + 2] = 32;
+					rects[i * 4 + 3] = 32;
+				}
+				sendRectOrders(rects, count, workload == Workload.FASTPATH);
+				break;
+			}
+			case BITMAPS:
+				sendBitmapTile(false);
+				break;
+			default:
+				throw new AssertionError(workload);
+			}
+			frame++;
+		}
+
+		/**
+		 * Send a batch of OPAQUERECT orders, in a slow-path or fast-path
+		 * update.
+		 *
+		 * @param rects
+		 *            x, y, width, height for each rectangle
+		 */
+		private void sendRectOrders(int[] rects, int count, boolean fastpath)
+				throws IOException, RdesktopException {
+			int ordersLength = count * OPAQUERECT_ORDER_SIZE;
+			RdpPacket data;
+			if (fastpath) {
+				data = new RdpPacket(2 + ordersLength);
+				data.setLittleEndian16(count);
+			} else {
+				data = initData(8 + ordersLength);
+				data.setLittleEndian16(RDP_UPDATE_ORDERS);
+				data.setLittleEndian16(0); // pad
+				data.setLittleEndian16(count);
+				data.setLittleEndian16(0); // pad
+			}
+			for (int i = 0; i < count; i++) {
+				int colour = 0x123456 * (frame + i + 1);
+				data.set8(ORDER_STANDARD_TYPE_CHANGE);
+				data.set8(ORDER_TYPE_OPAQUERECT);
+				data.set8(0x7f); // all 7 fields present
+				data.setLittleEndian16(rects[i * 4]);
+				data.setLittleEndian16(rects[i * 4 + 1]);
+				data.setLittleEndian16(rects[i * 4 + 2]);
+				data.setLittleEndian16(rects[i * 4 + 3]);
+				data.set8(colour);
+				data.set8(colour >> 8);
+				data.set8(colour >> 16);
+			}
+			if (fastpath) {
+				sendFastPath(FASTPATH_UPDATETYPE_ORDERS, data);
+			} else {
+				sendData(data, RDP_DATA_PDU_UPDATE);
+			}
+		}
+
+		/**
+		 * Send a single uncompressed gradient tile as a slow-path or
+		 * fast-path bitmap update.
+		 */
+		private void sendBitmapTile(boolean fastpath) throws IOException,
+				RdesktopException {
+			int size = settings.tileSize;
+			int Bpp = (settings.bpp + 7) / 8;
+			int tilesAcross = Math.max(1, settings.width / size);
+			int tilesDown = Math.max(1, settings.height / size);
+			int tile = frame % (tilesAcross * tilesDown);
+			int left = (tile % tilesAcross) * size;
+			int top = (tile / tilesAcross) * size;
+
+			int length = 2 + 2 + 18 + size * size * Bpp;
+			RdpPacket data = fastpath ? new RdpPacket(length) : initData(length);
+			data.setLittleEndian16(RDP_UPDATE_BITMAP);
+			data.setLittleEndian16(1); // numberRectangles
+			data.setLittleEndian16(left);
+			data.setLittleEndian16(top);
+			data.setLittleEndian16(left + size - 1);
+			data.setLittleEndian16(top + size - 1);
+			data.setLittleEndian16(size);
+			data.setLittleEndian16(size);
+			data.setLittleEndian16(settings.bpp);
+			data.setLittleEndian16(0); // uncompressed
+			data.setLittleEndian16(size * size * Bpp);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					int pixel = (x * 4 + frame) ^ (y * 4);
+					for (int b = 0; b < Bpp; b++) {
+						data.set8(pixel >> (b * 3));
+					}
+				}
+			}
+			if (fastpath) {
+				sendFastPath(FASTPATH_UPDATETYPE_BITMAP, data);
+			} else {
+				sendData(data, RDP_DATA_PDU_UPDATE);
+			}
+		}
+
+		private void sendControl(int action) throws IOException,
+				RdesktopException {
+			RdpPacket data = initData(8);
+			data.setLittleEndian16(action);
+			data.setLittleEndian16(0); // grantId
+			data.setLittleEndian32(0); // controlId
+			sendData(data, RDP_DATA_PDU_CONTROL);
+		}
+
+		private void sendConnectionConfirm() throws IOException {
+			byte[] cc = { PROTOCOL_VERSION, 0, 0, 11, 6,
+					(byte) CONNECTION_CONFIRM, 0, 0, 0, 0, 0 };
+			out.write(cc);
+			out.flush();
+		}
+
+		/**
+		 * Send the MCS Connect-Response, carrying the server core, network
+		 * and security data. The security data must come last, as the client
+		 * parses the certificate up to the end of the packet.
+		 */
+		private void sendConnectResponse() throws IOException {
+			int blocksLength = 12 + 8 + 4 + 16 + SEC_RANDOM_SIZE
+					+ certificate.length;
+			int userDataLength = GCC_CCRSP_HEADER.length + 2 + blocksLength;
+			int domainParams = 3 * 8; // 8 integers, all <= 0xff
+			int length = 3 + 3 + 2 + domainParams + 4 + userDataLength;
+
+			RdpPacket data = initTpkt(5 + length);
+			data.setBigEndian16(CONNECT_RESPONSE);
+			data.set8(0x82);
+			data.setBigEndian16(length);
+			data.set8(0x0a); // BER_TAG_RESULT
+			data.set8(1);
+			data.set8(0); // rt-successful
+			data.set8(0x02); // BER_TAG_INTEGER
+			data.set8(1);
+			data.set8(0); // calledConnectId
+			data.set8(0x30); // domain parameters
+			data.set8(domainParams);
+			int[] params = { 34, 3, 0, 1, 0, 1, 0xff, 2 };
+			for (int i = 0; i < params.length; i++) {
+				data.set8(0x02);
+				data.set8(1);
+				data.set8(params[i]);
+			}
+			data.set8(0x04); // BER_TAG_OCTET_STRING
+			data.set8(0x82);
+			data.setBigEndian16(userDataLength);
+
+			data.copyFromByteArray(GCC_CCRSP_HEADER, 0, data.getPosition(),
+					GCC_CCRSP_HEADER.length);
+			data.incrementPosition(GCC_CCRSP_HEADER.length);
+			data.set8(0x80 | (blocksLength >> 8));
+			data.set8(blocksLength);
+
+			data.setLittleEndian16(SEC_TAG_SRV_INFO);
+			data.setLittleEndian16(12);
+			data.setLittleEndian32(0x00080004); // RDP 5+
+			data.setLittleEndian32(0); // clientRequestedProtocols
+
+			data.setLittleEndian16(SEC_TAG_SRV_CHANNELS);
+			data.setLittleEndian16(8);
+			data.setLittleEndian16(MCS_GLOBAL_CHANNEL);
+			data.setLittleEndian16(0); // channelCount
+
+			data.setLittleEndian16(SEC_TAG_SRV_CRYPT);
+			data.setLittleEndian16(4 + 16 + SEC_RANDOM_SIZE
+					+ certificate.length);
+			data.setLittleEndian32(2); // ENCRYPTION_METHOD_128BIT
+			data.setLittleEndian32(2); // ENCRYPTION_LEVEL_CLIENT_COMPATIBLE
+			data.setLittleEndian32(SEC_RANDOM_SIZE);
+			data.setLittleEndian32(certificate.length);
+			data.copyFromByteArray(server_random, 0, data.getPosition(),
+					SEC_RANDOM_SIZE);
+			data.incrementPosition(SEC_RANDOM_SIZE);
+			data.copyFromByteArray(certificate, 0, data.getPosition(),
+					certificate.length);
+			data.incrementPosition(certificate.length);
+
+			data.markEnd();
+			sendTpkt(data);
+		}
+
+		/**
+		 * Decrypt the client random from the security exchange PDU and derive
+		 * the session keys.
+		 */
+		private void processClientRandom(RdpPacket data)
+				throws RdesktopException {
+			skipSendDataHeader(data);
+			int flags = data.getLittleEndian32();
+			if ((flags & SEC_CLIENT_RANDOM) == 0) {
+				throw new RdesktopException("Expected security exchange");
+			}
+			int length = data.getLittleEndian32() - SEC_PADDING_SIZE;
+			byte[] crypted = new byte[length];
+			data.copyToByteArray(crypted, 0, data.getPosition(), length);
+
+			BigInteger y = new BigInteger(1, reverse(crypted));
+			RSAPrivateKey key = (RSAPrivateKey) serverKey.getPrivate();
+			BigInteger x = y.modPow(key.getPrivateExponent(), key.getModulus());
+			byte[] client_random = toLittleEndian(x, SEC_RANDOM_SIZE);
+
+			security = new ServerSecurity(client_random, server_random);
+		}
+
+		private void sendLicenceValidClient() throws IOException,
+				RdesktopException {
+			RdpPacket data = initSecure(16, false);
+			data.set8(0xff); // ERROR_ALERT
+			data.set8(0x03); // PREAMBLE_VERSION_3_0
+			data.setLittleEndian16(16);
+			data.setLittleEndian32(7); // STATUS_VALID_CLIENT
+			data.setLittleEndian32(2); // ST_NO_TRANSITION
+			data.setLittleEndian16(4); // BB_ERROR_BLOB
+			data.setLittleEndian16(0);
+			sendSecure(data, SEC_LICENCE_NEG, MCS_GLOBAL_CHANNEL);
+		}
+
+		/**
+		 * Send a demand active PDU with the general, bitmap and input
+		 * capability sets.
+		 *
+		 * @see [MS-RDPBCGR] 2.2.1.13.1
+		 */
+		private void sendDemandActive() throws IOException,
+				RdesktopException {
+			int capsLength = 4 + 0x18 + 0x1C + 0x58 + 0x0C;
+			int length = 6 + 4 + 4 + 4 + capsLength + 4;
+			RdpPacket data = initSecure(length, true);
+			data.setLittleEndian16(length);
+			data.setLittleEndian16(RDP_PDU_DEMAND_ACTIVE | 0x10);
+			data.setLittleEndian16(SERVER_CHANNEL_ID);
+			data.setLittleEndian32(SHARE_ID);
+			data.setLittleEndian16(4); // lengthSourceDescriptor
+			data.setLittleEndian16(capsLength);
+			data.out_uint8p("RDP", 4);
+			data.setLittleEndian16(4); // numberCapabilities
+			data.setLittleEndian16(0); // pad
+
+			data.setLittleEndian16(0x01); // CAPSTYPE_GENERAL
+			data.setLittleEndian16(0x18);
+			data.setLittleEndian16(1); // OSMAJORTYPE_WINDOWS
+			data.setLittleEndian16(3); // OSMINORTYPE_WINDOWS_NT
+			data.setLittleEndian16(0x200); // TS_CAPS_PROTOCOLVERSION
+			data.setLittleEndian16(0); // pad
+			data.setLittleEndian16(0); // compression types
+			data.setLittleEndian16(0x0001 | 0x0004); // FASTPATH_OUTPUT_SUPPORTED | LONG_CREDENTIALS_SUPPORTED
+			data.setLittleEndian16(0); // update capability
+			data.setLittleEndian16(0); // remote unshare
+			data.setLittleEndian16(0); // compression level
+			data.set8(1); // refresh rect supported
+			data.set8(1); // suppress output supported
+
+			data.setLittleEndian16(0x02); // CAPSTYPE_BITMAP
+			data.setLittleEndian16(0x1C);
+			data.setLittleEndian16(settings.bpp);
+			data.setLittleEndian16(1);
+			data.setLittleEndian16(1);
+			data.setLittleEndian16(1);
+			data.setLittleEndian16(settings.width);
+			data.setLittleEndian16(settings.height);
+			data.setLittleEndian16(0); // pad
+			data.setLittleEndian16(1); // desktop resize
+			data.setLittleEndian16(1); // bitmap compression
+			data.set8(0);
+			data.set8(0);
+			data.setLittleEndian16(1); // multiple rectangles
+			data.setLittleEndian16(0); // pad
+
+			data.setLittleEndian16(0x0D); // CAPSTYPE_INPUT
+			data.setLittleEndian16(0x58);
+			int inputFlags = 0x0001 | 0x0004 | 0x0010 | 0x0100; // SCANCODES | MOUSEX | UNICODE | MOUSE_HWHEEL
+			if (settings.fastPathInput) {
+				inputFlags |= 0x0020; // FASTPATH_INPUT2
+			}
+			data.setLittleEndian16(inputFlags);
+			data.setLittleEndian16(0); // pad
+			data.setLittleEndian32(0); // keyboard layout
+			data.setLittleEndian32(0); // keyboard type
+			data.setLittleEndian32(0); // keyboard subtype
+			data.setLittleEndian32(0); // function keys
+			data.incrementPosition(64); // IME file name
+
+			data.setLittleEndian16(0x14); // CAPSTYPE_VIRTUALCHANNEL
+			data.setLittleEndian16(0x0C);
+			data.setLittleEndian32(0); // flags
+			data.setLittleEndian32(16256); // VCChunkSize
+
+			data.setLittleEndian32(0); // sessionId
+			sendSecure(data, SEC_ENCRYPT, MCS_GLOBAL_CHANNEL);
+		}
+
+		/* Packet framing */
+
+		/**
+		 * Read one TPKT, returning a packet positioned after the X.224
+		 * header. Returns null on a disconnect request.
+		 */
+		private RdpPacket receiveTpkt(int[] type) throws IOException,
+				RdesktopException {
+			return receiveTpkt(in.readUnsignedByte(), type);
+		}
+
+		/**
+		 * Read the rest of a TPKT whose first byte has already been read.
+		 */
+		private RdpPacket receiveTpkt(int version, int[] type)
+				throws IOException, RdesktopException {
+			if (version != PROTOCOL_VERSION) {
+				throw new RdesktopException("Unexpected TPKT version "
+						+ version);
+			}
+			in.readUnsignedByte(); // reserved
+			int length = in.readUnsignedShort();
+			byte[] buffer = new byte[length - 4];
+			in.readFully(buffer);
+
+			RdpPacket data = new RdpPacket(buffer.length);
+			data.copyFromByteArray(buffer, 0, 0, buffer.length);
+			data.markEnd(buffer.length);
+			int li = data.get8();
+			type[0] = data.get8();
+			if (type[0] == DISCONNECT_REQUEST) {
+				return null;
+			}
+			data.setPosition(1 + li);
+			return data;
+		}
+
+		/**
+		 * Receive a send data request on any channel, decrypting it if
+		 * needed. The returned packet is positioned after the security
+		 * header. Returns null when the client disconnects.
+		 */
+		private RdpPacket receiveSecure() throws IOException,
+				RdesktopException {
+			return receiveSecure(in.readUnsignedByte());
+		}
+
+		/**
+		 * As {@link #receiveSecure()}, where the first byte of the TPKT has
+		 * already been read.
+		 */
+		private RdpPacket receiveSecure(int version) throws IOException,
+				RdesktopException {
+			int[] type = new int[1];
+			RdpPacket data = receiveTpkt(version, type);
+			if (data == null) {
+				return null;
+			}
+			int opcode = data.get8() >> 2;
+			if (opcode == DPUM) {
+				return null;
+			}
+			if (opcode != SDRQ) {
+				throw new RdesktopException("Expected SDRQ got " + opcode);
+			}
+			data.setPosition(data.getPosition() - 1);
+			skipSendDataHeader(data);
+
+			int flags = data.getLittleEndian32();
+			if ((flags & SEC_ENCRYPT) != 0) {
+				data.incrementPosition(8); // signature
+				int length = data.getEnd() - data.getPosition();
+				byte[] buffer = new byte[length];
+				data.copyToByteArray(buffer, 0, data.getPosition(), length);
+				security.decrypt(buffer, 0, length);
+				data.copyFromByteArray(buffer, 0, data.getPosition(), length);
+			}
+			return data;
+		}
+
+		private void skipSendDataHeader(RdpPacket data) {
+			data.get8(); // opcode
+			data.incrementPosition(4); // initiator, channel id
+			data.get8(); // flags
+			int length = data.get8();
+			if ((length & 0x80) != 0) {
+				data.get8();
+			}
+		}
+
+		private RdpPacket initTpkt(int length) {
+			RdpPacket data = new RdpPacket(7 + length);
+			data.incrementPosition(7);
+			return data;
+		}
+
+		/**
+		 * Initialise a packet with room for TPKT, X.224, an MCS send data
+		 * indication and a security header.
+		 */
+		private RdpPacket initSecure(int length, boolean encrypt) {
+			RdpPacket data = initTpkt(8 + (encrypt ? 12 : 4) + length);
+			data.incrementPosition(8 + (encrypt ? 12 : 4));
+			return data;
+		}
+
+		private RdpPacket initData(int length) {
+			RdpPacket data = initSecure(18 + length, true);
+			data.incrementPosition(18);
+			return data;
+		}
+
+		private void sendData(RdpPacket data, int dataType)
+				throws IOException, RdesktopException {
+			data.markEnd();
+			int header = 7 + 8 + 12;
+			int length = data.getEnd() - header;
+			data.setPosition(header);
+			data.setLittleEndian16(length);
+			data.setLittleEndian16(RDP_PDU_DATA | 0x10);
+			data.setLittleEndian16(SERVER_CHANNEL_ID);
+			data.setLittleEndian32(SHARE_ID);
+			data.set8(0); // pad
+			data.set8(1); // STREAM_LOW
+			data.setLittleEndian16(length - 14);
+			data.set8(dataType);
+			data.set8(0); // compression type
+			data.setLittleEndian16(0); // compression length
+			data.setPosition(data.getEnd());
+			sendSecure(data, SEC_ENCRYPT, MCS_GLOBAL_CHANNEL);
+		}
+
+		/**
+		 * Fill in the security, MCS and TPKT headers and send. Encryption
+		 * and the write share a lock so that the RC4 stream stays in step
+		 * with the order of packets on the wire.
+		 */
+		private void sendSecure(RdpPacket data, int flags, int channel)
+				throws IOException, RdesktopException {
+			data.markEnd();
+			boolean encrypt = (flags & SEC_ENCRYPT) != 0;
+			int secHeader = 7 + 8;
+			synchronized (this) {
+				data.setPosition(secHeader);
+				data.setLittleEndian32(flags);
+				if (encrypt) {
+					int offset = secHeader + 12;
+					int length = data.getEnd() - offset;
+					byte[] buffer = new byte[length];
+					byte[] signature = new byte[8];
+					data.copyToByteArray(buffer, 0, offset, length);
+					security.encrypt(buffer, 0, length, signature);
+					data.copyFromByteArray(signature, 0, secHeader + 4, 8);
+					data.copyFromByteArray(buffer, 0, offset, length);
+				}
+				data.setPosition(7);
+				data.set8(SDIN << 2);
+				data.setBigEndian16(SERVER_CHANNEL_ID - MCS_USERCHANNEL_BASE);
+				data.setBigEndian16(channel);
+				data.set8(0x70); // flags
+				data.setBigEndian16((data.getEnd() - secHeader) | 0x8000);
+				sendTpkt(data);
+			}
+			updatesSent.incrementAndGet();
+		}
+
+		private void sendMcs(int[] bytes) throws IOException {
+			RdpPacket data = initTpkt(bytes.length);
+			for (int b : bytes) {
+				data.set8(b);
+			}
+			data.markEnd();
+			sendTpkt(data);
+		}
+
+		private void sendTpkt(RdpPacket data) throws IOException {
+			int length = data.getEnd();
+			data.setPosition(0);
+			data.set8(PROTOCOL_VERSION);
+			data.set8(0);
+			data.setBigEndian16(length);
+			data.set8(2); // LI
+			data.set8(DATA_TRANSFER);
+			data.set8(0x80); // EOT
+			write(data, 0, length);
+		}
+
+		/**
+		 * Send an update as one or more encrypted fast-path update PDUs,
+		 * fragmenting it if it is larger than the fragment size.
+		 *
+		 * @param update
+		 *            Update data, from offset 0 to the current position
+		 * @see [MS-RDPBCGR] 2.2.9.1.2
+		 */
+		private void sendFastPath(int updateCode, RdpPacket update)
+				throws IOException {
+			update.markEnd();
+			int total = update.getEnd();
+			int max = (settings.fragmentSize > 0) ? Math.min(
+					settings.fragmentSize, FASTPATH_FRAGMENT_MAX)
+					: FASTPATH_FRAGMENT_MAX;
+			int offset = 0;
+			do {
+				int size = Math.min(max, total - offset);
+				int fragmentation;
+				if (size == total) {
+					fragmentation = FASTPATH_FRAGMENT_SINGLE;
+				} else if (offset == 0) {
+					fragmentation = FASTPATH_FRAGMENT_FIRST;
+				} else if (offset + size == total) {
+					fragmentation = FASTPATH_FRAGMENT_LAST;
+				} else {
+					fragmentation = FASTPATH_FRAGMENT_NEXT;
+				}
+				RdpPacket data = new RdpPacket(3 + 8 + 3 + size);
+				data.setPosition(3 + 8);
+				data.set8(updateCode | (fragmentation << 4));
+				data.setLittleEndian16(size);
+				data.copyFromPacket(update, offset, data.getPosition(), size);
+				data.incrementPosition(size);
+				sendFastPathPdu(data);
+				offset += size;
+			} while (offset < total);
+			updatesSent.incrementAndGet();
+		}
+
+		/**
+		 * Fill in the signature and fast-path header, encrypt and send.
+		 */
+		private void sendFastPathPdu(RdpPacket data) throws IOException {
+			data.markEnd();
+			int length = data.getEnd();
+			int encrypted = 3 + 8;
+			byte[] buffer = new byte[length - encrypted];
+			byte[] signature = new byte[8];
+			synchronized (this) {
+				data.copyToByteArray(buffer, 0, encrypted, buffer.length);
+				security.encrypt(buffer, 0, buffer.length, signature);
+				data.copyFromByteArray(signature, 0, 3, 8);
+				data.copyFromByteArray(buffer, 0, encrypted, buffer.length);
+				int offset;
+				if (length - 1 <= 0x7f) {
+					offset = 1;
+					data.setPosition(offset);
+					data.set8(FASTPATH_OUTPUT_ENCRYPTED << 6);
+					data.set8(length - 1);
+				} else {
+					offset = 0;
+					data.setPosition(offset);
+					data.set8(FASTPATH_OUTPUT_ENCRYPTED << 6);
+					data.set8(0x80 | (length >> 8));
+					data.set8(length);
+				}
+				write(data, offset, length - offset);
+			}
+		}
+
+		private synchronized void write(RdpPacket data, int offset, int length)
+				throws IOException {
+			byte[] buffer = new byte[length];
+			data.copyToByteArray(buffer, 0, offset, length);
+			out.write(buffer);
+			out.flush();
+			bytesSent.addAndGet(length);
+		}
+	}
+
+	private static byte[] reverse(byte[] data) {
+		for (int i = 0, j = data.length - 1; i < j; i++, j--) {
+			byte temp = data[i];
+			data[i] = data[j];
+			data[j] = temp;
+		}
+		return data;
+	}
+
+	/**
+	 * Outputs usage information
+	 */
+	public static void usage() {
+		LOGGER.info("Usage: java net.propero.rdp.tools.StandInServer [options]");
+		LOGGER.info("	-t PORT						port to listen on (default 3389, 0 for any)");
+		LOGGER.info("	-g WxH						desktop geometry");
+		LOGGER.info("	-o BPP						bits-per-pixel for bitmap updates");
+		LOGGER.info("	-r RATE						updates per second (0 for no limit)");
+		LOGGER.info("	-n COUNT					orders per order update");
+		LOGGER.info("	-w WORKLOAD					one of ORDERS, BITMAPS, FASTPATH, MIXED");
+		LOGGER.info("	-d SECONDS					stop streaming after this long");
+		LOGGER.info("	-s							don't advertise fast-path input");
+		LOGGER.info("	-f BYTES					largest fast-path update fragment");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Settings settings = new Settings();
+		Getopt g = new Getopt("StandInServer", args, "t:g:o:r:n:w:d:sf:");
+		int c;
+		while ((c = g.getopt()) != -1) {
+			String arg = g.getOptarg();
+			switch (c) {
+			case 't':
+				settings.port = Integer.parseInt(arg);
+				break;
+			case 'g': {
+				int cut = arg.indexOf('x');
+				if (cut == -1) {
+					usage();
+					return;
+				}
+				settings.width = Integer.parseInt(arg.substring(0, cut)) & ~3;
+				settings.height = Integer.parseInt(arg.substring(cut + 1));
+				break;
+			}
+			case 'o':
+				settings.bpp = Integer.parseInt(arg);
+				break;
+			case 'r':
+				settings.rate = Integer.parseInt(arg);
+				break;
+			case 'n':
+				settings.ordersPerUpdate = Integer.parseInt(arg);
+				break;
+			case 'w':
+				settings.workload = Workload.valueOf(arg.toUpperCase());
+				break;
+			case 'd':
+				settings.duration = Long.parseLong(arg);
+				break;
+			case 's':
+				settings.fastPathInput = false;
+				break;
+			case 'f':
+				settings.fragmentSize = Integer.parseInt(arg);
+				break;
+			default:
+				usage();
+				return;
+			}
+		}
+
+		StandInServer server = new StandInServer(settings);
+		server.start();
+		Thread.currentThread().join(); // serve until killed
+	}
+}
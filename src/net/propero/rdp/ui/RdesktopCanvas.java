@@ -100,9 +100,12 @@ public class RdesktopCanvas extends Canvas {
 		if (surface == null) {
 			return;
 		}
+		long start = System.nanoTime();
 		Rectangle r = g.getClipBounds();
 		g.drawImage(surface.getSubimage(r.x, r.y, r.width, r.height), r.x,
 				r.y, null);
+		options.stats.renderTime.record(System.nanoTime() - start);
+		options.stats.inputLatency.painted();
 	}
 
 	/**
@@ -191,13 +194,15 @@ public class RdesktopCanvas extends Canvas {
 			// here we add the key so we can later check if it happened
 			pressedKeys.add(e.getKeyCode());
 
-			LOGGER.debug("PRESSED keychar='" + e.getKeyChar() + "' keycode=0x"
-					+ Integer.toHexString(e.getKeyCode()) + " char='"
-					+ ((char) e.getKeyCode()) + "'");
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("PRESSED keychar='" + e.getKeyChar() + "' keycode=0x"
+						+ Integer.toHexString(e.getKeyCode()) + " char='"
+						+ ((char) e.getKeyCode()) + "'");
+			}
 
 			if (rdp != null) {
 				if (!input.handleSpecialKeys(time, e, true)) {
-					input.sendKeyPresses(input.newKeyMapper.getKeyStrokes(e));
+					input.sendKeyStrokes(e);
 				}
 				// sendScancode(time, RDP_KEYPRESS, keys.getScancode(e));
 			}
@@ -217,14 +222,16 @@ public class RdesktopCanvas extends Canvas {
 			// here we add the key so we can later check if it happened
 			pressedKeys.add(e.getKeyCode());
 
-			LOGGER.debug("TYPED keychar='" + e.getKeyChar() + "' keycode=0x"
-					+ Integer.toHexString(e.getKeyCode()) + " char='"
-					+ ((char) e.getKeyCode()) + "'");
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("TYPED keychar='" + e.getKeyChar() + "' keycode=0x"
+						+ Integer.toHexString(e.getKeyCode()) + " char='"
+						+ ((char) e.getKeyCode()) + "'");
+			}
 
 			if (rdp != null) {
 				if (!input.handleSpecialKeys(time, e, true))
 				{
-					input.sendKeyPresses(input.newKeyMapper.getKeyStrokes(e));
+					input.sendKeyStrokes(e);
 					// sendScancode(time, RDP_KEYPRESS, keys.getScancode(e));
 				}
 			}
@@ -249,12 +256,14 @@ public class RdesktopCanvas extends Canvas {
 			input.modifiersValid = true;
 			long time = Input.getTime();
 
-			LOGGER.debug("RELEASED keychar='" + e.getKeyChar() + "' keycode=0x"
-					+ Integer.toHexString(e.getKeyCode()) + " char='"
-					+ ((char) e.getKeyCode()) + "'");
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("RELEASED keychar='" + e.getKeyChar() + "' keycode=0x"
+						+ Integer.toHexString(e.getKeyCode()) + " char='"
+						+ ((char) e.getKeyCode()) + "'");
+			}
 			if (rdp != null) {
 				if (!input.handleSpecialKeys(time, e, false)) {
-					input.sendKeyPresses(input.newKeyMapper.getKeyStrokes(e));
+					input.sendKeyStrokes(e);
 					// sendScancode(time, RDP_KEYRELEASE, keys.getScancode(e));
 				}
 			}
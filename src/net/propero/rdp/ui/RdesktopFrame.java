@@ -68,6 +68,7 @@ import net.propero.rdp.api.SystemCursorType;
 import net.propero.rdp.keymapping.KeyCode_FileBased;
 import net.propero.rdp.rdp5.VChannels;
 import net.propero.rdp.rdp5.cliprdr.ClipChannel;
+import net.propero.rdp.rdp5.drdynvc.DynVChannel;
 
 /**
  * Window for RDP session
@@ -226,6 +227,8 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 
 	protected final Options options;
 
+	private final DynVChannel dynamicChannels;
+
 	/**
 	 * Create a new RdesktopFrame. Size defined by options.width and
 	 * options.height Creates RdesktopCanvas occupying entire frame
@@ -233,6 +236,7 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 	public RdesktopFrame(Options options) {
 		super();
 		this.options = options;
+		this.dynamicChannels = new DynVChannel(options);
 		this.canvas = new RdesktopCanvas(options, options.width,
 				options.height);
 		add(this.canvas);
@@ -262,6 +266,7 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 		}
 
 		addWindowListener(new RdesktopWindowAdapter());
+		addComponentListener(new RdesktopVisibilityAdapter());
 		canvas.addFocusListener(new RdesktopFocusListener());
 		if (options.os == Options.OS.WINDOWS) {
 			// redraws screen on window move
@@ -327,8 +332,14 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 			canvas.lostFocus();
 		}
 
+		@Override
+		public void windowIconified(WindowEvent e) {
+			outputVisible(false);
+		}
+
 		@Override
 		public void windowDeiconified(WindowEvent e) {
+			outputVisible(true);
 			if (options.os == Options.OS.WINDOWS) {
 				// canvas.repaint();
 				canvas.repaint(0, 0, options.width, options.height);
@@ -357,6 +368,36 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 		}
 	}
 
+	class RdesktopVisibilityAdapter extends ComponentAdapter {
+		@Override
+		public void componentHidden(ComponentEvent e) {
+			outputVisible(false);
+		}
+
+		@Override
+		public void componentShown(ComponentEvent e) {
+			outputVisible(true);
+		}
+	}
+
+	/**
+	 * Pause display updates from the server while the window cannot be seen,
+	 * and resume them when it can
+	 *
+	 * @param visible
+	 *            True if the window has become visible
+	 */
+	private void outputVisible(boolean visible) {
+		if (rdp == null || !options.suppress_output) {
+			return;
+		}
+		if (visible) {
+			rdp.allowOutput();
+		} else {
+			rdp.suppressOutput();
+		}
+	}
+
 	class RdesktopComponentAdapter extends ComponentAdapter {
 		@Override
 		public void componentMoved(ComponentEvent e) {
@@ -584,6 +625,13 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 		return createCustomCursor(wincursor, p, "");
 	}
 
+	@Override
+	public Cursor createCursor(int hotspotX, int hotspotY, int width, int height, int[] argb) {
+		BufferedImage wincursor = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		wincursor.setRGB(0, 0, width, height, argb, 0, width);
+		return createCustomCursor(wincursor, new Point(hotspotX, hotspotY), "");
+	}
+
 	@Override
 	public void setCursor(@Nonnull Object cursor) {
 		if (cursor instanceof Cursor) {
@@ -658,5 +706,19 @@ public class RdesktopFrame extends Frame implements RdesktopCallback {
 		if (options.map_clipboard) {
 			vchannels.register(clipChannel);
 		}
+		if (dynamicChannels.hasListeners()) {
+			vchannels.register(dynamicChannels);
+		}
+	}
+
+	/**
+	 * Get the dynamic channel multiplexer, to add listeners for dynamic
+	 * channels. It is only registered with the server if a listener has been
+	 * added before connecting.
+	 *
+	 * @return The drdynvc channel for this frame
+	 */
+	public DynVChannel getDynamicChannels() {
+		return dynamicChannels;
 	}
 }
@@ -0,0 +1,181 @@
+package net.propero.rdp;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for the RDP 6.0 planar codec, {@link Bitmap#decompressPlanar}.
+ */
+public class PlanarBitmapTest {
+
+	private static final int RLE = 0x10, NA = 0x20;
+
+	@Test
+	public void testRawPlanesNoAlpha() throws RdesktopException {
+		byte[] data = {
+			NA,
+			1, 2, 3, 4, // red, bottom row first
+			5, 6, 7, 8, // green
+			9, 10, 11, 12, // blue
+		};
+
+		int[] pixels = decompress(2, 2, data);
+
+		assertThat(pixels, is(new int[] {
+			0x03070b, 0x04080c,
+			0x010509, 0x02060a }));
+	}
+
+	@Test
+	public void testRawPlanesWithAlpha() throws RdesktopException {
+		byte[] data = {
+			0,
+			(byte) 0xff, (byte) 0x80, 0, 0x7f, // alpha, which is ignored
+			1, 2, 3, 4, // red
+			5, 6, 7, 8, // green
+			9, 10, 11, 12, // blue
+		};
+
+		int[] pixels = decompress(2, 2, data);
+
+		assertThat(pixels, is(new int[] {
+			0x03070b, 0x04080c,
+			0x010509, 0x02060a }));
+	}
+
+	@Test
+	public void testRleRunLengthEscapes() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			// red: 7, then runs of 16 + 2 and 32 + 1 more
+			0x10, 7, 0x21, 0x12,
+			// green: 8, then runs of 16 and 32 more, then 3 raw 9s
+			0x10, 8, 0x01, 0x02, 0x30, 9, 9, 9,
+			// blue: 9, then runs of 16 and 32 more, then 3 raw 10s
+			0x10, 9, 0x01, 0x02, 0x30, 10, 10, 10,
+		};
+
+		int[] pixels = decompress(52, 1, data);
+
+		for (int x = 0; x < 52; x++) {
+			assertThat("Pixel " + x, pixels[x], is((x < 49) ? 0x070809 : 0x07090a));
+		}
+	}
+
+	@Test
+	public void testDeltaScanline() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			// red: bottom row 10, 20 and three more 20s
+			0x23, 10, 20,
+			// top row: +3, -5, then three more -5
+			0x23, 6, 9,
+			// green and blue: zero, as a run of 5 on each row
+			0x05, 0x05,
+			0x05, 0x05,
+		};
+
+		int[] pixels = decompress(5, 2, data);
+
+		assertThat("Top row", slice(pixels, 0, 5), is(new int[] {
+			13 << 16, 15 << 16, 15 << 16, 15 << 16, 15 << 16 }));
+		assertThat("Bottom row", slice(pixels, 5, 5), is(new int[] {
+			10 << 16, 20 << 16, 20 << 16, 20 << 16, 20 << 16 }));
+	}
+
+	@Test
+	public void testDeltaWraps() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			// red: 250, then +10 on the row above, wrapping to 4
+			0x10, (byte) 250,
+			0x10, 20,
+			0x10, 0, 0x10, 0,
+			0x10, 0, 0x10, 0,
+		};
+
+		int[] pixels = decompress(1, 2, data);
+
+		assertThat(pixels, is(new int[] { 4 << 16, 250 << 16 }));
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testScanlineOverrun() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			0x30, 1, 2, 3, // 3 raw values in a scanline of 2
+		};
+
+		decompress(2, 1, data);
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testRunOverrun() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			0x1f, 1, // 1 raw value and a run of 15 in a scanline of 8
+		};
+
+		decompress(8, 1, data);
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testTruncatedRawValues() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			0x40, 1, 2, // 4 raw values, only 2 sent
+		};
+
+		decompress(4, 1, data);
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testTruncatedPlanes() throws RdesktopException {
+		byte[] data = {
+			RLE | NA,
+			0x20, 1, 2, // red only
+		};
+
+		decompress(2, 1, data);
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testTruncatedRawPlanes() throws RdesktopException {
+		byte[] data = {
+			NA,
+			1, 2, 3, 4,
+			5, 6, 7, 8,
+			9, 10, 11, // one byte short
+		};
+
+		decompress(2, 2, data);
+	}
+
+	@Test(expected = RdesktopException.class)
+	public void testUnsupportedFormat() throws RdesktopException {
+		byte[] data = {
+			NA | 0x08, // chroma subsampling
+			0, 0, 0,
+		};
+
+		decompress(1, 1, data);
+	}
+
+	private static int[] decompress(int width, int height, byte[] data)
+			throws RdesktopException {
+		RdpPacket packet = new RdpPacket(data.length);
+		for (byte val : data) {
+			packet.set8(val & 0xFF);
+		}
+		packet.setPosition(0);
+		return Bitmap.decompressPlanar(width, height, data.length, packet);
+	}
+
+	private static int[] slice(int[] pixels, int offset, int length) {
+		int[] row = new int[length];
+		System.arraycopy(pixels, offset, row, 0, length);
+		return row;
+	}
+}
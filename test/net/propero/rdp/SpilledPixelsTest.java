@@ -0,0 +1,156 @@
+package net.propero.rdp;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that pixels deflated by {@link SpilledPixels} inflate back unchanged.
+ */
+public class SpilledPixelsTest {
+
+	/** More than one chunk of bytes, shorts and ints */
+	private static final int LARGE = 100000;
+
+	@Test
+	public void testBytes() {
+		byte[] pixels = new byte[LARGE];
+		new Random(1).nextBytes(pixels);
+
+		SpilledPixels spilled = SpilledPixels.deflate(pixels);
+		byte[] result = new byte[spilled.length()];
+		spilled.inflate(result);
+
+		assertThat(spilled.length(), is(LARGE));
+		assertThat(result, is(pixels));
+	}
+
+	@Test
+	public void testShorts() {
+		Random random = new Random(2);
+		short[] pixels = new short[LARGE];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) random.nextInt();
+		}
+
+		SpilledPixels spilled = SpilledPixels.deflate(pixels);
+		short[] result = new short[spilled.length()];
+		spilled.inflate(result);
+
+		assertThat(spilled.length(), is(LARGE));
+		assertThat(result, is(pixels));
+	}
+
+	@Test
+	public void testInts() {
+		Random random = new Random(3);
+		int[] pixels = new int[LARGE];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+
+		SpilledPixels spilled = SpilledPixels.deflate(pixels);
+		int[] result = new int[spilled.length()];
+		spilled.inflate(result);
+
+		assertThat(spilled.length(), is(LARGE));
+		assertThat(result, is(pixels));
+	}
+
+	@Test
+	public void testCompresses() {
+		SpilledPixels spilled = SpilledPixels.deflate(new int[LARGE]);
+
+		assertThat(spilled.size(), lessThan(LARGE));
+	}
+
+	@Test
+	public void testEmpty() {
+		SpilledPixels bytes = SpilledPixels.deflate(new byte[0]);
+		SpilledPixels shorts = SpilledPixels.deflate(new short[0]);
+		SpilledPixels ints = SpilledPixels.deflate(new int[0]);
+
+		assertThat(bytes.length(), is(0));
+		assertThat(shorts.length(), is(0));
+		assertThat(ints.length(), is(0));
+		bytes.inflate(new byte[0]);
+		shorts.inflate(new short[0]);
+		ints.inflate(new int[0]);
+	}
+
+	@Test
+	public void testStream() {
+		byte[] bytes = { 1, 2, 3 };
+		short[] shorts = { 4, -5 };
+		int[] ints = { 6, -7, 0x12345678 };
+
+		SpilledPixels.Output out = new SpilledPixels.Output();
+		out.write(bytes);
+		out.write(new int[0]);
+		out.write(shorts);
+		out.write(ints);
+		SpilledPixels spilled = out.finish(8);
+
+		SpilledPixels.Input in = spilled.open();
+		byte[] b = new byte[3];
+		short[] s = new short[2];
+		int[] i = new int[3];
+		in.read(b);
+		in.read(new int[0]);
+		in.read(s);
+		in.read(i);
+		in.end();
+
+		assertThat(spilled.length(), is(8));
+		assertThat(b, is(bytes));
+		assertThat(s, is(shorts));
+		assertThat(i, is(ints));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReadPastEnd() {
+		SpilledPixels spilled = SpilledPixels.deflate(new int[4]);
+
+		spilled.inflate(new int[5]);
+	}
+
+	@Test
+	public void testBitmapsSpillTogether() {
+		Options options = new Options();
+		options.server_bpp = 16;
+		byte[] data = new byte[32 * 32 * 3];
+		new Random(4).nextBytes(data);
+		int[] ints = new int[32 * 32];
+		for (int i = 0; i < ints.length; i++) {
+			ints[i] = i * 0x10101;
+		}
+		Bitmap[] bitmaps = {
+			new Bitmap(options, data.clone(), 32, 32, 0, 0, 1),
+			null,
+			new Bitmap(options, data.clone(), 32, 32, 0, 0, 2),
+			new Bitmap(options, data.clone(), 32, 32, 0, 0, 3),
+			new Bitmap(ints, 32, 32, 0, 0),
+		};
+		bitmaps[1] = bitmaps[4]; // the same bitmap in two cells
+		int[][] expected = new int[bitmaps.length][];
+		int[] sizes = new int[bitmaps.length];
+		for (int i = 0; i < bitmaps.length; i++) {
+			expected[i] = bitmaps[i].getBitmapData().clone();
+			sizes[i] = bitmaps[i].getSize();
+		}
+
+		Bitmap.spill(bitmaps);
+
+		for (int i = 0; i < bitmaps.length; i++) {
+			assertThat("Size of bitmap " + i, bitmaps[i].getSize(), is(sizes[i]));
+		}
+		// Using one bitmap restores them all
+		assertThat(bitmaps[3].getBitmapData(), is(expected[3]));
+		for (int i = 0; i < bitmaps.length; i++) {
+			assertThat("Bitmap " + i, bitmaps[i].getBitmapData(), is(expected[i]));
+		}
+	}
+}
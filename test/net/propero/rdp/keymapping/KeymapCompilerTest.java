@@ -0,0 +1,75 @@
+package net.propero.rdp.keymapping;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.tools.KeymapCompiler;
+
+import org.junit.Test;
+
+/**
+ * Verifies that every keymap shipped in resources/keymaps reads back from its
+ * precompiled form exactly as the text parser reads it.
+ */
+public class KeymapCompilerTest {
+
+	private static final File KEYMAPS = new File("resources/keymaps");
+
+	@Test
+	public void testCompiledKeymapsMatchText() throws Exception {
+		File[] sources = KEYMAPS.listFiles();
+		assertThat("No keymaps in " + KEYMAPS.getAbsolutePath(), sources,
+				is(notNullValue()));
+		int checked = 0;
+		for (File source : sources) {
+			if (!source.isFile()) {
+				continue;
+			}
+			checkKeymap(source);
+			checked++;
+		}
+		assertThat(checked, greaterThan(0));
+	}
+
+	private static void checkKeymap(File source) throws Exception {
+		Options options = new Options();
+		KeyCode_FileBased text;
+		try (InputStream in = new FileInputStream(source)) {
+			text = new KeyCode_FileBased(options, in);
+		}
+
+		File compiledFile = File.createTempFile("keymap", KeyCode_FileBased.COMPILED_SUFFIX);
+		File textDump = File.createTempFile("keymap", ".txt");
+		File compiledDump = File.createTempFile("keymap", ".txt");
+		try {
+			KeymapCompiler.compile(source, compiledFile);
+			KeyCode_FileBased compiled;
+			try (InputStream in = new FileInputStream(compiledFile)) {
+				compiled = KeyCode_FileBased.readCompiled(options, in);
+			}
+
+			assertThat("Map code of " + source.getName(), compiled.getMapCode(),
+					is(text.getMapCode()));
+
+			text.writeToFile(textDump.getPath());
+			compiled.writeToFile(compiledDump.getPath());
+			assertThat("Definitions of " + source.getName(), read(compiledDump),
+					is(read(textDump)));
+		} finally {
+			compiledFile.delete();
+			textDump.delete();
+			compiledDump.delete();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
@@ -0,0 +1,385 @@
+package net.propero.rdp.rdp5.drdynvc;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.propero.rdp.Options;
+import net.propero.rdp.RdpPacket;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the drdynvc protocol, feeding {@link DynVChannel#process} PDUs
+ * and checking the PDUs it sends.
+ */
+public class DynVChannelTest {
+
+	/** A drdynvc channel that records the PDUs it sends */
+	private static class RecordingChannel extends DynVChannel {
+		final List<byte[]> sent = new ArrayList<>();
+
+		RecordingChannel() {
+			super(new Options());
+		}
+
+		@Override
+		void send_pdu(byte[] pdu, int length) {
+			sent.add(Arrays.copyOf(pdu, length));
+		}
+	}
+
+	/** A listener that records its events */
+	private static class RecordingListener implements DynamicChannelListener {
+		final List<DynamicChannel> opened = new ArrayList<>();
+		final List<byte[]> received = new ArrayList<>();
+		final List<DynamicChannel> closed = new ArrayList<>();
+
+		@Override
+		public void opened(DynamicChannel channel) {
+			opened.add(channel);
+		}
+
+		@Override
+		public void received(DynamicChannel channel, RdpPacket data) {
+			byte[] message = new byte[data.getEnd() - data.getPosition()];
+			data.copyToByteArray(message, 0, data.getPosition(), message.length);
+			received.add(message);
+		}
+
+		@Override
+		public void closed(DynamicChannel channel) {
+			closed.add(channel);
+		}
+	}
+
+	private RecordingChannel drdynvc;
+
+	private RecordingListener listener;
+
+	@Before
+	public void setUp() {
+		drdynvc = new RecordingChannel();
+		listener = new RecordingListener();
+		drdynvc.addListener("echo", listener);
+	}
+
+	@Test
+	public void testFieldSize() {
+		assertThat(DynVChannel.fieldSize(0), is(0));
+		assertThat(DynVChannel.fieldSize(0xff), is(0));
+		assertThat(DynVChannel.fieldSize(0x100), is(1));
+		assertThat(DynVChannel.fieldSize(0xffff), is(1));
+		assertThat(DynVChannel.fieldSize(0x10000), is(2));
+		assertThat(DynVChannel.fieldSize(-1), is(2));
+		assertThat(DynVChannel.fieldLength(0), is(1));
+		assertThat(DynVChannel.fieldLength(1), is(2));
+		assertThat(DynVChannel.fieldLength(2), is(4));
+	}
+
+	@Test
+	public void testPutField() {
+		byte[] pdu = new byte[8];
+		assertThat(DynVChannel.putField(pdu, 1, 2, 0x12345678), is(5));
+		assertThat(pdu, is(bytes(0, 0x78, 0x56, 0x34, 0x12, 0, 0, 0)));
+		assertThat(DynVChannel.putField(pdu, 5, 1, 0xabcd), is(7));
+		assertThat(pdu, is(bytes(0, 0x78, 0x56, 0x34, 0x12, 0xcd, 0xab, 0)));
+	}
+
+	@Test
+	public void testHeader() {
+		byte[] pdu = new byte[8];
+		assertThat(DynVChannel.header(pdu, DynVChannel.CMD_DATA, 0, 7), is(2));
+		assertThat(Arrays.copyOf(pdu, 2), is(bytes(0x30, 7)));
+
+		assertThat(DynVChannel.header(pdu, DynVChannel.CMD_DATA_FIRST, 1, 0x1234), is(3));
+		assertThat(Arrays.copyOf(pdu, 3), is(bytes(0x25, 0x34, 0x12)));
+
+		assertThat(DynVChannel.header(pdu, DynVChannel.CMD_CLOSE, 0, 0x10000), is(5));
+		assertThat(Arrays.copyOf(pdu, 5), is(bytes(0x42, 0, 0, 1, 0)));
+	}
+
+	@Test
+	public void testCapabilityResponse() throws Exception {
+		drdynvc.process(packet(0x50, 0, 3, 0)); // version 3
+
+		assertThat(drdynvc.version(), is(2));
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x50, 0, 2, 0)));
+
+		drdynvc.process(packet(0x50, 0, 1, 0)); // version 1
+
+		assertThat(drdynvc.version(), is(1));
+		assertThat(drdynvc.sent.get(1), is(bytes(0x50, 0, 1, 0)));
+	}
+
+	@Test
+	public void testCreateAccepted() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x10, 5, 0, 0, 0, 0)));
+		assertThat(listener.opened, hasSize(1));
+		assertThat(listener.opened.get(0).id(), is(5));
+		assertThat(listener.opened.get(0).name(), is("echo"));
+		assertTrue(listener.opened.get(0).isOpen());
+	}
+
+	@Test
+	public void testCreateRefused() throws Exception {
+		drdynvc.process(packet(0x11, 0x34, 0x12, 'o', 't', 'h', 'e', 'r', 0));
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x11, 0x34, 0x12,
+				0x01, 0, 0, 0xc0)));
+		assertThat(listener.opened, is(empty()));
+	}
+
+	@Test
+	public void testData() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x30, 5, 'h', 'i'));
+
+		assertThat(listener.received, hasSize(1));
+		assertThat(listener.received.get(0), is(bytes('h', 'i')));
+	}
+
+	@Test
+	public void testDataForUnknownChannel() throws Exception {
+		drdynvc.process(packet(0x30, 9, 'h', 'i'));
+
+		assertThat(listener.received, is(empty()));
+		assertThat(drdynvc.sent, is(empty()));
+	}
+
+	@Test
+	public void testReassembly() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x20, 5, 7, 'a', 'b', 'c'));
+		drdynvc.process(packet(0x30, 5, 'd', 'e'));
+
+		assertThat(listener.received, is(empty()));
+
+		drdynvc.process(packet(0x30, 5, 'f', 'g'));
+
+		assertThat(listener.received, hasSize(1));
+		assertThat(listener.received.get(0), is(bytes('a', 'b', 'c', 'd', 'e', 'f', 'g')));
+
+		// The next message is not part of the first
+		drdynvc.process(packet(0x30, 5, 'h'));
+
+		assertThat(listener.received, hasSize(2));
+		assertThat(listener.received.get(1), is(bytes('h')));
+	}
+
+	@Test
+	public void testReassemblyTwoByteLength() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		int[] first = new int[4 + 0x100];
+		first[0] = 0x24;
+		first[1] = 5;
+		first[2] = 0x01; // length 0x101
+		first[3] = 0x01;
+		for (int i = 4; i < first.length; i++) {
+			first[i] = i;
+		}
+		drdynvc.process(packet(first));
+		drdynvc.process(packet(0x30, 5, 0xee));
+
+		assertThat(listener.received, hasSize(1));
+		byte[] message = listener.received.get(0);
+		assertThat(message.length, is(0x101));
+		assertThat(message[0], is((byte) 4));
+		assertThat(message[0x100], is((byte) 0xee));
+	}
+
+	@Test
+	public void testReassemblyOverrun() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x20, 5, 4, 'a', 'b', 'c'));
+		drdynvc.process(packet(0x30, 5, 'd', 'e', 'f'));
+
+		// Everything received is delivered, as one message
+		assertThat(listener.received, hasSize(1));
+		assertThat(listener.received.get(0), is(bytes('a', 'b', 'c', 'd', 'e', 'f')));
+
+		drdynvc.process(packet(0x30, 5, 'g'));
+
+		assertThat(listener.received, hasSize(2));
+		assertThat(listener.received.get(1), is(bytes('g')));
+	}
+
+	@Test
+	public void testIncompleteMessageReplaced() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x20, 5, 10, 'a', 'b', 'c'));
+		drdynvc.process(packet(0x20, 5, 2, 'x'));
+		drdynvc.process(packet(0x30, 5, 'y'));
+
+		assertThat(listener.received, hasSize(1));
+		assertThat(listener.received.get(0), is(bytes('x', 'y')));
+	}
+
+	@Test
+	public void testLargeMessage() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		int total = 0x30000;
+		int[] first = new int[6 + 1000];
+		first[0] = 0x28; // four-byte length
+		first[1] = 5;
+		first[4] = 0x03; // length 0x30000
+		for (int i = 6; i < first.length; i++) {
+			first[i] = i - 6;
+		}
+		drdynvc.process(packet(first));
+		for (int sent = 1000; sent < total; sent += 1600) {
+			int[] next = new int[2 + Math.min(1600, total - sent)];
+			next[0] = 0x30;
+			next[1] = 5;
+			for (int i = 2; i < next.length; i++) {
+				next[i] = sent + i - 2;
+			}
+			drdynvc.process(packet(next));
+		}
+
+		assertThat(listener.received, hasSize(1));
+		byte[] message = listener.received.get(0);
+		assertThat(message.length, is(total));
+		for (int i = 0; i < total; i++) {
+			assertThat("Byte " + i, message[i], is((byte) i));
+		}
+
+		drdynvc.process(packet(0x20, 5, 2, 'x'));
+		drdynvc.process(packet(0x30, 5, 'y'));
+
+		assertThat(listener.received, hasSize(2));
+		assertThat(listener.received.get(1), is(bytes('x', 'y')));
+	}
+
+	@Test
+	public void testOverstatedLength() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x28, 5, 0xff, 0xff, 0xff, 0x7f, 'a'));
+		drdynvc.process(packet(0x20, 5, 2, 'x'));
+		drdynvc.process(packet(0x30, 5, 'y'));
+
+		assertThat(listener.received, hasSize(1));
+		assertThat(listener.received.get(0), is(bytes('x', 'y')));
+	}
+
+	@Test
+	public void testSendSplitsLargeMessages() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.sent.clear();
+		byte[] message = new byte[4000];
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte) (i * 7);
+		}
+
+		listener.opened.get(0).send(message, 0, message.length);
+
+		assertThat(drdynvc.sent, hasSize(3));
+		byte[] first = drdynvc.sent.get(0);
+		assertThat(first.length, is(DynVChannel.DYNVC_PDU_LENGTH));
+		assertThat(Arrays.copyOf(first, 4), is(bytes(0x24, 5, 0xa0, 0x0f)));
+		byte[] joined = Arrays.copyOfRange(first, 4, first.length);
+		for (int i = 1; i < drdynvc.sent.size(); i++) {
+			byte[] pdu = drdynvc.sent.get(i);
+			assertThat(Arrays.copyOf(pdu, 2), is(bytes(0x30, 5)));
+			assertThat(pdu.length, lessThanOrEqualTo(DynVChannel.DYNVC_PDU_LENGTH));
+			int start = joined.length;
+			joined = Arrays.copyOf(joined, start + pdu.length - 2);
+			System.arraycopy(pdu, 2, joined, start, pdu.length - 2);
+		}
+		assertThat(joined, is(message));
+	}
+
+	@Test
+	public void testSendSmallMessage() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.sent.clear();
+
+		listener.opened.get(0).send(bytes('h', 'i'), 0, 2);
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x30, 5, 'h', 'i')));
+	}
+
+	@Test
+	public void testCloseFromServer() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.sent.clear();
+		DynamicChannel channel = listener.opened.get(0);
+
+		drdynvc.process(packet(0x40, 5));
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x40, 5)));
+		assertThat(listener.closed, hasSize(1));
+		assertFalse(channel.isOpen());
+
+		// Closing again does nothing
+		drdynvc.process(packet(0x40, 5));
+		channel.close();
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(listener.closed, hasSize(1));
+	}
+
+	@Test
+	public void testCloseFromClient() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.sent.clear();
+
+		listener.opened.get(0).close();
+
+		assertThat(drdynvc.sent, hasSize(1));
+		assertThat(drdynvc.sent.get(0), is(bytes(0x40, 5)));
+		assertThat(listener.closed, hasSize(1));
+	}
+
+	@Test(expected = IOException.class)
+	public void testSendAfterClose() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		DynamicChannel channel = listener.opened.get(0);
+		drdynvc.process(packet(0x40, 5));
+
+		channel.send(bytes('h', 'i'), 0, 2);
+	}
+
+	@Test
+	public void testCapabilitiesCloseOpenChannels() throws Exception {
+		drdynvc.process(packet(0x10, 5, 'e', 'c', 'h', 'o', 0));
+		drdynvc.process(packet(0x50, 0, 2, 0));
+
+		assertThat(listener.closed, hasSize(1));
+		assertFalse(listener.opened.get(0).isOpen());
+	}
+
+	/**
+	 * Creates a packet containing the given (unsigned) bytes, positioned at
+	 * the start and ending after them
+	 */
+	private static RdpPacket packet(int... data) {
+		RdpPacket packet = new RdpPacket(data.length);
+		for (int val : data) {
+			packet.set8(val);
+		}
+		packet.markEnd();
+		packet.setPosition(0);
+		return packet;
+	}
+
+	private static byte[] bytes(int... data) {
+		byte[] array = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			array[i] = (byte) data[i];
+		}
+		return array;
+	}
+}